@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.ZorkaSubmitter;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.spy.ltracer.LTracer;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.spy.stracer.STracer;
+
+import static com.jitlogic.zorka.core.AgentConfigProps.*;
+
+/**
+ * Utility functions for setting up agent components outside of agent instance.
+ */
+public class BenchUtil {
+
+    public static final String STREAMING = "streaming";
+    public static final String LOCAL = "local";
+
+    /**
+     * Creates tracer with output that discards all submitted traces. Streaming
+     * tracer output returns submitted chunks to buffer manager, so that buffers
+     * are recycled as they would be by real output.
+     *
+     * @param type tracer type (streaming or local)
+     * @param symbols symbol registry
+     * @return tracer
+     */
+    public static Tracer tracer(String type, SymbolRegistry symbols) {
+        if (STREAMING.equals(type)) {
+            final STraceBufManager bufManager = new STraceBufManager(TRACER_CHUNK_SIZE_DEFV, TRACER_CHUNK_MAX_DEFV);
+            STracer tracer = new STracer(new ZorkaConfig(), null, symbols, null, bufManager);
+            tracer.addOutput(new ZorkaSubmitter<SymbolicRecord>() {
+                @Override
+                public boolean submit(SymbolicRecord item) {
+                    bufManager.put((STraceBufChunk) item);
+                    return true;
+                }
+            });
+            return tracer;
+        } else if (LOCAL.equals(type)) {
+            LTracer tracer = new LTracer(null, symbols, null);
+            tracer.addOutput(new ZorkaSubmitter<SymbolicRecord>() {
+                @Override
+                public boolean submit(SymbolicRecord item) {
+                    return true;
+                }
+            });
+            return tracer;
+        } else {
+            throw new IllegalArgumentException("Invalid tracer type: " + type);
+        }
+    }
+
+    /**
+     * Creates exception with realistic (but fixed) stack trace.
+     */
+    public static Throwable exception() {
+        Exception e = new RuntimeException("Benchmark exception");
+        StackTraceElement[] stack = new StackTraceElement[24];
+        for (int i = 0; i < stack.length; i++) {
+            stack[i] = new StackTraceElement("com.jitlogic.zorka.bench.TestClass", "method" + i,
+                    "TestClass.java", 100 + i);
+        }
+        e.setStackTrace(stack);
+        return e;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.collector.MemoryChunkStore;
+import com.jitlogic.zorka.common.collector.TraceChunkData;
+import com.jitlogic.zorka.common.collector.TraceChunkSearchQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares memory chunk store searches planned against store indexes with full linear
+ * scans of store contents (as done before indexes were introduced). Store is filled
+ * with 1M chunks with a few attributes each. Indexed path is measured with sequential
+ * and parallel query evaluation (parallel evaluation needs multiple CPUs to make a difference).
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g" })
+public class ChunkStoreSearchBenchmark {
+
+    @Param({ "1000000" })
+    public int nchunks;
+
+    /** Search path: indexed (MemoryChunkStore.search()) or scan (linear scan over all chunks). */
+    @Param({ "indexed", "scan" })
+    public String path;
+
+    /** Number of query evaluation threads (indexed path only). */
+    @Param({ "1", "4" })
+    public int threads;
+
+    private MemoryChunkStore store;
+
+    private TraceChunkSearchQuery qRecent, qTimeRange, qTraceId, qAttr, qDuration, qText;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        store = new MemoryChunkStore(Long.MAX_VALUE, 256L * 1024 * 1024);
+
+        String[] components = { "db", "http", "jms", "ejb" };
+        String[] uris = new String[1000];
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = "/app/page" + i;
+        }
+
+        Random rand = new Random(42);
+        List<TraceChunkData> batch = new ArrayList<TraceChunkData>(1000);
+
+        for (int i = 0; i < nchunks; i++) {
+            TraceChunkData c = new TraceChunkData(i, 0, 0, i + 1, 0);
+            c.setTstamp(1000L * i + rand.nextInt(2000));
+            c.setDuration(rand.nextInt(10000));
+            c.setKlass("com.example.SomeClass");
+            c.setMethod("someMethod");
+            c.setAttr("component", components[i % components.length]);
+            c.setAttr("uri", uris[rand.nextInt(uris.length)]);
+            batch.add(c);
+            if (batch.size() == 1000) {
+                store.addAll(batch);
+                batch.clear();
+            }
+        }
+        store.addAll(batch);
+        store.setThreads(threads);
+
+        qRecent = new TraceChunkSearchQuery();
+
+        qTimeRange = new TraceChunkSearchQuery();
+        qTimeRange.setMinTstamp(1000L * nchunks / 2);
+        qTimeRange.setMaxTstamp(1000L * nchunks / 2 + 100000);
+
+        qTraceId = new TraceChunkSearchQuery().withTraceId(String.format("%016x", nchunks / 3));
+
+        qAttr = new TraceChunkSearchQuery().withAttr("uri", "/app/page42");
+
+        qDuration = new TraceChunkSearchQuery();
+        qDuration.setSortByDuration(true);
+        qDuration.setMinDuration(9990);
+
+        // Full text search with rare matches (no index can be used)
+        qText = new TraceChunkSearchQuery();
+        qText.setText("page999");
+    }
+
+    /** Linear scan (reference implementation, equivalent to search before introducing indexes). */
+    private List<TraceChunkData> scan(TraceChunkSearchQuery q) {
+        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>(1024);
+
+        for (TraceChunkData c : store.getChunks()) {
+            if (q.matches(c)) rslt.add(c);
+        }
+
+        if (q.getOffset() >= rslt.size()) return Collections.emptyList();
+
+        if (q.isSortByDuration()) {
+            Collections.sort(rslt, new Comparator<TraceChunkData>() {
+                @Override
+                public int compare(TraceChunkData o1, TraceChunkData o2) {
+                    if (o1.getDuration() < o2.getDuration()) return -1;
+                    if (o1.getDuration() > o2.getDuration()) return 1;
+                    return 0;
+                }
+            });
+            return rslt.subList(q.getOffset(), Math.min(rslt.size(), q.getOffset()+q.getLimit()));
+        } else {
+            return rslt.subList(Math.max(0, rslt.size()-q.getOffset()-q.getLimit()), rslt.size()-q.getOffset());
+        }
+    }
+
+    private List<TraceChunkData> search(TraceChunkSearchQuery q) {
+        return "indexed".equals(path) ? store.search(q) : scan(q);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> recent() {
+        return search(qRecent);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> timeRange() {
+        return search(qTimeRange);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> traceId() {
+        return search(qTraceId);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> attr() {
+        return search(qAttr);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> duration() {
+        return search(qDuration);
+    }
+
+    @Benchmark
+    public List<TraceChunkData> text() {
+        return search(qText);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.core.spy.ClassMatchIndex;
+import com.jitlogic.zorka.core.spy.PatternMatcherSet;
+import com.jitlogic.zorka.core.spy.SpyMatcher;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Measures cost of class name matching against large number of spy definitions (as done by class
+ * transformer for each loaded class). Synthetic class names and matcher sets resemble those of real
+ * applications and scripts: package masks, exact class names, suffix masks and some interface matchers.
+ * Each operation matches whole class list, so ns/op should be divided by number of classes.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassMatchingBenchmark {
+
+    /** Number of synthetic class names matched in each operation. */
+    public static final int NCLASSES = 30000;
+
+    /** Number of matcher sets (spy definitions). */
+    @Param({ "50", "500" })
+    public int nsets;
+
+    private static final String[] PKGS = {
+            "com", "org", "net", "io", "javax", "jitlogic", "apache", "spring", "hibernate", "zorka",
+            "web", "core", "util", "http", "jdbc", "servlet", "catalina", "impl", "internal", "model",
+    };
+
+    private static final String[] NAMES = {
+            "Service", "Servlet", "Filter", "Handler", "Controller", "Repository", "Dao", "Impl", "Factory",
+            "Manager", "Util", "Builder", "Connection", "Statement", "Request", "Response", "Valve", "Bean",
+    };
+
+    private String[] classNames;
+
+    private List<List<SpyMatcher>> matcherSets;
+
+    private PatternMatcherSet[] sets;
+
+    private ClassMatchIndex<PatternMatcherSet> index;
+
+    private List<PatternMatcherSet> found = new ArrayList<PatternMatcherSet>();
+
+    private static String pkg(Random rand, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            if (i > 0) {
+                sb.append('.');
+            }
+            sb.append(PKGS[rand.nextInt(PKGS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String cls(Random rand) {
+        return NAMES[rand.nextInt(NAMES.length)] + NAMES[rand.nextInt(NAMES.length)];
+    }
+
+    private static SpyMatcher matcher(Random rand) {
+        int r = rand.nextInt(20);
+        if (r == 0) {
+            return new SpyMatcher(BY_INTERFACE | BY_METHOD_NAME, 1, "javax.servlet.Filter", "doFilter", null);
+        } else if (r < 5) {
+            return new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1,
+                    pkg(rand, 2 + rand.nextInt(3)) + ".**", "*", null);
+        } else if (r < 10) {
+            return new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1,
+                    pkg(rand, 2 + rand.nextInt(2)) + ".*" + NAMES[rand.nextInt(NAMES.length)], "*", null);
+        } else if (r < 12) {
+            return new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1,
+                    "**" + NAMES[rand.nextInt(NAMES.length)], "*", null).exclude();
+        } else {
+            return new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1,
+                    pkg(rand, 3 + rand.nextInt(2)) + "." + cls(rand), "*", null);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random rand = new Random(42);
+
+        classNames = new String[NCLASSES];
+        for (int i = 0; i < NCLASSES; i++) {
+            String c = pkg(rand, 2 + rand.nextInt(4)) + "." + cls(rand);
+            classNames[i] = rand.nextInt(8) == 0 ? c + "$" + rand.nextInt(10) : c;
+        }
+
+        matcherSets = new ArrayList<List<SpyMatcher>>();
+        sets = new PatternMatcherSet[nsets];
+        List<PatternMatcherSet> owners = new ArrayList<PatternMatcherSet>();
+
+        for (int i = 0; i < nsets; i++) {
+            int n = 1 + rand.nextInt(3);
+            SpyMatcher[] ms = new SpyMatcher[n];
+            for (int j = 0; j < n; j++) {
+                ms[j] = matcher(rand);
+            }
+            sets[i] = new PatternMatcherSet(ms);
+            owners.add(sets[i]);
+            matcherSets.add(sets[i].getMatchers());
+        }
+
+        index = new ClassMatchIndex<PatternMatcherSet>(owners, matcherSets);
+    }
+
+    /**
+     * Linear scan evaluating regular expressions of all matchers (as class transformer did before).
+     */
+    @Benchmark
+    public void linearRegexScan(Blackhole bh) {
+        for (String className : classNames) {
+            for (List<SpyMatcher> matchers : matcherSets) {
+                for (SpyMatcher m : matchers) {
+                    if (m.hasFlags(BY_CLASS_NAME) && m.getClassPattern().matcher(className).matches()) {
+                        bh.consume(ClassMatchIndex.classMatchResult(m));
+                        break;
+                    }
+                    if (m.hasFlags(BY_INTERFACE)) {
+                        bh.consume(ClassMatchIndex.classMatchResult(m));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Matching class names with per-set (compiled) PatternMatcherSet.classMatch().
+     */
+    @Benchmark
+    public void perSetMatch(Blackhole bh) {
+        for (String className : classNames) {
+            for (PatternMatcherSet set : sets) {
+                bh.consume(set.classMatch(className));
+            }
+        }
+    }
+
+    /**
+     * Matching class names with single index covering all matcher sets (as class transformer does).
+     */
+    @Benchmark
+    public void combinedIndexMatch(Blackhole bh) {
+        for (String className : classNames) {
+            found.clear();
+            index.match(className, found);
+            bh.consume(found.size());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.cbor.CborDataWriter;
+import com.jitlogic.zorka.common.cbor.TraceDataWriter;
+import com.jitlogic.zorka.common.collector.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures collector trace ingestion: default path (data re-encoded, gzipped and symbols
+ * extracted separately for each chunk) versus block mode (data compressed once in blocks,
+ * indexed in single pass). Ingested trace is about 1MB of CBOR data with 4000 embedded
+ * spans, so per-chunk costs dominate in default mode. Trace extraction of single embedded
+ * span is measured as well (gunzip of whole chunk vs decompression of overlapping blocks),
+ * along with method statistics extraction from whole trace.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectorIngestBenchmark {
+
+    @Param({ "gzip", "blocks" })
+    public String mode;
+
+    private byte[] agentData, traceData;
+
+    private Collector collector;
+
+    private List<TraceChunkData> chunks;
+
+    private TraceChunkData top, span;
+
+    private static class DiscardingStore implements TraceChunkStore {
+        private List<TraceChunkData> last;
+
+        @Override
+        public void add(TraceChunkData tcd) {
+            last = Collections.singletonList(tcd);
+        }
+
+        @Override
+        public void addAll(List<TraceChunkData> tcds) {
+            last = tcds;
+        }
+
+        @Override
+        public List<TraceChunkData> search(TraceChunkSearchQuery q) {
+            return last;
+        }
+    }
+
+    private DiscardingStore store = new DiscardingStore();
+
+    private static byte[] agentData() {
+        CborDataWriter cbw = new CborDataWriter(4096, 4096);
+        TraceDataWriter tdw = new TraceDataWriter(cbw);
+        tdw.stringRef(1, "component");
+        tdw.stringRef(2, "http");
+        tdw.stringRef(3, "db");
+        tdw.stringRef(4, "()V");
+        tdw.stringRef(5, "query");
+        for (int i = 0; i < 50; i++) {
+            tdw.stringRef(100 + i, "com.example.app.SomeClass" + i);
+            tdw.stringRef(200 + i, "someMethod" + i);
+            tdw.methodRef(300 + i, 100 + i, 200 + i, 4);
+        }
+        return cbw.toByteArray();
+    }
+
+    private static long calls(TraceDataWriter tdw, long t, int depth, int span) {
+        tdw.traceStart(0, t, 300 + (depth * 7 + span) % 50);
+        if (depth == 1) {
+            tdw.traceBegin(1000 + span, 3, 0x1000L + span, 0);
+            tdw.traceAttr(1, "db");
+            tdw.traceAttr(5, "SELECT * FROM TABLE" + span % 100 + " WHERE ID = ?");
+        }
+        long c = 0;
+        if (depth < 3) {
+            for (int i = 0; i < 3; i++) {
+                t += 10;
+                t = calls(tdw, t, depth + 1, span);
+                c += 1;
+            }
+        }
+        tdw.traceEnd(0, t + 10, c, 0);
+        return t + 10;
+    }
+
+    private static byte[] traceData() {
+        CborDataWriter cbw = new CborDataWriter(2 * 1024 * 1024, 1024 * 1024);
+        TraceDataWriter tdw = new TraceDataWriter(cbw);
+        long t = 0;
+        tdw.traceStart(0, t, 300);
+        tdw.traceBegin(1000, 2, 0x42L, 0);
+        tdw.traceAttr(1, "http");
+        for (int span = 0; span < 4000; span++) {
+            t = calls(tdw, t + 10, 1, span);
+        }
+        tdw.traceEnd(0, t + 10, 4000 * 13, 0);
+        return cbw.toByteArray();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        agentData = agentData();
+        traceData = traceData();
+        collector = new Collector(store, false, "blocks".equals(mode));
+        collector.handleAgentData("1", true, agentData);
+        ingest();
+        chunks = new ArrayList<TraceChunkData>(store.last);
+        top = chunks.get(chunks.size() - 1);
+        span = chunks.get(chunks.size() / 2);
+        System.out.println("Trace data: " + traceData.length + " bytes, " + chunks.size() + " chunks, top chunk size: "
+            + top.size() + " bytes.");
+    }
+
+    @Benchmark
+    public List<TraceChunkData> ingest() {
+        collector.handleTraceData("1", "0000000000000042", 0, traceData);
+        return store.last;
+    }
+
+    @Benchmark
+    public TraceDataResult extractSpan() {
+        return TraceDataExtractingProcessor.extractTrace(Collections.singletonList(span));
+    }
+
+    @Benchmark
+    public TraceDataResult extractTop() {
+        return TraceDataExtractingProcessor.extractTrace(Collections.singletonList(top));
+    }
+
+    @Benchmark
+    public Collection<TraceStatsResult> statsTop() {
+        return TraceStatsExtractingProcessor.extractStats(Collections.singletonList(top));
+    }
+}
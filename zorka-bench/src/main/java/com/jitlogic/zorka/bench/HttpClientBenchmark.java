@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.http.*;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of small POST requests sent by multiple threads through shared
+ * HttpClient to local NioHttpServer. Server handler adds fixed latency (emulating network
+ * round trip and collector processing time), so throughput depends mostly on number of
+ * requests client keeps in flight (pool size, pipelining) and not on number of CPUs.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class HttpClientBenchmark {
+
+    /** Maximum number of client connections */
+    @Param({ "1", "4" })
+    public int poolSize;
+
+    @Param({ "false", "true" })
+    public boolean pipelining;
+
+    /** Server side latency (microseconds) */
+    @Param({ "500" })
+    public int latency;
+
+    private NioHttpServer server;
+
+    private ExecutorService executor;
+
+    private HttpClient client;
+
+    private byte[] body = new byte[256];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(16);
+        server = new NioHttpServer("bench", "127.0.0.1", 0, new HttpConfig(),
+            new HttpHandler() {
+                @Override
+                public HttpMessage handle(HttpMessage req) {
+                    long t = System.nanoTime() + latency * 1000L;
+                    while (System.nanoTime() < t) {
+                        try {
+                            Thread.sleep(0, 100000);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    return HttpMessage.RESP(200, "OK");
+                }
+            }, executor);
+        server.start();
+
+        HttpConfig config = new HttpConfig();
+        config.setMaxConnections(poolSize);
+        config.setPipelining(pipelining);
+        client = new HttpClient(config, "http://127.0.0.1:" + server.getLocalPort(), new MethodCallStatistics());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        server.stop();
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int post() {
+        return client.handle(HttpMessage.POST("/submit", body)).getStatus();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.spy.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.jitlogic.zorka.core.spy.SpyLib.*;
+
+/**
+ * Measures cost of spy probe submissions going through MainSubmitter and DispatchingSubmitter
+ * (record creation, submission stack handling and processing chains).
+ *
+ * Run with gc profiler (-prof gc) to see allocation rates.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpySubmitBenchmark {
+
+    /** Tracer type: probes disable tracer for the time of submission, so its type matters. */
+    @Param({ BenchUtil.STREAMING, BenchUtil.LOCAL })
+    public String tracerType;
+
+    private SpyContext ctxImmediate, ctxEnterReturn;
+
+    /**
+     * Processor type: map (plain SpyProcessor, records cannot be reused) or record (SpyRecordProcessor).
+     */
+    @Param({ "map", "record" })
+    public String processorType;
+
+    private Object[] vals1 = { 1L }, vals2 = { 2L };
+
+    private static class BlackholeProcessor implements SpyProcessor {
+        protected Blackhole bh;
+
+        @Override
+        public Map<String, Object> process(Map<String, Object> record) {
+            bh.consume(record);
+            return record;
+        }
+    }
+
+    private static class BlackholeRecordProcessor extends BlackholeProcessor implements SpyRecordProcessor {
+        @Override
+        public SpyRecord process(SpyRecord record) {
+            bh.consume(record);
+            return record;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole bh) {
+        BlackholeProcessor processor = "record".equals(processorType)
+                ? new BlackholeRecordProcessor() : new BlackholeProcessor();
+        processor.bh = bh;
+
+        SymbolRegistry symbols = new SymbolRegistry();
+        Tracer tracer = BenchUtil.tracer(tracerType, symbols);
+
+        SpyClassTransformer transformer = new SpyClassTransformer(symbols, tracer, null, new ZorkaConfig(),
+                new MethodCallStatistics(), new DummySpyRetransformer(null, null));
+
+        SpyDefinition sdef1 = transformer.add(SpyDefinition.instance("immediate")
+                .onEnter(new SpyTimeProbe("T1")).onSubmit(processor));
+        ctxImmediate = transformer.lookup(new SpyContext(sdef1, "com.jitlogic.zorka.bench.TestClass",
+                "immediate", "()V", 1));
+
+        SpyDefinition sdef2 = transformer.add(SpyDefinition.instrument("enterReturn").onSubmit(processor));
+        ctxEnterReturn = transformer.lookup(new SpyContext(sdef2, "com.jitlogic.zorka.bench.TestClass",
+                "enterReturn", "()V", 1));
+
+        MainSubmitter.setTracer(tracer);
+        MainSubmitter.setSubmitter(new DispatchingSubmitter(transformer));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MainSubmitter.setSubmitter(null);
+        MainSubmitter.setTracer(null);
+    }
+
+    @Benchmark
+    public void submitImmediate() {
+        MainSubmitter.submit(ON_ENTER, ctxImmediate.getId(), SF_IMMEDIATE, vals1);
+    }
+
+    @Benchmark
+    public void submitEnterReturn() {
+        MainSubmitter.submit(ON_ENTER, ctxEnterReturn.getId(), SF_NONE, vals1);
+        MainSubmitter.submit(ON_RETURN, ctxEnterReturn.getId(), SF_FLUSH, vals2);
+    }
+
+    @Benchmark
+    public void submitEnterError() {
+        MainSubmitter.submit(ON_ENTER, ctxEnterReturn.getId(), SF_NONE, vals1);
+        MainSubmitter.submit(ON_ERROR, ctxEnterReturn.getId(), SF_FLUSH, vals2);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures symbol registry lookups of already registered symbols and methods (as done by tracer
+ * and collector). Each operation looks up all symbols (or methods) registered in setup.
+ *
+ * Run with gc profiler (-prof gc) to see allocation rates.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolRegistryBenchmark {
+
+    /** Number of registered methods (each method has its own class, method and signature symbol). */
+    @Param({ "1000", "100000" })
+    public int nmethods;
+
+    private SymbolRegistry registry;
+
+    private String[] names;
+
+    private int[] mids, cids, mnids, sids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new SymbolRegistry();
+        names = new String[nmethods];
+        mids = new int[nmethods];
+        cids = new int[nmethods];
+        mnids = new int[nmethods];
+        sids = new int[nmethods];
+
+        for (int i = 0; i < nmethods; i++) {
+            names[i] = new String("com.jitlogic.zorka.bench.SomeClass" + i);
+            cids[i] = registry.symbolId(names[i]);
+            mnids[i] = registry.symbolId("method" + i);
+            sids[i] = registry.symbolId("(I)V" + i);
+            mids[i] = registry.methodId(cids[i], mnids[i], sids[i]);
+        }
+    }
+
+    @Benchmark
+    public int symbolId() {
+        int rslt = 0;
+        for (String name : names) {
+            rslt += registry.symbolId(name);
+        }
+        return rslt;
+    }
+
+    @Benchmark
+    public int symbolName() {
+        int rslt = 0;
+        for (int cid : cids) {
+            rslt += registry.symbolName(cid).length();
+        }
+        return rslt;
+    }
+
+    @Benchmark
+    public int methodId() {
+        int rslt = 0;
+        for (int i = 0; i < nmethods; i++) {
+            rslt += registry.methodId(cids[i], mnids[i], sids[i]);
+        }
+        return rslt;
+    }
+
+    @Benchmark
+    public int methodClassId() {
+        int rslt = 0;
+        for (int mid : mids) {
+            rslt += registry.methodClassId(mid);
+        }
+        return rslt;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.Tracer;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of tracer probes (as called from instrumented code via MainSubmitter) for both
+ * streaming (STraceHandler) and local (LTraceHandler) tracer on shallow, deep and exception-heavy
+ * call trees. Each operation is one top-level call with all its nested calls, so ns/op should be
+ * divided by number of calls in tree to get per-probe cost.
+ *
+ * Run with gc profiler (-prof gc) to see allocation rates.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracerProbeBenchmark {
+
+    /** Number of nested calls in deep call tree. */
+    public static final int DEEP_CALLS = 16;
+
+    /** Number of nested calls in error call tree (exception passes through all of them). */
+    public static final int ERROR_CALLS = 4;
+
+    /** Tracer type: streaming or local. */
+    @Param({ BenchUtil.STREAMING, BenchUtil.LOCAL })
+    public String tracerType;
+
+    /**
+     * Trace mode: untraced (no trace marker), traced (trace marker on top frame, every trace is
+     * submitted) or fast (trace marker set but all methods are below minimum method time and get
+     * filtered out).
+     */
+    @Param({ "untraced", "traced", "fast" })
+    public String mode;
+
+    private Tracer tracer;
+
+    private int traceId;
+
+    private int[] mids;
+
+    private boolean traced;
+
+    private Throwable[] errors;
+
+    private int errIdx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        traced = !"untraced".equals(mode);
+
+        // Streaming tracer reads minimum method time when handler is created, so it has to be set first.
+        TraceHandler.setMinMethodTime("traced".equals(mode) ? 0 : TraceHandler.DEFAULT_MIN_METHOD_TIME);
+
+        SymbolRegistry symbols = new SymbolRegistry();
+        tracer = BenchUtil.tracer(tracerType, symbols);
+
+        traceId = symbols.symbolId("BENCH");
+
+        mids = new int[DEEP_CALLS+1];
+        for (int i = 0; i < mids.length; i++) {
+            mids[i] = symbols.methodId("com.jitlogic.zorka.bench.TestClass", "method" + i, "()V");
+        }
+
+        // Two exceptions are used alternately, so tracer will not treat them as the same (already serialized) one.
+        errors = new Throwable[] { BenchUtil.exception(), BenchUtil.exception() };
+
+        MainSubmitter.setTracer(tracer);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MainSubmitter.setTracer(null);
+        TraceHandler.setMinMethodTime(TraceHandler.DEFAULT_MIN_METHOD_TIME);
+    }
+
+    private void begin() {
+        MainSubmitter.traceEnter(mids[0]);
+        if (traced) {
+            TraceHandler handler = tracer.getHandler();
+            handler.traceBegin(traceId, System.currentTimeMillis(), 0);
+            if (!"fast".equals(mode)) {
+                handler.setMinimumTraceTime(0);
+            }
+        }
+    }
+
+    private void calls(int depth) {
+        MainSubmitter.traceEnter(mids[depth]);
+        if (depth > 1) {
+            calls(depth-1);
+        }
+        MainSubmitter.traceReturn();
+    }
+
+    /**
+     * Emulates exception passing through instrumented methods. Exception is not really thrown,
+     * so only probe overhead is measured, not JVM exception handling.
+     */
+    private void errors(int depth, Throwable e) {
+        MainSubmitter.traceEnter(mids[depth]);
+        if (depth > 1) {
+            errors(depth-1, e);
+        }
+        MainSubmitter.traceError(e);
+    }
+
+    @Benchmark
+    public void shallowCallTree() {
+        begin();
+        calls(1);
+        MainSubmitter.traceReturn();
+    }
+
+    @Benchmark
+    public void deepCallTree() {
+        begin();
+        calls(DEEP_CALLS);
+        MainSubmitter.traceReturn();
+    }
+
+    @Benchmark
+    public void errorCallTree() {
+        Throwable e = errors[errIdx ^= 1];
+        begin();
+        errors(ERROR_CALLS, e);
+        MainSubmitter.traceError(e);
+    }
+}
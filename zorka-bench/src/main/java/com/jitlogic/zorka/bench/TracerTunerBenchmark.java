@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.bench;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.spy.ltracer.LTraceHandler;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
+import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of tracer tuning probe (TraceHandler.tuningProbe()) including periodic stats
+ * exchanges with tracer tuner thread. Run with multiple threads (-t) to see contention effects
+ * and with gc profiler (-prof gc) to see allocation rates.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class TracerTunerBenchmark {
+
+    /** Number of distinct methods reported by each thread. */
+    public static final int METHODS = 256;
+
+    @State(Scope.Benchmark)
+    public static class TunerState {
+
+        /** Number of probe calls between stats exchanges. */
+        @Param({ "1024", "65536" })
+        public long exchangeCalls;
+
+        private TracerTuner tuner;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Properties props = new Properties();
+            props.setProperty("tracer.tuner.auto", "no");
+            tuner = new TracerTuner(new ZorkaConfig(props), new SymbolRegistry(), null, null);
+            tuner.start();
+
+            TraceHandler.setTuningEnabled(true);
+            TraceHandler.setTuningExchangeMinCalls(exchangeCalls);
+            TraceHandler.setTuningDefaultExchInterval(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            tuner.stop();
+            TraceHandler.setTuningEnabled(false);
+            TraceHandler.setTuningExchangeMinCalls(TraceHandler.TUNING_EXCHANGE_CALLS_DEFV);
+            TraceHandler.setTuningDefaultExchInterval(TraceHandler.TUNING_DEFAULT_EXCH_INTERVAL);
+        }
+    }
+
+    /** Exposes tuning probe of local trace handler. */
+    private static class ProbeHandler extends LTraceHandler {
+        private ProbeHandler(TracerTuner tuner) {
+            super(null, null, tuner);
+        }
+
+        private void probe(int mid, long tstamp, long ttime) {
+            tuningProbe(mid, tstamp, ttime);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HandlerState {
+
+        private ProbeHandler handler;
+
+        private int mid;
+
+        private long tstamp;
+
+        @Setup(Level.Trial)
+        public void setUp(TunerState ts) {
+            handler = new ProbeHandler(ts.tuner);
+        }
+    }
+
+    @Benchmark
+    public void tuningProbe(HandlerState hs) {
+        hs.mid = (hs.mid + 1) & (METHODS - 1);
+        hs.handler.probe(hs.mid + 1, hs.tstamp += 1000, 1000);
+    }
+}
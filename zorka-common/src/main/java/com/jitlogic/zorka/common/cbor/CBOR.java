@@ -16,6 +16,8 @@
 
 package com.jitlogic.zorka.common.cbor;
 
+import java.nio.charset.Charset;
+
 /**
  *
  */
@@ -91,6 +93,9 @@ public class CBOR {
 
     public static final int BREAK_CODE = 0xff;
 
+    /** CBOR text strings are always encoded in UTF-8. */
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static final Object BREAK = new Object();
     public static final Object UNKNOWN = new Object();
 
@@ -140,7 +140,7 @@ public class CborDataReader {
             }
             throw new ZorkaRuntimeException("Expected string data but got type=" + type + " (v=" + peek() + ")");
         }
-        return new String(readBytes());
+        return new String(readBytes(), UTF8);
     }
 
     public int readTag() {
@@ -151,6 +151,15 @@ public class CborDataReader {
         return readInt();
     }
 
+    /** Reads big endian number of given length (without CBOR header). */
+    private long readRawLong(int len) {
+        long v = 0;
+        for (int i = 0; i < len; i++) {
+            v = (v << 8) | input.readL();
+        }
+        return v;
+    }
+
     public int peek() {
         return input.peekB() & 0xff;
     }
@@ -179,14 +188,15 @@ public class CborDataReader {
                     List<Object> lst = new ArrayList<Object>();
                     read();
                     while (peek() != BREAK_CODE) {
-                        lst.add(read());
+                        lst.add(readObj());
                     }
+                    read();
                     return lst;
                 } else {
                     int len = readInt();
                     List<Object> lst = new ArrayList<Object>(len);
                     for (int i = 0; i < len; i++) {
-                        lst.add(read());
+                        lst.add(readObj());
                     }
                     return lst;
                 }
@@ -196,12 +206,13 @@ public class CborDataReader {
                 if (peek == MAP_VCODE) {
                     read();
                     while (peek() != BREAK_CODE) {
-                        m.put(read(), read());
+                        m.put(readObj(), readObj());
                     }
+                    read();
                 } else {
                     int len = readInt();
                     for (int i = 0; i < len; i++) {
-                        m.put(read(), read());
+                        m.put(readObj(), readObj());
                     }
                 }
                 return m;
@@ -212,6 +223,8 @@ public class CborDataReader {
             case SIMPLE_BASE: {
                 read();
                 switch (peek) {
+                    case FLOAT_BASE4: return Float.intBitsToFloat((int)readRawLong(4));
+                    case FLOAT_BASE8: return Double.longBitsToDouble(readRawLong(8));
                     case FALSE_CODE: return false;
                     case TRUE_CODE: return true;
                     case NULL_CODE: return null;
@@ -167,7 +167,7 @@ public class CborDataWriter {
 
     public void writeString(String s) {
         if (s != null) {
-            byte[] b = s.getBytes();
+            byte[] b = s.getBytes(UTF8);
             write(CBOR.STR_BASE, b.length);
             write(b);
         } else {
@@ -15,10 +15,21 @@ import static com.jitlogic.zorka.common.collector.SymbolDataExtractor.extractSym
 
 public class AgentSession {
 
-    private SymbolRegistry agentSymbols = new SymbolRegistry();
+    private SymbolDictionary agentSymbols = new SymbolDictionary();
 
     private volatile long tstamp = System.currentTimeMillis();
 
+    /** If true, trace data is stored block compressed as received instead of being re-encoded and gzipped per chunk. */
+    private final boolean blockMode;
+
+    public AgentSession() {
+        this(false);
+    }
+
+    public AgentSession(boolean blockMode) {
+        this.blockMode = blockMode;
+    }
+
     public SymbolRegistry getRegistry() {
         return agentSymbols;
     }
@@ -32,6 +43,10 @@ public class AgentSession {
     public synchronized void handleTraceData(byte[] data, String traceId, int chunkNum, TraceChunkStore store) {
         long tid1 = new BigInteger(traceId.substring(0,16), 16).longValue();
         long tid2 = (traceId.length() > 16) ? new BigInteger(traceId.substring(16), 16).longValue() : 0L;
+        if (blockMode) {
+            handleTraceBlocks(data, tid1, tid2, chunkNum, store);
+            return;
+        }
         TraceChunkData tcd = new TraceChunkData(tid1, tid2, 0, 0, chunkNum); // TODO continuation here
         CborDataWriter cbw = new CborDataWriter(data.length+1024, 4096);
         TraceDataWriter tdw = new TraceDataWriter(cbw);
@@ -46,6 +61,19 @@ public class AgentSession {
         tstamp = System.currentTimeMillis();
     }
 
+    /**
+     * Single pass ingestion: data is compressed once (in blocks) and parsed once, all chunks
+     * refer to ranges of shared block data and to session symbol dictionary.
+     */
+    private void handleTraceBlocks(byte[] data, long tid1, long tid2, int chunkNum, TraceChunkStore store) {
+        TraceDataBlocks blocks = TraceDataBlocks.compress(data);
+        TraceMetadataIndexer tme = new TraceMetadataIndexer(agentSymbols, blocks);
+        tme.init(tid1, tid2, chunkNum);
+        new TraceDataReader(new CborDataReader(data), tme).run();
+        store.addAll(tme.getChunks());
+        tstamp = System.currentTimeMillis();
+    }
+
     public long getTstamp() {
         return tstamp;
     }
@@ -18,6 +18,8 @@ public class Collector {
 
     private boolean skipAgentData;
 
+    private boolean blockMode;
+
     private AtomicLong agdCount = new AtomicLong();
     private AtomicLong trcCount = new AtomicLong();
 
@@ -26,9 +28,18 @@ public class Collector {
         this.store = chunkStore;
     }
 
+    /**
+     * @param blockMode if true, incoming trace data is stored block compressed as received
+     *                  (see TraceDataBlocks) instead of being re-encoded and gzipped per chunk
+     */
+    public Collector(TraceChunkStore chunkStore, boolean skipAgentData, boolean blockMode) {
+        this(chunkStore, skipAgentData);
+        this.blockMode = blockMode;
+    }
+
     public AgentSession getSession(String sessionId, boolean reset) {
         if (reset) {
-            sessions.put(sessionId, new AgentSession());
+            sessions.put(sessionId, new AgentSession(blockMode));
         }
         return sessions.get(sessionId);
     }
@@ -3,6 +3,11 @@ package com.jitlogic.zorka.common.collector;
 import com.jitlogic.zorka.common.http.HttpHandler;
 import com.jitlogic.zorka.common.http.HttpMessage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.InflaterInputStream;
+
 public class CollectorLocalClient implements HttpHandler {
 
     private Collector collector;
@@ -27,21 +32,42 @@ public class CollectorLocalClient implements HttpHandler {
         }
     }
 
-    private HttpMessage handleSubmitAgd(HttpMessage req) {
+    private HttpMessage handleSubmitAgd(HttpMessage req) throws IOException {
         String sessionId = req.getHeader("X-Zorka-Session-ID");
         String sessionReset = req.getHeader("X-Zorka-Session-Reset");
         if (sessionId == null) return HttpMessage.RESP(400, "Missing header: X-Zorka-Session-ID");
-        collector.handleAgentData(sessionId, "true".equalsIgnoreCase(sessionReset), req.getBody());
+        collector.handleAgentData(sessionId, "true".equalsIgnoreCase(sessionReset), body(req));
         return HttpMessage.RESP(200, "OK");
     }
 
-    private HttpMessage handleSubmitTrc(HttpMessage req) {
+    private HttpMessage handleSubmitTrc(HttpMessage req) throws IOException {
         String sessionId = req.getHeader("X-Zorka-Session-ID");
         String traceId = req.getHeader("X-Zorka-Trace-ID");
         if (sessionId == null) return HttpMessage.RESP(400, "Missing header: X-Zorka-Session-ID");
-        collector.handleTraceData(sessionId, traceId, 0, req.getBody()); // TODO chunk num as header (or 0)
+        collector.handleTraceData(sessionId, traceId, 0, body(req)); // TODO chunk num as header (or 0)
         return HttpMessage.RESP(200, "OK");
     }
 
+    /** Returns request body (produces streamed body and decompresses deflated body if necessary). */
+    private static byte[] body(HttpMessage req) throws IOException {
+        byte[] body = req.getBody();
+
+        if (req.getBodyProducer() != null) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            req.getBodyProducer().write(os);
+            body = os.toByteArray();
+        }
+
+        if (body != null && "deflate".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+            InflaterInputStream is = new InflaterInputStream(new ByteArrayInputStream(body));
+            ByteArrayOutputStream os = new ByteArrayOutputStream(body.length * 4);
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf)) {
+                os.write(buf, 0, n);
+            }
+            body = os.toByteArray();
+        }
 
+        return body;
+    }
 }
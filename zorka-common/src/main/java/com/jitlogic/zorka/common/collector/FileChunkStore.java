@@ -0,0 +1,854 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.collector;
+
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import static com.jitlogic.zorka.common.util.ZorkaUtil.GB;
+import static com.jitlogic.zorka.common.util.ZorkaUtil.MB;
+
+/**
+ * File backed implementation of trace chunk store. Chunks (along with their trace and
+ * symbol data) are appended to segment files, each segment has its own memory mapped
+ * index with fixed width metadata records, so searches can filter chunks without
+ * reading segment data. Retention works on whole segments: oldest segments are removed
+ * when store exceeds its maximum size or when they're older than maximum age.
+ *
+ * Segment files start with a header (magic, version) followed by records (length, CRC32,
+ * encoded chunk). Index files contain 64-byte entries (trace ID, span ID, parent ID,
+ * timestamp, duration, record offset, record length, flags). Index is written after
+ * record is appended, so when store is reopened, index of every segment is checked
+ * against segment data and missing entries are rebuilt from records. Torn records at
+ * the end of segment (eg. after crash) are truncated.
+ *
+ * Chunks referring to agent session symbol dictionaries (see SymbolDictionary) store only
+ * dictionary ID and version, dictionaries themselves are persisted incrementally in separate
+ * symbols file (records with the same framing as segment records, each containing dictionary
+ * ID, range of dictionary entries and CBOR encoded entries). Dictionary entries are always
+ * written before chunks referring to them.
+ *
+ * Store is not synced to disk after every chunk, use flush() where needed.
+ */
+public class FileChunkStore implements TraceChunkStore, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(FileChunkStore.class);
+
+    /** "ZTRS" */
+    public static final int MAGIC = 0x5a545253;
+
+    public static final int VERSION = 1;
+
+    public static final String SEG_SUFFIX = ".seg";
+
+    public static final String IDX_SUFFIX = ".idx";
+
+    public static final String SYM_FILE = "symbols.dat";
+
+    private static final int SEG_HEADER = 8;
+
+    private static final int REC_HEADER = 8;
+
+    private static final int IDX_ENTRY = 64;
+
+    /** Index files are extended in steps of this many entries. */
+    private static final int IDX_EXTENT = 4096;
+
+    private final File dir;
+
+    private long maxSize = 4 * GB;
+    private long maxAge;
+    private long segmentSize = 64 * MB;
+
+    private long curSize;
+
+    private volatile Segment[] segments = new Segment[0];
+
+    private Segment active;
+
+    /** Symbol dictionaries referred by stored chunks (looked up by searching threads) */
+    private final Map<Long,SymbolDictionary> dictionaries = new ConcurrentHashMap<Long,SymbolDictionary>();
+
+    /** Number of persisted entries of each dictionary */
+    private final Map<Long,Integer> persisted = new HashMap<Long,Integer>();
+
+    private RandomAccessFile symRaf;
+
+    private FileChannel symCh;
+
+    public FileChunkStore(File dir) {
+        this(dir, 4 * GB, 0, 64 * MB);
+    }
+
+    /**
+     * @param dir store directory (will be created if it does not exist)
+     * @param maxSize maximum store size (bytes)
+     * @param maxAge maximum age of segments (milliseconds since last write, 0 - unlimited)
+     * @param segmentSize segment size (bytes) - segment is closed when it would exceed this size
+     */
+    public FileChunkStore(File dir, long maxSize, long maxAge, long segmentSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.segmentSize = segmentSize;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new ZorkaRuntimeException("Cannot create chunk store directory: " + dir);
+        }
+
+        try {
+            open();
+        } catch (IOException e) {
+            throw new ZorkaRuntimeException("Cannot open chunk store " + dir + ": " + e.getMessage(), e);
+        }
+
+        log.info("Initialized file store: dir={}, segments={}, size={}, maxSize={}, maxAge={}, segmentSize={}",
+            dir, segments.length, curSize, maxSize, maxAge, segmentSize);
+    }
+
+    private synchronized void open() throws IOException {
+        openSymbols();
+
+        List<Long> ids = new ArrayList<Long>();
+
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEG_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(0, name.length() - SEG_SUFFIX.length()), 16));
+                    } catch (NumberFormatException e) {
+                        log.warn("Skipping unknown file in chunk store: {}", name);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(ids);
+
+        List<Segment> segs = new ArrayList<Segment>();
+        for (long id : ids) {
+            Segment seg = new Segment(id);
+            seg.recover();
+            segs.add(seg);
+            curSize += seg.size;
+        }
+
+        if (segs.isEmpty()) {
+            Segment seg = new Segment(1);
+            segs.add(seg);
+            curSize += seg.size;
+        }
+
+        segments = segs.toArray(new Segment[segs.size()]);
+        active = segments[segments.length-1];
+    }
+
+    /**
+     * Loads symbol dictionaries from symbols file. Everything past last valid record is truncated.
+     */
+    private void openSymbols() throws IOException {
+        File f = new File(dir, SYM_FILE);
+        symRaf = new RandomAccessFile(f, "rw");
+        symCh = symRaf.getChannel();
+
+        if (symCh.size() < SEG_HEADER) {
+            ByteBuffer hdr = ByteBuffer.allocate(SEG_HEADER);
+            hdr.putInt(MAGIC).putInt(VERSION).flip();
+            symCh.truncate(0);
+            symCh.write(hdr, 0);
+        }
+
+        ByteBuffer hdr = ByteBuffer.allocate(SEG_HEADER);
+        symCh.read(hdr, 0);
+        if (hdr.getInt(0) != MAGIC || hdr.getInt(4) != VERSION) {
+            throw new IOException("Invalid chunk store symbols file: " + f);
+        }
+
+        long len = symCh.size(), pos = SEG_HEADER;
+        ByteBuffer rh = ByteBuffer.allocate(REC_HEADER);
+
+        while (pos + REC_HEADER <= len) {
+            rh.clear();
+            symCh.read(rh, pos);
+            int plen = rh.getInt(0);
+            if (plen <= 0 || pos + REC_HEADER + plen > len) break;
+            byte[] payload = new byte[plen];
+            symCh.read(ByteBuffer.wrap(payload), pos + REC_HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int)crc.getValue() != rh.getInt(4)) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            long id = in.readLong();
+            int from = in.readInt(), to = in.readInt();
+            SymbolDictionary dict = dictionaries.get(id);
+            if (dict == null) {
+                dict = new SymbolDictionary(id);
+                dictionaries.put(id, dict);
+            }
+            if (dict.version() == from) {
+                dict.decode(readBytes(in));
+                persisted.put(id, to);
+            } else {
+                log.warn("Skipping out of order symbols record in {}: dict={}, from={}, version={}",
+                    f, id, from, dict.version());
+            }
+
+            pos += REC_HEADER + plen;
+        }
+
+        if (pos < len) {
+            log.warn("Truncating chunk store symbols file {}: {} -> {}", f, len, pos);
+            symCh.truncate(pos);
+        }
+    }
+
+    /**
+     * Appends dictionary entries not persisted yet (up to given version) to symbols file.
+     */
+    private void persistSymbols(SymbolDictionary dict, int version) throws IOException {
+        Integer p = persisted.get(dict.getId());
+        int from = p != null ? p : 0;
+
+        if (!dictionaries.containsKey(dict.getId())) {
+            dictionaries.put(dict.getId(), dict);
+        }
+
+        if (version <= from) return;
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(0); // placeholder for record header
+        out.writeLong(dict.getId());
+        out.writeInt(from);
+        out.writeInt(version);
+        writeBytes(out, dict.encode(from, version));
+        out.flush();
+
+        byte[] rec = bos.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(rec, REC_HEADER, rec.length - REC_HEADER);
+        ByteBuffer b = ByteBuffer.wrap(rec);
+        b.putInt(rec.length - REC_HEADER).putInt((int)crc.getValue()).rewind();
+
+        long pos = symCh.size();
+        while (b.hasRemaining()) {
+            pos += symCh.write(b, pos);
+        }
+
+        persisted.put(dict.getId(), version);
+    }
+
+    @Override
+    public synchronized void add(TraceChunkData tcd) {
+        tcd.setParent(null);
+
+        byte[] rec = encode(tcd);
+
+        try {
+            if (tcd.getSymbols() != null) {
+                persistSymbols(tcd.getSymbols(), tcd.getSymbolsVersion());
+            }
+            if (active.count > 0 && active.size + rec.length > segmentSize) {
+                roll();
+            }
+            active.append(rec, tcd);
+            curSize += rec.length;
+        } catch (IOException e) {
+            throw new ZorkaRuntimeException("Cannot write chunk to store " + dir + ": " + e.getMessage(), e);
+        }
+
+        if (curSize > maxSize) {
+            cleanup(System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public synchronized void addAll(List<TraceChunkData> tcds) {
+        for (TraceChunkData tcd : tcds) {
+            add(tcd);
+        }
+    }
+
+    private void roll() throws IOException {
+        active.flush();
+
+        Segment seg = new Segment(active.id + 1);
+        curSize += seg.size;
+
+        Segment[] segs = Arrays.copyOf(segments, segments.length + 1);
+        segs[segs.length-1] = seg;
+        segments = segs;
+        active = seg;
+
+        cleanup(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes oldest segments if store is too big or segments are too old. Active segment is never removed.
+     *
+     * @param tstamp current time
+     *
+     * @return number of removed segments
+     */
+    public synchronized int cleanup(long tstamp) {
+        int n = 0;
+
+        while (n < segments.length - 1) {
+            Segment seg = segments[n];
+            if (curSize > maxSize || (maxAge > 0 && seg.segFile.lastModified() < tstamp - maxAge)) {
+                curSize -= seg.size;
+                n++;
+            } else {
+                break;
+            }
+        }
+
+        if (n > 0) {
+            Segment[] old = segments;
+            segments = Arrays.copyOfRange(old, n, old.length);
+            for (int i = 0; i < n; i++) {
+                log.info("Removing chunk store segment: {} (size={}, chunks={})", old[i].segFile, old[i].size, old[i].count);
+                old[i].delete();
+            }
+        }
+
+        return n;
+    }
+
+    @Override
+    public List<TraceChunkData> search(TraceChunkSearchQuery q) {
+        Segment[] segs = segments;
+
+        if (q.isSortByDuration()) {
+            return searchByDuration(segs, q);
+        }
+
+        // Scan backwards, so only requested page is fetched from segments
+        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>();
+        int skip = q.getOffset();
+
+        for (int s = segs.length-1; s >= 0 && rslt.size() < q.getLimit(); s--) {
+            Segment seg = segs[s];
+            for (int i = seg.count-1; i >= 0 && rslt.size() < q.getLimit(); i--) {
+                if (!seg.matches(i, q)) continue;
+                TraceChunkData c = null;
+                if (q.hasContentCriteria()) {
+                    c = seg.read(i);
+                    if (c == null || !q.matchesContent(c)) continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                if (c == null) c = seg.read(i);
+                if (c != null) rslt.add(c);
+            }
+        }
+
+        Collections.reverse(rslt);
+
+        return rslt;
+    }
+
+    private List<TraceChunkData> searchByDuration(Segment[] segs, TraceChunkSearchQuery q) {
+        List<long[]> refs = new ArrayList<long[]>(1024);
+
+        for (int s = 0; s < segs.length; s++) {
+            Segment seg = segs[s];
+            for (int i = 0; i < seg.count; i++) {
+                if (!seg.matches(i, q)) continue;
+                if (q.hasContentCriteria()) {
+                    TraceChunkData c = seg.read(i);
+                    if (c == null || !q.matchesContent(c)) continue;
+                }
+                refs.add(new long[] { seg.duration(i), s, i });
+            }
+        }
+
+        if (q.getOffset() >= refs.size()) return Collections.emptyList();
+
+        Collections.sort(refs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                if (o1[0] < o2[0]) return -1;
+                if (o1[0] > o2[0]) return 1;
+                return 0;
+            }
+        });
+
+        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>();
+
+        for (long[] r : refs.subList(q.getOffset(), Math.min(refs.size(), q.getOffset() + q.getLimit()))) {
+            TraceChunkData c = segs[(int)r[1]].read((int)r[2]);
+            if (c != null) rslt.add(c);
+        }
+
+        return rslt;
+    }
+
+    /** Returns number of chunks */
+    public int length() {
+        int n = 0;
+        for (Segment seg : segments) {
+            n += seg.count;
+        }
+        return n;
+    }
+
+    /** Returns number of segments */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /** Returns store size (bytes) */
+    public synchronized long getSize() {
+        return curSize;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /** Forces written data to disk. */
+    public synchronized void flush() {
+        try {
+            symCh.force(false);
+            active.flush();
+        } catch (IOException e) {
+            log.error("Cannot flush chunk store " + dir, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        for (Segment seg : segments) {
+            seg.close();
+        }
+        segments = new Segment[0];
+        try {
+            symRaf.close();
+        } catch (IOException e) {
+            log.error("Error closing chunk store symbols file in " + dir, e);
+        }
+    }
+
+    /**
+     * Single segment of chunk store: data file and its index. Segments are appended
+     * only by store (under store lock), searching threads read index entries up to
+     * count published by writer.
+     */
+    private class Segment {
+
+        private final long id;
+
+        private final File segFile, idxFile;
+
+        private final RandomAccessFile segRaf, idxRaf;
+
+        private final FileChannel segCh, idxCh;
+
+        private volatile MappedByteBuffer idx;
+
+        private volatile int count;
+
+        private long size;
+
+        private Segment(long id) throws IOException {
+            this.id = id;
+            this.segFile = new File(dir, String.format("%016x", id) + SEG_SUFFIX);
+            this.idxFile = new File(dir, String.format("%016x", id) + IDX_SUFFIX);
+            this.segRaf = new RandomAccessFile(segFile, "rw");
+            this.idxRaf = new RandomAccessFile(idxFile, "rw");
+            this.segCh = segRaf.getChannel();
+            this.idxCh = idxRaf.getChannel();
+
+            if (segCh.size() < SEG_HEADER) {
+                ByteBuffer hdr = ByteBuffer.allocate(SEG_HEADER);
+                hdr.putInt(MAGIC).putInt(VERSION).flip();
+                segCh.truncate(0);
+                segCh.write(hdr, 0);
+                idxCh.truncate(0);
+            }
+
+            this.size = SEG_HEADER;
+
+            long cap = Math.max(idxCh.size() / IDX_ENTRY, IDX_EXTENT);
+            this.idx = idxCh.map(FileChannel.MapMode.READ_WRITE, 0, cap * IDX_ENTRY);
+        }
+
+        /**
+         * Checks index against segment data: keeps consistent index entries and rebuilds
+         * missing ones from records. Everything past last valid record is truncated.
+         */
+        private void recover() throws IOException {
+            ByteBuffer hdr = ByteBuffer.allocate(SEG_HEADER);
+            segCh.read(hdr, 0);
+            if (hdr.getInt(0) != MAGIC || hdr.getInt(4) != VERSION) {
+                throw new IOException("Invalid chunk store segment: " + segFile);
+            }
+
+            long len = segCh.size();
+            long pos = SEG_HEADER;
+            int n = 0;
+
+            while (n < capacity()) {
+                int rlen = idx.getInt(n * IDX_ENTRY + 56);
+                if (rlen < REC_HEADER || idx.getLong(n * IDX_ENTRY + 48) != pos || pos + rlen > len) break;
+                pos += rlen;
+                n++;
+            }
+
+            int indexed = n;
+            ByteBuffer rh = ByteBuffer.allocate(REC_HEADER);
+
+            while (pos + REC_HEADER <= len) {
+                rh.clear();
+                segCh.read(rh, pos);
+                int plen = rh.getInt(0);
+                if (plen <= 0 || pos + REC_HEADER + plen > len) break;
+                byte[] payload = new byte[plen];
+                segCh.read(ByteBuffer.wrap(payload), pos + REC_HEADER);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int)crc.getValue() != rh.getInt(4)) break;
+                TraceChunkData c = decode(payload);
+                index(n, pos, REC_HEADER + plen, c);
+                pos += REC_HEADER + plen;
+                n++;
+            }
+
+            if (pos < len) {
+                log.warn("Truncating chunk store segment {}: {} -> {}", segFile, len, pos);
+                segCh.truncate(pos);
+            }
+
+            if (n > indexed) {
+                log.info("Rebuilt {} index entries of chunk store segment {}", n - indexed, segFile);
+            }
+
+            for (int i = n; i < capacity() && idx.getInt(i * IDX_ENTRY + 56) != 0; i++) {
+                idx.putInt(i * IDX_ENTRY + 56, 0);
+            }
+
+            size = pos;
+            count = n;
+        }
+
+        private int capacity() {
+            return idx.capacity() / IDX_ENTRY;
+        }
+
+        private void index(int n, long pos, int rlen, TraceChunkData c) throws IOException {
+            if (n >= capacity()) {
+                idx = idxCh.map(FileChannel.MapMode.READ_WRITE, 0, (long)(capacity() + IDX_EXTENT) * IDX_ENTRY);
+            }
+
+            MappedByteBuffer b = idx;
+            int p = n * IDX_ENTRY;
+            b.putLong(p, c.getTraceId1());
+            b.putLong(p + 8, c.getTraceId2());
+            b.putLong(p + 16, c.getSpanId());
+            b.putLong(p + 24, c.getParentId());
+            b.putLong(p + 32, c.getTstamp());
+            b.putLong(p + 40, c.getDuration());
+            b.putLong(p + 48, pos);
+            b.putInt(p + 60, c.getFlags());
+            b.putInt(p + 56, rlen);
+        }
+
+        private void append(byte[] rec, TraceChunkData c) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(rec);
+            long pos = size;
+            while (b.hasRemaining()) {
+                pos += segCh.write(b, pos);
+            }
+            index(count, size, rec.length, c);
+            size = pos;
+            count++;
+        }
+
+        private boolean matches(int i, TraceChunkSearchQuery q) {
+            MappedByteBuffer b = idx;
+            int p = i * IDX_ENTRY;
+            return q.matches(b.getLong(p), b.getLong(p + 8), b.getLong(p + 16), b.getLong(p + 24),
+                b.getInt(p + 60), b.getLong(p + 32), b.getLong(p + 40));
+        }
+
+        private long duration(int i) {
+            return idx.getLong(i * IDX_ENTRY + 40);
+        }
+
+        private TraceChunkData read(int i) {
+            MappedByteBuffer b = idx;
+            long pos = b.getLong(i * IDX_ENTRY + 48);
+            int rlen = b.getInt(i * IDX_ENTRY + 56);
+
+            try {
+                ByteBuffer buf = ByteBuffer.allocate(rlen - REC_HEADER);
+                while (buf.hasRemaining()) {
+                    if (segCh.read(buf, pos + REC_HEADER + buf.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                return decode(buf.array());
+            } catch (IOException e) {
+                // Segment might have been removed by retention in the meantime
+                log.debug("Cannot read chunk from segment " + segFile, e);
+                return null;
+            }
+        }
+
+        private void flush() throws IOException {
+            segCh.force(false);
+            idx.force();
+        }
+
+        private void close() {
+            try {
+                segRaf.close();
+                idxRaf.close();
+            } catch (IOException e) {
+                log.error("Error closing chunk store segment " + segFile, e);
+            }
+        }
+
+        private void delete() {
+            close();
+            if (!segFile.delete() || !idxFile.delete()) {
+                log.warn("Cannot remove chunk store segment: " + segFile);
+            }
+        }
+    }
+
+    /**
+     * Encodes chunk as segment record (record header included).
+     */
+    static byte[] encode(TraceChunkData c) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512 + (c.getTraceData() != null ? c.getTraceData().length : 0)
+            + (c.getSymbolData() != null ? c.getSymbolData().length : 0));
+        DataOutputStream out = new DataOutputStream(bos);
+
+        try {
+            out.writeLong(0); // placeholder for record header
+
+            out.writeLong(c.getTraceId1());
+            out.writeLong(c.getTraceId2());
+            out.writeLong(c.getSpanId());
+            out.writeLong(c.getParentId());
+            out.writeInt(c.getChunkNum());
+            out.writeInt(c.getTsNum());
+            out.writeInt(c.getFlags());
+            out.writeLong(c.getTstamp());
+            out.writeLong(c.getDuration());
+            out.writeInt(c.getStartOffs());
+            out.writeInt(c.getStackDepth());
+            out.writeInt(c.getTtypeId());
+            writeString(out, c.getTtype());
+            out.writeInt(c.getCalls());
+            out.writeInt(c.getErrors());
+            out.writeInt(c.getRecs());
+            out.writeLong(c.getTstart());
+            out.writeLong(c.getTstop());
+            writeString(out, c.getKlass());
+            writeString(out, c.getMethod());
+
+            Map<String,String> attrs = c.getAttrs();
+            out.writeInt(attrs.size());
+            for (Map.Entry<String,String> e : attrs.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+            }
+
+            Set<Integer> methods = c.getMethods();
+            out.writeInt(methods.size());
+            for (Integer m : methods) {
+                out.writeInt(m);
+            }
+
+            writeException(out, c.getException());
+            writeBytes(out, c.getTraceData());
+            writeBytes(out, c.getSymbolData());
+            writeBlocks(out, c);
+            out.writeBoolean(c.getSymbols() != null);
+            if (c.getSymbols() != null) {
+                out.writeLong(c.getSymbols().getId());
+                out.writeInt(c.getSymbolsVersion());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new ZorkaRuntimeException("Cannot encode trace chunk", e);
+        }
+
+        byte[] rec = bos.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(rec, REC_HEADER, rec.length - REC_HEADER);
+        ByteBuffer.wrap(rec).putInt(rec.length - REC_HEADER).putInt((int)crc.getValue());
+
+        return rec;
+    }
+
+    /**
+     * Decodes chunk from record payload (symbol dictionaries are looked up in this store).
+     */
+    private TraceChunkData decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long tid1 = in.readLong(), tid2 = in.readLong(), sid = in.readLong(), pid = in.readLong();
+        TraceChunkData c = new TraceChunkData(tid1, tid2, pid, sid, in.readInt());
+
+        c.setTsNum(in.readInt());
+        c.setFlags(in.readInt());
+        c.setTstamp(in.readLong());
+        c.setDuration(in.readLong());
+        c.setStartOffs(in.readInt());
+        c.setStackDepth(in.readInt());
+        c.setTtypeId(in.readInt());
+        c.setTtype(readString(in));
+        c.setCalls(in.readInt());
+        c.setErrors(in.readInt());
+        c.setRecs(in.readInt());
+        c.setTstart(in.readLong());
+        c.setTstop(in.readLong());
+        c.setKlass(readString(in));
+        c.setMethod(readString(in));
+
+        for (int i = in.readInt(); i > 0; i--) {
+            c.setAttr(readString(in), readString(in));
+        }
+
+        for (int i = in.readInt(); i > 0; i--) {
+            c.addMethod(in.readInt());
+        }
+
+        c.setException(readException(in));
+        c.setTraceData(readBytes(in));
+        c.setSymbolData(readBytes(in));
+
+        if (in.available() > 0) {
+            readBlocks(in, c);
+        }
+
+        if (in.available() > 0 && in.readBoolean()) {
+            long id = in.readLong();
+            int version = in.readInt();
+            SymbolDictionary dict = dictionaries.get(id);
+            if (dict != null) {
+                c.setSymbols(dict, version);
+            } else {
+                log.warn("Missing symbol dictionary {} in chunk store {}", id, dir);
+            }
+        }
+
+        return c;
+    }
+
+    /** Stores only blocks overlapping chunk data (blocks are copied as they are, without recompression). */
+    private static void writeBlocks(DataOutputStream out, TraceChunkData c) throws IOException {
+        TraceDataBlocks blocks = c.getTraceBlocks();
+        out.writeBoolean(blocks != null);
+        if (blocks != null) {
+            TraceDataBlocks slice = blocks.slice(c.getTraceOffs(), c.getTraceLen());
+            out.writeInt(slice.getBlockSize());
+            out.writeInt(slice.getLength());
+            out.writeInt(slice.getOffsets().length);
+            for (int o : slice.getOffsets()) {
+                out.writeInt(o);
+            }
+            writeBytes(out, slice.getData());
+            out.writeInt(c.getTraceOffs() % blocks.getBlockSize());
+            out.writeInt(c.getTraceLen());
+        }
+    }
+
+    private static void readBlocks(DataInputStream in, TraceChunkData c) throws IOException {
+        if (!in.readBoolean()) return;
+        int blockSize = in.readInt(), length = in.readInt();
+        int[] offsets = new int[in.readInt()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = in.readInt();
+        }
+        byte[] data = readBytes(in);
+        c.setTraceBlocks(new TraceDataBlocks(blockSize, length, offsets, data), in.readInt(), in.readInt());
+    }
+
+    private static void writeException(DataOutputStream out, TraceDataResultException e) throws IOException {
+        out.writeBoolean(e != null);
+        if (e != null) {
+            out.writeLong(e.getId());
+            writeString(out, e.getClassName());
+            writeString(out, e.getMessage());
+            out.writeInt(e.getStack().size());
+            for (String s : e.getStack()) {
+                writeString(out, s);
+            }
+            writeException(out, e.getCause());
+        }
+    }
+
+    private static TraceDataResultException readException(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        TraceDataResultException e = new TraceDataResultException(in.readLong(), readString(in), readString(in));
+        for (int i = in.readInt(); i > 0; i--) {
+            e.getStack().add(readString(in));
+        }
+        e.setCause(readException(in));
+        return e;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s != null ? s.getBytes("UTF-8") : null);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = readBytes(in);
+        return b != null ? new String(b, "UTF-8") : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b != null) {
+            out.writeInt(b.length);
+            out.write(b);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+}
@@ -1,9 +1,12 @@
 package com.jitlogic.zorka.common.collector;
 
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.jitlogic.zorka.common.util.ZorkaUtil.GB;
 import static com.jitlogic.zorka.common.util.ZorkaUtil.MB;
@@ -13,9 +16,22 @@ import static com.jitlogic.zorka.common.util.ZorkaUtil.MB;
  * standard TraceChunkStore interface along with automatic clean up of
  * excess data and provides ways to search and extract chunks.
  *
- * Memory chunk store is intended to work in small setups and unit tests,
- * so performance is not a priority here. Also concurrency is rather coarse,
- * impacting performance when adding and searching at the same time.
+ * Chunks are kept in insertion order in a ring buffer and are indexed by
+ * timestamp, duration, trace ID and attribute values. Indexes are maintained
+ * on add and trim, so neither searching nor trimming needs to copy whole store.
+ * Queries are planned against the most selective index available (trace ID,
+ * attribute matches, then duration or time order), remaining criteria are
+ * checked on candidate chunks.
+ *
+ * Index scans over large stores are split into batches evaluated in parallel
+ * by a bounded worker pool and stop as soon as requested page is filled.
+ *
+ * Searches hold store lock only while copying candidate slots (or a batch of
+ * index entries), chunks are evaluated without blocking additions. Slots are
+ * immutable, so index scans resume after last copied slot even if store has
+ * been modified in the meantime.
+ *
+ * Memory chunk store is intended to work in small setups and unit tests.
  */
 public class MemoryChunkStore implements TraceChunkStore {
 
@@ -25,7 +41,64 @@ public class MemoryChunkStore implements TraceChunkStore {
     private long delSize = 256 * MB;
     private long curSize = 0;
 
-    private volatile List<TraceChunkData> chunks = new ArrayList<TraceChunkData>(1024);
+    /** Chunks in insertion order (ring buffer, capacity is always power of two). */
+    private Slot[] slots = new Slot[1024];
+    private int head, count;
+
+    /** Number of chunks evaluated by a single task when query is evaluated in parallel. */
+    private static final int BATCH_SIZE = 4096;
+
+    /** Number of query evaluation threads */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Query evaluation workers (created on first parallel query) */
+    private ExecutorService executor;
+
+    /** Sequence number of next added chunk. */
+    private long seq;
+
+    /** Time index: chunks ordered by (tstamp, seq) */
+    private final TreeSet<Slot> byTstamp = new TreeSet<Slot>(BY_TSTAMP);
+
+    /** Duration index: chunks ordered by (duration, seq) */
+    private final TreeSet<Slot> byDuration = new TreeSet<Slot>(BY_DURATION);
+
+    /** Trace ID index: (traceId1 ^ traceId2) -> chunks (in insertion order) */
+    private final Map<Long,List<Slot>> byTraceId = new HashMap<Long, List<Slot>>();
+
+    /** Inverted attribute index: attribute name -> attribute value -> chunks (in insertion order) */
+    private final Map<String,Map<String,ArrayDeque<Slot>>> byAttr = new HashMap<String, Map<String, ArrayDeque<Slot>>>();
+
+    /** Indexed chunk. Timestamp and duration are copied, so index order won't change if chunk is modified. */
+    private static class Slot {
+        private final long seq, tstamp, duration;
+        private final TraceChunkData chunk;
+
+        private Slot(long seq, long tstamp, long duration, TraceChunkData chunk) {
+            this.seq = seq;
+            this.tstamp = tstamp;
+            this.duration = duration;
+            this.chunk = chunk;
+        }
+    }
+
+    private static final Comparator<Slot> BY_TSTAMP = new Comparator<Slot>() {
+        @Override
+        public int compare(Slot s1, Slot s2) {
+            if (s1.tstamp != s2.tstamp) return s1.tstamp < s2.tstamp ? -1 : 1;
+            if (s1.seq != s2.seq) return s1.seq < s2.seq ? -1 : 1;
+            return 0;
+        }
+    };
+
+    private static final Comparator<Slot> BY_DURATION = new Comparator<Slot>() {
+        @Override
+        public int compare(Slot s1, Slot s2) {
+            if (s1.duration != s2.duration) return s1.duration < s2.duration ? -1 : 1;
+            if (s1.seq != s2.seq) return s1.seq < s2.seq ? -1 : 1;
+            return 0;
+        }
+    };
 
     public MemoryChunkStore() { }
 
@@ -37,131 +110,423 @@ public class MemoryChunkStore implements TraceChunkStore {
 
     private void trim() {
         long t1 = System.currentTimeMillis();
-        int sz = 0, idx = -1;
-        for (int i = 0; i < chunks.size() && sz < delSize; i++) {
-            sz += chunks.get(i).size();
-            idx = i;
-        }
-        if (idx >= 0 && idx < chunks.size()) {
-            synchronized (this) {
-                chunks = new ArrayList<TraceChunkData>(chunks.subList(idx + 1, chunks.size()));
-            }
+        long csz = curSize;
+        int n = 0;
+        for (long sz = 0; count > 0 && sz < delSize; n++) {
+            TraceChunkData c = remove();
+            sz += c.size();
+            csz -= c.size();
         }
-        long csz = 0;
-        for (TraceChunkData chunk : chunks) csz += chunk.size();
         long t2 = System.currentTimeMillis();
-        log.info("Trimming chunk store size: {} -> {} (t={}ms)", curSize, csz, (t2-t1));
+        log.info("Trimming chunk store size: {} -> {} (chunks={}, t={}ms)", curSize, csz, n, (t2-t1));
         curSize = csz;
     }
 
+    private static long traceKey(long traceId1, long traceId2) {
+        return traceId1 ^ traceId2;
+    }
+
+    private void index(TraceChunkData tcd) {
+        if (count == slots.length) {
+            Slot[] s = new Slot[slots.length * 2];
+            for (int i = 0; i < count; i++) {
+                s[i] = slots[(head + i) & (slots.length-1)];
+            }
+            slots = s;
+            head = 0;
+        }
+
+        Slot slot = new Slot(seq++, tcd.getTstamp(), tcd.getDuration(), tcd);
+        slots[(head + count) & (slots.length-1)] = slot;
+        count++;
+
+        byTstamp.add(slot);
+        byDuration.add(slot);
+
+        Long tk = traceKey(tcd.getTraceId1(), tcd.getTraceId2());
+        List<Slot> tl = byTraceId.get(tk);
+        if (tl == null) {
+            tl = new ArrayList<Slot>(2);
+            byTraceId.put(tk, tl);
+        }
+        tl.add(slot);
+
+        if (tcd.getAttrs() != null) {
+            for (Map.Entry<String,String> e : tcd.getAttrs().entrySet()) {
+                Map<String,ArrayDeque<Slot>> vals = byAttr.get(e.getKey());
+                if (vals == null) {
+                    vals = new HashMap<String, ArrayDeque<Slot>>();
+                    byAttr.put(e.getKey(), vals);
+                }
+                ArrayDeque<Slot> al = vals.get(e.getValue());
+                if (al == null) {
+                    al = new ArrayDeque<Slot>(2);
+                    vals.put(e.getValue(), al);
+                }
+                al.add(slot);
+            }
+        }
+    }
+
+    /** Removes oldest chunk from store and all indexes. */
+    private TraceChunkData remove() {
+        Slot slot = slots[head];
+        slots[head] = null;
+        head = (head + 1) & (slots.length-1);
+        count--;
+
+        byTstamp.remove(slot);
+        byDuration.remove(slot);
+
+        TraceChunkData c = slot.chunk;
+
+        Long tk = traceKey(c.getTraceId1(), c.getTraceId2());
+        List<Slot> tl = byTraceId.get(tk);
+        if (tl != null) {
+            tl.remove(slot);
+            if (tl.isEmpty()) byTraceId.remove(tk);
+        }
+
+        if (c.getAttrs() != null) {
+            for (Map.Entry<String,String> e : c.getAttrs().entrySet()) {
+                Map<String,ArrayDeque<Slot>> vals = byAttr.get(e.getKey());
+                ArrayDeque<Slot> al = vals != null ? vals.get(e.getValue()) : null;
+                if (al != null) {
+                    // Oldest chunk is always first (unless chunk attributes were modified after adding)
+                    if (al.peekFirst() == slot) al.pollFirst(); else al.remove(slot);
+                    if (al.isEmpty()) vals.remove(e.getValue());
+                    if (vals.isEmpty()) byAttr.remove(e.getKey());
+                }
+            }
+        }
+
+        return c;
+    }
+
     @Override
     public synchronized void add(TraceChunkData tcd) {
         tcd.setParent(null); // detach parent, so it won't affect memory utilization / GC
-        chunks.add(tcd);
+        index(tcd);
         curSize += tcd.size();
-        while (curSize > maxSize) trim();
+        while (curSize > maxSize && count > 0) trim();
     }
 
     @Override
     public synchronized void addAll(List<TraceChunkData> tcds) {
-        chunks.addAll(tcds);
         for (TraceChunkData tcd : tcds) {
             tcd.setParent(null);
+            index(tcd);
             curSize += tcd.size();
         }
-        while (curSize > maxSize) trim();
+        while (curSize > maxSize && count > 0) trim();
     }
 
     public synchronized Set<String> attrVals(String attrName) {
-        Set<String> rslt = new HashSet<String>();
-        for (TraceChunkData c : chunks) {
-            String s = c.getAttr(attrName);
-            if (s != null) rslt.add(s);
-        }
-        return rslt;
+        Map<String,ArrayDeque<Slot>> vals = byAttr.get(attrName);
+        return vals != null ? new HashSet<String>(vals.keySet()) : new HashSet<String>();
     }
 
     public synchronized TraceChunkData get(int idx) {
-        return chunks.get(idx);
+        if (idx < 0 || idx >= count) throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " + count);
+        return slots[(head + idx) & (slots.length-1)].chunk;
     }
 
     public synchronized List<TraceChunkData> getChunks() {
-        return new ArrayList<TraceChunkData>(chunks);
+        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>(count);
+        for (int i = 0; i < count; i++) {
+            rslt.add(slots[(head + i) & (slots.length-1)].chunk);
+        }
+        return rslt;
     }
 
     /** Returns number of chunks */
     public synchronized int length() {
-        return chunks.size();
+        return count;
     }
 
-    public List<TraceChunkData> search(TraceChunkSearchQuery q) {
-        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>(1024);
+    /**
+     * Returns candidate chunks from trace ID or attribute indexes or null if query
+     * has no such criteria (and time or duration index should be scanned).
+     */
+    private Collection<Slot> candidates(TraceChunkSearchQuery q) {
+        if (q.getTraceId1() != 0 || q.getTraceId2() != 0) {
+            List<Slot> tl = byTraceId.get(traceKey(q.getTraceId1(), q.getTraceId2()));
+            return tl != null ? tl : Collections.<Slot>emptyList();
+        }
+
+        Collection<Slot> rslt = null;
+
+        for (Map.Entry<String,String> e : q.getAttrmatches().entrySet()) {
+            Map<String,ArrayDeque<Slot>> vals = byAttr.get(e.getKey());
+            ArrayDeque<Slot> al = vals != null ? vals.get(e.getValue()) : null;
+            if (al == null) return Collections.emptyList();
+            if (rslt == null || al.size() < rslt.size()) rslt = al;
+        }
+
+        return rslt;
+    }
 
-        List<TraceChunkData> cs; // copy array, so we won't block threads adding new chunks
+    @Override
+    public List<TraceChunkData> search(TraceChunkSearchQuery q) {
+        Collection<Slot> cs;
+        ExecutorService exec = null;
+        int nthreads;
 
         synchronized (this) {
-            cs = new ArrayList<TraceChunkData>(chunks);
-        }
-
-        for (TraceChunkData c : cs) {
-            // Various small properties
-            if (!q.isSpansOnly() && c.getParentId() != 0) continue;
-            if ((q.getTraceId1() != 0 || q.getTraceId2() != 0)
-                && (q.getTraceId1() != c.getTraceId1() || q.getTraceId2() != c.getTraceId2())) continue;
-            if (q.getSpanId() != 0 && q.getSpanId() != c.getSpanId()) continue;
-            if (q.isErrorsOnly() && !c.hasError()) continue;
-            if (c.getDuration() < q.getMinDuration()) continue;
-            if (c.getTstamp() < q.getMinTstamp()) continue;
-            if (c.getTstamp() > q.getMaxTstamp()) continue;
-
-            // Full text search
-            if (q.getText() != null) {
-                String text = q.getText();
-                boolean matches = false;
-                if ((c.getKlass() + "." + c.getMethod()).contains(text)) {
-                    matches = true;
-                } else if (c.getAttrs() != null) {
-                    for (Map.Entry<String,String> e : c.getAttrs().entrySet()) {
-                        if (e.getKey().contains(text) || e.getValue().contains(text)) {
-                            matches = true; break;
-                        }
-                    }
-                }
-                if (!matches) continue;
+            cs = candidates(q);
+            if (cs != null) cs = new ArrayList<Slot>(cs);
+            nthreads = threads;
+            if (cs == null && threads > 1 && count >= 2 * BATCH_SIZE) exec = executor();
+        }
+
+        if (cs != null) {
+            return top(cs, q);
+        }
+
+        Cursor cursor = new Cursor(q);
+        Page page = new Page(q);
+
+        if (exec != null) {
+            // First batch is scanned in place: it is often enough to fill the page
+            if (scan(cursor, q, page, BATCH_SIZE)) {
+                scanParallel(exec, nthreads, cursor, q, page);
             }
+        } else {
+            scan(cursor, q, page, Integer.MAX_VALUE);
+        }
+
+        List<TraceChunkData> rslt = page.rslt;
+
+        if (!q.isSortByDuration()) {
+            Collections.reverse(rslt);
+        }
+
+        return rslt;
+    }
+
+    /**
+     * Index scan cursor (in result order). Index entries are copied in batches under store lock,
+     * each batch starts right after last slot returned by previous one.
+     */
+    private class Cursor {
+        private final TraceChunkSearchQuery q;
+        private Slot last;
+        private boolean done;
+
+        private Cursor(TraceChunkSearchQuery q) {
+            this.q = q;
+        }
+
+        /** Returns up to n next slots (empty list if scan is finished). */
+        private List<Slot> next(int n) {
+            List<Slot> batch = new ArrayList<Slot>(Math.min(n, BATCH_SIZE));
+
+            synchronized (MemoryChunkStore.this) {
+                if (done) return batch;
+
+                Iterator<Slot> itr;
+                if (q.isSortByDuration()) {
+                    itr = (last != null ? byDuration.tailSet(last, false)
+                        : byDuration.tailSet(new Slot(Long.MIN_VALUE, 0, q.getMinDuration(), null), true)).iterator();
+                } else {
+                    itr = (last != null ? byTstamp.headSet(last, false)
+                        : byTstamp.headSet(new Slot(Long.MAX_VALUE, q.getMaxTstamp(), 0, null), true)).descendingIterator();
+                }
 
-            // Attribute matches
-            if (!q.getAttrmatches().isEmpty()) {
-                boolean matches = true;
-                for (Map.Entry<String,String> e : q.getAttrmatches().entrySet()) {
-                    if (!c.getAttr(e.getKey()).equals(e.getValue())) {
-                        matches = false; break;
+                while (batch.size() < n && itr.hasNext()) {
+                    Slot s = itr.next();
+                    if (past(s, q)) {
+                        done = true;
+                        break;
                     }
+                    batch.add(s);
                 }
-                if (!matches) continue;
+
+                if (!itr.hasNext()) done = true;
             }
 
-            rslt.add(c);
+            if (!batch.isEmpty()) last = batch.get(batch.size()-1);
+
+            return batch;
+        }
+    }
+
+    /**
+     * Selects requested page of matching candidates. Only offset+limit best candidates (in result order)
+     * are kept in a bounded heap, so candidate lists are never sorted as a whole.
+     */
+    private List<TraceChunkData> top(Collection<Slot> cs, TraceChunkSearchQuery q) {
+        int k = (int)Math.min(Integer.MAX_VALUE - 1, (long)q.getOffset() + q.getLimit());
+
+        // Heap head is the worst retained candidate: the longest one or the oldest one
+        PriorityQueue<Slot> heap = new PriorityQueue<Slot>(Math.min(k, 1024) + 1,
+            q.isSortByDuration() ? Collections.reverseOrder(BY_DURATION) : BY_TSTAMP);
+
+        for (Slot s : cs) {
+            if (q.matches(s.chunk)) {
+                heap.add(s);
+                if (heap.size() > k) heap.poll();
+            }
         }
 
-        if (q.getOffset()  >= rslt.size()) return Collections.emptyList();
+        if (q.getOffset() >= heap.size()) return Collections.emptyList();
+
+        List<Slot> rslt = new ArrayList<Slot>(heap);
 
         if (q.isSortByDuration()) {
-            Collections.sort(rslt,
-                new Comparator<TraceChunkData>() {
+            Collections.sort(rslt, BY_DURATION);
+            return chunks(rslt.subList(q.getOffset(), Math.min(rslt.size(), q.getOffset()+q.getLimit())));
+        } else {
+            Collections.sort(rslt, BY_TSTAMP);
+            return chunks(rslt.subList(Math.max(0, rslt.size()-q.getOffset()-q.getLimit()), rslt.size()-q.getOffset()));
+        }
+    }
+
+    /** Returns true if time ordered scan went past minimum timestamp of query. */
+    private static boolean past(Slot s, TraceChunkSearchQuery q) {
+        return !q.isSortByDuration() && s.tstamp < q.getMinTstamp();
+    }
+
+    /** Result page being filled by index scan. */
+    private static class Page {
+        private final List<TraceChunkData> rslt;
+        private final int limit;
+        private int skip;
+
+        private Page(TraceChunkSearchQuery q) {
+            rslt = new ArrayList<TraceChunkData>(Math.min(q.getLimit(), 1024));
+            limit = q.getLimit();
+            skip = q.getOffset();
+        }
+
+        private void add(Slot s) {
+            if (skip > 0) {
+                skip--;
+            } else {
+                rslt.add(s.chunk);
+            }
+        }
+
+        private boolean full() {
+            return rslt.size() >= limit;
+        }
+    }
+
+    /**
+     * Scans index in result order, stops as soon as requested page is filled.
+     *
+     * @return true if scan can be continued (page is not filled and index has more matching entries)
+     */
+    private static boolean scan(Cursor cursor, TraceChunkSearchQuery q, Page page, int maxSlots) {
+        for (int n = 0; n < maxSlots; ) {
+            List<Slot> batch = cursor.next(Math.min(BATCH_SIZE, maxSlots - n));
+            if (batch.isEmpty()) return false;
+            for (Slot s : batch) {
+                if (q.matches(s.chunk)) {
+                    page.add(s);
+                    if (page.full()) return false;
+                }
+            }
+            n += batch.size();
+        }
+        return !cursor.done;
+    }
+
+    /**
+     * Scans index in result order, with predicates evaluated in parallel. Index is split into batches
+     * evaluated by worker pool, with at most two batches per worker in flight. Batch results are merged
+     * in index order, so scan stops (and outstanding batches are cancelled) as soon as requested page
+     * is filled. Store lock is held only while copying batches from index, never while waiting for
+     * workers. Batches rejected by executor (eg. shut down by setThreads()) are evaluated in place.
+     */
+    private static void scanParallel(ExecutorService exec, int threads, Cursor cursor,
+                                     final TraceChunkSearchQuery q, Page page) {
+        Deque<Future<List<Slot>>> pending = new ArrayDeque<Future<List<Slot>>>();
+        boolean more = true;
+
+        try {
+            while (!page.full()) {
+                while (more && pending.size() < threads * 2) {
+                    final List<Slot> batch = cursor.next(BATCH_SIZE);
+                    if (batch.isEmpty()) {
+                        more = false;
+                    } else {
+                        FutureTask<List<Slot>> task = new FutureTask<List<Slot>>(new Callable<List<Slot>>() {
+                            @Override
+                            public List<Slot> call() {
+                                List<Slot> matched = new ArrayList<Slot>();
+                                for (Slot s : batch) {
+                                    if (q.matches(s.chunk)) matched.add(s);
+                                }
+                                return matched;
+                            }
+                        });
+                        pending.add(task);
+                        try {
+                            exec.execute(task);
+                        } catch (RejectedExecutionException e) {
+                            task.run();
+                        }
+                    }
+                }
+
+                if (pending.isEmpty()) break;
+
+                for (Slot s : pending.poll().get()) {
+                    page.add(s);
+                    if (page.full()) break;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new ZorkaRuntimeException("Error searching chunk store: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ZorkaRuntimeException("Interrupted while searching chunk store.");
+        } finally {
+            for (Future<List<Slot>> f : pending) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger n = new AtomicInteger();
                     @Override
-                    public int compare(TraceChunkData o1, TraceChunkData o2) {
-                        if (o1.getDuration() < o2.getDuration()) return -1;
-                        if (o1.getDuration() > o2.getDuration()) return 1;
-                        return 0;
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "ZORKA-CHUNK-SEARCH-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
                     }
                 });
-            return rslt.subList(q.getOffset(), Math.min(rslt.size(), q.getOffset()+q.getLimit()));
-        } else {
-            return rslt.subList(Math.max(0, rslt.size()-q.getOffset()-q.getLimit()), rslt.size()-q.getOffset());
+            tpe.allowCoreThreadTimeOut(true);
+            executor = tpe;
+        }
+        return executor;
+    }
+
+    /**
+     * Sets number of threads used for evaluating queries (1 - no parallel evaluation).
+     * By default number of available processors is used.
+     */
+    public synchronized void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
         }
     }
 
+    private static List<TraceChunkData> chunks(List<Slot> slots) {
+        List<TraceChunkData> rslt = new ArrayList<TraceChunkData>(slots.size());
+        for (Slot s : slots) {
+            rslt.add(s.chunk);
+        }
+        return rslt;
+    }
+
     public synchronized void setMaxSize(long maxSize) {
         this.maxSize = maxSize;
     }
@@ -11,7 +11,15 @@ import java.util.Map;
 
 public class SymbolDataRetriever implements TraceDataProcessor {
 
-    private SymbolRegistry registry = new SymbolRegistry();
+    private SymbolRegistry registry;
+
+    public SymbolDataRetriever() {
+        this(new SymbolRegistry());
+    }
+
+    public SymbolDataRetriever(SymbolRegistry registry) {
+        this.registry = registry;
+    }
 
     @Override
     public void stringRef(int symbolId, String symbol) {
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.collector;
+
+import com.jitlogic.zorka.common.cbor.CborDataReader;
+import com.jitlogic.zorka.common.cbor.CborDataWriter;
+import com.jitlogic.zorka.common.cbor.TraceDataReader;
+import com.jitlogic.zorka.common.cbor.TraceDataWriter;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only symbol dictionary shared by all chunks received from one agent session. Symbols
+ * and methods are never redefined or removed, so each chunk only needs to remember dictionary
+ * version (number of entries) at the time it was indexed and all symbols it uses are resolved
+ * by plain array lookups (see SymbolRegistry). Entries are kept in order they were added, so
+ * dictionary can be persisted incrementally (see encode() and decode()).
+ *
+ * Only putSymbol() and putMethod() are tracked, other methods assigning new IDs must not be used.
+ */
+public class SymbolDictionary extends SymbolRegistry {
+
+    private static final AtomicLong ids = new AtomicLong(System.currentTimeMillis() << 16);
+
+    private final long id;
+
+    /** Entries in order of addition: positive values are symbol IDs, negative values are method IDs. */
+    private int[] entries = new int[1024];
+
+    private volatile int version;
+
+    public SymbolDictionary() {
+        this(ids.incrementAndGet());
+    }
+
+    public SymbolDictionary(long id) {
+        this.id = id;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /** Returns number of entries in dictionary. Version only grows. */
+    public int version() {
+        return version;
+    }
+
+    private void append(int entry) {
+        if (version == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[version] = entry;
+        version++;
+    }
+
+    @Override
+    public synchronized void putSymbol(int symbolId, String symbol) {
+        if (symbolId > 0 && !hasSymbol(symbolId)) {
+            super.putSymbol(symbolId, symbol);
+            append(symbolId);
+        }
+    }
+
+    @Override
+    public synchronized void putMethod(int methodId, int className, int methodName, int methodSignature) {
+        if (methodId > 0 && !hasMethod(methodId)) {
+            super.putMethod(methodId, className, methodName, methodSignature);
+            append(-methodId);
+        }
+    }
+
+    /**
+     * Encodes range of dictionary entries as CBOR symbol data (symbol and method definitions).
+     */
+    public synchronized byte[] encode(int from, int to) {
+        if (from < 0 || to > version || from > to) {
+            throw new ZorkaRuntimeException("Invalid dictionary range: " + from + ".." + to + " (version " + version + ")");
+        }
+        CborDataWriter cbw = new CborDataWriter(64 * (to - from) + 64, 4096);
+        TraceDataWriter tdw = new TraceDataWriter(cbw);
+        for (int i = from; i < to; i++) {
+            int e = entries[i];
+            if (e > 0) {
+                tdw.stringRef(e, symbolName(e));
+            } else {
+                tdw.methodRef(-e, methodClassId(-e), methodNameId(-e), methodSignatureId(-e));
+            }
+        }
+        return cbw.toByteArray();
+    }
+
+    /**
+     * Appends entries from CBOR symbol data (as produced by encode()).
+     */
+    public void decode(byte[] data) {
+        new TraceDataReader(new CborDataReader(data), new SymbolDataRetriever(this)).run();
+    }
+}
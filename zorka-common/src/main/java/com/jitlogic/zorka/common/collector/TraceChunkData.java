@@ -16,6 +16,7 @@
 
 package com.jitlogic.zorka.common.collector;
 
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.TraceMarker;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 
@@ -84,9 +85,24 @@ public class TraceChunkData {
     /** Trace data (CBOR encoded and compressed) */
     private byte[] traceData;
 
+    /** Block compressed trace data (shared with other chunks indexed from the same data), used instead of traceData */
+    private TraceDataBlocks traceBlocks;
+
+    /** Offset of chunk trace data in traceBlocks */
+    private int traceOffs;
+
+    /** Length of chunk trace data in traceBlocks */
+    private int traceLen;
+
     /** Symbol data (CBOR encoded and compressed) - used to retrieve trace in human-readable form */
     private byte[] symbolData;
 
+    /** Symbol dictionary of agent session this chunk comes from, used instead of symbolData */
+    private SymbolDictionary symbols;
+
+    /** Dictionary version at the time chunk was indexed (all symbols used by chunk are below this version) */
+    private int symbolsVersion;
+
     /** String attributes */
     private Map<String,String> attrs;
 
@@ -134,6 +150,10 @@ public class TraceChunkData {
         if (size == -1) {
             synchronized (this) {
                 int rslt = 256 + (traceData != null ? traceData.length : 0);
+                if (traceBlocks != null && traceBlocks.getLength() > 0) {
+                    // Proportional share of (shared) compressed blocks
+                    rslt += (int)((long)traceLen * traceBlocks.compressedSize() / traceBlocks.getLength());
+                }
                 if (attrs != null) {
                     for (Map.Entry<String,String> e : attrs.entrySet()) {
                         rslt += 64 + (e.getKey() != null ? e.getKey().length() : 0) + (e.getValue() != null ? e.getValue().length() : 0);
@@ -377,6 +397,34 @@ public class TraceChunkData {
         this.traceData = traceData;
     }
 
+    public TraceDataBlocks getTraceBlocks() {
+        return traceBlocks;
+    }
+
+    public int getTraceOffs() {
+        return traceOffs;
+    }
+
+    public int getTraceLen() {
+        return traceLen;
+    }
+
+    public void setTraceBlocks(TraceDataBlocks traceBlocks, int traceOffs, int traceLen) {
+        this.traceBlocks = traceBlocks;
+        this.traceOffs = traceOffs;
+        this.traceLen = traceLen;
+    }
+
+    /**
+     * Returns decompressed (CBOR encoded) trace data of this chunk, regardless of how it is stored.
+     */
+    public byte[] decodeTraceData() {
+        if (traceBlocks != null) {
+            return traceBlocks.read(traceOffs, traceLen);
+        }
+        return traceData != null ? ZorkaUtil.gunzip(traceData) : null;
+    }
+
     public byte[] getSymbolData() {
         return symbolData;
     }
@@ -385,6 +433,29 @@ public class TraceChunkData {
         this.symbolData = symbolData;
     }
 
+    public SymbolDictionary getSymbols() {
+        return symbols;
+    }
+
+    public int getSymbolsVersion() {
+        return symbolsVersion;
+    }
+
+    public void setSymbols(SymbolDictionary symbols, int symbolsVersion) {
+        this.symbols = symbols;
+        this.symbolsVersion = symbolsVersion;
+    }
+
+    /**
+     * Returns symbols needed to decode trace data of this chunk, regardless of how they're stored.
+     */
+    public SymbolRegistry decodeSymbols() {
+        if (symbols != null) {
+            return symbols;
+        }
+        return symbolData != null ? SymbolDataRetriever.retrieve(symbolData) : new SymbolRegistry();
+    }
+
     public TraceDataResultException getException() {
         return exception;
     }
@@ -1,5 +1,6 @@
 package com.jitlogic.zorka.common.collector;
 
+import com.jitlogic.zorka.common.tracedata.TraceMarker;
 import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 
@@ -36,6 +37,55 @@ public class TraceChunkSearchQuery {
             + ",text='" + text + "'" + ",attr=" + attrmatches + "]";
     }
 
+    /**
+     * Checks if chunk metadata matches query. This covers all criteria except full text
+     * search and attribute matches, so it can be evaluated without fetching chunk itself.
+     */
+    public boolean matches(long tid1, long tid2, long sid, long pid, int flags, long tstamp, long duration) {
+        if (!spansOnly && pid != 0) return false;
+        if ((traceId1 != 0 || traceId2 != 0) && (traceId1 != tid1 || traceId2 != tid2)) return false;
+        if (spanId != 0 && spanId != sid) return false;
+        if (errorsOnly && 0 == (flags & TraceMarker.ERROR_MARK)) return false;
+        if (duration < minDuration) return false;
+        if (tstamp < minTstamp) return false;
+        if (tstamp > maxTstamp) return false;
+        return true;
+    }
+
+    /** Returns true if query has criteria that need chunk content (text or attributes) to be checked. */
+    public boolean hasContentCriteria() {
+        return text != null || !attrmatches.isEmpty();
+    }
+
+    /** Checks full text search and attribute matches against chunk. */
+    public boolean matchesContent(TraceChunkData c) {
+        if (text != null) {
+            boolean matches = false;
+            if ((c.getKlass() + "." + c.getMethod()).contains(text)) {
+                matches = true;
+            } else if (c.getAttrs() != null) {
+                for (Map.Entry<String,String> e : c.getAttrs().entrySet()) {
+                    if (e.getKey().contains(text) || e.getValue().contains(text)) {
+                        matches = true; break;
+                    }
+                }
+            }
+            if (!matches) return false;
+        }
+
+        for (Map.Entry<String,String> e : attrmatches.entrySet()) {
+            if (!e.getValue().equals(c.getAttr(e.getKey()))) return false;
+        }
+
+        return true;
+    }
+
+    /** Checks if chunk matches query. */
+    public boolean matches(TraceChunkData c) {
+        return matches(c.getTraceId1(), c.getTraceId2(), c.getSpanId(), c.getParentId(), c.getFlags(),
+            c.getTstamp(), c.getDuration()) && matchesContent(c);
+    }
+
     public long getTraceId1() {
         return traceId1;
     }
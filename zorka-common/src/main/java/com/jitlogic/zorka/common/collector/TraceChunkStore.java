@@ -8,4 +8,6 @@ public interface TraceChunkStore {
 
     void addAll(List<TraceChunkData> tcds);
 
+    List<TraceChunkData> search(TraceChunkSearchQuery q);
+
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.collector;
+
+import com.jitlogic.zorka.common.util.LzCodec;
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+
+/**
+ * Block compressed trace data. Data is split into fixed size blocks compressed independently
+ * with LzCodec, offset table points to compressed blocks, so any range of data can be read
+ * by decompressing only blocks it overlaps. Single instance is shared by all chunks indexed
+ * from the same piece of trace data (each chunk refers to its own range), so trace data is
+ * compressed only once regardless of how many (nested) chunks it contains.
+ *
+ * Instances are immutable.
+ */
+public class TraceDataBlocks {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /** Raw (uncompressed) block size */
+    private final int blockSize;
+
+    /** Raw (uncompressed) data length */
+    private final int length;
+
+    /** Offsets of compressed blocks in data array (with additional entry marking end of last block) */
+    private final int[] offsets;
+
+    /** Compressed blocks */
+    private final byte[] data;
+
+    public TraceDataBlocks(int blockSize, int length, int[] offsets, byte[] data) {
+        if (blockSize <= 0 || offsets.length != (length + blockSize - 1) / blockSize + 1
+            || offsets[offsets.length-1] > data.length) {
+            throw new ZorkaRuntimeException("Invalid block data: blockSize=" + blockSize + ", length=" + length);
+        }
+        this.blockSize = blockSize;
+        this.length = length;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+    /**
+     * Splits data into blocks and compresses them.
+     */
+    public static TraceDataBlocks compress(byte[] raw, int offs, int len, int blockSize) {
+        int nblocks = (len + blockSize - 1) / blockSize;
+        int[] offsets = new int[nblocks + 1];
+        byte[] buf = new byte[nblocks * LzCodec.maxCompressedLength(blockSize)];
+
+        int pos = 0;
+        for (int i = 0; i < nblocks; i++) {
+            offsets[i] = pos;
+            int bl = Math.min(blockSize, len - i * blockSize);
+            pos += LzCodec.compress(raw, offs + i * blockSize, bl, buf, pos);
+        }
+        offsets[nblocks] = pos;
+
+        return new TraceDataBlocks(blockSize, len, offsets, ZorkaUtil.clipArray(buf, pos));
+    }
+
+    public static TraceDataBlocks compress(byte[] raw) {
+        return compress(raw, 0, raw.length, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Reads (decompresses) range of data. Only blocks overlapping given range are decompressed.
+     */
+    public byte[] read(int offs, int len) {
+        if (offs < 0 || len < 0 || offs + len > length) {
+            throw new ZorkaRuntimeException("Invalid data range: offs=" + offs + ", len=" + len + ", length=" + length);
+        }
+
+        byte[] rslt = new byte[len];
+        byte[] tmp = null;
+
+        for (int b = offs / blockSize; b * blockSize < offs + len; b++) {
+            int bstart = b * blockSize, blen = Math.min(blockSize, length - bstart);
+            int clen = offsets[b+1] - offsets[b];
+            if (bstart >= offs && bstart + blen <= offs + len) {
+                // Block entirely in range: decompress in place
+                LzCodec.decompress(data, offsets[b], clen, rslt, bstart - offs, blen);
+            } else {
+                if (tmp == null) tmp = new byte[blockSize];
+                LzCodec.decompress(data, offsets[b], clen, tmp, 0, blen);
+                int from = Math.max(offs, bstart), to = Math.min(offs + len, bstart + blen);
+                System.arraycopy(tmp, from - bstart, rslt, from - offs, to - from);
+            }
+        }
+
+        return rslt;
+    }
+
+    /**
+     * Returns blocks overlapping given range (without recompressing them). Returned
+     * blocks start with block containing first byte of the range, so offset of the
+     * range in returned data is <code>offs % blockSize</code>.
+     */
+    public TraceDataBlocks slice(int offs, int len) {
+        int b1 = offs / blockSize, b2 = len > 0 ? (offs + len - 1) / blockSize + 1 : b1;
+        if (b1 == 0 && b2 == offsets.length - 1) {
+            return this;
+        }
+        int[] o = new int[b2 - b1 + 1];
+        for (int i = 0; i < o.length; i++) {
+            o[i] = offsets[b1 + i] - offsets[b1];
+        }
+        return new TraceDataBlocks(blockSize, Math.min(length, b2 * blockSize) - b1 * blockSize, o,
+            ZorkaUtil.clipArray(data, offsets[b1], offsets[b2] - offsets[b1]));
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /** Returns compressed data size. */
+    public int compressedSize() {
+        return offsets[offsets.length-1];
+    }
+}
@@ -5,8 +5,6 @@ import com.jitlogic.zorka.common.cbor.TraceDataProcessor;
 import com.jitlogic.zorka.common.cbor.TraceDataReader;
 import com.jitlogic.zorka.common.cbor.TraceRecordFlags;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
-import com.jitlogic.zorka.common.tracedata.SymbolicMethod;
-import com.jitlogic.zorka.common.util.ZorkaUtil;
 
 import java.util.List;
 import java.util.Map;
@@ -41,10 +39,8 @@ public class TraceDataExtractingProcessor implements TraceDataProcessor {
         top = new TraceDataResult(top);
         top.setChunkPos(pos);
         top.setTstart(tstart);
-        SymbolicMethod sm = registry.methodDef(methodId);
-        if (sm != null) {
-            String method = registry.symbolName(sm.getClassId()) + "." + registry.symbolName(sm.getMethodId()) + "()";
-            top.setMethod(method);
+        if (registry.hasMethod(methodId)) {
+            top.setMethod(registry.methodDesc(methodId));
         }
         if (root == null) root = top;
     }
@@ -124,8 +120,8 @@ public class TraceDataExtractingProcessor implements TraceDataProcessor {
 
         // Extract symbol and method ids
         for (TraceChunkData c : chunks) {
-            tdep.setRegistry(SymbolDataRetriever.retrieve(c.getSymbolData()));
-            byte[] data = ZorkaUtil.gunzip(c.getTraceData());
+            tdep.setRegistry(c.decodeSymbols());
+            byte[] data = c.decodeTraceData();
             new TraceDataReader(new CborDataReader(data), tdep).run();
         }
 
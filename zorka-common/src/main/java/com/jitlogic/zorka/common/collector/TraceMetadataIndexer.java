@@ -45,6 +45,15 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
     private SymbolRegistry registry;
     private BufferedTraceDataProcessor output;
 
+    /** Block compressed input data (block mode only) */
+    private TraceDataBlocks blocks;
+
+    /** Collects symbols used by indexed data (block mode only) */
+    private SymbolDataExtractor symbols;
+
+    /** Session symbol dictionary: if present, chunks refer to it instead of carrying their own symbol data */
+    private SymbolDictionary dictionary;
+
     /** Last received start time */
     private long tstart = Long.MAX_VALUE;
 
@@ -58,6 +67,17 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
         this.output = output;
     }
 
+    /**
+     * Creates indexer working in block mode: trace data is not re-encoded, chunks refer to
+     * ranges of (already compressed) input data instead. Symbol data is collected for whole
+     * input and has to be retrieved with getSymbolData() after processing all data.
+     */
+    public TraceMetadataIndexer(SymbolRegistry registry, TraceDataBlocks blocks) {
+        this.registry = registry;
+        this.blocks = blocks;
+        this.symbols = new SymbolDataExtractor(registry);
+    }
+
     public void init(long traceId1, long traceId2, int chunkNum) {
         startOffs += currentPos;
         this.traceId1 = traceId1;
@@ -65,10 +85,28 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
         this.chunkNum = chunkNum;
     }
 
+    /** Creates indexer producing chunks that refer to session symbol dictionary. */
+    public TraceMetadataIndexer(SymbolDictionary dictionary, BufferedTraceDataProcessor output) {
+        this((SymbolRegistry)dictionary, output);
+        this.dictionary = dictionary;
+    }
+
+    /** Creates indexer working in block mode producing chunks that refer to session symbol dictionary. */
+    public TraceMetadataIndexer(SymbolDictionary dictionary, TraceDataBlocks blocks) {
+        this((SymbolRegistry)dictionary, blocks);
+        this.dictionary = dictionary;
+        this.symbols = null;
+    }
+
     public List<TraceChunkData> getChunks() {
         return result;
     }
 
+    /** Returns (compressed) symbol data of all processed trace data (block mode only). */
+    public byte[] getSymbolData() {
+        return symbols != null ? ZorkaUtil.gzip(symbols.getSymbolData()) : null;
+    }
+
     @Override
     public void stringRef(int symbolId, String symbol) {
         if (output != null) output.stringRef(symbolId, symbol);
@@ -95,10 +133,15 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
                 c.setParentId(top.getParent().getSpanId());
             }
             int len = pos - c.getStartOffs();
-            if (len > 0) {
+            if (len > 0 && blocks != null) {
+                c.setTraceBlocks(blocks, c.getStartOffs(), len);
+            } else if (len > 0) {
                 byte[] traceData = output.chunk(c.getStartOffs(), len);
                 c.setTraceData(ZorkaUtil.gzip(traceData));
-                c.setSymbolData(extractSymbolData(registry, traceData));
+                if (dictionary == null) c.setSymbolData(extractSymbolData(registry, traceData));
+            }
+            if (dictionary != null) {
+                c.setSymbols(dictionary, dictionary.version());
             }
             // TODO uwaga: tylko zakończone fragmenty są zapisywane; zaimplementować tymczasowy zapis niezakończonych fragmentów;
             if (top.getParent() == null || !top.hasFlag(TraceMarker.SENT_MARK)) {
@@ -116,6 +159,7 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
     @Override
     public void traceStart(int pos, long tstart, int methodId) {
         if (output != null) pos = output.size();
+        if (symbols != null) symbols.traceStart(pos, tstart, methodId);
         stackDepth++;
         this.currentPos = pos;
         this.tstart = tstart;
@@ -166,6 +210,8 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
         c.setTtype(registry.symbolName(ttypeId));
         push(c);
 
+        if (symbols != null) symbols.traceBegin(tstamp, ttypeId, spanId, parentId);
+
         if (output != null) output.traceBegin(tstamp, ttypeId, spanId, parentId);
     }
 
@@ -174,6 +220,7 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
         //System.out.println("Attr: " + registry.symbolName(attrId) + "(" + attrId + ") -> " + attrVal);
         String attrName = registry.symbolName(attrId);
         if (attrName != null && top != null) top.getAttrs().put(attrName, ""+attrVal);
+        if (symbols != null) symbols.traceAttr(attrId, attrVal);
         if (output != null) output.traceAttr(attrId, attrVal);
     }
 
@@ -185,6 +232,7 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
                 c.getAttrs().put(attrName, ""+attrVal);
             }
         }
+        if (symbols != null) symbols.traceAttr(ttypeId, attrId, attrVal);
         if (output != null) output.traceAttr(attrId, attrVal);
     }
 
@@ -197,6 +245,7 @@ public class TraceMetadataIndexer implements TraceDataProcessor {
         }
         exceptions.put(ex.getId(), ex);
         if (top != null && top.getStackDepth() == stackDepth) top.setException(ex);
+        if (symbols != null) symbols.exception(excId, classId, message, cause, stackTrace, attrs);
         if (output != null) output.exception(excId, classId, message, cause, stackTrace, attrs);
     }
 
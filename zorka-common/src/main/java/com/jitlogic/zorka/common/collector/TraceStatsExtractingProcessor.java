@@ -6,20 +6,115 @@ import com.jitlogic.zorka.common.cbor.TraceDataReader;
 import com.jitlogic.zorka.common.cbor.TraceRecordFlags;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolicMethod;
-import com.jitlogic.zorka.common.util.ZorkaUtil;
 
 import java.util.*;
 
-import static com.jitlogic.zorka.common.collector.SymbolDataRetriever.retrieve;
-
+/**
+ * Aggregates method call statistics from trace data. Call stack is kept in primitive arrays
+ * and statistics are aggregated in open addressing table indexed by method ID, so walking
+ * trace data does not allocate. Single processor can aggregate any number of chunks as long
+ * as they use the same method IDs (ie. come from the same agent session).
+ */
 public class TraceStatsExtractingProcessor implements TraceDataProcessor {
 
-    private Map<Integer,TraceStatsResult> stats = new HashMap<Integer, TraceStatsResult>();
-    private Stack<Integer> mids = new Stack<Integer>();
-    private Stack<Long> tstamps = new Stack<Long>();
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Call stack: method IDs and start timestamps */
+    private int[] mids = new int[64];
+    private long[] tstarts = new long[64];
+    private int depth;
+
+    /** Statistics table: method IDs (0 - empty slot) and aggregated values */
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private long[] calls = new long[INITIAL_CAPACITY];
+    private long[] recs = new long[INITIAL_CAPACITY];
+    private long[] errors = new long[INITIAL_CAPACITY];
+    private long[] minDuration = new long[INITIAL_CAPACITY];
+    private long[] maxDuration = new long[INITIAL_CAPACITY];
+    private long[] sumDuration = new long[INITIAL_CAPACITY];
+    private int size;
+
+    private static int hash(int mid) {
+        int h = mid * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Returns slot of given method, allocates new one if needed. */
+    private int slot(int mid) {
+        int mask = keys.length - 1;
+        for (int i = hash(mid) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == mid) return i;
+            if (keys[i] == 0) {
+                if (2 * (size + 1) > keys.length) {
+                    grow();
+                    return slot(mid);
+                }
+                keys[i] = mid;
+                minDuration[i] = Long.MAX_VALUE;
+                maxDuration[i] = Long.MIN_VALUE;
+                size++;
+                return i;
+            }
+        }
+    }
+
+    private void grow() {
+        int[] k = keys;
+        long[] c = calls, r = recs, e = errors, dmin = minDuration, dmax = maxDuration, dsum = sumDuration;
+        int n = k.length * 2;
+        keys = new int[n];
+        calls = new long[n];
+        recs = new long[n];
+        errors = new long[n];
+        minDuration = new long[n];
+        maxDuration = new long[n];
+        sumDuration = new long[n];
+        size = 0;
+        for (int j = 0; j < k.length; j++) {
+            if (k[j] != 0) {
+                int i = slot(k[j]);
+                calls[i] = c[j];
+                recs[i] = r[j];
+                errors[i] = e[j];
+                minDuration[i] = dmin[j];
+                maxDuration[i] = dmax[j];
+                sumDuration[i] = dsum[j];
+            }
+        }
+    }
+
+    /** Number of distinct methods seen so far. */
+    public int size() {
+        return size;
+    }
+
+    /** Clears aggregated statistics (and call stack). */
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(calls, 0);
+        Arrays.fill(recs, 0);
+        Arrays.fill(errors, 0);
+        Arrays.fill(sumDuration, 0);
+        size = 0;
+        depth = 0;
+    }
 
     public Map<Integer, TraceStatsResult> getStats() {
-        return stats;
+        Map<Integer,TraceStatsResult> rslt = new HashMap<Integer, TraceStatsResult>(size * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                TraceStatsResult tsr = new TraceStatsResult();
+                tsr.setMid(keys[i]);
+                tsr.setCalls(calls[i]);
+                tsr.setRecs(recs[i]);
+                tsr.setErrors(errors[i]);
+                tsr.setMinDuration(minDuration[i]);
+                tsr.setMaxDuration(maxDuration[i]);
+                tsr.setSumDuration(sumDuration[i]);
+                rslt.put(keys[i], tsr);
+            }
+        }
+        return rslt;
     }
 
     @Override
@@ -34,25 +129,31 @@ public class TraceStatsExtractingProcessor implements TraceDataProcessor {
 
     @Override
     public void traceStart(int pos, long tstart, int methodId) {
-        mids.push(methodId);
-        tstamps.push(tstart);
+        if (depth == mids.length) {
+            mids = Arrays.copyOf(mids, depth * 2);
+            tstarts = Arrays.copyOf(tstarts, depth * 2);
+        }
+        mids[depth] = methodId;
+        tstarts[depth] = tstart;
+        depth++;
     }
 
     @Override
     public void traceEnd(int pos, long tstop, long calls, int flags) {
-        if (!tstamps.isEmpty()) {
-            int mid = mids.pop();
-            long tstart = tstamps.pop();
-            TraceStatsResult tsr = stats.get(mid);
-            if (tsr == null) {
-                tsr = new TraceStatsResult();
-                tsr.setMid(mid);
-                stats.put(mid, tsr);
+        if (depth > 0 && mids[depth-1] != 0) {
+            depth--;
+            int i = slot(mids[depth]);
+            this.calls[i] += calls;
+            recs[i]++;
+            if (0 != (flags & TraceRecordFlags.TF_ERROR_MARK)) errors[i]++;
+            long duration = tstop - tstarts[depth];
+            if (duration > 0) {
+                minDuration[i] = Math.min(minDuration[i], duration);
+                maxDuration[i] = Math.max(maxDuration[i], duration);
+                sumDuration[i] += duration;
             }
-            tsr.addCalls(calls);
-            tsr.addRecs(1);
-            if (0 != (flags & TraceRecordFlags.TF_ERROR_MARK)) tsr.addErrors(1);
-            tsr.addDuration(tstop-tstart);
+        } else if (depth > 0) {
+            depth--;
         }
     }
 
@@ -81,25 +182,66 @@ public class TraceStatsExtractingProcessor implements TraceDataProcessor {
         // nothing here
     }
 
-    public static Collection<TraceStatsResult> extractStats(List<TraceChunkData> chunks) {
-        Map<String,TraceStatsResult> rslt = new HashMap<String, TraceStatsResult>();
-        for (TraceChunkData c : chunks) {
-            SymbolRegistry registry = retrieve(c.getSymbolData());
-            TraceStatsExtractingProcessor tsp = new TraceStatsExtractingProcessor();
-            byte[] data = ZorkaUtil.gunzip(c.getTraceData());
-            new TraceDataReader(new CborDataReader(data), tsp).run();
-            Map<Integer,TraceStatsResult> mstats = tsp.getStats();
-            for (Map.Entry<Integer,TraceStatsResult> e : mstats.entrySet()) {
-                SymbolicMethod sm = registry.methodDef(e.getValue().getMid());
-                if (sm != null) {
-                    String method = registry.symbolName(sm.getClassId()) + "." + registry.symbolName(sm.getMethodId()) + "()";
-                    TraceStatsResult v = e.getValue();
+    /** Moves aggregated statistics to results map (keyed by method name) and clears processor. */
+    private void flush(SymbolRegistry registry, Map<String,TraceStatsResult> rslt) {
+        for (TraceStatsResult v : getStats().values()) {
+            SymbolicMethod sm = registry.methodDef(v.getMid());
+            if (sm != null) {
+                String method = registry.symbolName(sm.getClassId()) + "." + registry.symbolName(sm.getMethodId()) + "()";
+                TraceStatsResult r = rslt.get(method);
+                if (r != null) {
+                    r.merge(v);
+                } else {
                     v.setMethod(method);
                     rslt.put(method, v);
                 }
             }
         }
+        clear();
+    }
+
+    /**
+     * Extracts method statistics from trace chunks (aggregated over all chunks). Chunks
+     * sharing session symbol dictionary are processed in a single pass.
+     */
+    public static Collection<TraceStatsResult> extractStats(List<TraceChunkData> chunks) {
+        Map<String,TraceStatsResult> rslt = new HashMap<String, TraceStatsResult>();
+        TraceStatsExtractingProcessor tsp = new TraceStatsExtractingProcessor();
+        SymbolRegistry registry = null;
+
+        for (TraceChunkData c : chunks) {
+            if (registry != null && (c.getSymbols() == null || c.getSymbols() != registry)) {
+                tsp.flush(registry, rslt);
+                registry = null;
+            }
+            if (registry == null) {
+                registry = c.decodeSymbols();
+            }
+            byte[] data = c.decodeTraceData();
+            if (data != null) {
+                new TraceDataReader(new CborDataReader(data), tsp).run();
+            }
+        }
+
+        if (registry != null) {
+            tsp.flush(registry, rslt);
+        }
+
         return rslt.values();
     }
 
+    /**
+     * Returns methods with highest total execution time in given chunks (eg. top level
+     * chunks from last N minutes), in descending order.
+     */
+    public static List<TraceStatsResult> topStats(List<TraceChunkData> chunks, int limit) {
+        List<TraceStatsResult> rslt = new ArrayList<TraceStatsResult>(extractStats(chunks));
+        Collections.sort(rslt, new Comparator<TraceStatsResult>() {
+            @Override
+            public int compare(TraceStatsResult o1, TraceStatsResult o2) {
+                return o1.getSumDuration() > o2.getSumDuration() ? -1 : o1.getSumDuration() < o2.getSumDuration() ? 1 : 0;
+            }
+        });
+        return rslt.size() > limit ? new ArrayList<TraceStatsResult>(rslt.subList(0, limit)) : rslt;
+    }
 }
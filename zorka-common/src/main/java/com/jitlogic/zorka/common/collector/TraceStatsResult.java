@@ -70,6 +70,16 @@ public class TraceStatsResult {
         }
     }
 
+    /** Adds statistics of the same method (eg. from another chunk). */
+    public void merge(TraceStatsResult other) {
+        this.calls += other.calls;
+        this.recs += other.recs;
+        this.errors += other.errors;
+        this.minDuration = Math.min(this.minDuration, other.minDuration);
+        this.maxDuration = Math.max(this.maxDuration, other.maxDuration);
+        this.sumDuration += other.sumDuration;
+    }
+
     public long getMinDuration() {
         return minDuration;
     }
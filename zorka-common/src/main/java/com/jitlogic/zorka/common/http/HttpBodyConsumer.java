@@ -0,0 +1,28 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.http;
+
+/**
+ * Receives message body as it is parsed (see HttpParser.setBodyConsumer()). Data passed
+ * to consumer is a slice of parser input buffer and is valid only until method returns.
+ */
+public interface HttpBodyConsumer {
+
+    void body(HttpMessage msg, byte[] buf, int offs, int len);
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces message body while message is being sent (see HttpMessage.setBodyProducer()),
+ * so body does not have to be materialized in memory. Producer can be called more than
+ * once (eg. when request is retried), so it must produce the same data each time.
+ */
+public interface HttpBodyProducer {
+
+    /** Returns body length or -1 if it is not known (body will be sent using chunked encoding). */
+    int length();
+
+    /** Writes body to output stream (should not close the stream). */
+    void write(OutputStream os) throws IOException;
+
+}
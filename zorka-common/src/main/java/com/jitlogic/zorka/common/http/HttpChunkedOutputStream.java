@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream encoding data using HTTP chunked transfer encoding. Small writes are
+ * collected in internal buffer, so chunks are not smaller than buffer size (except
+ * the last one). Large writes are passed to underlying stream as separate chunks without
+ * copying. Closing this stream does not close underlying stream.
+ */
+public class HttpChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private OutputStream os;
+
+    private final byte[] buf;
+    private int pos;
+
+    private final byte[] hdr = new byte[10];
+
+    public HttpChunkedOutputStream(OutputStream os, int bufSize) {
+        this.os = os;
+        this.buf = new byte[bufSize];
+    }
+
+    /** Prepares stream for writing next message body (to given stream). */
+    public void reset(OutputStream os) {
+        this.os = os;
+        this.pos = 0;
+    }
+
+    private void chunk(byte[] b, int off, int len) throws IOException {
+        int p = hdr.length - 2;
+        hdr[p] = '\r';
+        hdr[p+1] = '\n';
+        for (int l = len; l != 0; l >>>= 4) {
+            hdr[--p] = (byte)Character.forDigit(l & 0xf, 16);
+        }
+        os.write(hdr, p, hdr.length - p);
+        os.write(b, off, len);
+        os.write(CRLF);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (pos == buf.length) flushBuffer();
+        buf[pos++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        if (pos + len <= buf.length) {
+            System.arraycopy(b, off, buf, pos, len);
+            pos += len;
+        } else {
+            flushBuffer();
+            if (len >= buf.length) {
+                chunk(b, off, len);
+            } else {
+                System.arraycopy(b, off, buf, 0, len);
+                pos = len;
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (pos > 0) {
+            chunk(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        os.flush();
+    }
+
+    /** Writes remaining data and last chunk. Underlying stream is not closed. */
+    public void finish() throws IOException {
+        flushBuffer();
+        os.write(LAST_CHUNK);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -27,18 +27,37 @@ import org.slf4j.LoggerFactory;
 import javax.net.SocketFactory;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 
+import static com.jitlogic.zorka.common.http.HttpProtocol.H_CONNECTION;
 import static com.jitlogic.zorka.common.http.HttpProtocol.REG_URL_PROTO;
 import static com.jitlogic.zorka.common.http.HttpProtocol.RE_URL;
+import static com.jitlogic.zorka.common.util.ZorkaConfig.parseBool;
+import static com.jitlogic.zorka.common.util.ZorkaConfig.parseInt;
 
 /**
- * HTTP client using streams.
+ * HTTP client with keep-alive connection pool. Client is bound to single host and can be
+ * used by multiple threads concurrently: each request takes a connection from pool (at most
+ * HttpConfig.maxConnections connections are open), connections idle for longer than
+ * HttpConfig.idleTimeout are closed. Each connection has its own encoder, decoder and
+ * buffers, reused for all requests sent over it.
+ *
+ * If pipelining is enabled and all connections are busy, requests are sent over busy
+ * connections (at most HttpConfig.maxPipelined requests in flight per connection) instead
+ * of waiting for a free connection. Responses are read in order requests were sent.
+ *
+ * Connect, read and whole request (including waiting for connection and retries) timeouts
+ * are configured separately.
  */
 public class HttpClient implements HttpHandler, Closeable {
 
@@ -49,9 +68,6 @@ public class HttpClient implements HttpHandler, Closeable {
     private InetAddress addr;
     private String host;
 
-    private Socket socket;
-    private BufferedOutputStream output;
-
     private String baseUri;
 
     private HttpConfig config;
@@ -60,6 +76,12 @@ public class HttpClient implements HttpHandler, Closeable {
 
     private MethodCallStatistic evtConnects, evtCalls;
 
+    /** Open connections (guarded by this list) */
+    private final List<Connection> connections = new ArrayList<Connection>();
+
+    /** Number of connections being opened (guarded by connections list) */
+    private int connecting;
+
 
     public HttpClient(HttpConfig config, String baseUrl, MethodCallStatistics stats) {
         this.config = config;
@@ -93,25 +115,26 @@ public class HttpClient implements HttpHandler, Closeable {
 
     @Override
     public HttpMessage handle(HttpMessage req) {
-
-        if (socket == null || !socket.isConnected()) {
-            connect();
-        }
+        long deadline = System.currentTimeMillis() + config.getRequestTimeout();
 
         Exception e = null;
 
-
-
         for (int i = 0; i < config.getMaxRetries(); i++) {
+            Connection conn = acquire(deadline);
             try {
-                new HttpEncoder(config, baseUri, output).handle(req);
-                output.flush();
-                HttpMessage msg = new HttpDecoder(socket.getInputStream(), config).decode(true);
+                HttpMessage msg = conn.exchange(req, deadline);
                 evtCalls.logCall();
+                if ("close".equalsIgnoreCase(msg.getHeader(H_CONNECTION))) {
+                    conn.broken = true;
+                }
                 return msg;
             } catch (Exception e1) {
                 e = e1;
-                reconnect();
+                conn.broken = true;
+                evtCalls.logError(1);
+                if (System.currentTimeMillis() >= deadline) break;
+            } finally {
+                release(conn);
             }
         }
 
@@ -119,27 +142,104 @@ public class HttpClient implements HttpHandler, Closeable {
     }
 
 
-    private void reconnect() {
-        close();
-        connect();
+    /**
+     * Returns connection for next request: idle connection (most recently used one),
+     * new connection (if pool is not full), busy connection (if pipelining is enabled)
+     * or waits for connection to be released.
+     */
+    private Connection acquire(long deadline) {
+        synchronized (connections) {
+            while (true) {
+                long t = System.currentTimeMillis();
+                evictIdle(t);
+
+                Connection idle = null, shared = null;
+                for (Connection c : connections) {
+                    if (c.broken) continue;
+                    if (c.inFlight == 0) {
+                        if (idle == null || c.lastUsed > idle.lastUsed) idle = c;
+                    } else if (config.isPipelining() && c.inFlight < config.getMaxPipelined()) {
+                        if (shared == null || c.inFlight < shared.inFlight) shared = c;
+                    }
+                }
+
+                if (idle != null) {
+                    idle.inFlight++;
+                    return idle;
+                }
+
+                if (connections.size() + connecting < config.getMaxConnections()) {
+                    connecting++;
+                    break;
+                }
+
+                if (shared != null) {
+                    shared.inFlight++;
+                    return shared;
+                }
+
+                if (t >= deadline) {
+                    throw new HttpException("Timeout waiting for connection to " + host + ":" + port);
+                }
+
+                try {
+                    connections.wait(deadline - t);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new HttpException("Interrupted waiting for connection", e);
+                }
+            }
+        }
+
+        // Open new connection outside of pool lock
+        Connection conn = null;
+        try {
+            conn = connect();
+        } finally {
+            synchronized (connections) {
+                connecting--;
+                if (conn != null) {
+                    conn.inFlight++;
+                    connections.add(conn);
+                }
+                connections.notifyAll();
+            }
+        }
+        return conn;
     }
 
 
-    @Override
-    public void close() {
-        if (socket != null) {
-            ZorkaUtil.close(socket);
-            socket = null;
-            output = null;
+    private void release(Connection conn) {
+        synchronized (connections) {
+            conn.inFlight--;
+            conn.lastUsed = System.currentTimeMillis();
+            if (conn.broken && connections.remove(conn)) {
+                ZorkaUtil.close(conn.socket);
+            }
+            connections.notifyAll();
         }
     }
 
 
-    private void connect() {
+    /** Closes connections idle for longer than idle timeout. Must be called with pool lock held. */
+    private void evictIdle(long t) {
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            Connection c = connections.get(i);
+            if (c.inFlight == 0 && (c.broken || t - c.lastUsed > config.getIdleTimeout())) {
+                connections.remove(i);
+                ZorkaUtil.close(c.socket);
+            }
+        }
+    }
+
+
+    private Connection connect() {
         try {
-            socket = socketFactory.createSocket(addr, port);
-            output = new BufferedOutputStream(socket.getOutputStream());
+            Socket socket = socketFactory.createSocket();
+            socket.connect(new InetSocketAddress(addr, port), config.getConnectTimeout());
+            socket.setTcpNoDelay(true);
             evtConnects.logCall();
+            return new Connection(socket);
         } catch (IOException e) {
             evtConnects.logError(1);
             throw new HttpException("Cannot connect to " + addr + ":" + port, e);
@@ -147,6 +247,158 @@ public class HttpClient implements HttpHandler, Closeable {
     }
 
 
+    /** Returns number of open connections. */
+    public int getConnectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+
+    /** Closes all connections (new ones will be opened if client is used again). */
+    @Override
+    public void close() {
+        synchronized (connections) {
+            for (Connection c : connections) {
+                c.broken = true;
+                ZorkaUtil.close(c.socket);
+            }
+            connections.clear();
+            connections.notifyAll();
+        }
+    }
+
+
+    /**
+     * Single client connection. Requests are written under write lock, responses are read
+     * in order requests were written (sequence numbers), so multiple requests can be in flight.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final BufferedOutputStream output;
+        private final HttpEncoder encoder;
+        private final TimedInputStream input;
+        private final HttpDecoder decoder;
+
+        private final Object writeLock = new Object();
+        private final Object readLock = new Object();
+
+        /** Number of requests sent and responses received (guarded by respective locks) */
+        private long sent, received;
+
+        /** Number of requests in flight or waiting to be sent (guarded by pool lock) */
+        private int inFlight;
+
+        private long lastUsed = System.currentTimeMillis();
+
+        private volatile boolean broken;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.output = new BufferedOutputStream(socket.getOutputStream(), 16384);
+            this.encoder = new HttpEncoder(config, baseUri, output);
+            this.input = new TimedInputStream(socket, socket.getInputStream());
+            this.decoder = new HttpDecoder(input, config);
+        }
+
+        private HttpMessage exchange(HttpMessage req, long deadline) throws IOException {
+            long seq;
+
+            synchronized (writeLock) {
+                if (broken) throw new HttpException("Connection broken.");
+                seq = sent++;
+                encoder.reset();
+                try {
+                    encoder.handle(req);
+                    output.flush();
+                } catch (IOException e) {
+                    broken = true;
+                    throw e;
+                } catch (RuntimeException e) {
+                    broken = true;
+                    throw e;
+                }
+            }
+
+            synchronized (readLock) {
+                while (received != seq) {
+                    long t = System.currentTimeMillis();
+                    if (broken) throw new HttpException("Connection broken.");
+                    if (t >= deadline) {
+                        broken = true;
+                        throw new HttpException("Request timed out.");
+                    }
+                    try {
+                        readLock.wait(deadline - t);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        broken = true;
+                        throw new HttpException("Interrupted waiting for response", e);
+                    }
+                }
+                // Previous exchange failed: stream is out of sync, so it must not be read anymore
+                if (broken) {
+                    readLock.notifyAll();
+                    throw new HttpException("Connection broken.");
+                }
+            }
+
+            // Only one thread reads at a time (one with matching sequence number)
+            boolean ok = false;
+            try {
+                input.deadline = deadline;
+                HttpMessage resp = decoder.decode(true);
+                ok = true;
+                return resp;
+            } finally {
+                synchronized (readLock) {
+                    // Any failure (eg. timeout in the middle of response) leaves stream out of sync
+                    if (!ok) broken = true;
+                    received++;
+                    readLock.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Input stream enforcing both read timeout (for single read) and request deadline.
+     */
+    private class TimedInputStream extends FilterInputStream {
+
+        private final Socket socket;
+
+        private volatile long deadline;
+
+        private TimedInputStream(Socket socket, InputStream in) {
+            super(in);
+            this.socket = socket;
+        }
+
+        private void setTimeout() throws IOException {
+            long t = deadline - System.currentTimeMillis();
+            if (t <= 0) {
+                throw new IOException("Request timed out.");
+            }
+            socket.setSoTimeout((int)Math.min(t, config.getReadTimeout()));
+        }
+
+        @Override
+        public int read() throws IOException {
+            setTimeout();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            setTimeout();
+            return super.read(b, off, len);
+        }
+    }
+
+
     public static HttpClient fromMap(Map<String,String> conf, MethodCallStatistics stats) {
         String url = conf.get("http.url");
 
@@ -163,6 +415,19 @@ public class HttpClient implements HttpHandler, Closeable {
             httpConfig.setSslContext(TlsContextBuilder.fromMap("http.", conf));
         }
 
+        httpConfig.setConnectTimeout(parseInt(conf.get("http.connect.timeout"), HttpConfig.CONNECT_TIMEOUT,
+            "http.connect.timeout should be a number."));
+        httpConfig.setReadTimeout(parseInt(conf.get("http.read.timeout"), HttpConfig.READ_TIMEOUT,
+            "http.read.timeout should be a number."));
+        httpConfig.setRequestTimeout(parseInt(conf.get("http.timeout"), HttpConfig.REQUEST_TIMEOUT,
+            "http.timeout should be a number."));
+        httpConfig.setMaxConnections(parseInt(conf.get("http.pool.size"), HttpConfig.MAX_CONNECTIONS,
+            "http.pool.size should be a number."));
+        httpConfig.setIdleTimeout(parseInt(conf.get("http.pool.idle"), HttpConfig.IDLE_TIMEOUT,
+            "http.pool.idle should be a number."));
+        httpConfig.setPipelining(parseBool(conf.get("http.pipelining"), false,
+            "http.pipelining should be set to either 'yes' or 'no'."));
+
         return new HttpClient(httpConfig, url, stats);
     }
 
@@ -25,11 +25,34 @@ public class HttpConfig {
     public static final int KEEP_ALIVE = 30;
     public static final int MAX_LINE_SIZE = 32 * 1024;
     public static final int MAX_BODY_SIZE = 8 * 1024 * 1024;
+    public static final int IO_THREADS = 2;
+    public static final int CONNECT_TIMEOUT = 10000;
+    public static final int READ_TIMEOUT = 30000;
+    public static final int REQUEST_TIMEOUT = 60000;
+    public static final int MAX_CONNECTIONS = 4;
+    public static final int IDLE_TIMEOUT = 15000;
+    public static final int MAX_PIPELINED = 8;
 
     private int keepAliveTimeout = KEEP_ALIVE;
     private int maxLineSize = MAX_LINE_SIZE;
     private int maxBodySize = MAX_BODY_SIZE;
     private int maxRetries = MAX_RETRIES;
+    private int ioThreads = IO_THREADS;
+
+    /** Client connect, read (single read operation) and whole request timeouts (in milliseconds) */
+    private int connectTimeout = CONNECT_TIMEOUT;
+    private int readTimeout = READ_TIMEOUT;
+    private int requestTimeout = REQUEST_TIMEOUT;
+
+    /** Maximum number of client connections per host */
+    private int maxConnections = MAX_CONNECTIONS;
+
+    /** Idle client connections are closed after this time (in milliseconds) */
+    private int idleTimeout = IDLE_TIMEOUT;
+
+    /** If enabled, client sends requests over busy connections when pool is exhausted */
+    private boolean pipelining = false;
+    private int maxPipelined = MAX_PIPELINED;
 
     private String host;
 
@@ -85,6 +108,70 @@ public class HttpConfig {
         this.maxRetries = maxRetries;
     }
 
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(int requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    public void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public int getMaxPipelined() {
+        return maxPipelined;
+    }
+
+    public void setMaxPipelined(int maxPipelined) {
+        this.maxPipelined = maxPipelined;
+    }
+
     public String getHost() {
         return host;
     }
@@ -2,19 +2,16 @@
 
 package com.jitlogic.zorka.common.http;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.regex.Matcher;
-
-import com.jitlogic.zorka.common.util.ZorkaUtil;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import static com.jitlogic.zorka.common.http.HttpProtocol.*;
 
+/**
+ * Decodes HTTP messages from input stream using HttpParser. Data is read in blocks,
+ * so single decoder instance should be used for all messages read from a stream
+ * (data read past end of message is retained for next message).
+ */
 public class HttpDecoder {
 
-    private Logger log = LoggerFactory.getLogger(HttpDecoder.class);
-
     public final static String MALFORMED_MSG = "malformed HTTP message";
     public final static String TOO_LARGE_MSG = "too large";
 
@@ -22,153 +19,61 @@ public class HttpDecoder {
     public static final int HEADERS_MAX = 64 * 1024;
     public static final int LINE_MAX = 32 * 1024;
 
-    private final int maxBody;
-    private final int maxLine;
-
-    private HttpMessage httpMessage;
+    private static final int BUF_SIZE = 8192;
 
-    private int contentLength = 0;
-    boolean chunked = false;
+    private final InputStream is;
+    private final HttpParser parser;
 
-    private HttpConfig config;
-    private BufferedStreamLineReader reader;
+    private final byte[] buf = new byte[BUF_SIZE];
+    private int pos, lim;
 
     public HttpDecoder(InputStream is, HttpConfig config) {
-        this.reader = new BufferedStreamLineReader(is, config.getMaxLineSize());
-        this.config = config;
-        this.maxLine = config.getMaxLineSize();
-        this.maxBody = config.getMaxBodySize();
+        this.is = is;
+        this.parser = new HttpParser(config, false);
     }
 
-    private void parseResponseLine() {
-        String line = reader.readLine();
-        if (log.isDebugEnabled()) log.debug("RES: " + line);
-        Matcher m = RE_RESP_LINE.matcher(line);
-        if (m.matches()) {
-            httpMessage.setVersion(m.group(1));
-            httpMessage.setStatus(Integer.parseInt(m.group(2)));
-            httpMessage.setStatusLine(m.group(3));
-        } else {
-            throw new HttpException("Error decoding HTTP message", 400, MALFORMED_MSG, line, null);
-        }
+    /**
+     * Body consumer receives message bodies as they are read (instead of collecting them in messages).
+     */
+    public void setBodyConsumer(HttpBodyConsumer consumer) {
+        parser.setBodyConsumer(consumer);
     }
 
-    private void parseRequestLine() {
-        String line = reader.readLine();
-        if (log.isDebugEnabled()) log.debug("REQ: " + line);
-        if (line.isEmpty()) throw new HttpClosedException();
-        Matcher m = RE_REQ_LINE.matcher(line);
-        if (m.matches()) {
-            httpMessage.setMethod(HttpMethod.valueOf(m.group(1)));
-            httpMessage.setUri(m.group(2));
-            httpMessage.setQuery(m.group(3));
-            httpMessage.setVersion(m.group(4));
-        } else {
-            throw new HttpException("Error decoding HTTP message", 400, MALFORMED_MSG, line, null);
-        }
-    }
+    /**
+     * Reads and decodes single message.
+     *
+     * @throws HttpClosedException if stream ended before message
+     * @throws HttpException if message is malformed or stream ended prematurely
+     */
+    public HttpMessage decode(boolean isResponse) {
+        parser.reset(isResponse);
 
-    private void processHeader(String k, String v) {
-        if (v.indexOf(',') != -1) {
-            for (String s : v.split(",")) {
-                httpMessage.header(k, s);
+        while (true) {
+            if (pos < lim) {
+                pos += parser.parse(buf, pos, lim - pos);
+                if (parser.isComplete()) {
+                    return parser.getMessage();
+                }
             }
-        } else {
-            httpMessage.header(k, v);
-        }
-    }
 
-    private int processContentLength(String cl) {
-        int rr = 0;
-        if (cl != null) {
+            int n;
             try {
-                rr = Integer.parseInt(cl);
-                if (rr > 0) {
-                    if (rr > maxBody) {
-                        throw new HttpException("Error decoding HTTP message", 400, TOO_LARGE_MSG, cl, null);
-                    }
-                }
-            } catch (NumberFormatException e) {
-                throw new HttpException("Error decoding HTTP message", 400, MALFORMED_MSG, "Content-Length: " + cl, e);
+                n = is.read(buf, 0, buf.length);
+            } catch (IOException e) {
+                throw new HttpException("I/O error reading", 503, "", null, e);
             }
-        }
-        return rr;
-    }
 
-    private void parseHeaders() {
-        String line = reader.readLine();
-        String cl = null;
-
-        while (line != null && !line.isEmpty()) {
-            if (log.isDebugEnabled()) log.debug("HDR: " + line);
-            Matcher m = RE_HEADER.matcher(line);
-            if (m.matches()) {
-                String k = m.group(1), v = m.group(2);
-                processHeader(k, v);
-                chunked |= H_TRANSFER_ENCODING.equalsIgnoreCase(k) && "chunked".equalsIgnoreCase(v);
-                if (H_CONTENT_LENGTH.equalsIgnoreCase(k)) {
-                    cl = v;
-                }
-            } else {
-                throw new HttpException("Error parsing HTTP header", 400, MALFORMED_MSG, line, null);
+            if (n < 0) {
+                if (!parser.isStarted()) throw new HttpClosedException();
+                throw new HttpException("Error decoding HTTP message", 400, MALFORMED_MSG, "unexpected end of stream", null);
             }
-            line = reader.readLine();
-        }
-        this.contentLength = chunked ? 0 : processContentLength(cl);
-    }
 
-    public HttpMessage decode(boolean isResponse) {
-        chunked = false;
-        contentLength = 0;
-        httpMessage = new HttpMessage(isResponse);
-
-        if (!isResponse) {
-            parseRequestLine();
-        } else {
-            parseResponseLine();
-        }
-
-        parseHeaders();
-
-        if (chunked) {
-            int readCount = 0;
-            for (int rr = getChunkSize(reader.readLine()); rr > 0; rr = getChunkSize(reader.readLine())) {
-                if (readCount + rr > maxBody) {
-                    throw new HttpException("Error decoding HTTP message", 400, "", TOO_LARGE_MSG, null);
-                }
-                byte[] c = httpMessage.getBody() == null ? new byte[rr]
-                    : ZorkaUtil.clipArray(httpMessage.getBody(), httpMessage.getBody().length+rr);
-                byte[] x = reader.readData(rr);
-                System.arraycopy(x, 0, c, c.length-rr, rr);
-                httpMessage.setBody(c);
-                reader.readLine(); // Read empty line
-            }
-        } else if (contentLength > 0 && httpMessage.getStatus() != 204) {
-            // TODO handle chunked encoding
-            httpMessage.setBody(reader.readData(contentLength));
+            pos = 0;
+            lim = n;
         }
-
-        return httpMessage;
     }
 
     public void reset() {
-        httpMessage = null;
-    }
-
-    private int getChunkSize(String hex) {
-        // TODO switch to regex
-        hex = hex.trim();
-        for (int i = 0; i < hex.length(); i++) {
-            char c = hex.charAt(i);
-            if (c == ';' || Character.isWhitespace(c) || Character.isISOControl(c)) {
-                hex = hex.substring(0, i);
-                break;
-            }
-        }
-        try {
-            return Integer.parseInt(hex, 16);
-        } catch (Exception e) {
-            throw new HttpException("Error decoding HTTP message", 400, "", MALFORMED_MSG, e);
-        }
+        pos = lim = 0;
     }
 }
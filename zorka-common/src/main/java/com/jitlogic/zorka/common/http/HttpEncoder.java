@@ -31,11 +31,16 @@ public class HttpEncoder implements HttpHandler {
     private static final int CONNECTION_CLOSE    = 0x2000;
     private static final int HOST_SENT           = 0x4000;
 
+    private static final int CHUNK_SIZE = 8192;
+
     private int state = 0;
     private OutputStream os;
     private String uriPrefix;
     private HttpConfig config;
 
+    /** Chunked encoder for streamed bodies (allocated when needed, reused by subsequent messages) */
+    private HttpChunkedOutputStream chunked;
+
     public HttpEncoder(HttpConfig config, String uriPrefix, OutputStream os) {
         this.uriPrefix = uriPrefix;
         this.config = config;
@@ -58,6 +63,11 @@ public class HttpEncoder implements HttpHandler {
         }
     }
 
+    /** Prepares encoder for next message. */
+    public void reset() {
+        state = 0;
+    }
+
     private boolean gsf(int sbits) {
         return 0 != (state & sbits);
     }
@@ -131,6 +141,37 @@ public class HttpEncoder implements HttpHandler {
         state |= BODY_SENT;
     }
 
+    private void body(HttpBodyProducer p) {
+        int len = p.length();
+
+        if (len >= 0) {
+            if (0 == (state & CONTENT_LENGTH_SENT)) header(H_CONTENT_LENGTH, "" + len);
+        } else {
+            header(H_TRANSFER_ENCODING, "chunked");
+            state |= CONTENT_LENGTH_SENT;
+        }
+
+        finishHeaders();
+
+        try {
+            if (len >= 0) {
+                p.write(os);
+            } else {
+                if (chunked == null) {
+                    chunked = new HttpChunkedOutputStream(os, CHUNK_SIZE);
+                } else {
+                    chunked.reset(os);
+                }
+                p.write(chunked);
+                chunked.finish();
+            }
+        } catch (IOException e) {
+            throw new HttpException("I/O error", 503, "I/O error", null, e);
+        }
+
+        state |= BODY_SENT;
+    }
+
     private void finishHeaders() {
         if (!gsf(HEADERS_SENT)) {
             if (0 == (state & CONTENT_LENGTH_SENT)) header(H_CONTENT_LENGTH, "0");
@@ -174,7 +215,11 @@ public class HttpEncoder implements HttpHandler {
             }
         }
 
-        body(m.getBody());
+        if (m.getBodyProducer() != null) {
+            body(m.getBodyProducer());
+        } else {
+            body(m.getBody());
+        }
         return null;
     }
 
@@ -38,6 +38,13 @@ public class HttpMessage {
         return msg;
     }
 
+    public static HttpMessage POST(String uri, HttpBodyProducer body, String...headers) {
+        HttpMessage msg = new HttpMessage(false).setUri(uri).setMethod(POST);
+        msg.bodyProducer = body;
+        hdrs(msg, headers);
+        return msg;
+    }
+
     public static HttpMessage RESP(int status, String body, String...headers) {
         HttpMessage msg = new HttpMessage(true).setStatus(status);
         if (body != null) msg.body = body.getBytes();
@@ -70,6 +77,9 @@ public class HttpMessage {
 
     private byte[] body;
 
+    /** Produces body while message is being sent (instead of body array) */
+    private HttpBodyProducer bodyProducer;
+
     public HttpMessage(boolean isResponse) {
         this.isResponse = isResponse;
     }
@@ -171,4 +181,13 @@ public class HttpMessage {
     public void setBody(byte[] body) {
         this.body = body;
     }
+
+    public HttpBodyProducer getBodyProducer() {
+        return bodyProducer;
+    }
+
+    public HttpMessage setBodyProducer(HttpBodyProducer bodyProducer) {
+        this.bodyProducer = bodyProducer;
+        return this;
+    }
 }
@@ -21,6 +21,10 @@ public enum HttpMethod {
         return hasBody;
     }
 
+    public byte[] getBytes() {
+        return bytes;
+    }
+
     HttpMethod(boolean hasBody) {
         this.hasBody = hasBody;
         this.bytes = this.toString().getBytes();
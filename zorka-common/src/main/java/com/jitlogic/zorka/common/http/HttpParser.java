@@ -0,0 +1,504 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.http;
+
+import java.nio.charset.Charset;
+
+import static com.jitlogic.zorka.common.http.HttpDecoder.HEADERS_MAX;
+import static com.jitlogic.zorka.common.http.HttpDecoder.MALFORMED_MSG;
+import static com.jitlogic.zorka.common.http.HttpDecoder.TOO_LARGE_MSG;
+import static com.jitlogic.zorka.common.http.HttpProtocol.*;
+
+/**
+ * Incremental HTTP/1.x message parser. Data is passed in arbitrary slices (as it arrives
+ * from network) and parsed byte by byte by a state machine, so no stream or line reader
+ * is needed and no data is scanned twice. Lines are parsed directly from input slices and
+ * copied only if they span multiple slices. Common header names are matched against input
+ * bytes without creating strings.
+ *
+ * Bodies are collected into byte arrays (chunked bodies into single growable buffer),
+ * limited by HttpConfig.maxBodySize. If body consumer is set, body data is passed to
+ * consumer instead and there is no size limit.
+ *
+ * Messages without Content-Length and not chunked are assumed to have no body.
+ */
+public class HttpParser {
+
+    private static final int S_START      = 0;  // Request or status line
+    private static final int S_HEADERS    = 1;
+    private static final int S_BODY       = 2;  // Fixed length body
+    private static final int S_CHUNK_SIZE = 3;
+    private static final int S_CHUNK_DATA = 4;
+    private static final int S_CHUNK_END  = 5;  // Line terminating chunk data
+    private static final int S_TRAILERS   = 6;
+    private static final int S_DONE       = 7;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String[] KNOWN_HEADERS = {
+        H_CONTENT_LENGTH, H_CONTENT_TYPE, H_TRANSFER_ENCODING, H_CONNECTION, H_KEEP_ALIVE, H_HOST,
+        H_USER_AGENT, H_ACCEPT, H_ACCEPT_ENCODING, H_CONTENT_ENCODING, H_DATE, H_SERVER,
+        H_AUTHORIZATION, H_CACHE_CONTROL, H_EXPECT,
+        "X-Zorka-Session-ID", "X-Zorka-Session-Reset", "X-Zorka-Trace-ID"
+    };
+
+    /** Lower case names of known headers */
+    private static final byte[][] KNOWN_BYTES = new byte[KNOWN_HEADERS.length][];
+
+    private static final HttpMethod[] METHODS = HttpMethod.values();
+
+    private static final byte[] V_1_1 = HTTP_1_1.getBytes();
+    private static final byte[] V_1_0 = HTTP_1_0.getBytes();
+
+    private static final byte[] CHUNKED = "chunked".getBytes();
+
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_BYTES[i] = KNOWN_HEADERS[i].toLowerCase().getBytes();
+        }
+    }
+
+    private final int maxLine;
+    private final int maxBody;
+
+    private boolean isResponse;
+
+    private int state;
+
+    private HttpMessage msg;
+
+    private HttpBodyConsumer consumer;
+
+    /** Partial line (if line spans multiple input slices), allocated when needed */
+    private byte[] line;
+    private int lineLen;
+
+    /** Number of header bytes parsed so far */
+    private int hdrLen;
+
+    private boolean chunked;
+
+    /** Content length (-1 if not set) */
+    private long contentLength;
+
+    /** Remaining bytes of body or current chunk */
+    private long remaining;
+
+    /** Body buffer (if no consumer is set) */
+    private byte[] body;
+    private int bodyLen;
+
+    public HttpParser(HttpConfig config, boolean isResponse) {
+        this.maxLine = config.getMaxLineSize();
+        this.maxBody = config.getMaxBodySize();
+        reset(isResponse);
+    }
+
+    /**
+     * Prepares parser for next message. Consumer remains set.
+     */
+    public void reset(boolean isResponse) {
+        this.isResponse = isResponse;
+        this.state = S_START;
+        this.msg = new HttpMessage(isResponse);
+        this.lineLen = 0;
+        this.hdrLen = 0;
+        this.chunked = false;
+        this.contentLength = -1;
+        this.remaining = 0;
+        this.body = null;
+        this.bodyLen = 0;
+        if (line != null && line.length > 1024) {
+            line = null;
+        }
+    }
+
+    public void setBodyConsumer(HttpBodyConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    /** Returns true if complete message has been parsed. */
+    public boolean isComplete() {
+        return state == S_DONE;
+    }
+
+    /** Returns true if any part of current message has been parsed (or is buffered). */
+    public boolean isStarted() {
+        return state != S_START || lineLen > 0;
+    }
+
+    /** Returns parsed message (complete only if isComplete() returns true). */
+    public HttpMessage getMessage() {
+        return msg;
+    }
+
+    /**
+     * Parses slice of data. Parsing stops after complete message, remaining data is not consumed.
+     *
+     * @return number of consumed bytes
+     *
+     * @throws HttpException if message is malformed or too large
+     */
+    public int parse(byte[] b, int offs, int len) {
+        int pos = offs, end = offs + len;
+
+        while (pos < end && state != S_DONE) {
+            if (state == S_BODY || state == S_CHUNK_DATA) {
+                int n = (int)Math.min(remaining, end - pos);
+                data(b, pos, n);
+                pos += n;
+                remaining -= n;
+                if (remaining == 0) {
+                    if (state == S_BODY) {
+                        finish();
+                    } else {
+                        state = S_CHUNK_END;
+                    }
+                }
+            } else {
+                int eol = pos;
+                while (eol < end && b[eol] != '\n') eol++;
+
+                if (eol == end) {
+                    append(b, pos, end - pos);
+                    pos = end;
+                } else if (lineLen == 0) {
+                    line(b, pos, eol > pos && b[eol-1] == '\r' ? eol - 1 : eol);
+                    pos = eol + 1;
+                } else {
+                    append(b, pos, eol - pos);
+                    int l = lineLen;
+                    lineLen = 0;
+                    line(line, 0, l > 0 && line[l-1] == '\r' ? l - 1 : l);
+                    pos = eol + 1;
+                }
+            }
+        }
+
+        return pos - offs;
+    }
+
+    private void append(byte[] b, int offs, int len) {
+        if (lineLen + len > maxLine) {
+            throw tooLarge(null);
+        }
+        if (line == null) {
+            line = new byte[Math.max(128, lineLen + len)];
+        } else if (lineLen + len > line.length) {
+            byte[] l = new byte[Math.min(Math.max(lineLen + len, line.length * 2), maxLine)];
+            System.arraycopy(line, 0, l, 0, lineLen);
+            line = l;
+        }
+        System.arraycopy(b, offs, line, lineLen, len);
+        lineLen += len;
+    }
+
+    private void line(byte[] b, int s, int e) {
+        if (e - s > maxLine) {
+            throw tooLarge(null);
+        }
+
+        if (state == S_START || state == S_HEADERS) {
+            hdrLen += e - s + 2;
+            if (hdrLen > HEADERS_MAX) {
+                throw tooLarge(null);
+            }
+        }
+
+        switch (state) {
+            case S_START:
+                if (e == s) return; // Skip empty lines preceding message
+                if (isResponse) {
+                    statusLine(b, s, e);
+                } else {
+                    requestLine(b, s, e);
+                }
+                state = S_HEADERS;
+                break;
+            case S_HEADERS:
+                if (e == s) {
+                    headersDone();
+                } else {
+                    header(b, s, e);
+                }
+                break;
+            case S_CHUNK_SIZE:
+                remaining = chunkSize(b, s, e);
+                state = remaining > 0 ? S_CHUNK_DATA : S_TRAILERS;
+                break;
+            case S_CHUNK_END:
+                if (e != s) {
+                    throw malformed(b, s, e);
+                }
+                state = S_CHUNK_SIZE;
+                break;
+            case S_TRAILERS:
+                if (e == s) {
+                    finish();
+                }
+                break;
+        }
+    }
+
+    private void requestLine(byte[] b, int s, int e) {
+        int sp1 = indexOf(b, s, e, ' '), sp2 = sp1 > 0 ? indexOf(b, sp1 + 1, e, ' ') : -1;
+        if (sp1 < 0 || sp2 < 0 || sp2 == sp1 + 1) {
+            throw malformed(b, s, e);
+        }
+
+        HttpMethod method = method(b, s, sp1);
+        if (method == null) {
+            throw malformed(b, s, e);
+        }
+
+        for (int i = sp1 + 1; i < sp2; i++) {
+            if (b[i] < 0x21 || b[i] == 0x7f) throw malformed(b, s, e);
+        }
+
+        int q = indexOf(b, sp1 + 1, sp2, '?');
+
+        msg.setMethod(method);
+        msg.setUri(str(b, sp1 + 1, q >= 0 ? q : sp2));
+        msg.setQuery(q >= 0 ? str(b, q + 1, sp2) : null);
+        String version = version(b, sp2 + 1, e);
+        if (version == null) {
+            throw malformed(b, s, e);
+        }
+        msg.setVersion(version);
+    }
+
+    private void statusLine(byte[] b, int s, int e) {
+        int sp = indexOf(b, s, e, ' ');
+        if (sp < 0 || sp + 4 > e || (sp + 4 < e && b[sp+4] != ' ')) {
+            throw malformed(b, s, e);
+        }
+
+        int status = 0;
+        for (int i = sp + 1; i < sp + 4; i++) {
+            if (b[i] < '0' || b[i] > '9') throw malformed(b, s, e);
+            status = status * 10 + (b[i] - '0');
+        }
+        String version = version(b, s, sp);
+        if (version == null || status < 100 || status > 599) {
+            throw malformed(b, s, e);
+        }
+
+        msg.setVersion(version);
+        msg.setStatus(status);
+        msg.setStatusLine(sp + 5 <= e ? str(b, sp + 5, e) : "");
+    }
+
+    private void header(byte[] b, int s, int e) {
+        int c = indexOf(b, s, e, ':');
+        if (c <= s) {
+            throw malformed(b, s, e);
+        }
+        for (int i = s; i < c; i++) {
+            if (!isTokenChar(b[i])) throw malformed(b, s, e);
+        }
+
+        String name = knownHeader(b, s, c);
+        if (name == null) {
+            name = str(b, s, c);
+        }
+
+        int vs = c + 1, ve = e;
+        while (vs < ve && (b[vs] == ' ' || b[vs] == '\t')) vs++;
+        while (ve > vs && (b[ve-1] == ' ' || b[ve-1] == '\t')) ve--;
+
+        if (name == H_CONTENT_LENGTH) {
+            long l = number(b, vs, ve);
+            if (l < 0 || (contentLength >= 0 && l != contentLength)) {
+                throw malformed(b, s, e);
+            }
+            contentLength = l;
+        } else if (name == H_TRANSFER_ENCODING) {
+            int p = ve;
+            while (p > vs && b[p-1] != ',') p--;
+            while (p < ve && (b[p] == ' ' || b[p] == '\t')) p++;
+            chunked = ve - p == 7 && eqIgnoreCase(CHUNKED, b, p);
+        }
+
+        // Comma separated values are stored as separate entries
+        for (int p = vs; p <= ve; ) {
+            int n = indexOf(b, p, ve, ',');
+            if (n < 0) n = ve;
+            int ps = p, pe = n;
+            while (ps < pe && (b[ps] == ' ' || b[ps] == '\t')) ps++;
+            while (pe > ps && (b[pe-1] == ' ' || b[pe-1] == '\t')) pe--;
+            if (pe > ps || vs == ve) {
+                msg.header(name, str(b, ps, pe));
+            }
+            p = n + 1;
+        }
+    }
+
+    private void headersDone() {
+        if (chunked) {
+            state = S_CHUNK_SIZE;
+        } else if (contentLength > 0 && msg.getStatus() != 204 && msg.getStatus() != 304) {
+            if (consumer == null) {
+                if (contentLength > maxBody) throw tooLarge("Content-Length: " + contentLength);
+                body = new byte[(int)contentLength];
+            }
+            remaining = contentLength;
+            state = S_BODY;
+        } else {
+            finish();
+        }
+    }
+
+    private long chunkSize(byte[] b, int s, int e) {
+        long size = 0;
+        int i = s;
+        for (; i < e; i++) {
+            int d = Character.digit(b[i], 16);
+            if (d < 0) break;
+            size = size * 16 + d;
+            if (size > Integer.MAX_VALUE) throw tooLarge(str(b, s, e));
+        }
+        // Chunk size may be followed by extensions (or garbage we don't care about)
+        if (i == s || (i < e && b[i] != ';' && b[i] > ' ' && b[i] != 0x7f)) {
+            throw malformed(b, s, e);
+        }
+        return size;
+    }
+
+    private void data(byte[] b, int offs, int len) {
+        if (consumer != null) {
+            consumer.body(msg, b, offs, len);
+        } else if (state == S_BODY) {
+            System.arraycopy(b, offs, body, bodyLen, len);
+            bodyLen += len;
+        } else {
+            if ((long)bodyLen + len > maxBody) {
+                throw tooLarge(null);
+            }
+            if (body == null) {
+                body = new byte[Math.max(len, 1024)];
+            } else if (bodyLen + len > body.length) {
+                byte[] nb = new byte[(int)Math.min(Math.max(bodyLen + len, 2L * body.length), maxBody)];
+                System.arraycopy(body, 0, nb, 0, bodyLen);
+                body = nb;
+            }
+            System.arraycopy(b, offs, body, bodyLen, len);
+            bodyLen += len;
+        }
+    }
+
+    private void finish() {
+        if (body != null) {
+            if (bodyLen == body.length) {
+                msg.setBody(body);
+            } else {
+                byte[] b = new byte[bodyLen];
+                System.arraycopy(body, 0, b, 0, bodyLen);
+                msg.setBody(b);
+            }
+        }
+        body = null;
+        state = S_DONE;
+    }
+
+    private static HttpMethod method(byte[] b, int s, int e) {
+        for (HttpMethod m : METHODS) {
+            byte[] mb = m.getBytes();
+            if (mb.length == e - s) {
+                int i = 0;
+                while (i < mb.length && mb[i] == b[s+i]) i++;
+                if (i == mb.length) return m;
+            }
+        }
+        return null;
+    }
+
+    private static String version(byte[] b, int s, int e) {
+        if (eq(V_1_1, b, s, e)) return HTTP_1_1;
+        if (eq(V_1_0, b, s, e)) return HTTP_1_0;
+        if (e - s == 8 && b[s] == 'H' && b[s+1] == 'T' && b[s+2] == 'T' && b[s+3] == 'P' && b[s+4] == '/'
+            && isDigit(b[s+5]) && b[s+6] == '.' && isDigit(b[s+7])) {
+            return str(b, s, e);
+        }
+        return null;
+    }
+
+    private static String knownHeader(byte[] b, int s, int e) {
+        for (int i = 0; i < KNOWN_BYTES.length; i++) {
+            byte[] h = KNOWN_BYTES[i];
+            if (h.length == e - s && eqIgnoreCase(h, b, s)) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return null;
+    }
+
+    private static long number(byte[] b, int s, int e) {
+        if (s == e || e - s > 18) return -1;
+        long n = 0;
+        for (int i = s; i < e; i++) {
+            if (!isDigit(b[i])) return -1;
+            n = n * 10 + (b[i] - '0');
+        }
+        return n;
+    }
+
+    private static boolean isDigit(byte c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isTokenChar(byte c) {
+        return c > 0x20 && c < 0x7f && "()<>@,;:\\\"/[]?={}".indexOf(c) < 0;
+    }
+
+    private static boolean eq(byte[] s, byte[] b, int bs, int be) {
+        if (be - bs != s.length) return false;
+        for (int i = 0; i < s.length; i++) {
+            if (s[i] != b[bs+i]) return false;
+        }
+        return true;
+    }
+
+    /** Compares lower case string with input bytes ignoring case. */
+    private static boolean eqIgnoreCase(byte[] lc, byte[] b, int bs) {
+        for (int i = 0; i < lc.length; i++) {
+            int c = b[bs+i];
+            if (c >= 'A' && c <= 'Z') c += 32;
+            if (c != lc[i]) return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] b, int s, int e, char c) {
+        for (int i = s; i < e; i++) {
+            if (b[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private static String str(byte[] b, int s, int e) {
+        return new String(b, s, e - s, ISO_8859_1);
+    }
+
+    private static HttpException malformed(byte[] b, int s, int e) {
+        return new HttpException("Error decoding HTTP message", 400, MALFORMED_MSG, str(b, s, Math.min(e, s + 256)), null);
+    }
+
+    private static HttpException tooLarge(String data) {
+        return new HttpException("Error decoding HTTP message", 400, TOO_LARGE_MSG, data, null);
+    }
+}
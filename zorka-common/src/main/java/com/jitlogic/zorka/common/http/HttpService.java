@@ -21,9 +21,13 @@ public class HttpService implements ZorkaService, HttpHandler {
 
     private HttpServer server;
 
+    /** Non-blocking server (used instead of blocking server if TLS is not enabled). */
+    private NioHttpServer nioServer;
+
     private int listenPort;
     private String listenAddr;
     private boolean tlsEnabled;
+    private boolean nioEnabled;
 
 
     public HttpService(String prefix, Map<String,String> config, Executor executor, MethodCallStatistics stats) {
@@ -34,15 +38,29 @@ public class HttpService implements ZorkaService, HttpHandler {
         tlsEnabled = parseBool(config.get("tls"), false,
                 prefix + ".tls should be set to either 'yes' or 'no'");
 
-        SSLContext sslContext = tlsEnabled ? TlsContextBuilder.fromMap("", config) : null;
+        nioEnabled = parseBool(config.get("nio"), true,
+                prefix + ".nio should be set to either 'yes' or 'no'");
+
+        HttpConfig httpConfig = new HttpConfig();
+        httpConfig.setIoThreads(parseInt(config.get("io.threads"), HttpConfig.IO_THREADS,
+                prefix + ".io.threads should be number."));
 
-        this.server = new HttpServer(prefix, listenAddr, listenPort, new HttpConfig(), this, executor, sslContext);
+        if (nioEnabled && !tlsEnabled) {
+            this.nioServer = new NioHttpServer(prefix, listenAddr, listenPort, httpConfig, this, executor);
+        } else {
+            SSLContext sslContext = tlsEnabled ? TlsContextBuilder.fromMap("", config) : null;
+            this.server = new HttpServer(prefix, listenAddr, listenPort, httpConfig, this, executor, sslContext);
+        }
 
         log.info("{} service listening on port: {}", tlsEnabled ? "HTTPS" : "HTTP", listenPort);
     }
 
     public void start() {
-        server.start();
+        if (nioServer != null) {
+            nioServer.start();
+        } else {
+            server.start();
+        }
     }
 
     public synchronized void addEndpoint(String path, HttpHandler handler) {
@@ -56,7 +74,11 @@ public class HttpService implements ZorkaService, HttpHandler {
 
     @Override
     public void shutdown() {
-        server.stop();
+        if (nioServer != null) {
+            nioServer.stop();
+        } else {
+            server.stop();
+        }
     }
 
     @Override
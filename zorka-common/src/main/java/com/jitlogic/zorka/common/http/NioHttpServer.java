@@ -0,0 +1,500 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.http;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.jitlogic.zorka.common.http.HttpProtocol.*;
+
+/**
+ * Non-blocking HTTP server. Connections are handled by a small fixed set of I/O threads
+ * (each with its own selector), so number of connections does not affect number of threads.
+ * Requests are parsed incrementally (HttpParser) as data arrives, complete requests are
+ * dispatched to handler on supplied executor (which should be bounded: rejected requests are
+ * answered with 503). Connections are kept alive and pipelined requests are handled in order (one
+ * request per connection is processed at a time, reading is suspended when too many
+ * requests are waiting). Each I/O thread has its own read and write buffers, idle
+ * connections hold only parser state.
+ *
+ * TLS is not supported, use HttpServer for HTTPS.
+ */
+public class NioHttpServer {
+
+    private static Logger log = LoggerFactory.getLogger(NioHttpServer.class);
+
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /** Reading from connection is suspended when this many parsed requests are waiting. */
+    public static final int MAX_PIPELINED = 16;
+
+    private final String name;
+    private final String listenAddr;
+    private final int listenPort;
+
+    private final HttpConfig config;
+    private final HttpHandler handler;
+    private final Executor executor;
+    private final int ioThreads;
+
+    private volatile boolean running;
+
+    private ServerSocketChannel serverChannel;
+
+    private IoLoop[] loops;
+
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public NioHttpServer(String name, String address, int port, HttpConfig config, HttpHandler handler, Executor executor) {
+        this.name = name;
+        this.listenAddr = address;
+        this.listenPort = port;
+        this.config = config;
+        this.handler = handler;
+        this.executor = executor;
+        this.ioThreads = Math.max(1, config.getIoThreads());
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(listenAddr), listenPort));
+            serverChannel.configureBlocking(false);
+
+            running = true;
+
+            loops = new IoLoop[ioThreads];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop(i);
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            for (IoLoop loop : loops) {
+                loop.thread.start();
+            }
+
+            log.info("ZORKA-{}-http is listening at {}:{} ({} I/O threads)", name, listenAddr, getLocalPort(), ioThreads);
+        } catch (IOException e) {
+            running = false;
+            log.error("I/O error while starting ZORKA-{}-http: {}", name, e.getMessage());
+        }
+    }
+
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.error("Error closing server socket of ZORKA-" + name + "-http", e);
+        }
+
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+
+        for (IoLoop loop : loops) {
+            try {
+                loop.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (loop.thread.isAlive()) {
+                log.warn("Thread {} didn't stop after 1000 milliseconds.", loop.thread.getName());
+            }
+        }
+    }
+
+    public int getLocalPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : 0;
+    }
+
+    /** Returns number of currently open connections. */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    private static String header(HttpMessage m, String name) {
+        for (Map.Entry<String,List<String>> e : m.getHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(e.getKey()) && !e.getValue().isEmpty()) {
+                return e.getValue().get(0).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Single I/O thread with its own selector. Other threads interact with connections
+     * handled by loop only by submitting tasks (see execute()).
+     */
+    private class IoLoop implements Runnable {
+
+        private final Selector selector;
+
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        private final ByteBuffer rbuf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private final ByteBuffer wbuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        private final Thread thread;
+
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        private IoLoop(int n) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this);
+            thread.setName("ZORKA-" + name + "-http-io-" + n);
+            thread.setDaemon(true);
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(1000);
+
+                    for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+                        try {
+                            task.run();
+                        } catch (Exception e) {
+                            log.error("Error executing task in " + thread.getName() + " I/O loop", e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+
+                    checkIdle();
+                }
+            } catch (Exception e) {
+                log.error("Error in " + thread.getName() + " I/O loop", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection)key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.error("Error closing selector", e);
+                }
+            }
+        }
+
+        /** Handles ready key. Errors close only affected connection, loop keeps serving others. */
+        private void handle(SelectionKey key) {
+            Connection conn = (Connection)key.attachment();
+            try {
+                if (!key.isValid()) return;
+                if (conn == null) {
+                    if (key.isAcceptable()) accept();
+                } else {
+                    if (key.isReadable()) conn.read();
+                    if (key.isValid() && key.isWritable()) conn.write();
+                }
+            } catch (Exception e) {
+                log.error("Error handling connection in " + thread.getName() + " I/O loop", e);
+                if (conn != null) conn.close();
+            }
+        }
+
+        private void accept() {
+            try {
+                for (SocketChannel ch = serverChannel.accept(); ch != null; ch = serverChannel.accept()) {
+                    ch.configureBlocking(false);
+                    ch.socket().setTcpNoDelay(true);
+                    final SocketChannel sc = ch;
+                    final IoLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                    if (loop == this) {
+                        register(sc);
+                    } else {
+                        loop.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                loop.register(sc);
+                            }
+                        });
+                    }
+                }
+            } catch (IOException e) {
+                if (running) log.error("Error accepting connection in ZORKA-" + name + "-http", e);
+            }
+        }
+
+        private void register(SocketChannel ch) {
+            try {
+                Connection conn = new Connection(this, ch);
+                conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                connections.incrementAndGet();
+            } catch (IOException e) {
+                log.error("Error registering connection in ZORKA-" + name + "-http", e);
+                try {
+                    ch.close();
+                } catch (IOException e1) {
+                    // ignore
+                }
+            }
+        }
+
+        /** Closes connections that have been idle for longer than keep alive timeout. */
+        private void checkIdle() {
+            long t = System.currentTimeMillis();
+            if (t - lastIdleCheck < 1000) return;
+            lastIdleCheck = t;
+            long timeout = Math.max(config.getKeepAliveTimeout(), 1) * 1000L;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection)key.attachment();
+                if (conn != null && conn.isIdle() && t - conn.lastActive > timeout) {
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Server side connection. All methods are called from owning I/O loop thread.
+     */
+    private class Connection {
+
+        private final IoLoop loop;
+        private final SocketChannel ch;
+        private SelectionKey key;
+
+        /** Parser keeps state of partially received request */
+        private final HttpParser parser = new HttpParser(config, false);
+
+        /** Requests parsed and waiting for processing */
+        private final ArrayDeque<HttpMessage> requests = new ArrayDeque<HttpMessage>();
+
+        /** True if request is being processed by handler */
+        private boolean busy;
+
+        /** Data waiting to be written */
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+        /** Connection will be closed when pending output is written */
+        private boolean closing;
+
+        private boolean eof;
+
+        private long lastActive = System.currentTimeMillis();
+
+        private Connection(IoLoop loop, SocketChannel ch) {
+            this.loop = loop;
+            this.ch = ch;
+        }
+
+        private boolean isIdle() {
+            return !busy && out.isEmpty() && requests.isEmpty();
+        }
+
+        private void read() {
+            ByteBuffer b = loop.rbuf;
+            b.clear();
+            int n;
+            try {
+                n = ch.read(b);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            if (n < 0) {
+                eof = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (isIdle()) close();
+                return;
+            }
+
+            lastActive = System.currentTimeMillis();
+
+            try {
+                for (int pos = 0; pos < n; ) {
+                    pos += parser.parse(b.array(), pos, n - pos);
+                    if (parser.isComplete()) {
+                        requests.add(parser.getMessage());
+                        parser.reset(false);
+                    }
+                }
+            } catch (HttpException e) {
+                log.debug("Malformed request in ZORKA-" + name + "-http", e);
+                parser.reset(false);
+                requests.clear();
+                if (!busy) {
+                    respond(encode(HttpMessage.RESP(e.getStatus() > 0 ? e.getStatus() : 400, e.getMessage()), true), true);
+                } else {
+                    closing = true;
+                }
+                return;
+            }
+
+            if (requests.size() >= MAX_PIPELINED) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+
+            dispatch();
+        }
+
+        /** Dispatches next waiting request to handler (if no other request is processed). */
+        private void dispatch() {
+            if (busy || closing || requests.isEmpty()) return;
+
+            final HttpMessage req = requests.poll();
+            final boolean close = !keepAlive(req);
+            busy = true;
+
+            if (requests.size() < MAX_PIPELINED && !eof && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean c = close;
+                        byte[] data = null;
+                        try {
+                            HttpMessage resp = handler.handle(req);
+                            if (resp == null) resp = HttpMessage.RESP(500, "No response.");
+                            c = close || "close".equalsIgnoreCase(header(resp, H_CONNECTION));
+                            data = encode(resp, c);
+                        } catch (Exception e) {
+                            log.error("Error processing request " + req.getUri() + " in ZORKA-" + name + "-http", e);
+                            c = close;
+                            data = encode(HttpMessage.RESP(500, "Internal error."), c);
+                        } finally {
+                            // Connection must not stay busy forever, even if no response could be produced
+                            final byte[] d = data;
+                            final boolean fc = c;
+                            loop.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (d != null) {
+                                        respond(d, fc);
+                                    } else {
+                                        busy = false;
+                                        close();
+                                    }
+                                }
+                            });
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                respond(encode(HttpMessage.RESP(503, "Server busy."), close), close);
+            }
+        }
+
+        private boolean keepAlive(HttpMessage req) {
+            String c = header(req, H_CONNECTION);
+            if (config.getKeepAliveTimeout() <= 0 || "close".equalsIgnoreCase(c)) return false;
+            return !HTTP_1_0.equals(req.getVersion()) || "keep-alive".equalsIgnoreCase(c);
+        }
+
+        /** Queues response and continues with next request (if any). */
+        private void respond(byte[] data, boolean close) {
+            busy = false;
+            if (!key.isValid()) return;
+            out.add(ByteBuffer.wrap(data));
+            if (close) closing = true;
+            write();
+            if (key.isValid()) {
+                dispatch();
+                if (eof && isIdle()) close();
+            }
+        }
+
+        private void write() {
+            ByteBuffer b = loop.wbuf;
+            try {
+                while (!out.isEmpty()) {
+                    ByteBuffer d = out.peek();
+                    b.clear();
+                    int n = Math.min(d.remaining(), b.remaining());
+                    b.put(d.array(), d.position(), n);
+                    b.flip();
+                    int w = ch.write(b);
+                    d.position(d.position() + w);
+                    lastActive = System.currentTimeMillis();
+                    if (w < n) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (!d.hasRemaining()) out.poll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing && !busy) close();
+        }
+
+        private void close() {
+            if (key != null && key.isValid()) {
+                key.cancel();
+                connections.decrementAndGet();
+            }
+            try {
+                ch.close();
+            } catch (IOException e) {
+                log.debug("Error closing connection", e);
+            }
+            out.clear();
+            requests.clear();
+        }
+    }
+
+    private byte[] encode(HttpMessage resp, boolean close) {
+        if (close && header(resp, H_CONNECTION) == null) {
+            resp.header(H_CONNECTION, "close");
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256 + (resp.getBody() != null ? resp.getBody().length : 0));
+        new HttpEncoder(config, "", bos).handle(resp);
+        return bos.toByteArray();
+    }
+}
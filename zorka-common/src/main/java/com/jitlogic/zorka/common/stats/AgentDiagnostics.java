@@ -64,6 +64,9 @@ public class AgentDiagnostics {
     public static final int TUNER_LCALLS     = 38;
     public static final int TUNER_CYCLES     = 39;
     public static final int TUNER_EXCLUSIONS = 40;
+    public static final int ZICO_RETRIES     = 41;      // Sends scheduled for retry
+    public static final int ZICO_BREAKER_TRIPS = 42;    // Collector circuit breaker openings
+    public static final int ZICO_BREAKER_STATE = 43;    // Collector circuit breaker state (0 - closed, 1 - open, 2 - half open)
 
 
     private static final String[] counterNames = {
@@ -108,6 +111,9 @@ public class AgentDiagnostics {
             "TunerLCalls",          // 38
             "TunerCycles",          // 39
             "TunerExclusions",      // 40
+            "ZicoRetries",          // 41
+            "ZicoBreakerTrips",     // 42
+            "ZicoBreakerState",     // 43
     };
 
 
@@ -138,6 +144,10 @@ public class AgentDiagnostics {
         return timeCounters.contains(counter) ? v / 1000000L : v;
     }
 
+    public static void set(int counter, long value) {
+        counters[counter].set(value);
+    }
+
     public static void clear(int counter) {
         counters[counter].set(0);
     }
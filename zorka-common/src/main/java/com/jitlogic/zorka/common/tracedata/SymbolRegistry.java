@@ -16,49 +16,156 @@
 
 package com.jitlogic.zorka.common.tracedata;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-
+/**
+ * Registry of symbols (strings) and methods (class, method and signature symbol triples),
+ * each having integer ID assigned.
+ *
+ * Symbol names are kept in an append-only table indexed by ID, with a separate open addressing
+ * hash index (linear probing) storing only IDs. Method definitions are packed into longs and kept
+ * in the same way. This keeps per-entry memory overhead low and avoids boxing.
+ *
+ * Lookups of already registered symbols and methods are lock-free. Registering new entries is
+ * serialized. Lock-free readers may not see entries registered concurrently, so all misses are
+ * checked again under lock before registering anything.
+ */
 public class SymbolRegistry {
 
-    /**
-     * ID of last symbol added to registry.
-     */
-    protected AtomicInteger lastSymbolId;
+    private static final int INITIAL_SIZE = 1024;
+
+    private final static long MDEF_MASK = 0x00000000001FFFFFL;
+
+    /** Marks used slots in methodDefs[] (method definitions use only 63 bits). */
+    private final static long MDEF_PRESENT = 0x8000000000000000L;
+
+    /** Symbol names indexed by symbol IDs. */
+    private volatile String[] symbolNames = new String[INITIAL_SIZE];
+
+    /** Hash index of symbol names: contains symbol IDs (0 means empty slot). */
+    private volatile int[] symbolIndex = new int[INITIAL_SIZE * 2];
+
+    /** ID of last symbol added to registry (guarded by symbolLock). */
+    private int lastSymbolId;
+
+    /** Number of symbols in index (guarded by symbolLock). */
+    private int numSymbols;
+
+    private final Object symbolLock = new Object();
+
+    /** Method definitions (with MDEF_PRESENT bit set) indexed by method IDs. */
+    private volatile long[] methodDefs = new long[INITIAL_SIZE];
+
+    /** Hash index of method definitions: contains method IDs (0 means empty slot). */
+    private volatile int[] methodIndex = new int[INITIAL_SIZE * 2];
+
+    /** ID of last method added to registry (guarded by methodLock). */
+    private int lastMethodId;
+
+    /** Number of methods in index (guarded by methodLock). */
+    private int numMethods;
+
+    private final Object methodLock = new Object();
+
+
+    private static int hash(int h) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private static int hash(long l) {
+        return hash((int)(l ^ (l >>> 32)));
+    }
+
+
+    private static int findSymbol(String symbol, int[] index, String[] names) {
+        int mask = index.length - 1, h = symbol.hashCode();
+        for (int i = hash(h) & mask; ; i = (i + 1) & mask) {
+            int id = index[i];
+            if (id == 0) {
+                return 0;
+            }
+            String s = id < names.length ? names[id] : null;
+            if (s == null) {
+                return 0;   // Not yet visible to this thread, will be checked again under lock
+            }
+            if (s == symbol || (s.hashCode() == h && s.equals(symbol))) {
+                return id;
+            }
+        }
+    }
 
-    protected AtomicInteger lastSymbolNew;
 
     /**
-     * Symbol name to ID map
+     * Adds symbol ID to index. If index already contains the same symbol, its ID is replaced.
      */
-    protected ConcurrentMap<String, Integer> symbolIds;
+    private static boolean indexSymbol(int id, int[] index, String[] names) {
+        String symbol = names[id];
+        int mask = index.length - 1;
+        for (int i = hash(symbol.hashCode()) & mask; ; i = (i + 1) & mask) {
+            int x = index[i];
+            if (x == 0) {
+                index[i] = id;
+                return true;
+            }
+            if (x == id || symbol.equals(names[x])) {
+                index[i] = id;
+                return false;
+            }
+        }
+    }
+
 
     /**
-     * Symbol ID to name map
+     * Stores symbol with given ID. Must be called with symbolLock held.
      */
-    protected ConcurrentMap<Integer, String> symbolNames;
+    private void addSymbol(int id, String symbol) {
+        String[] names = symbolNames;
+
+        if (id >= names.length) {
+            String[] n = new String[Math.max(id + 1, names.length * 2)];
+            System.arraycopy(names, 0, n, 0, names.length);
+            names = n;
+            symbolNames = names;
+        }
 
-    protected AtomicInteger lastMethodId;
+        names[id] = symbol;
 
-    protected AtomicInteger lastMethodNew;
+        int[] index = symbolIndex;
 
-    protected ConcurrentMap<Long, Integer> methodIds;
+        if ((numSymbols + 1) * 2 > index.length) {
+            index = new int[index.length * 2];
+            numSymbols = 0;
+            for (int i = 1; i < names.length; i++) {
+                if (names[i] != null && indexSymbol(i, index, names)) {
+                    numSymbols++;
+                }
+            }
+            symbolIndex = index;
+        } else if (indexSymbol(id, index, names)) {
+            numSymbols++;
+        }
 
-    protected ConcurrentMap<Integer, Long> methodDefs;
+        if (id > lastSymbolId) {
+            lastSymbolId = id;
+        }
+    }
 
-    public SymbolRegistry() {
-        lastSymbolId = new AtomicInteger(0);
-        lastSymbolNew = new AtomicInteger(0);
-        symbolIds = new ConcurrentHashMap<String, Integer>();
-        symbolNames = new ConcurrentHashMap<Integer, String>();
 
-        lastMethodId = new AtomicInteger(0);
-        lastMethodNew = new AtomicInteger(0);
-        methodIds = new ConcurrentHashMap<Long, Integer>();
-        methodDefs = new ConcurrentHashMap<Integer, Long>();
+    private String name(int symbolId) {
+        String[] names = symbolNames;
+        String s = symbolId > 0 && symbolId < names.length ? names[symbolId] : null;
+
+        if (s == null && symbolId > 0) {
+            synchronized (symbolLock) {
+                names = symbolNames;
+                s = symbolId < names.length ? names[symbolId] : null;
+            }
+        }
+
+        return s;
     }
 
+
     /**
      * Returns ID of named symbol. If symbol hasn't been registered yet,
      * it will be and new ID will be assigned for it.
@@ -72,21 +179,32 @@ public class SymbolRegistry {
             return 0;
         }
 
-        Integer id = symbolIds.get(symbol);
+        int id = findSymbol(symbol, symbolIndex, symbolNames);
 
-        if (id == null) {
-            int newid = lastSymbolId.incrementAndGet();
-
-            id = symbolIds.putIfAbsent(symbol, newid);
-            if (id == null) {
-                symbolNames.put(newid, symbol);
-                id = newid;
+        if (id == 0) {
+            synchronized (symbolLock) {
+                id = findSymbol(symbol, symbolIndex, symbolNames);
+                if (id == 0) {
+                    id = lastSymbolId + 1;
+                    addSymbol(id, symbol);
+                }
             }
         }
 
         return id;
     }
 
+    /**
+     * Returns ID of named symbol without registering it. This is lock-free, so symbols
+     * being registered concurrently by other threads might not be found.
+     *
+     * @param symbol symbol name
+     * @return symbol ID or 0 if symbol has not been registered
+     */
+    public int findSymbolId(String symbol) {
+        return symbol != null ? findSymbol(symbol, symbolIndex, symbolNames) : 0;
+    }
+
     /**
      * Returns symbol name based on ID or null if no such symbol has been registered.
      *
@@ -97,31 +215,31 @@ public class SymbolRegistry {
         if (symbolId == 0) {
             return "<null>";
         }
-        String sym = symbolNames.get(symbolId);
+        String sym = name(symbolId);
 
         return sym != null ? sym : "<?>";
     }
 
     public boolean hasSymbol(int symbolId) {
-        return symbolNames.containsKey(symbolId);
+        return name(symbolId) != null;
     }
 
     public String methodDesc(int mid) {
-        SymbolicMethod cms = methodDef(mid);
-        return cms != null ? symbolName(cms.getClassId()) + "." + symbolName(cms.getMethodId()) + "()" : "<?>";
+        long mdef = mdef(mid);
+        return mdef != 0 ? symbolName(classId(mdef)) + "." + symbolName(methodNameId(mdef)) + "()" : "<?>";
     }
 
     public String methodXDesc(int mid) {
-        SymbolicMethod cms = methodDef(mid);
-        if (cms != null) {
+        long mdef = mdef(mid);
+        if (mdef != 0) {
             String pkgName = "";
-            String className = symbolName(cms.getClassId());
+            String className = symbolName(classId(mdef));
             int ix = className.lastIndexOf('.');
             if (ix > 0) {
                 pkgName = className.substring(0, ix);
                 className = className.substring(ix+1);
             }
-            return pkgName + "|" + className + "|" +  symbolName(cms.getMethodId()) + "|" + symbolName(cms.getSignatureId());
+            return pkgName + "|" + className + "|" +  symbolName(methodNameId(mdef)) + "|" + symbolName(signatureId(mdef));
         }
         return "?";
     }
@@ -133,57 +251,262 @@ public class SymbolRegistry {
      * @param symbol   symbol name
      */
     public void putSymbol(int symbolId, String symbol) {
+        synchronized (symbolLock) {
+            addSymbol(symbolId, symbol);
+        }
+    }
 
-        symbolIds.put(symbol, symbolId);
-        symbolNames.put(symbolId, symbol);
+    /**
+     * Registers symbol with previously assigned ID (eg. restored from persistent cache). This succeeds
+     * only if symbol is already registered with the same ID or if neither symbol nor ID has been used
+     * yet in this registry (ID is higher than any ID assigned so far).
+     *
+     * @param symbolId symbol ID
+     * @param symbol symbol name
+     * @return true if symbol is registered with requested ID
+     */
+    public boolean restoreSymbol(int symbolId, String symbol) {
+        synchronized (symbolLock) {
+            int id = findSymbol(symbol, symbolIndex, symbolNames);
 
-        if (symbolId > lastSymbolId.get()) {
-            lastSymbolId.set(symbolId);
+            if (id != 0) {
+                return id == symbolId;
+            }
+
+            if (symbolId <= lastSymbolId) {
+                return false;
+            }
+
+            addSymbol(symbolId, symbol);
+
+            return true;
         }
     }
 
-    private final static long MDEF_MASK = 0x00000000001FFFFFL;
+
+    private static long mdef(int classId, int methodId, int signatureId) {
+        return (classId & MDEF_MASK)
+                | ((methodId & MDEF_MASK) << 21)
+                | ((signatureId & MDEF_MASK) << 42);
+    }
+
+
+    private static int classId(long mdef) {
+        return (int)(mdef & MDEF_MASK);
+    }
+
+
+    private static int methodNameId(long mdef) {
+        return (int)((mdef >>> 21) & MDEF_MASK);
+    }
+
+
+    private static int signatureId(long mdef) {
+        return (int)((mdef >>> 42) & MDEF_MASK);
+    }
+
+
+    private static int findMethod(long mdef, int[] index, long[] defs) {
+        int mask = index.length - 1;
+        long d = mdef | MDEF_PRESENT;
+        for (int i = hash(mdef) & mask; ; i = (i + 1) & mask) {
+            int id = index[i];
+            if (id == 0) {
+                return 0;
+            }
+            long x = id < defs.length ? defs[id] : 0;
+            if (x == 0) {
+                return 0;   // Not yet visible to this thread, will be checked again under lock
+            }
+            if (x == d) {
+                return id;
+            }
+        }
+    }
+
+
+    /**
+     * Adds method ID to index. If index already contains the same method, its ID is replaced.
+     */
+    private static boolean indexMethod(int id, int[] index, long[] defs) {
+        long d = defs[id];
+        int mask = index.length - 1;
+        for (int i = hash(d & ~MDEF_PRESENT) & mask; ; i = (i + 1) & mask) {
+            int x = index[i];
+            if (x == 0) {
+                index[i] = id;
+                return true;
+            }
+            if (x == id || defs[x] == d) {
+                index[i] = id;
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * Stores method definition with given ID. Must be called with methodLock held.
+     */
+    private void addMethod(int id, long mdef) {
+        long[] defs = methodDefs;
+
+        if (id >= defs.length) {
+            long[] d = new long[Math.max(id + 1, defs.length * 2)];
+            System.arraycopy(defs, 0, d, 0, defs.length);
+            defs = d;
+            methodDefs = defs;
+        }
+
+        defs[id] = mdef | MDEF_PRESENT;
+
+        int[] index = methodIndex;
+
+        if ((numMethods + 1) * 2 > index.length) {
+            index = new int[index.length * 2];
+            numMethods = 0;
+            for (int i = 1; i < defs.length; i++) {
+                if (defs[i] != 0 && indexMethod(i, index, defs)) {
+                    numMethods++;
+                }
+            }
+            methodIndex = index;
+        } else if (indexMethod(id, index, defs)) {
+            numMethods++;
+        }
+
+        if (id > lastMethodId) {
+            lastMethodId = id;
+        }
+    }
+
+
+    /**
+     * Returns packed method definition (or 0 if method is not registered).
+     */
+    private long mdef(int methodId) {
+        long[] defs = methodDefs;
+        long d = methodId > 0 && methodId < defs.length ? defs[methodId] : 0;
+
+        if (d == 0 && methodId > 0) {
+            synchronized (methodLock) {
+                defs = methodDefs;
+                d = methodId < defs.length ? defs[methodId] : 0;
+            }
+        }
+
+        return d & ~MDEF_PRESENT;
+    }
+
+
+    private int methodId(long mdef) {
+        int id = findMethod(mdef, methodIndex, methodDefs);
+
+        if (id == 0) {
+            synchronized (methodLock) {
+                id = findMethod(mdef, methodIndex, methodDefs);
+                if (id == 0) {
+                    id = lastMethodId + 1;
+                    addMethod(id, mdef);
+                }
+            }
+        }
+
+        return id;
+    }
 
 
     public int methodId(String className, String methodName, String methodDescription) {
-        return methodId(new SymbolicMethod(symbolId(className), symbolId(methodName), symbolId(methodDescription)));
+        return methodId(symbolId(className), symbolId(methodName), symbolId(methodDescription));
+    }
+
+
+    /**
+     * Returns ID of a method without registering it (or any of its symbols). See findSymbolId().
+     *
+     * @return method ID or 0 if method has not been registered
+     */
+    public int findMethodId(String className, String methodName, String methodDescription) {
+        int c = findSymbolId(className), m = findSymbolId(methodName), s = findSymbolId(methodDescription);
+        return c != 0 && m != 0 && s != 0 ? findMethod(mdef(c, m, s), methodIndex, methodDefs) : 0;
+    }
+
+
+    public int methodId(int classId, int methodId, int signatureId) {
+        return methodId(mdef(classId, methodId, signatureId));
     }
 
 
     public int methodId(SymbolicMethod sm) {
-        long mdef = sm.mdef();
-        Integer id = methodIds.get(mdef);
-        if (id == null) {
-            int newid = lastMethodId.incrementAndGet();
-            id = methodIds.putIfAbsent(mdef, newid);
-            if (id == null) {
-                methodDefs.put(newid, mdef);
-                id = newid;
+        return methodId(sm.mdef());
+    }
+
+
+    /**
+     * Registers method with previously assigned ID (eg. restored from persistent cache).
+     * Semantics are the same as in restoreSymbol().
+     *
+     * @return true if method is registered with requested ID
+     */
+    public boolean restoreMethod(int methodId, int className, int methodName, int methodSignature) {
+        long mdef = mdef(className, methodName, methodSignature);
+
+        synchronized (methodLock) {
+            int id = findMethod(mdef, methodIndex, methodDefs);
+
+            if (id != 0) {
+                return id == methodId;
             }
+
+            if (methodId <= lastMethodId) {
+                return false;
+            }
+
+            addMethod(methodId, mdef);
+
+            return true;
         }
-        return id;
     }
 
 
     public SymbolicMethod methodDef(int methodId) {
-        Long mdef = methodDefs.get(methodId);
-        return mdef != null ? new SymbolicMethod(mdef) : null;
+        long mdef = mdef(methodId);
+        return mdef != 0 ? new SymbolicMethod(mdef) : null;
+    }
+
+
+    /**
+     * Returns class name (symbol ID) of given method (or 0 if no such method has been registered).
+     */
+    public int methodClassId(int methodId) {
+        return classId(mdef(methodId));
+    }
+
+
+    /**
+     * Returns method name (symbol ID) of given method (or 0 if no such method has been registered).
+     */
+    public int methodNameId(int methodId) {
+        return methodNameId(mdef(methodId));
+    }
+
+
+    /**
+     * Returns method signature (symbol ID) of given method (or 0 if no such method has been registered).
+     */
+    public int methodSignatureId(int methodId) {
+        return signatureId(mdef(methodId));
     }
 
 
     public boolean hasMethod(int methodId) {
-        return methodDefs.containsKey(methodId);
+        return mdef(methodId) != 0;
     }
 
 
     public void putMethod(int methodId, int className, int methodName, int methodSignature) {
-        long mdef = (className & MDEF_MASK)
-                | ((methodName & MDEF_MASK) << 21)
-                | ((methodSignature & MDEF_MASK) << 42);
-        methodIds.put(mdef, methodId);
-        methodDefs.put(methodId, mdef);
-        if (methodId > lastMethodId.get()) {
-            lastMethodId.set(methodId);
+        synchronized (methodLock) {
+            addMethod(methodId, mdef(className, methodName, methodSignature));
         }
     }
 }
@@ -37,12 +37,11 @@ public class SymbolRegistrySenderVisitor implements TraceDataScannerVisitor {
     @Override
     public int methodId(int mid) {
         if (!methodsSent.get(mid)) {
-            SymbolicMethod md = registry.methodDef(mid);
-            if (md != null) {
-                symbolId(md.getClassId());
-                symbolId(md.getMethodId());
-                symbolId(md.getSignatureId());
-                output.methodRef(mid, md.getClassId(), md.getMethodId(), md.getSignatureId());
+            if (registry.hasMethod(mid)) {
+                int classId = symbolId(registry.methodClassId(mid));
+                int methodId = symbolId(registry.methodNameId(mid));
+                int signatureId = symbolId(registry.methodSignatureId(mid));
+                output.methodRef(mid, classId, methodId, signatureId);
                 methodsSent.set(mid);
             }
         }
@@ -551,14 +551,10 @@ public class TraceRecord implements SymbolicRecord, Serializable {
      */
     public void fixup(SymbolRegistry symbols) {
 
-        if (classId == 0 && mid != 0) {
-            // TODO get rid of allocation here, use raw values & parse functions
-            SymbolicMethod cms = symbols.methodDef(mid);
-            if (cms != null) {
-                classId = cms.getClassId();
-                methodId = cms.getMethodId();
-                signatureId = cms.getSignatureId();
-            }
+        if (classId == 0 && mid != 0 && symbols.hasMethod(mid)) {
+            classId = symbols.methodClassId(mid);
+            methodId = symbols.methodNameId(mid);
+            signatureId = symbols.methodSignatureId(mid);
         }
 
         if (children != null) {
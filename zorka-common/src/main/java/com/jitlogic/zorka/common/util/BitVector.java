@@ -26,7 +26,7 @@ package com.jitlogic.zorka.common.util;
 public class BitVector {
 
     /** Vector data */
-    private long bits[];
+    private volatile long bits[];
 
     /** Current vector length */
     private int len;
@@ -61,7 +61,8 @@ public class BitVector {
      */
     public boolean get(int bit) {
         int idx = bit >> 6, off = bit & 63;
-        return idx < len ? 0 != (bits[idx] & (1L << off)) : false;
+        long[] b = bits;   // Safe for unsynchronized readers when vector is being extended
+        return idx < b.length ? 0 != (b[idx] & (1L << off)) : false;
     }
 
 
@@ -88,6 +89,20 @@ public class BitVector {
     }
 
 
+    /**
+     * Clears a bit in vector.
+     *
+     * @param bit bit number
+     */
+    public void clear(int bit) {
+        int idx = bit >> 6, off = bit & 63;
+
+        if (idx < len) {
+            bits[idx] &= ~(1L << off);
+        }
+    }
+
+
     /**
      * Zeroes all bits in this vector.
      */
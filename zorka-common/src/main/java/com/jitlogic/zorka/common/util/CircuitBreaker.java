@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.util;
+
+/**
+ * Circuit breaker guarding calls to remote service. After a number of consecutive failures
+ * breaker opens and no calls are allowed for some time. After that time single (probe) call
+ * is allowed (half-open state): if it succeeds, breaker closes, otherwise it opens again.
+ *
+ * Breaker is meant to be driven by single thread, state can be read from any thread.
+ */
+public class CircuitBreaker {
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    /** Number of consecutive failures that opens breaker */
+    private final int threshold;
+
+    /** Time (in milliseconds) breaker stays open before allowing probe call */
+    private final long openTime;
+
+    private volatile int state = CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    public CircuitBreaker(int threshold, long openTime) {
+        this.threshold = threshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Checks if call can be made. Open breaker switches to half-open state
+     * (and allows probe call) when open time passes.
+     */
+    public boolean allow(long now) {
+        if (state == OPEN && now - openedAt >= openTime) {
+            state = HALF_OPEN;
+        }
+        return state != OPEN;
+    }
+
+    public void success() {
+        failures = 0;
+        state = CLOSED;
+    }
+
+    /**
+     * Registers failed call.
+     *
+     * @return true if breaker has just been opened
+     */
+    public boolean failure(long now) {
+        failures++;
+        if (state == HALF_OPEN || (state == CLOSED && failures >= threshold)) {
+            state = OPEN;
+            openedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns time when open breaker will allow probe call. */
+    public long getRetryTime() {
+        return openedAt + openTime;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public String getStateName() {
+        switch (state) {
+            case OPEN: return "OPEN";
+            case HALF_OPEN: return "HALF_OPEN";
+            default: return "CLOSED";
+        }
+    }
+}
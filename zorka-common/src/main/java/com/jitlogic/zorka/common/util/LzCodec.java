@@ -0,0 +1,236 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.common.util;
+
+/**
+ * Fast LZ77 family codec using LZ4 block format: sequences of (token, literals, match offset,
+ * match length), where token holds 4-bit literal length and 4-bit match length (longer lengths
+ * continue in subsequent bytes). Compressor uses single-probe hash table of 4-byte sequences,
+ * so it trades compression ratio for speed.
+ *
+ * Blocks are self-contained: matches never refer to data outside of compressed block.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class LzCodec {
+
+    private static final int MIN_MATCH = 4;
+
+    /** Last match must start at least this many bytes before end of block. */
+    private static final int MF_LIMIT = 12;
+
+    /** Last bytes of block are always encoded as literals. */
+    private static final int LAST_LITERALS = 5;
+
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final int HASH_BITS = 12;
+
+    /** Skip strength: when no matches are found, compressor speeds up (for incompressible data). */
+    private static final int SKIP_TRIGGER = 6;
+
+    /**
+     * Returns maximum size of compressed data (for worst case, incompressible input).
+     */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8) | ((b[i+2] & 0xff) << 16) | ((b[i+3] & 0xff) << 24);
+    }
+
+    private static int hash(int seq) {
+        return (seq * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeLength(byte[] dst, int dp, int len) {
+        while (len >= 255) {
+            dst[dp++] = (byte)255;
+            len -= 255;
+        }
+        dst[dp++] = (byte)len;
+        return dp;
+    }
+
+    private static int writeLiterals(byte[] dst, int dp, byte[] src, int sp, int len, int ml) {
+        int token = dp++;
+        if (len >= 15) {
+            dst[token] = (byte)(0xf0 | ml);
+            dp = writeLength(dst, dp, len - 15);
+        } else {
+            dst[token] = (byte)((len << 4) | ml);
+        }
+        System.arraycopy(src, sp, dst, dp, len);
+        return dp + len;
+    }
+
+    /**
+     * Compresses data.
+     *
+     * @param src source buffer
+     * @param soff source data offset
+     * @param slen source data length
+     * @param dst destination buffer (must have at least maxCompressedLength(slen) bytes available)
+     * @param doff destination offset
+     *
+     * @return compressed data length
+     */
+    public static int compress(byte[] src, int soff, int slen, byte[] dst, int doff) {
+        int send = soff + slen, anchor = soff, dp = doff;
+
+        if (slen > MF_LIMIT) {
+            int[] table = new int[1 << HASH_BITS];
+            int mflimit = send - MF_LIMIT, mlimit = send - LAST_LITERALS;
+            int sp = soff + 1, misses = 1 << SKIP_TRIGGER;
+
+            // Table entries are positions + 1, so zero marks empty entry
+            while (sp < mflimit) {
+                int seq = readInt(src, sp);
+                int h = hash(seq);
+                int ref = table[h] - 1;
+                table[h] = sp + 1;
+
+                if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+                    sp += misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+
+                misses = 1 << SKIP_TRIGGER;
+
+                while (sp > anchor && ref > soff && src[sp-1] == src[ref-1]) {
+                    sp--;
+                    ref--;
+                }
+
+                int ml = MIN_MATCH;
+                while (sp + ml < mlimit && src[sp+ml] == src[ref+ml]) {
+                    ml++;
+                }
+
+                int mcode = ml - MIN_MATCH;
+                dp = writeLiterals(dst, dp, src, anchor, sp - anchor, Math.min(mcode, 15));
+
+                int off = sp - ref;
+                dst[dp++] = (byte)off;
+                dst[dp++] = (byte)(off >>> 8);
+
+                if (mcode >= 15) {
+                    dp = writeLength(dst, dp, mcode - 15);
+                }
+
+                sp += ml;
+                anchor = sp;
+
+                if (sp < mflimit) {
+                    table[hash(readInt(src, sp - 2))] = sp - 1;
+                }
+            }
+        }
+
+        dp = writeLiterals(dst, dp, src, anchor, send - anchor, 0);
+
+        return dp - doff;
+    }
+
+    /**
+     * Decompresses data.
+     *
+     * @param src compressed data buffer
+     * @param soff compressed data offset
+     * @param slen compressed data length
+     * @param dst destination buffer
+     * @param doff destination offset
+     * @param dlen expected length of decompressed data
+     *
+     * @return decompressed data length
+     */
+    public static int decompress(byte[] src, int soff, int slen, byte[] dst, int doff, int dlen) {
+        int sp = soff, send = soff + slen, dp = doff, dend = doff + dlen;
+
+        try {
+            while (sp < send) {
+                int token = src[sp++] & 0xff;
+
+                int ll = token >>> 4;
+                if (ll == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        ll += b;
+                    } while (b == 255);
+                }
+
+                if (sp + ll > send || dp + ll > dend) {
+                    throw new ZorkaRuntimeException("Corrupted LZ data: literals out of bounds.");
+                }
+
+                System.arraycopy(src, sp, dst, dp, ll);
+                sp += ll;
+                dp += ll;
+
+                if (sp >= send) break; // last sequence has no match
+
+                int off = (src[sp] & 0xff) | ((src[sp+1] & 0xff) << 8);
+                sp += 2;
+
+                int ml = token & 0x0f;
+                if (ml == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xff;
+                        ml += b;
+                    } while (b == 255);
+                }
+                ml += MIN_MATCH;
+
+                int ref = dp - off;
+                if (off == 0 || ref < doff || dp + ml > dend) {
+                    throw new ZorkaRuntimeException("Corrupted LZ data: match out of bounds.");
+                }
+
+                if (off >= ml) {
+                    System.arraycopy(dst, ref, dst, dp, ml);
+                    dp += ml;
+                } else {
+                    for (int i = 0; i < ml; i++) {
+                        dst[dp++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new ZorkaRuntimeException("Corrupted LZ data: truncated input.");
+        }
+
+        return dp - doff;
+    }
+
+    public static byte[] compress(byte[] src) {
+        byte[] buf = new byte[maxCompressedLength(src.length)];
+        int len = compress(src, 0, src.length, buf, 0);
+        return ZorkaUtil.clipArray(buf, len);
+    }
+
+    public static byte[] decompress(byte[] src, int dlen) {
+        byte[] buf = new byte[dlen];
+        int len = decompress(src, 0, src.length, buf, 0, dlen);
+        if (len != dlen) {
+            throw new ZorkaRuntimeException("Corrupted LZ data: expected " + dlen + " bytes, got " + len);
+        }
+        return buf;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.util;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel: items are scheduled at (absolute) deadlines and collected when they
+ * expire. Scheduling and expiring items costs O(1) regardless of number of pending items
+ * (expire() only visits slots for ticks that passed since last call). Deadlines are rounded
+ * to tick resolution. Items scheduled further than one wheel revolution stay in their slots
+ * until their deadline tick comes.
+ *
+ * Number of pending items is limited, schedule() refuses new items when wheel is full.
+ * This class is not thread safe.
+ *
+ * @param <T> type of scheduled items
+ */
+public class TimerWheel<T> {
+
+    private static class Entry<T> {
+        private final T item;
+        private final long tick;
+        private Entry<T> next;
+
+        private Entry(T item, long tick, Entry<T> next) {
+            this.item = item;
+            this.tick = tick;
+            this.next = next;
+        }
+    }
+
+    /** Tick length (in milliseconds) */
+    private final long tick;
+
+    private final Entry<T>[] slots;
+
+    private final int mask;
+
+    /** Maximum number of pending items */
+    private final int capacity;
+
+    private int size;
+
+    /** Last tick processed by expire() */
+    private long cursor;
+
+    /**
+     * Creates timer wheel.
+     *
+     * @param nslots number of slots (rounded up to power of 2)
+     * @param tick tick length (milliseconds)
+     * @param capacity maximum number of pending items
+     * @param now current time (milliseconds)
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(int nslots, long tick, int capacity, long now) {
+        int n = 1;
+        while (n < nslots) n <<= 1;
+        this.slots = new Entry[n];
+        this.mask = n - 1;
+        this.tick = tick;
+        this.capacity = capacity;
+        this.cursor = now / tick;
+    }
+
+    /**
+     * Schedules item. Items with deadlines in the past will expire at next call to expire().
+     *
+     * @return true if item has been scheduled, false if wheel is full
+     */
+    public boolean schedule(T item, long deadline) {
+        if (size >= capacity) {
+            return false;
+        }
+        long t = Math.max(deadline / tick, cursor + 1);
+        int s = (int)(t & mask);
+        slots[s] = new Entry<T>(item, t, slots[s]);
+        size++;
+        return true;
+    }
+
+    /**
+     * Collects expired items.
+     *
+     * @param now current time (milliseconds)
+     * @param out expired items are appended here (in no particular order)
+     * @return number of expired items
+     */
+    public int expire(long now, List<T> out) {
+        long t = now / tick;
+        if (t <= cursor) {
+            return 0;
+        }
+
+        int n = 0;
+        long t0 = Math.max(cursor + 1, t - mask);
+
+        for (long i = t0; i <= t && size > 0; i++) {
+            int s = (int)(i & mask);
+            Entry<T> prev = null;
+            for (Entry<T> e = slots[s]; e != null; e = e.next) {
+                if (e.tick <= t) {
+                    out.add(e.item);
+                    n++;
+                    size--;
+                    if (prev == null) {
+                        slots[s] = e.next;
+                    } else {
+                        prev.next = e.next;
+                    }
+                } else {
+                    prev = e;
+                }
+            }
+        }
+
+        cursor = t;
+        return n;
+    }
+
+    /**
+     * Removes all pending items.
+     *
+     * @param out removed items are appended here
+     */
+    public void clear(List<T> out) {
+        for (int i = 0; i < slots.length; i++) {
+            for (Entry<T> e = slots[i]; e != null; e = e.next) {
+                out.add(e.item);
+            }
+            slots[i] = null;
+        }
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+}
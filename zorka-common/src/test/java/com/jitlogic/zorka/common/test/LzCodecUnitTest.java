@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.collector.TraceDataBlocks;
+import com.jitlogic.zorka.common.util.LzCodec;
+import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LzCodecUnitTest {
+
+    private static byte[] textData(int len) {
+        StringBuilder sb = new StringBuilder();
+        Random rand = new Random(42);
+        while (sb.length() < len) {
+            sb.append("com.example.SomeClass.method").append(rand.nextInt(100)).append("()V;");
+        }
+        return Arrays.copyOf(sb.toString().getBytes(), len);
+    }
+
+    private static byte[] randomData(int len) {
+        byte[] b = new byte[len];
+        new Random(42).nextBytes(b);
+        return b;
+    }
+
+    private static void checkRoundTrip(byte[] data) {
+        byte[] c = LzCodec.compress(data);
+        assertTrue(c.length <= LzCodec.maxCompressedLength(data.length));
+        assertArrayEquals(data, LzCodec.decompress(c, data.length));
+    }
+
+    @Test
+    public void testCompressDecompress() {
+        checkRoundTrip(new byte[0]);
+        checkRoundTrip(new byte[] { 1, 2, 3 });
+        checkRoundTrip(new byte[1000]);
+        checkRoundTrip(textData(13));
+        checkRoundTrip(textData(100000));
+        checkRoundTrip(randomData(100000));
+
+        // Overlapping matches (run length encoding)
+        byte[] b = new byte[5000];
+        for (int i = 0; i < b.length; i++) b[i] = (byte)(i % 3);
+        checkRoundTrip(b);
+
+        assertTrue(LzCodec.compress(textData(100000)).length < 30000);
+    }
+
+    @Test(expected = ZorkaRuntimeException.class)
+    public void testDecompressTruncatedData() {
+        byte[] data = textData(10000);
+        byte[] c = LzCodec.compress(data);
+        LzCodec.decompress(Arrays.copyOf(c, c.length / 2), data.length);
+    }
+
+    @Test(expected = ZorkaRuntimeException.class)
+    public void testDecompressCorruptedOffset() {
+        // Token: no literals, match of 4 bytes at offset 1 - refers to data before output start
+        LzCodec.decompress(new byte[] { 0x00, 0x01, 0x00, 0x00 }, 16);
+    }
+
+    @Test
+    public void testReadAndSliceBlocks() {
+        byte[] data = textData(10000);
+        TraceDataBlocks blocks = TraceDataBlocks.compress(data, 0, data.length, 1024);
+        assertEquals(10000, blocks.getLength());
+        assertEquals(11, blocks.getOffsets().length);
+        assertTrue(blocks.compressedSize() < data.length);
+
+        assertArrayEquals(data, blocks.read(0, data.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 1100), blocks.read(1000, 100));
+        assertArrayEquals(Arrays.copyOfRange(data, 2048, 4096), blocks.read(2048, 2048));
+        assertArrayEquals(Arrays.copyOfRange(data, 3000, 9999), blocks.read(3000, 6999));
+
+        TraceDataBlocks slice = blocks.slice(3000, 2000);
+        assertEquals(3, slice.getOffsets().length - 1);
+        assertArrayEquals(Arrays.copyOfRange(data, 3000, 5000), slice.read(3000 % 1024, 2000));
+
+        slice = blocks.slice(9500, 500);
+        assertEquals(10000 - 9 * 1024, slice.getLength());
+        assertArrayEquals(Arrays.copyOfRange(data, 9500, 10000), slice.read(9500 % 1024, 500));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.test;
+
+import com.jitlogic.zorka.common.util.CircuitBreaker;
+import com.jitlogic.zorka.common.util.TimerWheel;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TimerWheelUnitTest {
+
+    private static List<Integer> expire(TimerWheel<Integer> w, long now) {
+        List<Integer> l = new ArrayList<Integer>();
+        w.expire(now, l);
+        Collections.sort(l);
+        return l;
+    }
+
+    @Test
+    public void testScheduleAndExpire() {
+        TimerWheel<Integer> w = new TimerWheel<Integer>(8, 10, 100, 1000);
+        assertTrue(w.schedule(1, 1050));
+        assertTrue(w.schedule(2, 1020));
+        assertTrue(w.schedule(3, 1055));
+        assertEquals(3, w.size());
+
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 1015));
+        assertEquals(Arrays.asList(2), expire(w, 1020));
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 1049));
+        assertEquals(Arrays.asList(1, 3), expire(w, 1050));
+        assertEquals(0, w.size());
+    }
+
+    @Test
+    public void testPastDeadlinesExpireAtNextTick() {
+        TimerWheel<Integer> w = new TimerWheel<Integer>(8, 10, 100, 1000);
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 1100));
+        assertTrue(w.schedule(1, 500));
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 1105));
+        assertEquals(Arrays.asList(1), expire(w, 1110));
+    }
+
+    @Test
+    public void testDeadlinesBeyondSingleRevolution() {
+        TimerWheel<Integer> w = new TimerWheel<Integer>(8, 10, 100, 0);
+        w.schedule(1, 30);
+        w.schedule(2, 110);   // same slot as 1 (after one revolution)
+        w.schedule(3, 1000);
+
+        assertEquals(Arrays.asList(1), expire(w, 40));
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 100));
+        assertEquals(Arrays.asList(2), expire(w, 110));
+        assertEquals(Collections.<Integer>emptyList(), expire(w, 990));
+        assertEquals(Arrays.asList(3), expire(w, 1000));
+    }
+
+    @Test
+    public void testLongPauseExpiresEverythingDue() {
+        TimerWheel<Integer> w = new TimerWheel<Integer>(8, 10, 100, 0);
+        for (int i = 0; i < 50; i++) {
+            w.schedule(i, i * 20);
+        }
+        List<Integer> l = expire(w, 500);
+        assertEquals(26, l.size());
+        assertEquals(24, w.size());
+        assertEquals(24, expire(w, 100000).size());
+    }
+
+    @Test
+    public void testCapacityLimit() {
+        TimerWheel<Integer> w = new TimerWheel<Integer>(8, 10, 2, 0);
+        assertTrue(w.schedule(1, 10));
+        assertTrue(w.schedule(2, 20));
+        assertFalse(w.schedule(3, 30));
+        assertEquals(Arrays.asList(1), expire(w, 10));
+        assertTrue(w.schedule(3, 30));
+
+        List<Integer> l = new ArrayList<Integer>();
+        w.clear(l);
+        Collections.sort(l);
+        assertEquals(Arrays.asList(2, 3), l);
+        assertEquals(0, w.size());
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        CircuitBreaker b = new CircuitBreaker(3, 100);
+        assertTrue(b.allow(0));
+        assertFalse(b.failure(0));
+        assertFalse(b.failure(1));
+        b.success();
+        assertFalse(b.failure(2));
+        assertFalse(b.failure(3));
+        assertTrue(b.failure(4));
+        assertEquals(CircuitBreaker.OPEN, b.getState());
+
+        assertFalse(b.allow(50));
+        assertEquals(104, b.getRetryTime());
+
+        // Failed probe opens breaker again
+        assertTrue(b.allow(104));
+        assertEquals(CircuitBreaker.HALF_OPEN, b.getState());
+        assertTrue(b.failure(105));
+        assertFalse(b.allow(150));
+
+        // Successful probe closes breaker
+        assertTrue(b.allow(205));
+        b.success();
+        assertEquals(CircuitBreaker.CLOSED, b.getState());
+        assertFalse(b.failure(210));
+    }
+}
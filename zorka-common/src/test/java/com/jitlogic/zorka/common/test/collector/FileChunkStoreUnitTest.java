@@ -0,0 +1,257 @@
+package com.jitlogic.zorka.common.test.collector;
+
+import com.jitlogic.zorka.common.collector.*;
+import com.jitlogic.zorka.common.tracedata.TraceMarker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static com.jitlogic.zorka.common.collector.TraceDataExtractingProcessor.extractTrace;
+import static com.jitlogic.zorka.common.test.support.TraceBuildUtil.*;
+import static org.junit.Assert.*;
+
+public class FileChunkStoreUnitTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File dir;
+    private FileChunkStore store;
+
+    @Before
+    public void openStore() throws Exception {
+        dir = tmp.newFolder("store");
+        store = new FileChunkStore(dir, 1024 * 1024, 0, 16 * 1024);
+    }
+
+    @After
+    public void closeStore() {
+        store.close();
+    }
+
+    private TraceChunkData chunk(int i) {
+        TraceChunkData c = new TraceChunkData(i + 1, 0, 0, 1000 + i, 0);
+        c.setTstamp(i);
+        c.setDuration(16 - (i % 16));
+        c.setKlass("my.Class");
+        c.setMethod("method" + i);
+        c.setAttr("query", String.format("bar%01x", (i % 16)));
+        c.setError(i % 4 == 0);
+        c.setTraceData(new byte[] { 1, 2, 3, (byte)i });
+        return c;
+    }
+
+    private void fill(int n) {
+        for (int i = 0; i < n; i++) {
+            store.add(chunk(i));
+        }
+    }
+
+    private void checkSearch() {
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setLimit(1000);
+        List<TraceChunkData> l1 = store.search(q);
+        assertEquals(256, l1.size());
+        for (int i = 0; i < l1.size(); i++) {
+            assertEquals(i, l1.get(i).getTstamp());
+            assertEquals("method" + i, l1.get(i).getMethod());
+            assertEquals((byte)i, l1.get(i).getTraceData()[3]);
+        }
+
+        q.setOffset(100);
+        q.setLimit(10);
+        List<TraceChunkData> l2 = store.search(q);
+        assertEquals(10, l2.size());
+        assertEquals(146, l2.get(0).getTstamp());
+        assertEquals(155, l2.get(9).getTstamp());
+
+        q.setOffset(0);
+        q.setLimit(1000);
+        q.setMinDuration(9);
+        assertEquals(128, store.search(q).size());
+
+        q.setMinDuration(0);
+        q.setText("barf");
+        List<TraceChunkData> l3 = store.search(q);
+        assertEquals(16, l3.size());
+        for (TraceChunkData c : l3) assertEquals("barf", c.getAttr("query"));
+
+        q.setText(null);
+        q.withAttr("query", "barc");
+        q.setErrorsOnly(true);
+        List<TraceChunkData> l4 = store.search(q);
+        assertEquals(16, l4.size());
+        for (TraceChunkData c : l4) assertTrue(c.hasFlag(TraceMarker.ERROR_MARK));
+    }
+
+    @Test
+    public void testAddSearchAndReopen() {
+        fill(256);
+        assertEquals(256, store.length());
+        assertTrue(store.getSegmentCount() > 1);
+        checkSearch();
+
+        store.close();
+        store = new FileChunkStore(dir, 1024 * 1024, 0, 16 * 1024);
+        assertEquals(256, store.length());
+        checkSearch();
+
+        store.add(chunk(256));
+        assertEquals(257, store.length());
+    }
+
+    @Test
+    public void testSearchSortByDuration() {
+        fill(256);
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setSortByDuration(true);
+        q.setOffset(100);
+        q.setLimit(1000);
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(156, l.size());
+        for (TraceChunkData c : l) assertTrue(c.getDuration() >= 7);
+        for (int i = 0; i < l.size()-1; i++) {
+            assertTrue(l.get(i).getDuration() <= l.get(i+1).getDuration());
+        }
+    }
+
+    @Test
+    public void testRebuildIndexAndTruncateTornRecord() throws Exception {
+        fill(256);
+        int nsegs = store.getSegmentCount();
+        store.close();
+
+        File[] idxs = dir.listFiles();
+        for (File f : idxs) {
+            if (f.getName().endsWith(FileChunkStore.IDX_SUFFIX)) {
+                assertTrue(f.delete());
+            }
+        }
+
+        File last = new File(dir, String.format("%016x", nsegs) + FileChunkStore.SEG_SUFFIX);
+        long len = last.length();
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.seek(len);
+        raf.writeInt(1000);
+        raf.writeInt(42);
+        raf.write(new byte[16]);
+        raf.close();
+
+        store = new FileChunkStore(dir, 1024 * 1024, 0, 16 * 1024);
+        assertEquals(len, last.length());
+        assertEquals(256, store.length());
+        checkSearch();
+    }
+
+    @Test
+    public void testRetentionBySizeAndAge() throws Exception {
+        fill(256);
+        int nsegs = store.getSegmentCount();
+
+        long maxSize = store.getSize() / 2;
+        store.setMaxSize(maxSize);
+        store.add(chunk(256));
+        assertTrue(store.getSegmentCount() < nsegs);
+        assertTrue(store.getSize() <= maxSize);
+        assertTrue(store.length() < 257);
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setLimit(1000);
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(store.length(), l.size());
+        assertEquals(256, l.get(l.size()-1).getTstamp());
+
+        store.setMaxSize(1024 * 1024);
+        store.setMaxAge(60000);
+        long t = System.currentTimeMillis();
+        for (File f : dir.listFiles()) {
+            assertTrue(f.setLastModified(t - 120000));
+        }
+        assertEquals(store.getSegmentCount() - 1, store.cleanup(t));
+        assertEquals(1, store.getSegmentCount());
+    }
+
+    private byte[] agd1 = trace(
+        sref(41,"component"),
+        sref(42,"mydb.PStatement"),
+        sref(43,"execute"),
+        sref(44,"V()"),
+        sref(45,"db"),
+        mref(11,42,43,44));
+
+    private byte[] trc1 = trace(
+        start(0, 100, 11,
+            begin(1000, 45, 0x1234567812345001L, 0),
+            attr(41,"db"),
+            end(0, 200, 2, 0)));
+
+    @Test
+    public void testCollectAndExtractTrace() {
+        Collector collector = new Collector(store, false);
+        collector.handleAgentData("1234", true, agd1);
+        collector.handleTraceData("1234", "9234567812345001", 0, trc1);
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery().withTraceId("9234567812345001");
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(1, l.size());
+
+        TraceDataResult tdr = extractTrace(l);
+        assertEquals("mydb.PStatement.execute()", tdr.getMethod());
+        assertEquals("db", tdr.getAttr("component"));
+    }
+
+    private byte[] agd2 = trace(
+        sref(46, "myweb.Valve"),
+        sref(47, "invoke"),
+        sref(48, "http"),
+        mref(12, 46, 47, 44));
+
+    private byte[] trc2 = trace(
+        start(0, 100, 12,
+            begin(2000, 48, 0x1234567812345002L, 0),
+            attr(41, "http"),
+            end(0, 300, 1, 0)));
+
+    @Test
+    public void testSymbolDictionaryPersistedIncrementally() {
+        Collector collector = new Collector(store, false);
+        collector.handleAgentData("1234", true, agd1);
+        collector.handleTraceData("1234", "9234567812345001", 0, trc1);
+        collector.handleTraceData("1234", "9234567812345003", 0, trc1);
+        long len1 = new File(dir, FileChunkStore.SYM_FILE).length();
+        collector.handleAgentData("1234", false, agd2);
+        collector.handleTraceData("1234", "9234567812345002", 0, trc2);
+        long len2 = new File(dir, FileChunkStore.SYM_FILE).length();
+
+        // Only new entries are appended
+        assertTrue(len1 > 8);
+        assertTrue(len2 > len1 && len2 - len1 < len1);
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(3, l.size());
+        for (TraceChunkData c : l) {
+            assertNull(c.getSymbolData());
+            assertSame(l.get(0).getSymbols(), c.getSymbols());
+        }
+        assertEquals(6, l.get(0).getSymbolsVersion());
+        assertEquals(10, l.get(2).getSymbolsVersion());
+
+        store.close();
+        store = new FileChunkStore(dir, 1024 * 1024, 0, 16 * 1024);
+
+        l = store.search(q);
+        assertEquals(3, l.size());
+        assertEquals(10, l.get(0).getSymbols().version());
+        assertEquals("mydb.PStatement.execute()", extractTrace(l.subList(0, 1)).getMethod());
+        TraceDataResult tdr = extractTrace(l.subList(2, 3));
+        assertEquals("myweb.Valve.invoke()", tdr.getMethod());
+        assertEquals("http", tdr.getAttr("component"));
+    }
+}
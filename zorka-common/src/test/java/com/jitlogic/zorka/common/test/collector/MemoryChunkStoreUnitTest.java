@@ -0,0 +1,241 @@
+package com.jitlogic.zorka.common.test.collector;
+
+import com.jitlogic.zorka.common.collector.MemoryChunkStore;
+import com.jitlogic.zorka.common.collector.TraceChunkData;
+import com.jitlogic.zorka.common.collector.TraceChunkSearchQuery;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MemoryChunkStoreUnitTest {
+
+    private MemoryChunkStore store;
+
+    @Before
+    public void initStore() {
+        store = new MemoryChunkStore();
+    }
+
+    private TraceChunkData chunk(int i, long tstamp) {
+        TraceChunkData c = new TraceChunkData(i % 64 + 1, 0, 0, 1000 + i, 0);
+        c.setTstamp(tstamp);
+        c.setDuration(i % 10);
+        c.setKlass("my.Class");
+        c.setMethod("method");
+        c.setAttr("query", "q" + (i % 8));
+        c.setAttr("component", i % 2 == 0 ? "db" : "http");
+        return c;
+    }
+
+    private void fill(int n) {
+        // Timestamps arrive slightly out of order
+        for (int i = 0; i < n; i++) {
+            store.add(chunk(i, i % 2 == 0 ? i + 1 : i - 1));
+        }
+    }
+
+    @Test
+    public void testSearchByTimeRange() {
+        fill(1000);
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setMinTstamp(100);
+        q.setMaxTstamp(199);
+        q.setLimit(1000);
+
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(100, l.size());
+        for (int i = 0; i < l.size(); i++) {
+            assertEquals(100 + i, l.get(i).getTstamp());
+        }
+
+        q.setOffset(10);
+        q.setLimit(5);
+        l = store.search(q);
+        assertEquals(5, l.size());
+        assertEquals(185, l.get(0).getTstamp());
+        assertEquals(189, l.get(4).getTstamp());
+    }
+
+    @Test
+    public void testSearchByTraceIdAndAttrs() {
+        fill(1000);
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery().withTraceId(String.format("%016x", 5));
+        q.setLimit(1000);
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(16, l.size());
+        for (TraceChunkData c : l) assertEquals(5, c.getTraceId1());
+
+        q = new TraceChunkSearchQuery().withAttr("query", "q3").withAttr("component", "http");
+        q.setLimit(1000);
+        l = store.search(q);
+        assertEquals(125, l.size());
+        for (int i = 0; i < l.size()-1; i++) {
+            assertTrue(l.get(i).getTstamp() <= l.get(i+1).getTstamp());
+        }
+
+        q.withAttr("component", "db");
+        assertEquals(0, store.search(q).size());
+
+        q = new TraceChunkSearchQuery().withAttr("query", "nonexistent");
+        assertEquals(0, store.search(q).size());
+    }
+
+    @Test
+    public void testSearchByDuration() {
+        fill(1000);
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setSortByDuration(true);
+        q.setMinDuration(5);
+        q.setOffset(10);
+        q.setLimit(1000);
+        List<TraceChunkData> l = store.search(q);
+        assertEquals(490, l.size());
+        for (int i = 0; i < l.size()-1; i++) {
+            assertTrue(l.get(i).getDuration() >= 5);
+            assertTrue(l.get(i).getDuration() <= l.get(i+1).getDuration());
+        }
+
+        q.withAttr("query", "q1");
+        l = store.search(q);
+        assertEquals(65, l.size());
+        for (int i = 0; i < l.size()-1; i++) {
+            assertEquals("q1", l.get(i).getAttr("query"));
+            assertTrue(l.get(i).getDuration() >= 5);
+            assertTrue(l.get(i).getDuration() <= l.get(i+1).getDuration());
+        }
+    }
+
+    @Test
+    public void testTrimKeepsIndexesConsistent() {
+        fill(1000);
+        long sz = 0;
+        for (TraceChunkData c : store.getChunks()) sz += c.size();
+
+        store.setDelSize(sz / 4);
+        store.setMaxSize(sz / 2);
+        store.add(chunk(1000, 1001));
+
+        int n = store.length();
+        assertTrue(n < 1000);
+        assertEquals(1001, store.get(n - 1).getTstamp());
+        assertEquals(1000 + 1001 - n, store.get(0).getSpanId());
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setLimit(10000);
+        assertEquals(n, store.search(q).size());
+
+        q.withAttr("component", "db");
+        List<TraceChunkData> l = store.search(q);
+        int ndb = 0;
+        for (int i = 1001 - n; i <= 1000; i++) {
+            if (i % 2 == 0) ndb++;
+        }
+        assertEquals(ndb, l.size());
+        for (TraceChunkData c : l) assertTrue(c.getSpanId() - 1000 >= 1001 - n);
+
+        assertEquals(8, store.attrVals("query").size());
+    }
+
+    /** Query that adds a chunk to the store (from another thread) while being evaluated. */
+    private class AddingQuery extends TraceChunkSearchQuery {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final int after;
+        private volatile boolean added;
+
+        private AddingQuery(int after) {
+            this.after = after;
+        }
+
+        @Override
+        public boolean matches(TraceChunkData c) {
+            if (calls.incrementAndGet() == after + 1) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        store.add(chunk(5000, 5000));
+                        added = true;
+                    }
+                });
+                t.start();
+                try {
+                    t.join(5000);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                assertTrue("add() should not wait for search", added);
+            }
+            return super.matches(c);
+        }
+    }
+
+    @Test
+    public void testSearchDoesNotBlockAdditions() {
+        fill(1000);
+
+        AddingQuery q = new AddingQuery(0);
+        q.setLimit(10);
+        assertEquals(10, store.search(q).size());
+        assertTrue(q.added);
+
+        q = new AddingQuery(0);
+        q.withAttr("query", "q3");
+        q.setLimit(10);
+        assertEquals(10, store.search(q).size());
+        assertTrue(q.added);
+    }
+
+    @Test
+    public void testParallelSearchDoesNotBlockAdditions() {
+        fill(20000);
+        store.setThreads(4);
+
+        // Chunk is added while batches past the first one are evaluated by workers
+        AddingQuery q = new AddingQuery(10000);
+        q.setText("q3");
+        q.setLimit(100000);
+        assertEquals(2500, store.search(q).size());
+        assertTrue(q.added);
+        assertEquals(20001, store.length());
+    }
+
+    private void checkParallel(TraceChunkSearchQuery q) {
+        store.setThreads(1);
+        List<TraceChunkData> l1 = store.search(q);
+        store.setThreads(4);
+        List<TraceChunkData> l2 = store.search(q);
+        assertEquals(l1, l2);
+    }
+
+    @Test
+    public void testParallelSearchMatchesSequentialSearch() {
+        fill(20000);
+
+        TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+        q.setText("q3");
+        q.setOffset(100);
+        q.setLimit(3000);
+        checkParallel(q);
+        assertEquals(2400, store.search(q).size());
+
+        q.setSortByDuration(true);
+        checkParallel(q);
+
+        q = new TraceChunkSearchQuery();
+        q.setMinTstamp(5000);
+        q.setMaxTstamp(15000);
+        q.setText("q7");
+        q.setLimit(100000);
+        checkParallel(q);
+        assertEquals(1250, store.search(q).size());
+
+        q.setLimit(10);
+        q.setOffset(1000);
+        checkParallel(q);
+        assertEquals(10, store.search(q).size());
+    }
+}
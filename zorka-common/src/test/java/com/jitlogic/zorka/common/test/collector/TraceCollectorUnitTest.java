@@ -1,22 +1,32 @@
 package com.jitlogic.zorka.common.test.collector;
 
+import com.jitlogic.zorka.common.cbor.TraceRecordFlags;
 import com.jitlogic.zorka.common.collector.*;
+import com.jitlogic.zorka.common.test.support.TraceBuildUtil.TraceBuildBlock;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 
 import com.jitlogic.zorka.common.util.Base64;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
 import static com.jitlogic.zorka.common.collector.TraceDataExtractingProcessor.extractTrace;
+import static com.jitlogic.zorka.common.collector.TraceStatsExtractingProcessor.extractStats;
 import static org.junit.Assert.*;
 
 import static com.jitlogic.zorka.common.test.support.TraceBuildUtil.*;
 
 public class TraceCollectorUnitTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     private SymbolRegistry registry;
     private MemoryChunkStore store;
     private Collector collector;
@@ -172,4 +182,118 @@ public class TraceCollectorUnitTest {
         assertEquals(16, l3.size());
         for (TraceChunkData c : l3) assertEquals("bard", c.getAttr("query"));
     }
+
+    private static void assertSameTrace(TraceDataResult r1, TraceDataResult r2) {
+        assertEquals(r1.getMethod(), r2.getMethod());
+        assertEquals(r1.getTstart(), r2.getTstart());
+        assertEquals(r1.getTstop(), r2.getTstop());
+        assertEquals(r1.getAttributes(), r2.getAttributes());
+        assertEquals(r1.getChildren() != null, r2.getChildren() != null);
+        if (r1.getChildren() != null) {
+            assertEquals(r1.getChildren().size(), r2.getChildren().size());
+            for (int i = 0; i < r1.getChildren().size(); i++) {
+                assertSameTrace(r1.getChildren().get(i), r2.getChildren().get(i));
+            }
+        }
+    }
+
+    private static List<String> statMethods(Collection<TraceStatsResult> stats) {
+        List<String> rslt = new ArrayList<String>();
+        for (TraceStatsResult s : stats) {
+            rslt.add(s.getMethod() + ":" + s.getCalls() + ":" + s.getRecs());
+        }
+        Collections.sort(rslt);
+        return rslt;
+    }
+
+    @Test
+    public void testCollectRetrieveEmbeddedTraceInBlockMode() throws Exception {
+        MemoryChunkStore bstore = new MemoryChunkStore();
+        Collector bcollector = new Collector(bstore, false, true);
+        bcollector.handleAgentData("1234", true, agd1);
+        bcollector.handleTraceData("1234", "9234567812345001", 0, trc2);
+
+        collector.handleAgentData("1234", true, agd1);
+        collector.handleTraceData("1234", "9234567812345001", 0, trc2);
+
+        assertEquals(2, bstore.length());
+        for (int i = 0; i < 2; i++) {
+            TraceChunkData c1 = store.get(i), c2 = bstore.get(i);
+            assertNull(c2.getTraceData());
+            assertNotNull(c2.getTraceBlocks());
+            assertEquals(c1.getMethod(), c2.getMethod());
+            assertEquals(c1.getRecs(), c2.getRecs());
+            assertSameTrace(extractTrace(Collections.singletonList(c1)), extractTrace(Collections.singletonList(c2)));
+            assertEquals(statMethods(extractStats(Collections.singletonList(c1))),
+                statMethods(extractStats(Collections.singletonList(c2))));
+        }
+
+        // Both chunks share the same compressed data
+        assertSame(bstore.get(0).getTraceBlocks(), bstore.get(1).getTraceBlocks());
+
+        // Block compressed chunks survive persistence
+        FileChunkStore fstore = new FileChunkStore(tmp.newFolder("fstore"));
+        try {
+            fstore.addAll(bstore.getChunks());
+            TraceChunkSearchQuery q = new TraceChunkSearchQuery();
+            q.setLimit(10);
+            q.setSpansOnly(true);
+            List<TraceChunkData> l = fstore.search(q);
+            assertEquals(2, l.size());
+            for (TraceChunkData c : l) {
+                TraceChunkData c0 = c.getSpanId() == bstore.get(0).getSpanId() ? store.get(0) : store.get(1);
+                assertSameTrace(extractTrace(Collections.singletonList(c0)), extractTrace(Collections.singletonList(c)));
+            }
+        } finally {
+            fstore.close();
+        }
+    }
+
+    /** Builds deeply nested trace: methods 1000..1000+depth-1, each calling the next one. */
+    private static byte[] deepTrace(long spanId, int depth) {
+        TraceBuildBlock b = null;
+        for (int i = depth-1; i >= 0; i--) {
+            TraceBuildBlock e = end(0, 1000 - i, 1, i % 10 == 0 ? TraceRecordFlags.TF_ERROR_MARK : 0);
+            if (i == 0) {
+                b = start(0, i, 1000 + i, begin(1000, 45, spanId, 0), b, e);
+            } else {
+                b = b != null ? start(0, i, 1000 + i, b, e) : start(0, i, 1000 + i, e);
+            }
+        }
+        return trace(b);
+    }
+
+    @Test
+    public void testAggregateStatsAcrossChunks() {
+        List<TraceBuildBlock> agd = new ArrayList<TraceBuildBlock>();
+        agd.add(sref(44, "V()"));
+        agd.add(sref(45, "db"));
+        agd.add(sref(49, "my.Class"));
+        for (int i = 0; i < 300; i++) {
+            agd.add(sref(2000 + i, "m" + i));
+            agd.add(mref(1000 + i, 49, 2000 + i, 44));
+        }
+        collector.handleAgentData("1234", true, trace(agd.toArray(new TraceBuildBlock[0])));
+        for (int i = 0; i < 3; i++) {
+            collector.handleTraceData("1234", String.format("%016x", i + 1), 0, deepTrace(i + 1, 300));
+        }
+        assertEquals(3, store.length());
+
+        List<TraceStatsResult> stats = new ArrayList<TraceStatsResult>(extractStats(store.getChunks()));
+        assertEquals(300, stats.size());
+        for (TraceStatsResult s : stats) {
+            int i = Integer.parseInt(s.getMethod().substring("my.Class.m".length(), s.getMethod().length() - 2));
+            assertEquals(3, s.getRecs());
+            assertEquals(3, s.getCalls());
+            assertEquals(i % 10 == 0 ? 3 : 0, s.getErrors());
+            assertEquals(1000 - 2 * i, s.getMinDuration());
+            assertEquals(3 * (1000 - 2 * i), s.getSumDuration());
+        }
+
+        List<TraceStatsResult> top = TraceStatsExtractingProcessor.topStats(store.getChunks(), 5);
+        assertEquals(5, top.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("my.Class.m" + i + "()", top.get(i).getMethod());
+        }
+    }
 }
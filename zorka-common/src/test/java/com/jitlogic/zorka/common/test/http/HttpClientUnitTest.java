@@ -0,0 +1,235 @@
+package com.jitlogic.zorka.common.test.http;
+
+import com.jitlogic.zorka.common.http.*;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpClientUnitTest {
+
+    private NioHttpServer server;
+    private ExecutorService executor;
+    private HttpConfig config;
+    private MethodCallStatistics stats;
+    private HttpClient client;
+    private AtomicInteger maxConns = new AtomicInteger();
+
+    @Before
+    public void startServer() {
+        executor = Executors.newFixedThreadPool(8);
+        server = new NioHttpServer("test", "127.0.0.1", 0, new HttpConfig(),
+            new HttpHandler() {
+                @Override
+                public HttpMessage handle(HttpMessage req) {
+                    maxConns.set(Math.max(maxConns.get(), server.getConnectionCount()));
+                    if (req.getUri().startsWith("/slow")) {
+                        try {
+                            Thread.sleep(Integer.parseInt(req.getQuery()));
+                        } catch (InterruptedException e) {
+                            return HttpMessage.RESP(500, "Interrupted");
+                        }
+                    }
+                    if (req.getUri().equals("/sum")) {
+                        byte[] body = req.getBody() != null ? req.getBody() : new byte[0];
+                        long sum = 0;
+                        for (byte b : body) sum += b;
+                        return HttpMessage.RESP(200, body.length + ":" + sum + ":"
+                            + req.getHeader("Transfer-Encoding"));
+                    }
+                    HttpMessage resp = HttpMessage.RESP(200, req.getBody());
+                    if (req.getUri().equals("/close")) resp.header("Connection", "close");
+                    return resp;
+                }
+            }, executor);
+        server.start();
+
+        config = new HttpConfig();
+        stats = new MethodCallStatistics();
+    }
+
+    @After
+    public void stopServer() {
+        if (client != null) client.close();
+        server.stop();
+        executor.shutdown();
+    }
+
+    private HttpClient client() {
+        client = new HttpClient(config, "http://127.0.0.1:" + server.getLocalPort(), stats);
+        return client;
+    }
+
+    private long connects() {
+        return stats.getMethodCallStatistic("HttpClientConnects").getCalls();
+    }
+
+    private List<Throwable> runThreads(int nthreads, final int nreqs, final String uri) throws Exception {
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < nthreads; i++) {
+            final int t = i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < nreqs; j++) {
+                            String body = "t" + t + "r" + j;
+                            HttpMessage resp = client.handle(HttpMessage.POST(uri, body));
+                            assertEquals(200, resp.getStatus());
+                            assertEquals(body, resp.getBodyAsString());
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+        return errors;
+    }
+
+    @Test
+    public void testConcurrentRequestsWithBoundedPool() throws Exception {
+        config.setMaxConnections(2);
+        client();
+        assertEquals(new ArrayList<Throwable>(), runThreads(8, 50, "/echo"));
+        assertEquals(2, connects());
+        assertEquals(2, client.getConnectionCount());
+        assertTrue(maxConns.get() <= 2);
+    }
+
+    @Test
+    public void testPipelinedRequestsOverSingleConnection() throws Exception {
+        config.setMaxConnections(1);
+        config.setPipelining(true);
+        config.setMaxPipelined(4);
+        client();
+        assertEquals(new ArrayList<Throwable>(), runThreads(6, 10, "/slow?1"));
+        assertEquals(1, connects());
+        assertEquals(1, maxConns.get());
+    }
+
+    @Test
+    public void testIdleConnectionsEvicted() throws Exception {
+        config.setIdleTimeout(50);
+        client();
+        client.handle(HttpMessage.POST("/a", "a"));
+        client.handle(HttpMessage.POST("/a", "b"));
+        assertEquals(1, connects());
+        Thread.sleep(100);
+        assertEquals("c", client.handle(HttpMessage.POST("/a", "c")).getBodyAsString());
+        assertEquals(2, connects());
+        assertEquals(1, client.getConnectionCount());
+    }
+
+    @Test
+    public void testConnectionClosedByServer() {
+        client();
+        assertEquals("a", client.handle(HttpMessage.POST("/close", "a")).getBodyAsString());
+        assertEquals(0, client.getConnectionCount());
+        assertEquals("b", client.handle(HttpMessage.POST("/a", "b")).getBodyAsString());
+        assertEquals(2, connects());
+    }
+
+    @Test
+    public void testRequestTimeout() {
+        config.setRequestTimeout(300);
+        client();
+        long t = System.currentTimeMillis();
+        try {
+            client.handle(HttpMessage.POST("/slow?3000", "x"));
+            fail("Expected timeout.");
+        } catch (HttpException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - t < 1500);
+        assertEquals(0, client.getConnectionCount());
+    }
+
+    @Test
+    public void testPipelinedResponseNotPassedToNextRequestAfterTimeout() throws Exception {
+        config.setMaxConnections(1);
+        config.setPipelining(true);
+        config.setMaxPipelined(4);
+        config.setRequestTimeout(400);
+        client();
+
+        final List<Object> rslt = new ArrayList<Object>();
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                Object r;
+                try {
+                    r = client.handle(HttpMessage.POST("/slow?550", "a")).getBodyAsString();
+                } catch (Exception e) {
+                    r = e;
+                }
+                synchronized (rslt) {
+                    rslt.add(r);
+                }
+            }
+        };
+        t.start();
+        Thread.sleep(300);
+
+        // Sent over the same connection, late response to first request arrives before its deadline
+        String b;
+        try {
+            b = client.handle(HttpMessage.POST("/echo", "b")).getBodyAsString();
+        } catch (HttpException e) {
+            b = null;
+        }
+        t.join();
+
+        assertTrue("First request should time out.", rslt.get(0) instanceof HttpException);
+        assertTrue("Got response to other request: " + b, b == null || "b".equals(b));
+    }
+
+    private static HttpBodyProducer body(final int length, final boolean known) {
+        return new HttpBodyProducer() {
+            @Override
+            public int length() {
+                return known ? length : -1;
+            }
+
+            @Override
+            public void write(OutputStream os) throws IOException {
+                byte[] buf = new byte[1000];
+                for (int pos = 0; pos < length; ) {
+                    int n = Math.min(length - pos, (pos / 1000) % 3 == 0 ? 1 : buf.length);
+                    for (int i = 0; i < n; i++) buf[i] = (byte)((pos + i) % 7);
+                    os.write(buf, 0, n);
+                    pos += n;
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testStreamedRequestBodies() {
+        client();
+        long sum = 0;
+        for (int i = 0; i < 1000000; i++) sum += i % 7;
+        assertEquals("1000000:" + sum + ":chunked",
+            client.handle(HttpMessage.POST("/sum", body(1000000, false))).getBodyAsString());
+        assertEquals("1000000:" + sum + ":null",
+            client.handle(HttpMessage.POST("/sum", body(1000000, true))).getBodyAsString());
+        assertEquals("0:0:chunked",
+            client.handle(HttpMessage.POST("/sum", body(0, false))).getBodyAsString());
+        assertEquals(1, connects());
+    }
+}
@@ -1,326 +1,315 @@
 package com.jitlogic.zorka.common.test.http;
 
-import com.jitlogic.zorka.common.http.HttpConfig;
-import com.jitlogic.zorka.common.http.HttpDecoder;
-import com.jitlogic.zorka.common.http.HttpMethod;
+import com.jitlogic.zorka.common.http.*;
 import org.junit.Test;
 
-import java.nio.ByteBuffer;
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
-/** Tests for encoder and decoder. */
+/** Tests for HTTP parser and decoder. */
 public class HttpDecoderUnitTest {
 
-//    private HttpConfig config = new HttpConfig();
-//    private TestHttpListener l = new TestHttpListener();
-//    private TestSelectionKey key = new TestSelectionKey("test");
-//
-//    @Test
-//    public void testDecodeSimpleReq() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("GET / HTTP/1.1", "User-Agent: test/12.3", "");
-//
-//        assertTrue(d.hasInitial());
-//        d.submit(key, false, b);
-//        assertFalse(d.hasInitial());
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        l.check("request",  key, "HTTP/1.1", HttpMethod.GET, "/", null);
-//        assertEquals(0, l.count("response"));
-//        l.check("header", key, "User-Agent", "test/12.3");
-//        assertEquals(0, l.count("body"));
-//        l.check("finish", key);
-//    }
-//
-//    @Test
-//    public void testMalformedCRLF() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf0("GET / HTTP/1.1\r", "User-Agent: test/12.3\r\n", "\r\n");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//    }
-//
-//    @Test
-//    public void testLongLine() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("GET /1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890/1234567890 HTTP/1.1", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//    }
-//
-//    @Test
-//    public void testDecodeTwoMsgsWithReset() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("GET / HTTP/1.1", "User-Agent: test/12.3", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals(1, l.count("request"));
-//        assertEquals(1, l.count("finish"));
-//
-//        b.position(0);
-//        d.reset();
-//        d.submit(key, false, b);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals(2, l.count("request"));
-//        assertEquals(2, l.count("finish"));
-//    }
-//
-//    @Test
-//    public void testDecodeTwoMsgsWithoutReset() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf(
-//                "GET /a HTTP/1.1", "User-Agent: test/12.3", "",
-//                "GET /b HTTP/1.1", "User-Agent: test/12.3", ""
-//        );
-//
-//        d.submit(key, false, b);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//
-//        assertEquals(2, l.count("request"));
-//        assertEquals(2, l.count("finish"));
-//    }
-//
-//    @Test
-//    public void testPostWithFixedLengthBody() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("POST / HTTP/1.1", "Content-Length: 4", "", "ABCD");
-//
-//        d.submit(key, false, b);
-//
-//        assertFalse(d.hasError());
-//
-//        l.check("body", key);
-//        assertEquals("ABCD", l.getBody());
-//    }
-//
-//    @Test
-//    public void testPostWithFixedFragmentedLengthBody() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b1 = sbuf0("POST / HTTP/1.1\r\n", "Content-Length: 8\r\n", "\r\n", "ABCD");
-//        ByteBuffer b2 = sbuf0("EFGH");
-//
-//        d.submit(key, false, b1, b2);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//
-//        assertEquals(1, l.count("body"));
-//        assertEquals("ABCDEFGH", l.getBody());
-//    }
-//
-//    @Test
-//    public void testBodyTooLargeRquest() {
-//        config.setMaxBodySize(4);
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf0("POST / HTTP/1.1\r\n", "Content-Length: 8\r\n", "\r\n", "ABCDEFGH");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        l.check("error", key, 400, "too large");
-//    }
-//
-//    @Test
-//    public void testFragmentedReq() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b1 = sbuf0("GET /");
-//        ByteBuffer b2 = sbuf0(" HTTP/1.1\r\n", "User-Agent: ");
-//        ByteBuffer b3 = sbuf0("test/12.3\r\n", "\r\n");
-//
-//        d.submit(key, false, b1, b2, b3);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        l.check("request",  key, "HTTP/1.1", HttpMethod.GET, "/", null);
-//        assertEquals(0, l.count("response"));
-//        l.check("header", key, "User-Agent", "test/12.3");
-//        assertEquals(0, l.count("body"));
-//        l.check("finish", key);
-//    }
-//
-//    @Test
-//    public void testParseMalformedRequestLine() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("BORK / HTTP/1.1", "User-Agent: test/12.3", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        assertEquals(0, l.count("request"));
-//        l.check("error", key, 400, "malformed HTTP message", "BORK / HTTP/1.1");
-//    }
-//
-//    @Test
-//    public void testParseMalformedHeader() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//
-//        ByteBuffer b = sbuf("GET / HTTP/1.1", "User-Agent test/12.3", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        assertEquals(1, l.count("request"));
-//        l.check("error", key, 400, "malformed HTTP message", "User-Agent test/12.3");
-//    }
-//
-//    @Test
-//    public void testDecodeSimpleResp() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 201 OK", "Content-Length: 0", "");
-//
-//        assertTrue(d.hasInitial());
-//        assertTrue(!d.hasFinished());
-//        d.submit(key, false, b);
-//        assertTrue(d.hasFinished());
-//        assertFalse(d.hasInitial());
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals(0, l.count("request"));
-//        l.check("response", key, "HTTP/1.1", 201, "OK");
-//        l.check("header", key, "Content-Length", "0");
-//        assertEquals(0, l.count("body"));
-//        l.check("finish", key);
-//    }
-//
-//    @Test
-//    public void testFragmentedResp() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b1 = sbuf0("HTTP/1.1 20");
-//        ByteBuffer b2 = sbuf0("1 OK\r\n", "Cont");
-//        ByteBuffer b3 = sbuf0("ent-Length: 0\r\n\r\n");
-//
-//        d.submit(key, false, b1, b2, b3);
-//
-//        assertFalse(d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals(0, l.count("request"));
-//        l.check("response", key, "HTTP/1.1", 201, "OK");
-//        l.check("header", key, "Content-Length", "0");
-//        assertEquals(0, l.count("body"));
-//        l.check("finish", key);
-//
-//    }
-//
-//    @Test
-//    public void testParseMalformedResponseLine() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 20a b0rk", "Content-Length: 0", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        assertEquals(0, l.count("response"));
-//        l.check("error", key, 400, "malformed HTTP message", "HTTP/1.1 20a b0rk");
-//    }
-//
-//    @Test
-//    public void testChunkedResponse() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
-//                "0004;foo=bar", "ABCD",
-//                "0004 ", "EFGH",
-//                "0004\220", "IJKL",
-//                "0", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(!d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals("ABCDEFGHIJKL", l.getBody());
-//    }
-//
-//    @Test
-//    public void testChunkedFragmentedResponse() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//
-//        ByteBuffer b1 = sbuf0("HTTP/1.1 200 OK\r\n", "Transfer-Encoding: chunked\r\n", "\r\n", "0004\r\n", "AB");
-//        ByteBuffer b2 = sbuf0("CD\r\n", "0\r\n", "\r\n");
-//
-//        d.submit(key, false, b1, b2);
-//
-//        assertTrue(!d.hasError());
-//        assertTrue(d.hasFinished());
-//        assertEquals("ABCD", l.getBody());
-//    }
-//
-//    @Test
-//    public void testChunkedResponseTooLarge() {
-//        config.setMaxBodySize(8);
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
-//                "0004", "ABCD", "0004", "EFGH", "0004", "IJKL", "0", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        l.check("error", key, 400, "too large");
-//    }
-//
-//    // TODO too long line
-//
-//    @Test
-//    public void testTooLongLine() {
-//        config.setMaxLineSize(10);
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
-//                "0004", "ABCD", "0004", "EFGH", "0004", "IJKL", "0", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        l.check("error", key, 400, "too large");
-//    }
-//
-//    @Test
-//    public void testChunkedMalformedResponse() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
-//                "0004x;foo=bar", "ABCD", "0", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        assertEquals(1, l.count("error"));
-//    }
-//
-//    @Test
-//    public void testResponseWithMalformedContentLength() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_RESP_LINE, l);
-//        ByteBuffer b = sbuf("HTTP/1.1 200 OK", "Content-Length: b0rk", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(d.hasError());
-//        assertEquals(1, l.count("error"));
-//    }
-//
-//    @Test
-//    public void testRequestWithCommaSeparatedHeader() {
-//        HttpDecoder d = new HttpDecoder(config, HttpDecoderState.READ_REQ_LINE, l);
-//        ByteBuffer b = sbuf("GET / HTTP/1.1", "X-Foo: bar,baz", "");
-//
-//        d.submit(key, false, b);
-//
-//        assertTrue(!d.hasError());
-//        assertEquals(2, l.count("header"));
-//    }
-//
-//    // TODO comma separated header values, quoted header values
-//
+    private HttpConfig config = new HttpConfig();
 
+    private static byte[] lines(String...lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String l : lines) {
+            sb.append(l).append("\r\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    /** Parses message passed in given slices. */
+    private HttpMessage parse(boolean isResponse, String...slices) {
+        HttpParser p = new HttpParser(config, isResponse);
+        for (String s : slices) {
+            byte[] b = s.getBytes();
+            assertFalse(p.isComplete());
+            assertEquals(b.length, p.parse(b, 0, b.length));
+        }
+        assertTrue(p.isComplete());
+        return p.getMessage();
+    }
+
+    private HttpException parseError(boolean isResponse, String...slices) {
+        try {
+            parse(isResponse, slices);
+            fail("Expected parse error.");
+            return null;
+        } catch (HttpException e) {
+            assertEquals(400, e.getStatus());
+            return e;
+        }
+    }
+
+    @Test
+    public void testDecodeSimpleReq() {
+        HttpMessage m = parse(false, "GET /a/b?x=1&y=2 HTTP/1.1\r\nUser-Agent: test/12.3\r\n\r\n");
+        assertEquals(HttpMethod.GET, m.getMethod());
+        assertEquals("/a/b", m.getUri());
+        assertEquals("x=1&y=2", m.getQuery());
+        assertEquals("HTTP/1.1", m.getVersion());
+        assertEquals("test/12.3", m.getHeader("User-Agent"));
+        assertNull(m.getBody());
+    }
+
+    @Test
+    public void testFragmentedReq() {
+        HttpMessage m = parse(false, "GET /", " HTTP/1.1\r\nuser-agent: ", "test/12.3\r", "\n\r", "\n");
+        assertEquals("/", m.getUri());
+        assertEquals("test/12.3", m.getHeader("User-Agent"));
+    }
+
+    @Test
+    public void testDecodeTwoMsgsFromSingleBuffer() {
+        byte[] b = lines("GET /a HTTP/1.1", "User-Agent: test/12.3", "", "GET /b HTTP/1.1", "User-Agent: test/12.3", "");
+        HttpParser p = new HttpParser(config, false);
+        int n = p.parse(b, 0, b.length);
+        assertTrue(p.isComplete());
+        assertEquals("/a", p.getMessage().getUri());
+        p.reset(false);
+        assertEquals(b.length - n, p.parse(b, n, b.length - n));
+        assertTrue(p.isComplete());
+        assertEquals("/b", p.getMessage().getUri());
+    }
+
+    @Test
+    public void testPostWithFixedFragmentedLengthBody() {
+        HttpMessage m = parse(false, "POST / HTTP/1.1\r\nContent-Length: 8\r\n\r\nABCD", "EFGH");
+        assertEquals("ABCDEFGH", m.getBodyAsString());
+    }
+
+    @Test
+    public void testBodyTooLargeRequest() {
+        config.setMaxBodySize(4);
+        assertEquals(HttpDecoder.TOO_LARGE_MSG, parseError(false, "POST / HTTP/1.1\r\nContent-Length: 8\r\n\r\nABCDEFGH").getStatusLine());
+    }
+
+    @Test
+    public void testParseMalformedRequestLines() {
+        assertEquals("BORK / HTTP/1.1", parseError(false, "BORK / HTTP/1.1\r\n\r\n").getData());
+        parseError(false, "GET / HTTP/1.1\rUser-Agent: test/12.3\r\n\r\n");
+        parseError(false, "GET  HTTP/1.1\r\n\r\n");
+        parseError(false, "GET /\r\n\r\n");
+        parseError(false, "GET / HTTP/x.1\r\n\r\n");
+        parseError(false, "get / HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    public void testParseMalformedHeaders() {
+        assertEquals("User-Agent test/12.3", parseError(false, "GET / HTTP/1.1\r\nUser-Agent test/12.3\r\n\r\n").getData());
+        parseError(false, "GET / HTTP/1.1\r\n: foo\r\n\r\n");
+        parseError(false, "GET / HTTP/1.1\r\nX Foo: bar\r\n\r\n");
+        parseError(false, "GET / HTTP/1.1\r\nContent-Length: b0rk\r\n\r\n");
+        parseError(false, "GET / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        parseError(false, "GET / HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+    }
+
+    @Test
+    public void testDecodeSimpleResp() {
+        HttpMessage m = parse(true, "HTTP/1.1 201 OK\r\nContent-Length: 0\r\n\r\n");
+        assertEquals(201, m.getStatus());
+        assertEquals("OK", m.getStatusLine());
+        assertEquals("0", m.getHeader("Content-Length"));
+    }
+
+    @Test
+    public void testFragmentedResp() {
+        HttpMessage m = parse(true, "HTTP/1.1 20", "1 Created\r\n", "Cont", "ent-Length: 2\r\n\r\n", "x", "y");
+        assertEquals(201, m.getStatus());
+        assertEquals("Created", m.getStatusLine());
+        assertEquals("xy", m.getBodyAsString());
+    }
+
+    @Test
+    public void testParseMalformedResponseLine() {
+        parseError(true, "HTTP/1.1 20a b0rk\r\nContent-Length: 0\r\n\r\n");
+        parseError(true, "HTTP/1.1 2000 OK\r\n\r\n");
+        parseError(true, "HTTP/1.1 999 OK\r\n\r\n");
+        parseError(true, "HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    public void testChunkedResponse() {
+        HttpMessage m = parse(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
+            "0004;foo=bar", "ABCD", "0004 ", "EFGH", "0004\t", "IJKL", "0", "X-Trailer: foo", "")));
+        assertEquals("ABCDEFGHIJKL", m.getBodyAsString());
+    }
+
+    @Test
+    public void testChunkedFragmentedResponse() {
+        HttpMessage m = parse(true, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n0004\r\nAB", "CD\r", "\n0\r\n", "\r\n");
+        assertEquals("ABCD", m.getBodyAsString());
+    }
+
+    @Test
+    public void testChunkedResponseTooLarge() {
+        config.setMaxBodySize(8);
+        assertEquals(HttpDecoder.TOO_LARGE_MSG, parseError(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "",
+            "0004", "ABCD", "0004", "EFGH", "0004", "IJKL", "0", ""))).getStatusLine());
+    }
+
+    @Test
+    public void testTooLongLine() {
+        config.setMaxLineSize(10);
+        assertEquals(HttpDecoder.TOO_LARGE_MSG, parseError(true, "HTTP/1.1 200 OK\r\n", "\r\n").getStatusLine());
+        assertEquals(HttpDecoder.TOO_LARGE_MSG, parseError(true, "HTTP/1.1 ", "200 OK\r\n", "\r\n").getStatusLine());
+    }
+
+    @Test
+    public void testChunkedMalformedResponse() {
+        parseError(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "", "0004x;foo=bar", "ABCD", "0", "")));
+        parseError(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "", "0004", "ABCDE", "0", "")));
+        parseError(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "", ";x", "0", "")));
+        parseError(true, new String(lines("HTTP/1.1 200 OK", "Transfer-Encoding: chunked", "", "fffffffffff", "0", "")));
+    }
+
+    @Test
+    public void testRequestWithCommaSeparatedHeader() {
+        HttpMessage m = parse(false, "GET / HTTP/1.1\r\nX-Foo: bar, baz\r\nX-Empty:\r\n\r\n");
+        assertEquals(Arrays.asList("bar", "baz"), m.getHeaders().get("X-Foo"));
+        assertEquals("", m.getHeader("X-Empty"));
+    }
+
+    @Test
+    public void testStreamLargeBodyToConsumer() {
+        config.setMaxBodySize(16);
+        final long[] total = new long[1];
+        HttpParser p = new HttpParser(config, false);
+        p.setBodyConsumer(new HttpBodyConsumer() {
+            @Override
+            public void body(HttpMessage msg, byte[] buf, int offs, int len) {
+                for (int i = 0; i < len; i++) assertEquals('x', buf[offs + i]);
+                total[0] += len;
+            }
+        });
+
+        byte[] hdr = lines("POST /big HTTP/1.1", "Transfer-Encoding: chunked", "");
+        p.parse(hdr, 0, hdr.length);
+        byte[] chunk = lines("1000", new String(new byte[4096]).replace('\0', 'x'));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(chunk.length, p.parse(chunk, 0, chunk.length));
+        }
+        byte[] last = lines("0", "");
+        p.parse(last, 0, last.length);
+
+        assertTrue(p.isComplete());
+        assertEquals(4096L * 1000, total[0]);
+        assertNull(p.getMessage().getBody());
+    }
+
+    @Test
+    public void testDecodeFromStream() {
+        byte[] b = lines("GET /a HTTP/1.1", "Content-Length: 3", "", "abcGET /b HTTP/1.0", "", "");
+        HttpDecoder d = new HttpDecoder(new ByteArrayInputStream(b), config);
+        assertEquals("abc", d.decode(false).getBodyAsString());
+        assertEquals("HTTP/1.0", d.decode(false).getVersion());
+        try {
+            d.decode(false);
+            fail("Expected HttpClosedException");
+        } catch (HttpClosedException e) {
+            // expected
+        }
+
+        d = new HttpDecoder(new ByteArrayInputStream(lines("HTTP/1.1 200 OK", "Content-Length: 10", "", "abc")), config);
+        try {
+            d.decode(true);
+            fail("Expected HttpException");
+        } catch (HttpException e) {
+            assertEquals(400, e.getStatus());
+        }
+    }
+
+    private static final String[] SAMPLES = {
+        "GET /a?b=c HTTP/1.1\r\nHost: localhost\r\nUser-Agent: test\r\n\r\n",
+        "POST /submit/agd HTTP/1.1\r\nContent-Type: application/zorka+cbor+v1\r\nContent-Length: 11\r\n"
+            + "X-Zorka-Session-ID: 1234\r\n\r\nhello world",
+        "POST /submit/trc HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhello\r\n6\r\n world\r\n0\r\n\r\n",
+    };
+
+    private String describe(HttpMessage m) {
+        return m.getMethod() + " " + m.getUri() + " " + m.getQuery() + " " + m.getVersion() + " "
+            + m.getHeaders() + " " + m.getBodyAsString();
+    }
+
+    @Test
+    public void testFuzzRandomSlicing() {
+        Random rand = new Random(42);
+        for (String sample : SAMPLES) {
+            byte[] b = sample.getBytes();
+            String expected = describe(parse(false, sample));
+            for (int i = 0; i < 200; i++) {
+                HttpParser p = new HttpParser(config, false);
+                int pos = 0;
+                while (pos < b.length) {
+                    int n = 1 + rand.nextInt(Math.min(16, b.length - pos));
+                    assertEquals(n, p.parse(b, pos, n));
+                    pos += n;
+                }
+                assertTrue(p.isComplete());
+                assertEquals(expected, describe(p.getMessage()));
+            }
+        }
+    }
+
+    @Test
+    public void testFuzzMalformedInput() {
+        Random rand = new Random(42);
+        config.setMaxBodySize(1024);
+        config.setMaxLineSize(256);
+        byte[] special = ":;, \t\r\n0123456789abcdefABCDEF/?ÿ\u0000".getBytes();
+        int errors = 0, complete = 0;
+
+        for (int i = 0; i < 20000; i++) {
+            byte[] b = SAMPLES[rand.nextInt(SAMPLES.length)].getBytes();
+
+            // Mutate sample: replace, insert or delete random bytes
+            for (int j = rand.nextInt(4); j >= 0; j--) {
+                int pos = rand.nextInt(b.length);
+                byte v = rand.nextBoolean() ? special[rand.nextInt(special.length)] : (byte)rand.nextInt(256);
+                switch (rand.nextInt(3)) {
+                    case 0:
+                        b[pos] = v;
+                        break;
+                    case 1: {
+                        byte[] nb = new byte[b.length + 1];
+                        System.arraycopy(b, 0, nb, 0, pos);
+                        nb[pos] = v;
+                        System.arraycopy(b, pos, nb, pos + 1, b.length - pos);
+                        b = nb;
+                        break;
+                    }
+                    default: {
+                        byte[] nb = new byte[b.length - 1];
+                        System.arraycopy(b, 0, nb, 0, pos);
+                        System.arraycopy(b, pos + 1, nb, pos, b.length - pos - 1);
+                        b = nb;
+                    }
+                }
+            }
+
+            // Parser must either complete, wait for more data or report HTTP error
+            HttpParser p = new HttpParser(config, rand.nextInt(8) == 0);
+            try {
+                int pos = 0;
+                while (pos < b.length && !p.isComplete()) {
+                    int n = 1 + rand.nextInt(b.length - pos);
+                    int c = p.parse(b, pos, n);
+                    assertTrue(c > 0 && c <= n);
+                    assertTrue(c == n || p.isComplete());
+                    pos += c;
+                }
+                if (p.isComplete()) complete++;
+            } catch (HttpException e) {
+                assertEquals(400, e.getStatus());
+                errors++;
+            }
+        }
+
+        assertTrue(errors > 1000);
+        assertTrue(complete > 1000);
+    }
 }
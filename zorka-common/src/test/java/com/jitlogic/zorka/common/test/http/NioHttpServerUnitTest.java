@@ -0,0 +1,179 @@
+package com.jitlogic.zorka.common.test.http;
+
+import com.jitlogic.zorka.common.http.*;
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NioHttpServerUnitTest {
+
+    private NioHttpServer server;
+    private ExecutorService executor;
+    private AtomicInteger nreq = new AtomicInteger();
+
+    @Before
+    public void startServer() {
+        executor = Executors.newFixedThreadPool(2);
+        server = new NioHttpServer("test", "127.0.0.1", 0, new HttpConfig(),
+            new HttpHandler() {
+                @Override
+                public HttpMessage handle(HttpMessage message) {
+                    nreq.incrementAndGet();
+                    if (message.getUri().equals("/fail")) throw new RuntimeException("Failed.");
+                    if (message.getUri().equals("/badbody")) {
+                        HttpMessage resp = HttpMessage.RESP(200, "");
+                        resp.setBodyProducer(new HttpBodyProducer() {
+                            @Override
+                            public int length() {
+                                return 10;
+                            }
+                            @Override
+                            public void write(OutputStream os) throws IOException {
+                                throw new IOException("Cannot produce body.");
+                            }
+                        });
+                        return resp;
+                    }
+                    String body = message.getBody() != null ? message.getBodyAsString() : "";
+                    return HttpMessage.RESP(200, "OK:" + message.getUri() + ":" + body);
+                }
+            }, executor);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+        executor.shutdown();
+    }
+
+    private String exchange(Socket s, String req, int nresp) throws Exception {
+        OutputStream os = s.getOutputStream();
+        os.write(req.getBytes());
+        os.flush();
+        InputStream is = s.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        byte[] buf = new byte[4096];
+        while (count(sb.toString(), "OK:") + count(sb.toString(), " 500 ") < nresp) {
+            int n = is.read(buf);
+            if (n < 0) break;
+            sb.append(new String(buf, 0, n));
+        }
+        return sb.toString();
+    }
+
+    private static int count(String s, String sub) {
+        int n = 0;
+        for (int i = s.indexOf(sub); i >= 0; i = s.indexOf(sub, i + 1)) n++;
+        return n;
+    }
+
+    @Test
+    public void testRequestsViaHttpClient() {
+        HttpClient cli = new HttpClient(new HttpConfig(), "http://localhost:" + server.getLocalPort(), new MethodCallStatistics());
+        for (int i = 0; i < 10; i++) {
+            HttpMessage msg = cli.handle(HttpMessage.POST("/a/" + i, "x" + i));
+            assertEquals(200, msg.getStatus());
+            assertEquals("OK:/a/" + i + ":x" + i, msg.getBodyAsString());
+        }
+        assertEquals(10, nreq.get());
+    }
+
+    @Test
+    public void testPipelinedRequestsAnsweredInOrder() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getLocalPort());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            sb.append("GET /p").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        }
+        sb.append("POST /c HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2;x=y\r\nde\r\n0\r\n\r\n");
+        String rslt = exchange(s, sb.toString(), 21);
+        s.close();
+
+        int pos = 0;
+        for (int i = 0; i < 20; i++) {
+            int p = rslt.indexOf("OK:/p" + i + ":", pos);
+            assertTrue("Response " + i + " missing or out of order", p > pos);
+            pos = p;
+        }
+        assertTrue(rslt.indexOf("OK:/c:abcde", pos) > pos);
+    }
+
+    @Test
+    public void testRequestSplitAcrossPackets() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getLocalPort());
+        OutputStream os = s.getOutputStream();
+        String req = "POST /split HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello";
+        for (int i = 0; i < req.length(); i++) {
+            os.write(req.charAt(i));
+            os.flush();
+            if (i % 8 == 0) Thread.sleep(1);
+        }
+        String rslt = exchange(s, "", 1);
+        s.close();
+        assertTrue(rslt.contains("OK:/split:hello"));
+    }
+
+    @Test
+    public void testHandlerErrorAndConnectionClose() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getLocalPort());
+        String rslt = exchange(s, "GET /fail HTTP/1.1\r\n\r\n", 1);
+        assertTrue(rslt.startsWith("HTTP/1.1 500"));
+
+        // Connection still usable, closed by server after request with Connection: close
+        rslt = exchange(s, "GET /x HTTP/1.1\r\nConnection: close\r\n\r\n", 1);
+        assertTrue(rslt.contains("OK:/x:"));
+        assertTrue(rslt.contains("Connection: close"));
+        assertEquals(-1, s.getInputStream().read());
+        s.close();
+    }
+
+    @Test
+    public void testResponseEncodingErrorDoesNotStallConnection() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getLocalPort());
+        s.setSoTimeout(5000);
+        String rslt = exchange(s, "GET /badbody HTTP/1.1\r\n\r\n", 1);
+        assertTrue(rslt.startsWith("HTTP/1.1 500"));
+
+        rslt = exchange(s, "GET /x HTTP/1.1\r\n\r\n", 1);
+        assertTrue(rslt.contains("OK:/x:"));
+        s.close();
+    }
+
+    @Test
+    public void testMalformedRequestRejected() throws Exception {
+        Socket s = new Socket("127.0.0.1", server.getLocalPort());
+        String rslt = exchange(s, "GET /x HTTP/1.1\r\nContent-Length: xyz\r\n\r\n", 1);
+        assertTrue(rslt.startsWith("HTTP/1.1 400"));
+        s.close();
+        assertEquals(0, nreq.get());
+    }
+
+    @Test
+    public void testManyIdleConnectionsWithFewThreads() throws Exception {
+        List<Socket> sockets = new ArrayList<Socket>();
+        for (int i = 0; i < 200; i++) {
+            sockets.add(new Socket("127.0.0.1", server.getLocalPort()));
+        }
+        for (int i = 0; i < 200; i += 20) {
+            assertTrue(exchange(sockets.get(i), "GET /i" + i + " HTTP/1.1\r\n\r\n", 1).contains("OK:/i" + i));
+        }
+        assertEquals(200, server.getConnectionCount());
+        for (Socket s : sockets) s.close();
+        for (int i = 0; i < 100 && server.getConnectionCount() > 0; i++) Thread.sleep(10);
+        assertEquals(0, server.getConnectionCount());
+    }
+}
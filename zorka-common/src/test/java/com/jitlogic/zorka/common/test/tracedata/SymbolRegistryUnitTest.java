@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.common.test.tracedata;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicMethod;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SymbolRegistryUnitTest {
+
+    @Test
+    public void testRegisterAndLookupSymbols() {
+        SymbolRegistry registry = new SymbolRegistry();
+
+        assertEquals(0, registry.symbolId(null));
+        assertEquals("<null>", registry.symbolName(0));
+        assertEquals("<?>", registry.symbolName(1));
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i + 1, registry.symbolId("sym" + i));
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i + 1, registry.symbolId("sym" + i));
+            assertEquals("sym" + i, registry.symbolName(i + 1));
+            assertTrue(registry.hasSymbol(i + 1));
+        }
+
+        assertFalse(registry.hasSymbol(10001));
+    }
+
+    @Test
+    public void testPutSymbolsWithPredefinedIds() {
+        SymbolRegistry registry = new SymbolRegistry();
+
+        registry.putSymbol(100000, "a");
+        registry.putSymbol(5, "b");
+
+        assertEquals(100000, registry.symbolId("a"));
+        assertEquals(5, registry.symbolId("b"));
+        assertEquals("a", registry.symbolName(100000));
+        assertEquals(100001, registry.symbolId("c"));
+
+        // Symbol redefined with new ID
+        registry.putSymbol(7, "b");
+        assertEquals(7, registry.symbolId("b"));
+    }
+
+    @Test
+    public void testRestoreSymbolsAndMethods() {
+        SymbolRegistry registry = new SymbolRegistry();
+        int a = registry.symbolId("a");
+
+        assertTrue(registry.restoreSymbol(a, "a"));
+        assertFalse(registry.restoreSymbol(a + 1, "a"));
+        assertFalse("ID already used by counter", registry.restoreSymbol(a, "b"));
+        assertTrue(registry.restoreSymbol(10, "b"));
+        assertEquals(11, registry.symbolId("c"));
+
+        int m = registry.methodId(a, 10, 11);
+        assertTrue(registry.restoreMethod(m, a, 10, 11));
+        assertFalse(registry.restoreMethod(m, a, 10, 10));
+        assertTrue(registry.restoreMethod(20, a, 10, 10));
+        assertEquals(21, registry.methodId(a, 11, 11));
+    }
+
+    @Test
+    public void testRegisterAndLookupMethods() {
+        SymbolRegistry registry = new SymbolRegistry();
+
+        for (int i = 1; i <= 10000; i++) {
+            assertEquals(i, registry.methodId(i, i + 1, i + 2));
+        }
+
+        for (int i = 1; i <= 10000; i++) {
+            assertEquals(i, registry.methodId(new SymbolicMethod(i, i + 1, i + 2)));
+            assertEquals(new SymbolicMethod(i, i + 1, i + 2), registry.methodDef(i));
+            assertEquals(i, registry.methodClassId(i));
+            assertEquals(i + 1, registry.methodNameId(i));
+            assertEquals(i + 2, registry.methodSignatureId(i));
+        }
+
+        assertNull(registry.methodDef(10001));
+        assertFalse(registry.hasMethod(10001));
+        assertEquals(0, registry.methodClassId(10001));
+
+        registry.putMethod(50000, 1, 1, 1);
+        assertEquals(50000, registry.methodId(1, 1, 1));
+        assertEquals(50001, registry.methodId(1, 1, 2));
+    }
+
+    @Test
+    public void testMethodDescriptions() {
+        SymbolRegistry registry = new SymbolRegistry();
+        int mid = registry.methodId("com.myapp.SomeClass", "someMethod", "()V");
+
+        assertEquals("com.myapp.SomeClass.someMethod()", registry.methodDesc(mid));
+        assertEquals("com.myapp|SomeClass|someMethod|()V", registry.methodXDesc(mid));
+        assertEquals("<?>", registry.methodDesc(mid + 1));
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        final SymbolRegistry registry = new SymbolRegistry();
+        final int nthreads = 8, nsyms = 20000;
+        final int[][] ids = new int[nthreads][nsyms];
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[nthreads];
+
+        for (int t = 0; t < nthreads; t++) {
+            final int tn = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < nsyms; i++) {
+                            int n = (i * 7 + tn * 1013) % nsyms;
+                            int sid = registry.symbolId("sym" + n);
+                            ids[tn][n] = registry.methodId(sid, sid, sid);
+                        }
+                    } catch (Throwable e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        start.countDown();
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, errors.get());
+
+        for (int i = 0; i < nsyms; i++) {
+            for (int t = 1; t < nthreads; t++) {
+                assertEquals("Different method IDs for the same method", ids[0][i], ids[t][i]);
+            }
+            int sid = registry.symbolId("sym" + i);
+            assertEquals("sym" + i, registry.symbolName(sid));
+            assertEquals(sid, registry.methodClassId(ids[0][i]));
+        }
+
+        assertEquals(nsyms + 1, registry.symbolId("another"));
+        assertEquals(nsyms + 1, registry.methodId(1, 2, 3));
+    }
+}
@@ -18,6 +18,28 @@ public class AgentConfigProps {
     public static final String SPY_PROP = "spy";
     public static final boolean SPY_DEFV = true;
 
+    /**
+     * Enables persistent cache of instrumented bytecode (speeds up agent startup). Cached bytecode
+     * assumes stable class hierarchy, so cache should be cleared when application libraries change.
+     */
+    public static final String SPY_CACHE_PROP = "spy.cache";
+    public static final boolean SPY_CACHE_DEFV = false;
+
+    /** Bytecode cache directory (default: cache subdirectory in agent home). */
+    public static final String SPY_CACHE_DIR_PROP = "spy.cache.dir";
+    public static final String SPY_CACHE_DIR_DEFV = "cache";
+
+    /** Maximum size of bytecode cache. When exceeded, least recently used entries are removed. */
+    public static final String SPY_CACHE_MAX_PROP = "spy.cache.max";
+    public static final long SPY_CACHE_MAX_DEFV = 64 * 1024 * 1024L;
+
+    /**
+     * Emits tracer probes as invokedynamic instructions in classes compiled for Java 7 or newer. Probes of
+     * methods excluded by tracer tuner are relinked to no-op instead of retransforming their classes.
+     */
+    public static final String SPY_INDY_PROP = "spy.indy";
+    public static final boolean SPY_INDY_DEFV = false;
+
     /** Enables or disables syslog subsystem. */
     public static final String SYSLOG_PROP = "syslog";
     public static final boolean SYSLOG_DEFV = true;
@@ -32,6 +54,14 @@ public class AgentConfigProps {
     public static final String TRACER_CHUNK_SIZE_PROP = "tracer.chunk.size";
     public static final int TRACER_CHUNK_SIZE_DEFV = 65536;
 
+    /** When set to true, streaming tracer chunks will be allocated off-heap (direct buffers). */
+    public static final String TRACER_CHUNK_DIRECT_PROP = "tracer.chunk.direct";
+    public static final boolean TRACER_CHUNK_DIRECT_DEFV = false;
+
+    /** Maximum total size of off-heap chunks. When exceeded, tracer falls back to heap chunks. */
+    public static final String TRACER_CHUNK_DIRECT_MAX_PROP = "tracer.chunk.direct.max";
+    public static final long TRACER_CHUNK_DIRECT_MAX_DEFV = 64 * 1024 * 1024L;
+
     /** Enables or disables tracer. */
     public static final String TRACER_PROP = "tracer";
     public static final boolean TRACER_DEFV = false;
@@ -81,6 +111,25 @@ public class AgentConfigProps {
     public static final String TRACER_TUNER_RANKS_PROP = "tracer.tuner.ranks";
     public static final int TRACER_TUNER_RANKS_DEFV = 1023;
 
+    /**
+     * Tracer overhead budget (percent of total CPU time). When set, tuner will exclude and re-include methods,
+     * so that estimated tracer probes overhead stays within budget. Default 0 disables budget mode.
+     */
+    public static final String TRACER_TUNER_BUDGET_PROP = "tracer.tuner.budget";
+    public static final String TRACER_TUNER_BUDGET_DEFV = "0";
+
+    /** Low watermark (percent of budget) below which tuner starts re-including previously excluded methods. */
+    public static final String TRACER_TUNER_BUDGET_LOW_PROP = "tracer.tuner.budget.low";
+    public static final int TRACER_TUNER_BUDGET_LOW_DEFV = 50;
+
+    /** Number of tuning cycles controller waits after excluding or re-including methods. */
+    public static final String TRACER_TUNER_BUDGET_HOLD_PROP = "tracer.tuner.budget.hold";
+    public static final int TRACER_TUNER_BUDGET_HOLD_DEFV = 2;
+
+    /** Cost of single traced call (in nanoseconds). Default 0 means it will be calibrated at startup. */
+    public static final String TRACER_TUNER_PROBE_COST_PROP = "tracer.tuner.probe.cost";
+    public static final long TRACER_TUNER_PROBE_COST_DEFV = 0L;
+
     /** Tuner exclusion log file (all new exclusions will be added here automatically). */
     public static final String TRACER_TUNER_XLOG_PROP = "tracer.tuner.xlog";
     public static final String TRACER_TUNER_XLOG_DEFV = "_log.ztx";
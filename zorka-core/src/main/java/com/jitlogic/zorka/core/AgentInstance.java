@@ -317,7 +317,10 @@ public class AgentInstance implements ZorkaService {
         if (bufManager == null) {
             bufManager = new STraceBufManager(
                     getConfig().intCfg(TRACER_CHUNK_SIZE_PROP, TRACER_CHUNK_SIZE_DEFV),
-                    getConfig().intCfg(TRACER_CHUNK_MAX_PROP, TRACER_CHUNK_MAX_DEFV));
+                    getConfig().intCfg(TRACER_CHUNK_MAX_PROP, TRACER_CHUNK_MAX_DEFV),
+                    Runtime.getRuntime().availableProcessors(),
+                    getConfig().boolCfg(TRACER_CHUNK_DIRECT_PROP, TRACER_CHUNK_DIRECT_DEFV),
+                    getConfig().kiloCfg(TRACER_CHUNK_DIRECT_MAX_PROP, TRACER_CHUNK_DIRECT_MAX_DEFV));
         }
         return bufManager;
     }
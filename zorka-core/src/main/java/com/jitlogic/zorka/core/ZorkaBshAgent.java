@@ -26,12 +26,14 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.regex.Pattern;
 
 import com.jitlogic.zorka.common.ZorkaAgent;
 import com.jitlogic.zorka.common.ZorkaService;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.core.util.ObjectDumper;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.PatternAutomaton;
 
 import bsh.EvalError;
 import bsh.Interpreter;
@@ -75,6 +77,12 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
 
     private Map<String,String> probeMap = new ConcurrentHashMap<String, String>();
 
+    /**
+     * Compiled prefixes of probe map (snapshot). Classes not matching any prefix are rejected
+     * without locking, so class loading threads do not contend on agent lock.
+     */
+    private volatile PatternAutomaton probePrefixes;
+
     /**
      * Standard constructor.
      *
@@ -231,10 +239,39 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
                 probeMap.put(s.substring(5), config.get(s));
             }
         }
+        compileProbePrefixes();
+    }
+
+
+    private void compileProbePrefixes() {
+        List<Pattern> patterns = new ArrayList<Pattern>(probeMap.size());
+
+        for (String prefix : probeMap.keySet()) {
+            StringBuilder sb = new StringBuilder(prefix.length() + 4);
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                if (!Character.isLetterOrDigit(c)) {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            patterns.add(Pattern.compile(sb.append(".*").toString()));
+        }
+
+        probePrefixes = new PatternAutomaton(patterns);
+    }
+
+
+    public void probe(String className) {
+        PatternAutomaton prefixes = probePrefixes;
+
+        if (prefixes == null || prefixes.match(className).length > 0) {
+            probeScripts(className);
+        }
     }
 
 
-    public synchronized void probe(String className) {
+    private synchronized void probeScripts(String className) {
         int nhits = 0;
         for (Map.Entry<String,String> e : probeMap.entrySet()) {
             if (className.startsWith(e.getKey())) {
@@ -250,6 +287,7 @@ public class ZorkaBshAgent implements ZorkaAgent, ZorkaService {
                     iter.remove();
                 }
             }
+            compileProbePrefixes();
         }
     }
 
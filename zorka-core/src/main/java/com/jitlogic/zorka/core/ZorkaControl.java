@@ -15,6 +15,8 @@
  */
 package com.jitlogic.zorka.core;
 
+import com.jitlogic.zorka.core.spy.tuner.OverheadController;
+import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
 
 public class ZorkaControl implements ZorkaControlMBean {
 
@@ -87,6 +89,56 @@ public class ZorkaControl implements ZorkaControlMBean {
     }
 
 
+    private OverheadController tunerController() {
+        TracerTuner tuner = instance.getTracerTuner();
+        return tuner != null ? tuner.getController() : null;
+    }
+
+
+    @Override
+    public double getTunerBudget() {
+        OverheadController oc = tunerController();
+        return oc != null ? oc.getBudget() : 0.0;
+    }
+
+
+    @Override
+    public void setTunerBudget(double pct) {
+        OverheadController oc = tunerController();
+        if (oc != null) {
+            oc.setBudget(pct);
+        }
+    }
+
+
+    @Override
+    public double getTunerOverhead() {
+        OverheadController oc = tunerController();
+        return oc != null ? oc.getOverhead() : 0.0;
+    }
+
+
+    @Override
+    public long getTunerProbeCost() {
+        OverheadController oc = tunerController();
+        return oc != null && oc.isEnabled() ? oc.getProbeCost() : 0L;
+    }
+
+
+    @Override
+    public int getTunerBudgetExclusions() {
+        OverheadController oc = tunerController();
+        return oc != null ? oc.getExcludedCount() : 0;
+    }
+
+
+    @Override
+    public String getTunerBudgetState() {
+        OverheadController oc = tunerController();
+        return oc != null ? oc.getState() : OverheadController.DISABLED;
+    }
+
+
     @Override
     public void reload() {
         instance.reload();
@@ -34,6 +34,18 @@ public interface ZorkaControlMBean {
 
     String listTracerIncludes();
 
+    double getTunerBudget();
+
+    void setTunerBudget(double pct);
+
+    double getTunerOverhead();
+
+    long getTunerProbeCost();
+
+    int getTunerBudgetExclusions();
+
+    String getTunerBudgetState();
+
     void reload();
 
 }
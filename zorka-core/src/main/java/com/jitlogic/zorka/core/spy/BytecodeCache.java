@@ -0,0 +1,554 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of instrumented bytecode. Entries are keyed by hash of original class bytecode,
+ * class name and fingerprint of configuration used to instrument it (spy definitions and tracer
+ * settings applicable to this class). Besides instrumented bytecode, each entry contains IDs of spy
+ * contexts and tracer symbols embedded in bytecode, so they can be registered again with the same IDs.
+ *
+ * Cache size is limited. When limit is exceeded, least recently used entries are removed (entry
+ * files are touched on each hit). Whole cache is dropped when its format version changes.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class BytecodeCache {
+
+    private static final Logger log = LoggerFactory.getLogger(BytecodeCache.class);
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x5a424301;
+
+    private static final String VERSION_FILE = "VERSION";
+
+    /** Classes that generate instrumented code or are called by it. */
+    private static final Class<?>[] BUILD_CLASSES = {
+        SpyClassTransformer.class, SpyClassVisitor.class, SpyMethodVisitor.class, SpyClassWriter.class,
+        MainSubmitter.class, IndyLinker.class, SpyProbe.class, SpyArgProbe.class, SpyClassProbe.class,
+        SpyReturnProbe.class, SpyThreadProbe.class, SpyTimeProbe.class, BytecodeCache.class
+    };
+
+    private static final String SUFFIX = ".zbc";
+
+    private final File dir;
+
+    /** Contents of version file: cache format version and agent build. */
+    private final String version;
+
+    private final long maxSize;
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), puts = new AtomicLong(),
+            evictions = new AtomicLong(), errors = new AtomicLong();
+
+    /**
+     * Cache entry: instrumented bytecode and IDs it refers to.
+     */
+    public static class Entry {
+
+        /** Spy contexts: IDs and (sdef name, method name, method signature, access) tuples. */
+        private final int[] ctxIds;
+        private final String[] ctxSdefs, ctxMethods, ctxSignatures;
+        private final int[] ctxAccess;
+
+        /** Tracer symbols. */
+        private final int[] symbolIds;
+        private final String[] symbolNames;
+
+        /** Tracer methods: ID and symbol IDs of class, method and signature (4 ints per method). */
+        private final int[] methods;
+
+        /** Instrumented bytecode (or null if instrumentation did not change class). */
+        private final byte[] bytecode;
+
+        public Entry(int[] ctxIds, String[] ctxSdefs, String[] ctxMethods, String[] ctxSignatures, int[] ctxAccess,
+                     int[] symbolIds, String[] symbolNames, int[] methods, byte[] bytecode) {
+            this.ctxIds = ctxIds;
+            this.ctxSdefs = ctxSdefs;
+            this.ctxMethods = ctxMethods;
+            this.ctxSignatures = ctxSignatures;
+            this.ctxAccess = ctxAccess;
+            this.symbolIds = symbolIds;
+            this.symbolNames = symbolNames;
+            this.methods = methods;
+            this.bytecode = bytecode;
+        }
+
+        public int getNContexts() {
+            return ctxIds.length;
+        }
+
+        public int getCtxId(int i) {
+            return ctxIds[i];
+        }
+
+        public String getCtxSdef(int i) {
+            return ctxSdefs[i];
+        }
+
+        public String getCtxMethod(int i) {
+            return ctxMethods[i];
+        }
+
+        public String getCtxSignature(int i) {
+            return ctxSignatures[i];
+        }
+
+        public int getCtxAccess(int i) {
+            return ctxAccess[i];
+        }
+
+        public int getNSymbols() {
+            return symbolIds.length;
+        }
+
+        public int getSymbolId(int i) {
+            return symbolIds[i];
+        }
+
+        public String getSymbolName(int i) {
+            return symbolNames[i];
+        }
+
+        public int getNMethods() {
+            return methods.length / 4;
+        }
+
+        /**
+         * Returns method definition: method ID, class symbol ID, method symbol ID, signature symbol ID.
+         */
+        public int getMethod(int i, int field) {
+            return methods[i * 4 + field];
+        }
+
+        public byte[] getBytecode() {
+            return bytecode;
+        }
+    }
+
+
+    /**
+     * Opens (or creates) bytecode cache.
+     *
+     * @param dir cache directory
+     * @param maxSize maximum size (bytes) of all cache entries
+     */
+    public BytecodeCache(File dir, long maxSize) {
+        this(dir, maxSize, "");
+    }
+
+
+    /**
+     * Opens (or creates) bytecode cache. All entries are dropped if cache format or agent build changed,
+     * as cached bytecode refers to agent classes (and code generated by agent) that might have changed.
+     *
+     * @param dir cache directory
+     * @param maxSize maximum size (bytes) of all cache entries
+     * @param agentBuild agent build identifier (see agentBuild())
+     */
+    public BytecodeCache(File dir, long maxSize, String agentBuild) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.version = agentBuild.length() > 0 ? VERSION + ":" + agentBuild : "" + VERSION;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            log.error("Cannot create bytecode cache directory: " + dir);
+        }
+
+        File vf = new File(dir, VERSION_FILE);
+        String v = vf.exists() ? readVersion(vf) : null;
+
+        if (!version.equals(v)) {
+            if (v != null) {
+                log.info("Bytecode cache format or agent build changed. Dropping all entries from " + dir);
+            }
+            clear();
+            writeVersion(vf);
+        }
+
+        for (File f : files()) {
+            size += f.length();
+        }
+
+        log.info("Bytecode cache opened: " + dir + " (size=" + size + ", max=" + maxSize + ")");
+    }
+
+
+    /**
+     * Computes agent build identifier: agent version and hash of classes that generate instrumented code
+     * or are called by it. This way cache gets invalidated also when agent is rebuilt without version change.
+     */
+    public static String agentBuild(String version) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (Class<?> c : BUILD_CLASSES) {
+                InputStream is = c.getResourceAsStream(c.getSimpleName() + ".class");
+                if (is == null) {
+                    throw new IOException("Cannot find class file of " + c.getName());
+                }
+                try {
+                    md.update(ZorkaUtil.slurp(is));
+                } finally {
+                    ZorkaUtil.close(is);
+                }
+            }
+            return version + "-" + ZorkaUtil.hex(md.digest()).substring(0, 16);
+        } catch (Exception e) {
+            log.warn("Cannot compute agent build identifier. Bytecode cache will be dropped.", e);
+            return version + "-unknown-" + System.currentTimeMillis();
+        }
+    }
+
+
+    private String readVersion(File vf) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(vf);
+            return new String(ZorkaUtil.slurp(is), "UTF-8").trim();
+        } catch (IOException e) {
+            log.error("Cannot read " + vf, e);
+            return null;
+        } finally {
+            ZorkaUtil.close(is);
+        }
+    }
+
+
+    private void writeVersion(File vf) {
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(vf);
+            os.write(version.getBytes("UTF-8"));
+        } catch (IOException e) {
+            log.error("Cannot write " + vf, e);
+        } finally {
+            ZorkaUtil.close(os);
+        }
+    }
+
+
+    /**
+     * Computes entry key (hash of fingerprint, class name and class bytecode).
+     */
+    public static String key(String fingerprint, String className, byte[] classBytes) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(fingerprint.getBytes("UTF-8"));
+            md.update((byte)0);
+            md.update(className.getBytes("UTF-8"));
+            md.update((byte)0);
+            md.update(classBytes);
+            return ZorkaUtil.hex(md.digest());
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot compute bytecode cache key", e);
+        }
+    }
+
+
+    private File file(String key) {
+        return new File(new File(dir, key.substring(0, 2)), key + SUFFIX);
+    }
+
+
+    /**
+     * Looks for cached instrumentation result.
+     *
+     * @return cache entry or null if not found (or unreadable)
+     */
+    public Entry get(String fingerprint, String className, byte[] classBytes) {
+        File f = file(key(fingerprint, className, classBytes));
+
+        if (!f.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        DataInputStream is = null;
+
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+
+            if (is.readInt() != MAGIC || !className.equals(is.readUTF())) {
+                throw new IOException("Invalid bytecode cache entry.");
+            }
+
+            int nctx = is.readInt();
+            int[] ctxIds = new int[nctx], ctxAccess = new int[nctx];
+            String[] ctxSdefs = new String[nctx], ctxMethods = new String[nctx], ctxSignatures = new String[nctx];
+            for (int i = 0; i < nctx; i++) {
+                ctxIds[i] = is.readInt();
+                ctxSdefs[i] = is.readUTF();
+                ctxMethods[i] = is.readUTF();
+                ctxSignatures[i] = is.readUTF();
+                ctxAccess[i] = is.readInt();
+            }
+
+            int nsym = is.readInt();
+            int[] symbolIds = new int[nsym];
+            String[] symbolNames = new String[nsym];
+            for (int i = 0; i < nsym; i++) {
+                symbolIds[i] = is.readInt();
+                symbolNames[i] = is.readUTF();
+            }
+
+            int[] methods = new int[is.readInt() * 4];
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = is.readInt();
+            }
+
+            int len = is.readInt();
+            byte[] bytecode = null;
+            if (len >= 0) {
+                bytecode = new byte[len];
+                is.readFully(bytecode);
+            }
+
+            hits.incrementAndGet();
+
+            if (!f.setLastModified(System.currentTimeMillis())) {
+                log.debug("Cannot touch bytecode cache entry: " + f);
+            }
+
+            return new Entry(ctxIds, ctxSdefs, ctxMethods, ctxSignatures, ctxAccess,
+                    symbolIds, symbolNames, methods, bytecode);
+        } catch (IOException e) {
+            log.warn("Error reading bytecode cache entry " + f + " (" + className + "). Removing it.", e);
+            errors.incrementAndGet();
+            ZorkaUtil.close(is);
+            is = null;
+            remove(f);
+            return null;
+        } finally {
+            ZorkaUtil.close(is);
+        }
+    }
+
+
+    /**
+     * Stores instrumentation result in cache.
+     */
+    public void put(String fingerprint, String className, byte[] classBytes, Entry entry) {
+        File f = file(key(fingerprint, className, classBytes));
+        File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+
+        if (!f.getParentFile().isDirectory() && !f.getParentFile().mkdirs()) {
+            log.error("Cannot create directory: " + f.getParentFile());
+            errors.incrementAndGet();
+            return;
+        }
+
+        DataOutputStream os = null;
+
+        try {
+            os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            os.writeInt(MAGIC);
+            os.writeUTF(className);
+
+            os.writeInt(entry.ctxIds.length);
+            for (int i = 0; i < entry.ctxIds.length; i++) {
+                os.writeInt(entry.ctxIds[i]);
+                os.writeUTF(entry.ctxSdefs[i]);
+                os.writeUTF(entry.ctxMethods[i]);
+                os.writeUTF(entry.ctxSignatures[i]);
+                os.writeInt(entry.ctxAccess[i]);
+            }
+
+            os.writeInt(entry.symbolIds.length);
+            for (int i = 0; i < entry.symbolIds.length; i++) {
+                os.writeInt(entry.symbolIds[i]);
+                os.writeUTF(entry.symbolNames[i]);
+            }
+
+            os.writeInt(entry.methods.length / 4);
+            for (int m : entry.methods) {
+                os.writeInt(m);
+            }
+
+            if (entry.bytecode != null) {
+                os.writeInt(entry.bytecode.length);
+                os.write(entry.bytecode);
+            } else {
+                os.writeInt(-1);
+            }
+
+            os.close();
+            os = null;
+
+            long len = tmp.length(), olen = f.length();
+
+            if (f.exists() && !f.delete() || !tmp.renameTo(f)) {
+                throw new IOException("Cannot rename " + tmp + " to " + f);
+            }
+
+            puts.incrementAndGet();
+
+            synchronized (this) {
+                size += len - olen;
+            }
+        } catch (IOException e) {
+            log.error("Error writing bytecode cache entry " + f + " (" + className + ")", e);
+            errors.incrementAndGet();
+            remove(tmp);
+        } finally {
+            ZorkaUtil.close(os);
+        }
+
+        if (size > maxSize) {
+            evict();
+        }
+    }
+
+
+    /**
+     * Removes least recently used entries, so cache size drops below 90% of limit.
+     */
+    private synchronized void evict() {
+        if (size <= maxSize) {
+            return;
+        }
+
+        List<File> files = files();
+        final long[] mtimes = new long[files.size()];
+        File[] fa = files.toArray(new File[files.size()]);
+
+        for (int i = 0; i < fa.length; i++) {
+            mtimes[i] = fa[i].lastModified();
+        }
+
+        Integer[] idx = new Integer[fa.length];
+        for (int i = 0; i < idx.length; i++) {
+            idx[i] = i;
+        }
+
+        Arrays.sort(idx, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return mtimes[a] < mtimes[b] ? -1 : mtimes[a] > mtimes[b] ? 1 : 0;
+            }
+        });
+
+        long sz = 0;
+        for (File f : fa) {
+            sz += f.length();
+        }
+
+        for (int i = 0; i < idx.length && sz > maxSize * 9 / 10; i++) {
+            File f = fa[idx[i]];
+            long len = f.length();
+            if (remove(f)) {
+                sz -= len;
+                evictions.incrementAndGet();
+            }
+        }
+
+        size = sz;
+    }
+
+
+    private List<File> files() {
+        List<File> rslt = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File d : subdirs) {
+                File[] fs = d.isDirectory() ? d.listFiles() : null;
+                if (fs != null) {
+                    for (File f : fs) {
+                        if (f.getName().endsWith(SUFFIX)) {
+                            rslt.add(f);
+                        }
+                    }
+                }
+            }
+        }
+        return rslt;
+    }
+
+
+    private boolean remove(File f) {
+        if (f.exists() && !f.delete()) {
+            log.warn("Cannot remove file: " + f);
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Removes all entries from cache.
+     */
+    public synchronized void clear() {
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File d : subdirs) {
+                if (d.isDirectory()) {
+                    File[] fs = d.listFiles();
+                    if (fs != null) {
+                        for (File f : fs) {
+                            remove(f);
+                        }
+                    }
+                    remove(d);
+                }
+            }
+        }
+        size = 0;
+    }
+
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getPuts() {
+        return puts.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+}
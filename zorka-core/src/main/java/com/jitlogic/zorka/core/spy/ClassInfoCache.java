@@ -0,0 +1,250 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of class information used by SpyClassResolver. Entries are keyed by class loader
+ * (compared by identity and referenced weakly, so cache does not keep application class loaders
+ * alive) and class name. Classes that cannot be found are cached as well (negative entries).
+ *
+ * Lookups are lock-free. Insertions are synchronized and evict entries using CLOCK algorithm
+ * (second chance given to entries that have been read since last pass of clock hand). Entries
+ * of garbage collected class loaders are purged on insertions.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ClassInfoCache {
+
+    /** Marks classes that could not be found. */
+    public static final CachedClassInfo NOT_FOUND = new CachedClassInfo(0, "<not found>", null, new String[0]);
+
+    private final ConcurrentHashMap<Key,Entry> map = new ConcurrentHashMap<Key, Entry>();
+
+    private final ReferenceQueue<ClassLoader> refQueue = new ReferenceQueue<ClassLoader>();
+
+    /** Clock ring (guarded by this). */
+    private final Entry[] ring;
+
+    private int hand, used;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private volatile long evictions, purges;
+
+    /**
+     * Cache key. Stored keys reference class loader weakly, lookup keys reference it directly.
+     */
+    private static class Key {
+
+        private final Object loader;
+
+        private final String name;
+
+        private final int hash;
+
+        private Key(ClassLoader loader, String name) {
+            this.loader = loader;
+            this.name = name;
+            this.hash = System.identityHashCode(loader) * 31 + name.hashCode();
+        }
+
+        private Key(Key key, ReferenceQueue<ClassLoader> queue) {
+            this.loader = key.loader != null ? new LoaderRef((ClassLoader)key.loader, queue, this) : null;
+            this.name = key.name;
+            this.hash = key.hash;
+        }
+
+        private Object loader() {
+            return loader instanceof LoaderRef ? ((LoaderRef)loader).get() : loader;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)obj;
+            if (hash != k.hash || !name.equals(k.name)) {
+                return false;
+            }
+            Object l = loader();
+            return l == k.loader() && (l != null || (loader == null && k.loader == null));
+        }
+    }
+
+    private static class LoaderRef extends WeakReference<ClassLoader> {
+
+        private final Key key;
+
+        private LoaderRef(ClassLoader loader, ReferenceQueue<ClassLoader> queue, Key key) {
+            super(loader, queue);
+            this.key = key;
+        }
+    }
+
+    private static class Entry {
+
+        private final Key key;
+
+        private final CachedClassInfo info;
+
+        /** Set on reads, cleared by clock hand. */
+        private volatile boolean referenced;
+
+        private Entry(Key key, CachedClassInfo info) {
+            this.key = key;
+            this.info = info;
+        }
+    }
+
+
+    /**
+     * Creates cache.
+     *
+     * @param maxSize maximum number of cached entries
+     */
+    public ClassInfoCache(int maxSize) {
+        ring = new Entry[Math.max(maxSize, 16)];
+    }
+
+
+    /**
+     * Looks for class information.
+     *
+     * @return class info, NOT_FOUND if class is known to be missing or null if class is not in cache
+     */
+    public CachedClassInfo get(ClassLoader loader, String name) {
+        Entry e = map.get(new Key(loader, name));
+
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (!e.referenced) {
+            e.referenced = true;
+        }
+
+        hits.incrementAndGet();
+
+        return e.info;
+    }
+
+
+    /**
+     * Adds class information to cache (use NOT_FOUND for missing classes). Evicts entries if needed.
+     */
+    public synchronized void put(ClassLoader loader, String name, CachedClassInfo info) {
+        purge();
+
+        Key key = new Key(new Key(loader, name), refQueue);
+        Entry entry = new Entry(key, info);
+
+        if (map.putIfAbsent(key, entry) != null) {
+            return;
+        }
+
+        if (used < ring.length) {
+            ring[used++] = entry;
+            return;
+        }
+
+        for (;;) {
+            Entry e = ring[hand];
+            // Entries already removed from map (purged) are reused first
+            if (e.referenced && map.get(e.key) == e) {
+                e.referenced = false;
+                hand = (hand + 1) % ring.length;
+            } else {
+                if (map.remove(e.key, e)) {
+                    evictions++;
+                }
+                ring[hand] = entry;
+                hand = (hand + 1) % ring.length;
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Removes entries of garbage collected class loaders.
+     */
+    private void purge() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = refQueue.poll()) != null) {
+            // Keys of collected loaders are equal only to themselves, so no other entry can be removed here.
+            if (map.remove(((LoaderRef)ref).key) != null) {
+                purges++;
+            }
+        }
+    }
+
+
+    public synchronized void clear() {
+        map.clear();
+        for (int i = 0; i < used; i++) {
+            ring[i] = null;
+        }
+        used = 0;
+        hand = 0;
+    }
+
+
+    public int size() {
+        return map.size();
+    }
+
+
+    public int getMaxSize() {
+        return ring.length;
+    }
+
+
+    public long getHits() {
+        return hits.get();
+    }
+
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+
+    public long getPurges() {
+        return purges;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+
+/**
+ * Compiled class name matching for a list of matcher sets (eg. matcher sets of all spy definitions).
+ * Class name patterns of all matchers are compiled into single automaton, so class name is scanned
+ * only once and matching sets are found without iterating over all matchers.
+ *
+ * Semantics are the same as in PatternMatcherSet.classMatch(String): in each matcher set first
+ * (in priority order) matcher that matches class name decides; matchers looking for annotations,
+ * interfaces or superclasses match any class name, excluding matchers result in negative match
+ * unless they exclude only selected methods.
+ *
+ * Matchers looking for (literal) class or method annotations can be narrowed down further if
+ * class bytecode is available: annotation descriptors must be present in class constant pool,
+ * so classes not referencing any of them are skipped without parsing whole class. Interface and
+ * superclass matchers cannot be narrowed this way as they also match inherited types.
+ *
+ * Index is immutable, so it can be used by many threads without locking.
+ *
+ * @param <T> type of objects associated with matcher sets
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ClassMatchIndex<T> {
+
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int ALWAYS_FLAGS = BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION | BY_SUPERCLASS;
+
+    private final List<T> owners;
+
+    private final PatternAutomaton automaton;
+
+    /** Matcher set (index in owners list) each pattern belongs to. */
+    private final int[] patternOwners;
+
+    /** Result of class match if matcher of given pattern decides. */
+    private final boolean[] patternResults;
+
+    /** Position of first matcher matching any class name in each matcher set (or NONE). */
+    private final int[] alwaysPositions;
+
+    /** Class match result if matcher matching any class name decides (for each matcher set). */
+    private final boolean[] alwaysResults;
+
+    /** Indexes of matcher sets containing matchers that match any class name. */
+    private final int[] alwaysOwners;
+
+    /**
+     * Annotation descriptors (at least one of them) that must be referenced by class for matchers
+     * matching any class name to apply (for each matcher set). Null if no such condition exists.
+     */
+    private final String[][] alwaysKeys;
+
+    /** All annotation descriptors used in alwaysKeys (in internal form, with slashes). */
+    private final Set<String> keys = new HashSet<String>();
+
+    /** Maximum length of annotation descriptors. */
+    private int maxKeyLength;
+
+    /**
+     * Creates index.
+     *
+     * @param owners objects associated with matcher sets (eg. spy definitions)
+     * @param matcherSets matcher sets (sorted by priority, as in PatternMatcherSet)
+     */
+    public ClassMatchIndex(List<T> owners, List<List<SpyMatcher>> matcherSets) {
+        this.owners = owners;
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<Integer> pOwners = new ArrayList<Integer>();
+        List<Boolean> pResults = new ArrayList<Boolean>();
+        List<Integer> aOwners = new ArrayList<Integer>();
+
+        alwaysPositions = new int[owners.size()];
+        alwaysResults = new boolean[owners.size()];
+        alwaysKeys = new String[owners.size()][];
+
+        for (int i = 0; i < owners.size(); i++) {
+            alwaysPositions[i] = NONE;
+            List<SpyMatcher> matchers = matcherSets.get(i);
+            for (int pos = 0; pos < matchers.size(); pos++) {
+                SpyMatcher m = matchers.get(pos);
+                if (m.hasFlags(ALWAYS_FLAGS)) {
+                    alwaysPositions[i] = pos;
+                    alwaysResults[i] = classMatchResult(m);
+                    alwaysKeys[i] = annotationKeys(matchers, pos);
+                    aOwners.add(i);
+                    break;
+                }
+                if (m.hasFlags(BY_CLASS_NAME)) {
+                    patterns.add(m.getClassPattern());
+                    pOwners.add(i);
+                    pResults.add(classMatchResult(m));
+                }
+            }
+        }
+
+        automaton = new PatternAutomaton(patterns);
+
+        patternOwners = new int[patterns.size()];
+        patternResults = new boolean[patterns.size()];
+
+        for (int i = 0; i < patternOwners.length; i++) {
+            patternOwners[i] = pOwners.get(i);
+            patternResults[i] = pResults.get(i);
+        }
+
+        alwaysOwners = new int[aOwners.size()];
+        for (int i = 0; i < alwaysOwners.length; i++) {
+            alwaysOwners[i] = aOwners.get(i);
+        }
+    }
+
+
+    /**
+     * Returns annotation descriptors required by matchers starting from given position or null
+     * if any of those matchers can match class not referencing annotations.
+     */
+    private String[] annotationKeys(List<SpyMatcher> matchers, int pos) {
+        List<String> rslt = new ArrayList<String>();
+
+        for (int i = pos; i < matchers.size(); i++) {
+            SpyMatcher m = matchers.get(i);
+
+            if (m.hasFlags(EXCLUDE_MATCH)) {
+                // Excluding matchers cannot cause class to be instrumented
+                continue;
+            }
+
+            String key = null;
+
+            if (m.hasFlags(BY_CLASS_ANNOTATION)) {
+                key = PatternAutomaton.literal(m.getClassPattern());
+            } else if (m.hasFlags(BY_METHOD_ANNOTATION)) {
+                key = PatternAutomaton.literal(m.getMethodPattern());
+            }
+
+            if (key == null || key.length() < 3 || key.charAt(0) != 'L' || !key.endsWith(";")) {
+                return null;
+            }
+
+            rslt.add(key.replace('.', '/'));
+        }
+
+        if (rslt.isEmpty()) {
+            return null;
+        }
+
+        for (String key : rslt) {
+            keys.add(key);
+            maxKeyLength = Math.max(maxKeyLength, key.length());
+        }
+
+        return rslt.toArray(new String[rslt.size()]);
+    }
+
+
+    /**
+     * Returns class match result when given matcher decides.
+     */
+    public static boolean classMatchResult(SpyMatcher matcher) {
+        if (matcher.hasFlags(EXCLUDE_MATCH)) {
+            return !"[a-zA-Z0-9_]+".equals(matcher.getMethodPattern().toString());
+        } else {
+            return true;
+        }
+    }
+
+
+    /**
+     * Finds matcher sets matching given class name and adds associated objects to result list.
+     * Objects are added in the same order as in owners list passed to constructor.
+     *
+     * @param className class name
+     * @param result result list
+     */
+    public void match(String className, List<T> result) {
+        match(className, null, result);
+    }
+
+
+    /**
+     * Finds matcher sets matching given class and adds associated objects to result list.
+     * Objects are added in the same order as in owners list passed to constructor.
+     *
+     * @param className class name
+     * @param classBytes class bytecode (if null, annotation references are not checked)
+     * @param result result list
+     */
+    public void match(String className, byte[] classBytes, List<T> result) {
+        int[] ids = automaton.match(className);
+
+        Set<String> refs = classBytes != null && !keys.isEmpty() ? annotationRefs(classBytes) : null;
+
+        // Pattern IDs are grouped by owner and sorted by position, so first pattern of each owner decides.
+        int a = 0, lastOwner = -1;
+
+        for (int id : ids) {
+            int owner = patternOwners[id];
+            if (owner == lastOwner) {
+                continue;
+            }
+            lastOwner = owner;
+
+            // Owners (with always matching matchers) not having any pattern matches
+            while (a < alwaysOwners.length && alwaysOwners[a] < owner) {
+                if (acceptAlways(alwaysOwners[a], refs)) {
+                    result.add(owners.get(alwaysOwners[a]));
+                }
+                a++;
+            }
+
+            boolean r = patternResults[id];
+
+            if (a < alwaysOwners.length && alwaysOwners[a] == owner) {
+                // Pattern position is always lower than position of always matching matcher
+                a++;
+            }
+
+            if (r) {
+                result.add(owners.get(owner));
+            }
+        }
+
+        while (a < alwaysOwners.length) {
+            if (acceptAlways(alwaysOwners[a], refs)) {
+                result.add(owners.get(alwaysOwners[a]));
+            }
+            a++;
+        }
+    }
+
+
+    private boolean acceptAlways(int owner, Set<String> refs) {
+        if (!alwaysResults[owner]) {
+            return false;
+        }
+
+        String[] ks = alwaysKeys[owner];
+
+        if (ks == null || refs == null) {
+            return true;
+        }
+
+        for (String k : ks) {
+            if (refs.contains(k)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Scans class constant pool for annotation descriptors used as keys.
+     *
+     * @return set of found descriptors or null if class file cannot be parsed
+     */
+    private Set<String> annotationRefs(byte[] b) {
+        Set<String> rslt = new HashSet<String>();
+
+        try {
+            int n = u2(b, 8), pos = 10;
+
+            for (int i = 1; i < n; i++) {
+                switch (b[pos]) {
+                    case 1: { // UTF8
+                        int len = u2(b, pos + 1), offs = pos + 3;
+                        if (len >= 3 && len <= maxKeyLength && b[offs] == 'L' && b[offs+len-1] == ';') {
+                            char[] cs = new char[len];
+                            boolean ascii = true;
+                            for (int j = 0; j < len; j++) {
+                                cs[j] = (char)(b[offs+j] & 0xff);
+                                ascii &= b[offs+j] >= 0;
+                            }
+                            String s = ascii ? new String(cs) : new String(b, offs, len, UTF8);
+                            if (keys.contains(s)) {
+                                rslt.add(s);
+                            }
+                        }
+                        pos = offs + len;
+                        break;
+                    }
+                    case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                        pos += 3;
+                        break;
+                    case 15: // MethodHandle
+                        pos += 4;
+                        break;
+                    case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                        pos += 5;
+                        break;
+                    case 5: case 6: // Long, Double (take two slots)
+                        pos += 9;
+                        i++;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+
+        return rslt;
+    }
+
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos+1] & 0xff);
+    }
+
+
+    /**
+     * Checks if single matcher set (first one) matches given class name.
+     */
+    public boolean matches(String className) {
+        int[] ids = automaton.match(className);
+
+        if (ids.length > 0) {
+            return patternResults[ids[0]];
+        }
+
+        return alwaysPositions.length > 0 && alwaysPositions[0] != NONE && alwaysResults[0];
+    }
+
+
+    public List<T> getOwners() {
+        return owners;
+    }
+
+
+    public PatternAutomaton getAutomaton() {
+        return automaton;
+    }
+}
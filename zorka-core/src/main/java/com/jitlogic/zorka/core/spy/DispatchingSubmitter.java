@@ -24,7 +24,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import static com.jitlogic.zorka.core.spy.SpyLib.*;
 
@@ -47,13 +46,61 @@ public class DispatchingSubmitter implements SpySubmitter {
     private SpyClassTransformer transformer;
 
     /**
-     * Submission stack is used to associate results from method entry probes with results from return/error probes.
+     * Maximum number of spare records kept by each thread.
      */
-    private ThreadLocal<Stack<Map<String, Object>>> submissionStack =
-            new ThreadLocal<Stack<Map<String, Object>>>() {
+    private static final int MAX_FREE_RECORDS = 16;
+
+    /**
+     * Per-thread submission state: submission stack is used to associate results from method entry probes
+     * with results from return/error probes, free records list contains records ready to reuse.
+     */
+    private static class SubmitState {
+
+        private Map<String, Object>[] stack = new Map[16];
+        private int stackPos;
+
+        private SpyRecord[] free = new SpyRecord[MAX_FREE_RECORDS];
+        private int nfree;
+
+        private void push(Map<String, Object> record) {
+            if (stackPos == stack.length) {
+                stack = ZorkaUtil.clipArray(stack, stack.length * 2);
+            }
+            stack[stackPos++] = record;
+        }
+
+        private Map<String, Object> pop() {
+            Map<String, Object> record = stack[--stackPos];
+            stack[stackPos] = null;
+            return record;
+        }
+
+        private SpyRecord record(SpyContext ctx) {
+            SpyRecordLayout layout = ctx.getSpyDefinition().getLayout();
+            if (nfree > 0) {
+                SpyRecord record = free[--nfree];
+                free[nfree] = null;
+                record.reset(layout, ctx);
+                return record;
+            }
+            return new SpyRecord(layout, ctx);
+        }
+
+        private void recycle(Map<String, Object> record, SpyDefinition sdef) {
+            if (record instanceof SpyRecord && nfree < free.length) {
+                SpyRecordLayout layout = ((SpyRecord) record).getLayout();
+                if (layout.isRecyclable() && layout == sdef.getLayout()) {
+                    free[nfree++] = (SpyRecord) record;
+                }
+            }
+        }
+    }
+
+    private ThreadLocal<SubmitState> submitState =
+            new ThreadLocal<SubmitState>() {
                 @Override
-                public Stack<Map<String, Object>> initialValue() {
-                    return new Stack<Map<String, Object>>();
+                public SubmitState initialValue() {
+                    return new SubmitState();
                 }
             };
 
@@ -82,31 +129,38 @@ public class DispatchingSubmitter implements SpySubmitter {
             return;
         }
 
-        Map<String, Object> record = getRecord(stage, ctx, submitFlags, vals);
+        SubmitState state = submitState.get();
+
+        Map<String, Object> record = getRecord(state, stage, ctx, submitFlags, vals);
 
         SpyDefinition sdef = ctx.getSpyDefinition();
 
-        if (null == (record = process(stage, sdef, record))) {
+        Map<String, Object> rslt = process(stage, sdef, record);
+
+        if (rslt == null) {
+            state.recycle(record, sdef);
             return;
         }
 
         if (submitFlags == SF_NONE) {
-            submissionStack.get().push(record);
+            state.push(rslt);
             return;
         }
 
         AgentDiagnostics.inc(AgentDiagnostics.SPY_SUBMISSIONS);
 
         if (sdef.getProcessors(ON_SUBMIT).size() > 0) {
-            process(ON_SUBMIT, sdef, record);
+            process(ON_SUBMIT, sdef, rslt);
         }
 
+        state.recycle(record, sdef);
     }
 
 
     /**
      * Retrieves or creates spy record for probe submission purposes.
      *
+     * @param state       submission state of current thread
      * @param stage       method bytecode point where probe has been installed (entry, return, error)
      * @param ctx         spy context associated with submitting probe
      * @param submitFlags controls whether SUBMIT chain should be immediately processed or record should be
@@ -114,49 +168,66 @@ public class DispatchingSubmitter implements SpySubmitter {
      * @param vals        submitted values
      * @return spy record
      */
-    private Map<String, Object> getRecord(int stage, SpyContext ctx, int submitFlags, Object[] vals) {
+    private Map<String, Object> getRecord(SubmitState state, int stage, SpyContext ctx, int submitFlags, Object[] vals) {
 
         Map<String, Object> record;
 
         switch (submitFlags) {
             case SF_IMMEDIATE:
             case SF_NONE:
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = state.record(ctx);
                 break;
             case SF_FLUSH:
-                Stack<Map<String, Object>> stack = submissionStack.get();
-                if (stack.size() > 0) {
-                    record = stack.pop();
+                if (state.stackPos > 0) {
+                    record = state.pop();
                     // TODO check if record belongs to proper frame, warn if not
                 } else {
                     log.error("Submission thread local stack mismatch (ctx=" + ctx
                             + ", stage=" + stage + ", submitFlags=" + submitFlags + ")");
-                    record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                    record = state.record(ctx);
                 }
                 break;
             default:
                 log.error("Illegal submission flag: " + submitFlags + ". Creating empty records.");
-                record = ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0);
+                record = state.record(ctx);
                 break;
         }
 
         SpyContext context = ((SpyContext) record.get(".CTX"));
-        List<SpyProbe> probes = context.getSpyDefinition().getProbes(stage);
+        SpyDefinition sdef = context.getSpyDefinition();
 
         // TODO check if vals.length == probes.size() and log something here ...
 
-        for (int i = 0; i < probes.size(); i++) {
-            SpyProbe probe = probes.get(i);
-            record.put(probe.getDstField(), vals[i]);
+        if (record instanceof SpyRecord && ((SpyRecord) record).getLayout() == sdef.getLayout()) {
+            SpyRecord r = (SpyRecord) record;
+            int[] slots = r.getLayout().getProbeSlots(stage);
+            for (int i = 0; i < slots.length; i++) {
+                r.set(slots[i], vals[i]);
+            }
+        } else {
+            List<SpyProbe> probes = sdef.getProbes(stage);
+            for (int i = 0; i < probes.size(); i++) {
+                SpyProbe probe = probes.get(i);
+                record.put(probe.getDstField(), vals[i]);
+            }
         }
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
+        markStage(record, stage);
 
         return record;
     }
 
 
+    private static void markStage(Map<String, Object> record, int stage) {
+        if (record instanceof SpyRecord) {
+            ((SpyRecord) record).markStage(stage);
+        } else {
+            record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
+            record.put(".STAGE", stage);
+        }
+    }
+
+
     /**
      * Processes specified processing chain of sdef in record
      *
@@ -168,16 +239,21 @@ public class DispatchingSubmitter implements SpySubmitter {
     private Map<String, Object> process(int stage, SpyDefinition sdef, Map<String, Object> record) {
         List<SpyProcessor> processors = sdef.getProcessors(stage);
 
-        record.put(".STAGES", (Integer) record.get(".STAGES") | (1 << stage));
-        record.put(".STAGE", stage);
+        markStage(record, stage);
 
         if (log.isDebugEnabled()) {
             log.debug("Processing records (stage=" + stage + ")");
         }
 
-        for (SpyProcessor processor : processors) {
+        for (int i = 0; i < processors.size(); i++) {
+            SpyProcessor processor = processors.get(i);
             try {
-                if (null == (record = processor.process(record))) {
+                if (processor instanceof SpyRecordProcessor && record instanceof SpyRecord) {
+                    record = ((SpyRecordProcessor) processor).process((SpyRecord) record);
+                } else {
+                    record = processor.process(record);
+                }
+                if (null == record) {
                     break;
                 }
             } catch (Throwable e) {
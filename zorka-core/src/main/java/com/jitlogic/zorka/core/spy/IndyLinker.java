@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.core.spy;
+
+import com.jitlogic.zorka.core.spy.tuner.ZtxMatcherSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Bootstrap and linker for tracer probes emitted as invokedynamic instructions (in classes
+ * of version 51 and above). All call sites of a given kind (enter, return, error) and method
+ * share one mutable call site, so probes of a method can be switched on and off without
+ * retransforming its class: when tracer is not set, all probes are linked to no-op; when method
+ * is excluded by tracer tuner, probes only mark recursive calls, while return and error probes pop
+ * tracer stack only when its top frame has been entered by the same call of this method (so frames
+ * entered before relinking are still closed properly, also when method is recursive).
+ *
+ * This class refers to java.lang.invoke, so it cannot be touched in JVMs older than 1.7. It is
+ * safe as long as it is only used after MainSubmitter.isIndyLinked() returns true.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class IndyLinker {
+
+    private static final Logger log = LoggerFactory.getLogger(IndyLinker.class);
+
+    public static final String CLASS = "com/jitlogic/zorka/core/spy/IndyLinker";
+
+    public static final String BOOTSTRAP_METHOD = "bootstrap";
+    public static final String BOOTSTRAP_SIGNATURE = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+            + "Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;";
+
+    public static final String ENTER_METHOD = "traceEnter";
+    public static final String ENTER_SIGNATURE = "()V";
+    public static final String RETURN_METHOD = "traceReturn";
+    public static final String RETURN_SIGNATURE = "()V";
+    public static final String ERROR_METHOD = "traceError";
+    public static final String ERROR_SIGNATURE = "(Ljava/lang/Throwable;)V";
+
+    private static final int ENTER = 0, RETURN = 1, ERROR = 2;
+
+    private static final MethodHandle TRACE_ENTER, TRACE_RETURN, TRACE_ERROR,
+            TRACE_ENTER_IF, TRACE_RETURN_IF, TRACE_ERROR_IF;
+
+    private static final MethodHandle NOP, NOP_ERROR;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            TRACE_ENTER = lookup.findStatic(MainSubmitter.class, "traceEnter", methodType(void.class, int.class));
+            TRACE_RETURN = lookup.findStatic(MainSubmitter.class, "traceReturn", methodType(void.class));
+            TRACE_ERROR = lookup.findStatic(MainSubmitter.class, "traceError",
+                    methodType(void.class, Throwable.class));
+            TRACE_ENTER_IF = lookup.findStatic(MainSubmitter.class, "traceEnterIf",
+                    methodType(void.class, int.class));
+            TRACE_RETURN_IF = lookup.findStatic(MainSubmitter.class, "traceReturnIf",
+                    methodType(void.class, int.class));
+            TRACE_ERROR_IF = lookup.findStatic(MainSubmitter.class, "traceErrorIf",
+                    methodType(void.class, int.class, Throwable.class));
+            NOP = lookup.findStatic(IndyLinker.class, "nop", methodType(void.class));
+            NOP_ERROR = MethodHandles.dropArguments(NOP, 0, Throwable.class);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /** Call sites by method ID: [ENTER, RETURN, ERROR] */
+    private static final Map<Integer,MutableCallSite[]> sites = new HashMap<Integer, MutableCallSite[]>();
+
+    private IndyLinker() {
+    }
+
+    private static void nop() {
+    }
+
+    /**
+     * Bootstrap method for tracer probes.
+     *
+     * @param lookup caller lookup (unused)
+     * @param name probe type (traceEnter, traceReturn, traceError)
+     * @param type call site type
+     * @param mid method ID
+     * @return call site
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, int mid) {
+        int kind = ENTER_METHOD.equals(name) ? ENTER : RETURN_METHOD.equals(name) ? RETURN : ERROR;
+
+        synchronized (IndyLinker.class) {
+            MutableCallSite[] s = sites.get(mid);
+
+            if (s == null) {
+                s = new MutableCallSite[3];
+                sites.put(mid, s);
+            }
+
+            if (s[kind] == null) {
+                s[kind] = new MutableCallSite(type);
+                s[kind].setTarget(target(kind, mid, MainSubmitter.getTracer()));
+            }
+
+            MainSubmitter.markIndyLinked();
+
+            return s[kind];
+        }
+    }
+
+    private static MethodHandle target(int kind, int mid, Tracer tracer) {
+        if (tracer == null) {
+            return kind == ERROR ? NOP_ERROR : NOP;
+        }
+
+        ZtxMatcherSet matcherSet = tracer.getMatcherSet();
+
+        if (matcherSet != null && matcherSet.isExcluded(mid)) {
+            switch (kind) {
+                case ENTER:
+                    return MethodHandles.insertArguments(TRACE_ENTER_IF, 0, mid);
+                case RETURN:
+                    return MethodHandles.insertArguments(TRACE_RETURN_IF, 0, mid);
+                default:
+                    return MethodHandles.insertArguments(TRACE_ERROR_IF, 0, mid);
+            }
+        }
+
+        switch (kind) {
+            case ENTER:
+                return MethodHandles.insertArguments(TRACE_ENTER, 0, mid);
+            case RETURN:
+                return TRACE_RETURN;
+            default:
+                return TRACE_ERROR;
+        }
+    }
+
+    private static void relink(int mid, MutableCallSite[] s, Tracer tracer, List<MutableCallSite> changed) {
+        for (int kind = 0; kind < s.length; kind++) {
+            if (s[kind] != null) {
+                s[kind].setTarget(target(kind, mid, tracer));
+                changed.add(s[kind]);
+            }
+        }
+    }
+
+    private static void sync(List<MutableCallSite> changed) {
+        if (!changed.isEmpty()) {
+            MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+        }
+    }
+
+    /**
+     * Relinks probes of given method according to current tracer state and exclusions.
+     *
+     * @param mid method ID
+     * @return true if method has probes linked via invokedynamic, false otherwise
+     */
+    public static synchronized boolean relink(int mid) {
+        MutableCallSite[] s = sites.get(mid);
+
+        if (s == null) {
+            return false;
+        }
+
+        List<MutableCallSite> changed = new ArrayList<MutableCallSite>(3);
+        relink(mid, s, MainSubmitter.getTracer(), changed);
+        sync(changed);
+
+        return true;
+    }
+
+    /**
+     * Relinks probes of all methods (eg. after tracer has been set or removed).
+     */
+    public static synchronized void relinkAll() {
+        Tracer tracer = MainSubmitter.getTracer();
+        List<MutableCallSite> changed = new ArrayList<MutableCallSite>(sites.size() * 3);
+
+        for (Map.Entry<Integer,MutableCallSite[]> e : sites.entrySet()) {
+            relink(e.getKey(), e.getValue(), tracer, changed);
+        }
+
+        sync(changed);
+
+        log.debug("Relinked " + changed.size() + " tracer call sites.");
+    }
+}
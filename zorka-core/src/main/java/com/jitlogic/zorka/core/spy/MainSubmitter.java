@@ -19,6 +19,7 @@ package com.jitlogic.zorka.core.spy;
 
 import bsh.EvalError;
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
 import com.jitlogic.zorka.core.spy.stracer.STracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +44,11 @@ public class MainSubmitter {
 
     private static volatile Tracer t;
 
+    /**
+     * True if any tracer probe has been linked via invokedynamic (see IndyLinker).
+     */
+    private static volatile boolean indyLinked;
+
 
     /**
      * Thread local
@@ -179,6 +185,71 @@ public class MainSubmitter {
     }
 
 
+    /**
+     * This method is called by (invokedynamic) tracer probes of excluded methods at method entry.
+     * Nothing is traced, but recursive calls are marked if method frame (entered before method
+     * was excluded) is at the top of tracer stack, so their exits won't close that frame.
+     *
+     * @param mid method def id
+     */
+    public static void traceEnterIf(int mid) {
+        if (t != null) {
+            try {
+                t.getHandler().untracedEnter(mid);
+            } catch (Throwable e) {
+                // This is special case. We must catch everything going out of agent, even OOM errors.
+                log.debug("Error executing traceEnter", e);
+                AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by (invokedynamic) tracer probes of excluded methods at method exit.
+     * Tracer frame is closed only if it has been entered by this very call of given method, that is,
+     * before method was excluded (see traceEnterIf()).
+     *
+     * @param mid method def id
+     */
+    public static void traceReturnIf(int mid) {
+        if (t != null) {
+            try {
+                TraceHandler handler = t.getHandler();
+                if (handler.untracedReturn(mid)) {
+                    handler.traceReturn(System.nanoTime());
+                }
+            } catch (Throwable e) {
+                // This is special case. We must catch everything going out of agent, even OOM errors.
+                log.debug("Error executing traceReturn", e);
+                AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
+            }
+        }
+    }
+
+
+    /**
+     * This method is called by (invokedynamic) tracer probes of excluded methods at method error point.
+     *
+     * @param mid method def id
+     * @param exception exception thrown
+     */
+    public static void traceErrorIf(int mid, Throwable exception) {
+        if (t != null) {
+            try {
+                TraceHandler handler = t.getHandler();
+                if (handler.untracedReturn(mid)) {
+                    handler.traceError(exception, System.nanoTime());
+                }
+            } catch (Throwable e) {
+                // This is special case. We must catch everything going out of agent, even OOM errors.
+                log.debug("Error executing traceError", e);
+                AgentDiagnostics.inc(AgentDiagnostics.TRACER_ERRORS);
+            }
+        }
+    }
+
+
     /**
      * Sets backing spy submitter
      *
@@ -190,6 +261,21 @@ public class MainSubmitter {
 
     public synchronized static void setTracer(Tracer tracer) {
         t = tracer;
+        if (indyLinked) {
+            IndyLinker.relinkAll();
+        }
+    }
+
+    static Tracer getTracer() {
+        return t;
+    }
+
+    static void markIndyLinked() {
+        indyLinked = true;
+    }
+
+    public static boolean isIndyLinked() {
+        return indyLinked;
     }
 
     public synchronized static boolean isStreamingTracer() {
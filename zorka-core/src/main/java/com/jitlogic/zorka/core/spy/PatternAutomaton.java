@@ -0,0 +1,613 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Deterministic automaton matching symbol names (class names, method names etc.) against
+ * many patterns at once. Patterns generated by SpyMatcher (literal strings, ant-style masks)
+ * are compiled into single DFA, so checking a name requires only one pass over its characters,
+ * regardless of number of patterns. Literal prefixes (typically package names) form a trie in
+ * this DFA and names that cannot match any pattern are rejected as soon as their prefix diverges.
+ * If combined DFA grows too big (many patterns with wildcards in the middle), pattern list is
+ * split and each part is compiled into separate DFA.
+ *
+ * Supported regular expression subset: literal and escaped characters, '.', character class
+ * [a-zA-Z0-9_] and '+', '*' quantifiers. Patterns using other constructs (eg. user supplied
+ * regular expressions) are matched by java regex engine as fallback.
+ *
+ * Automaton is immutable and thus can be safely used by many threads at once.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class PatternAutomaton {
+
+    /** Maximum number of states of single DFA. If exceeded, pattern list is split into smaller parts. */
+    public static final int MAX_STATES = 4096;
+
+    private static final int[] NONE = new int[0];
+
+    /** Character classes of NFA transitions. */
+    private static final int CC_LIT = 0, CC_WORD = 1, CC_ANY = 2;
+
+    /** Quantifiers of NFA transitions. */
+    private static final int Q_ONE = 0, Q_PLUS = 1, Q_STAR = 2;
+
+    private static final String WORD_CLASS = "[a-zA-Z0-9_]";
+
+    /** Compiled DFAs. Each one covers contiguous range of pattern IDs. */
+    private final Dfa[] dfas;
+
+    /** Patterns that cannot be compiled, indexed by pattern ID (null for compiled ones). */
+    private final Pattern[] fallbacks;
+
+    /** IDs of patterns that cannot be compiled. */
+    private final int[] fallbackIds;
+
+    /**
+     * Compiled pattern: sequence of tokens (character class, literal character, quantifier).
+     */
+    private static class Seq {
+        final int id;
+        final int[] ccs, chars, qs;
+        int base;
+
+        Seq(int id, int[] ccs, int[] chars, int[] qs) {
+            this.id = id;
+            this.ccs = ccs;
+            this.chars = chars;
+            this.qs = qs;
+        }
+
+        int length() {
+            return ccs.length;
+        }
+    }
+
+
+    /**
+     * Compiled DFA: transition tables and accepted patterns for each state.
+     */
+    private static class Dfa {
+
+        /** Literal characters with explicit transitions (sorted) for each state. */
+        final char[][] keys;
+
+        /** Target states of explicit transitions for each state. */
+        final int[][] targets;
+
+        /** Transitions for word characters not listed in keys (for each state). */
+        final int[] wordNext;
+
+        /** Transitions for other characters not listed in keys (for each state). */
+        final int[] otherNext;
+
+        /** Sorted IDs of patterns accepted in each state. */
+        final int[][] accepts;
+
+        Dfa(char[][] keys, int[][] targets, int[] wordNext, int[] otherNext, int[][] accepts) {
+            this.keys = keys;
+            this.targets = targets;
+            this.wordNext = wordNext;
+            this.otherNext = otherNext;
+            this.accepts = accepts;
+        }
+
+        int[] match(String s) {
+            int st = 0;
+            for (int i = 0, len = s.length(); i < len && st >= 0; i++) {
+                st = step(st, s.charAt(i));
+            }
+            return st >= 0 ? accepts[st] : NONE;
+        }
+
+        int step(int st, char c) {
+            char[] k = keys[st];
+            int lo = 0, hi = k.length - 1;
+
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = k[mid];
+                if (m < c) {
+                    lo = mid + 1;
+                } else if (m > c) {
+                    hi = mid - 1;
+                } else {
+                    return targets[st][mid];
+                }
+            }
+
+            return isWord(c) ? wordNext[st] : otherNext[st];
+        }
+    }
+
+    /**
+     * Creates automaton matching given patterns. Pattern IDs are indexes in patterns list.
+     * Null patterns never match.
+     *
+     * @param patterns regular expression patterns
+     */
+    public PatternAutomaton(List<Pattern> patterns) {
+        List<Seq> seqs = new ArrayList<Seq>(patterns.size());
+        Pattern[] fb = new Pattern[patterns.size()];
+        List<Integer> fbIds = new ArrayList<Integer>();
+
+        for (int i = 0; i < patterns.size(); i++) {
+            Pattern p = patterns.get(i);
+            if (p != null) {
+                Seq seq = parse(i, p);
+                if (seq != null) {
+                    seqs.add(seq);
+                } else {
+                    fb[i] = p;
+                    fbIds.add(i);
+                }
+            }
+        }
+
+        List<Dfa> dl = new ArrayList<Dfa>();
+
+        if (!seqs.isEmpty()) {
+            compile(seqs, patterns, dl, fb, fbIds);
+        }
+
+        Collections.sort(fbIds);
+
+        dfas = dl.toArray(new Dfa[dl.size()]);
+        fallbacks = fb;
+        fallbackIds = new int[fbIds.size()];
+        for (int i = 0; i < fallbackIds.length; i++) {
+            fallbackIds[i] = fbIds.get(i);
+        }
+    }
+
+
+    /**
+     * Parses regular expression into token sequence.
+     *
+     * @return token sequence or null if pattern uses unsupported constructs
+     */
+    private static Seq parse(int id, Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+
+        String p = pattern.pattern();
+        int len = p.length();
+
+        List<Integer> ccs = new ArrayList<Integer>(len), chars = new ArrayList<Integer>(len), qs = new ArrayList<Integer>(len);
+
+        int i = 0;
+
+        if (len > 0 && p.charAt(0) == '^') {
+            i++;
+        }
+
+        if (len > i && p.charAt(len-1) == '$' && (len < 2 || p.charAt(len-2) != '\\')) {
+            len--;
+        }
+
+        while (i < len) {
+            char c = p.charAt(i);
+            int cc, ch = 0;
+
+            if (c == '\\') {
+                if (i+1 >= len || Character.isLetterOrDigit(p.charAt(i+1))) {
+                    return null;
+                }
+                cc = CC_LIT;
+                ch = p.charAt(i+1);
+                i += 2;
+            } else if (p.startsWith(WORD_CLASS, i)) {
+                cc = CC_WORD;
+                i += WORD_CLASS.length();
+            } else if (c == '.') {
+                cc = CC_ANY;
+                i++;
+            } else if ("[](){}?*+|^$".indexOf(c) >= 0) {
+                return null;
+            } else {
+                cc = CC_LIT;
+                ch = c;
+                i++;
+            }
+
+            int q = Q_ONE;
+
+            if (i < len) {
+                char qc = p.charAt(i);
+                if (qc == '+') {
+                    q = Q_PLUS;
+                    i++;
+                } else if (qc == '*') {
+                    q = Q_STAR;
+                    i++;
+                } else if (qc == '?' || qc == '{') {
+                    return null;
+                }
+            }
+
+            if (i < len && "+*?".indexOf(p.charAt(i)) >= 0) {
+                // Possessive/reluctant quantifiers or other odd constructs
+                return null;
+            }
+
+            ccs.add(cc);
+            chars.add(ch);
+            qs.add(q);
+        }
+
+        return new Seq(id, toArray(ccs), toArray(chars), toArray(qs));
+    }
+
+
+    /**
+     * Returns literal string matched by given pattern (if pattern matches exactly one string
+     * and uses only constructs supported by automaton).
+     *
+     * @param pattern regular expression pattern
+     * @return matched string or null if pattern is not a literal
+     */
+    public static String literal(Pattern pattern) {
+        Seq seq = pattern != null ? parse(0, pattern) : null;
+
+        if (seq == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(seq.length());
+
+        for (int j = 0; j < seq.length(); j++) {
+            if (seq.ccs[j] != CC_LIT || seq.qs[j] != Q_ONE) {
+                return null;
+            }
+            sb.append((char)seq.chars[j]);
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Compiles token sequences into DFA. If it grows too big, sequence list is split in half
+     * and both halves are compiled separately. Order of sequences (and pattern IDs) is preserved.
+     */
+    private static void compile(List<Seq> seqs, List<Pattern> patterns, List<Dfa> dl,
+                                Pattern[] fb, List<Integer> fbIds) {
+        Dfa dfa = build(seqs);
+
+        if (dfa != null) {
+            dl.add(dfa);
+        } else if (seqs.size() > 1) {
+            int half = seqs.size() / 2;
+            compile(new ArrayList<Seq>(seqs.subList(0, half)), patterns, dl, fb, fbIds);
+            compile(new ArrayList<Seq>(seqs.subList(half, seqs.size())), patterns, dl, fb, fbIds);
+        } else {
+            // Single pattern too complex to be compiled, fall back to regex engine
+            int id = seqs.get(0).id;
+            fb[id] = patterns.get(id);
+            fbIds.add(id);
+        }
+    }
+
+
+    private static int[] toArray(List<Integer> lst) {
+        int[] rslt = new int[lst.size()];
+        for (int i = 0; i < rslt.length; i++) {
+            rslt[i] = lst.get(i);
+        }
+        return rslt;
+    }
+
+
+    private static boolean isWord(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+
+    /**
+     * Set of NFA states used as DFA state key.
+     */
+    private static class StateSet {
+        final int[] states;
+        final int hash;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof StateSet && Arrays.equals(states, ((StateSet)obj).states);
+        }
+    }
+
+
+    /**
+     * Builds DFA from token sequences using subset construction. NFA state (seq.base + j)
+     * means that first j tokens of given sequence have been matched.
+     *
+     * @return compiled DFA or null if maximum number of states has been exceeded
+     */
+    private static Dfa build(List<Seq> seqs) {
+        int nfaSize = 0;
+        for (Seq seq : seqs) {
+            seq.base = nfaSize;
+            nfaSize += seq.length() + 1;
+        }
+
+        // Map NFA states back to sequences
+        Seq[] owners = new Seq[nfaSize];
+        for (Seq seq : seqs) {
+            for (int j = 0; j <= seq.length(); j++) {
+                owners[seq.base+j] = seq;
+            }
+        }
+
+        List<char[]> lkeys = new ArrayList<char[]>();
+        List<int[]> ltargets = new ArrayList<int[]>();
+        List<Integer> lword = new ArrayList<Integer>(), lother = new ArrayList<Integer>();
+        List<int[]> laccepts = new ArrayList<int[]>();
+
+        Map<StateSet,Integer> dstates = new HashMap<StateSet, Integer>();
+        List<int[]> queue = new ArrayList<int[]>();
+
+        int[] start = new int[seqs.size()];
+        for (int i = 0; i < start.length; i++) {
+            start[i] = seqs.get(i).base;
+        }
+        start = closure(owners, start);
+
+        dstates.put(new StateSet(start), 0);
+        queue.add(start);
+
+        for (int qpos = 0; qpos < queue.size(); qpos++) {
+            int[] set = queue.get(qpos);
+
+            // Collect literal characters and accepted patterns
+            SortedSet<Character> lits = new TreeSet<Character>();
+            List<Integer> acc = new ArrayList<Integer>();
+            for (int s : set) {
+                Seq seq = owners[s];
+                int j = s - seq.base;
+                if (j == seq.length()) {
+                    acc.add(seq.id);
+                }
+                if (j < seq.length() && seq.ccs[j] == CC_LIT) {
+                    lits.add((char)seq.chars[j]);
+                }
+                if (j > 0 && seq.qs[j-1] != Q_ONE && seq.ccs[j-1] == CC_LIT) {
+                    lits.add((char)seq.chars[j-1]);
+                }
+            }
+
+            Collections.sort(acc);
+            laccepts.add(acc.isEmpty() ? NONE : toArray(acc));
+
+            char[] k = new char[lits.size()];
+            int[] t = new int[lits.size()];
+            int idx = 0;
+            for (char c : lits) {
+                k[idx] = c;
+                t[idx] = target(owners, set, c, dstates, queue);
+                idx++;
+            }
+            lkeys.add(k);
+            ltargets.add(t);
+            lword.add(target(owners, set, -1, dstates, queue));
+            lother.add(target(owners, set, -2, dstates, queue));
+
+            if (queue.size() > MAX_STATES) {
+                return null;
+            }
+        }
+
+        int nstates = queue.size();
+
+        return new Dfa(lkeys.toArray(new char[nstates][]), ltargets.toArray(new int[nstates][]),
+                toArray(lword), toArray(lother), laccepts.toArray(new int[nstates][]));
+    }
+
+
+    /**
+     * Checks if token matches character.
+     *
+     * @param c character or -1 for (any unlisted) word character or -2 for (any unlisted) non-word character
+     */
+    private static boolean tokenMatch(Seq seq, int j, int c) {
+        switch (seq.ccs[j]) {
+            case CC_ANY:
+                return true;
+            case CC_WORD:
+                return c == -1 || (c >= 0 && isWord(c));
+            default:
+                return c >= 0 && seq.chars[j] == c;
+        }
+    }
+
+
+    /**
+     * Computes DFA transition from given state set on given character, registering new DFA state if needed.
+     *
+     * @return DFA state index or -1 if target state set is empty (no match possible)
+     */
+    private static int target(Seq[] owners, int[] set, int c, Map<StateSet,Integer> dstates, List<int[]> queue) {
+        int[] nxt = new int[set.length * 2];
+        int n = 0;
+
+        for (int s : set) {
+            Seq seq = owners[s];
+            int j = s - seq.base;
+            // Advance over next token
+            if (j < seq.length() && tokenMatch(seq, j, c)) {
+                nxt[n++] = s + 1;
+            }
+            // Repeat last token (if quantified)
+            if (j > 0 && seq.qs[j-1] != Q_ONE && tokenMatch(seq, j-1, c)) {
+                nxt[n++] = s;
+            }
+        }
+
+        if (n == 0) {
+            return -1;
+        }
+
+        int[] ns = closure(owners, Arrays.copyOf(nxt, n));
+        StateSet key = new StateSet(ns);
+        Integer idx = dstates.get(key);
+
+        if (idx == null) {
+            idx = queue.size();
+            dstates.put(key, idx);
+            queue.add(ns);
+        }
+
+        return idx;
+    }
+
+
+    /**
+     * Adds states reachable via optional (star quantified) tokens. Returns sorted set without duplicates.
+     */
+    private static int[] closure(Seq[] owners, int[] states) {
+        List<Integer> rslt = new ArrayList<Integer>(states.length + 4);
+
+        for (int s : states) {
+            rslt.add(s);
+            Seq seq = owners[s];
+            for (int j = s - seq.base; j < seq.length() && seq.qs[j] == Q_STAR; j++) {
+                rslt.add(seq.base + j + 1);
+            }
+        }
+
+        Collections.sort(rslt);
+
+        int[] ret = new int[rslt.size()];
+        int n = 0;
+        for (Integer s : rslt) {
+            if (n == 0 || ret[n-1] != s) {
+                ret[n++] = s;
+            }
+        }
+
+        return n == ret.length ? ret : Arrays.copyOf(ret, n);
+    }
+
+
+    /**
+     * Returns sorted IDs of patterns matching given string. Returned array must not be modified.
+     *
+     * @param s matched string
+     * @return pattern IDs (empty array if nothing matches)
+     */
+    public int[] match(String s) {
+        int[] rslt = NONE;
+
+        if (dfas.length == 1) {
+            rslt = dfas[0].match(s);
+        } else if (dfas.length > 1) {
+            int[] buf = null;
+            int n = 0;
+            for (Dfa dfa : dfas) {
+                int[] ids = dfa.match(s);
+                if (ids.length > 0) {
+                    if (n == 0) {
+                        rslt = ids;
+                    } else {
+                        if (buf == null) {
+                            buf = Arrays.copyOf(rslt, n + ids.length + 8);
+                        } else if (buf.length < n + ids.length) {
+                            buf = Arrays.copyOf(buf, (n + ids.length) * 2);
+                        }
+                        // DFAs cover subsequent ranges of pattern IDs, so concatenated results remain sorted.
+                        System.arraycopy(ids, 0, buf, n, ids.length);
+                    }
+                    n += ids.length;
+                }
+            }
+            if (buf != null) {
+                rslt = Arrays.copyOf(buf, n);
+            }
+        }
+
+        if (fallbackIds.length > 0) {
+            rslt = matchFallbacks(s, rslt);
+        }
+
+        return rslt;
+    }
+
+
+    private int[] matchFallbacks(String s, int[] ids) {
+        int[] rslt = null;
+        int n = 0;
+
+        for (int id : fallbackIds) {
+            if (fallbacks[id].matcher(s).matches()) {
+                if (rslt == null) {
+                    rslt = Arrays.copyOf(ids, ids.length + fallbackIds.length);
+                    n = ids.length;
+                }
+                rslt[n++] = id;
+            }
+        }
+
+        if (rslt == null) {
+            return ids;
+        }
+
+        Arrays.sort(rslt, 0, n);
+
+        return Arrays.copyOf(rslt, n);
+    }
+
+
+    /**
+     * Returns number of DFA states (in all DFAs).
+     */
+    public int getNStates() {
+        int n = 0;
+        for (Dfa dfa : dfas) {
+            n += dfa.keys.length;
+        }
+        return n;
+    }
+
+
+    /**
+     * Returns number of DFAs patterns have been compiled into.
+     */
+    public int getNParts() {
+        return dfas.length;
+    }
+
+
+    /**
+     * Returns number of patterns matched using regex engine.
+     */
+    public int getNFallbacks() {
+        return fallbackIds.length;
+    }
+}
@@ -25,6 +25,7 @@ import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -41,6 +42,11 @@ public class PatternMatcherSet implements SpyMatcherSet {
      */
     private List<SpyMatcher> matchers = new ArrayList<SpyMatcher>();
 
+    /**
+     * Compiled class name matcher. It is created lazily and discarded when matchers change.
+     */
+    private volatile ClassMatchIndex<PatternMatcherSet> classIndex;
+
 
     /**
      * Creates new matcher set (with empty list of matchers).
@@ -76,30 +82,21 @@ public class PatternMatcherSet implements SpyMatcherSet {
 
     @Override
     public boolean classMatch(String className) {
-        for (SpyMatcher matcher : matchers) {
-            int flags = matcher.getFlags();
-
-            if ((0 != (flags & BY_CLASS_NAME)) && match(matcher.getClassPattern(), className)) {
-                // Return true or false depending on whether this is normal or inverted match
-                return finalClassMatch(matcher);
-            }
+        ClassMatchIndex<PatternMatcherSet> idx = classIndex;
 
-            if (0 != (flags & (BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION | BY_SUPERCLASS))) {
-                return finalClassMatch(matcher);
-            }
+        if (idx == null) {
+            List<List<SpyMatcher>> ml = new ArrayList<List<SpyMatcher>>(1);
+            ml.add(new ArrayList<SpyMatcher>(matchers));
+            idx = new ClassMatchIndex<PatternMatcherSet>(Collections.singletonList(this), ml);
+            classIndex = idx;
         }
 
-        return false;
+        return idx.matches(className);
     }
 
 
-
     private boolean finalClassMatch(SpyMatcher matcher) {
-        if (matcher.hasFlags(EXCLUDE_MATCH)) {
-            return !"[a-zA-Z0-9_]+".equals(matcher.getMethodPattern().toString());
-        } else {
-            return true;
-        }
+        return ClassMatchIndex.classMatchResult(matcher);
     }
 
 
@@ -288,6 +285,8 @@ public class PatternMatcherSet implements SpyMatcherSet {
      */
     private void includeInternal(SpyMatcher... includes) {
 
+        classIndex = null;
+
         for (SpyMatcher m : includes) {
             if (m != null) {
                 if (matchers.size() == 0 || m.getPriority() >= matchers.get(matchers.size() - 1).getPriority()) {
@@ -319,6 +318,7 @@ public class PatternMatcherSet implements SpyMatcherSet {
     @Override
     public void clear() {
         matchers.clear();
+        classIndex = null;
     }
 
     @Override
@@ -31,19 +31,28 @@ public class SpyClassResolver {
 
     private static final Logger log = LoggerFactory.getLogger(SpyClassResolver.class);
 
-    private Map<String,CachedClassInfo> cache = new HashMap<String, CachedClassInfo>();
-
     public final static String OBJECT_CLAZZ = "java.lang.Object";
 
+    /** Default maximum number of cached class infos. */
+    public final static int DEFAULT_CACHE_SIZE = 16384;
+
+    private final ClassInfoCache cache;
+
     private MethodCallStatistic numCalls, classGets;
-    private MethodCallStatistic cacheHits, cacheMisses;
+    private MethodCallStatistic cacheHits, cacheMisses, negativeHits;
     private MethodCallStatistic residentGets, bytecodeGets;
 
     public SpyClassResolver(MethodCallStatistics stats) {
+        this(stats, DEFAULT_CACHE_SIZE);
+    }
+
+    public SpyClassResolver(MethodCallStatistics stats, int cacheSize) {
+        cache = new ClassInfoCache(cacheSize);
         numCalls = stats.getMethodCallStatistic("CrvCalls");
         classGets = stats.getMethodCallStatistic("CrvClassGets");
         cacheHits = stats.getMethodCallStatistic("CrvCacheHits");
         cacheMisses = stats.getMethodCallStatistic("CrvCacheMisses");
+        negativeHits = stats.getMethodCallStatistic("CrvNegativeHits");
         residentGets = stats.getMethodCallStatistic("CrvResidentGets");
         bytecodeGets = stats.getMethodCallStatistic("CrvBytecodeGets");
     }
@@ -152,7 +161,12 @@ public class SpyClassResolver {
 
         classGets.logCall(1);
 
-        CachedClassInfo rslt = getCached(type);
+        CachedClassInfo rslt = cache.get(loader, type);
+
+        if (rslt == ClassInfoCache.NOT_FOUND) {
+            negativeHits.logCall();
+            return null;
+        }
 
         if (rslt != null) {
             cacheHits.logCall();
@@ -175,12 +189,13 @@ public class SpyClassResolver {
                     clazz.getName(),
                     clazz.getSuperclass() != null ? clazz.getSuperclass().getName() : null,
                     interfaces);
-            setCached(type, rslt);
+            cache.put(loader, type, rslt);
             residentGets.logCall();
             return rslt;
         }
 
-        InputStream is = loader.getResourceAsStream(type.replace(".", "/") + ".class");
+        InputStream is = loader != null ? loader.getResourceAsStream(type.replace(".", "/") + ".class")
+                : ClassLoader.getSystemResourceAsStream(type.replace(".", "/") + ".class");
         byte[] classBytes = null;
         if (is != null) {
             try {
@@ -198,7 +213,10 @@ public class SpyClassResolver {
             log.error("Bytecode for class not found: " + type + " (using class loader: " + loader + ")");
         }
 
-        if (classBytes == null) return null;
+        if (classBytes == null) {
+            cache.put(loader, type, ClassInfoCache.NOT_FOUND);
+            return null;
+        }
 
         ClassReader reader = new ClassReader(classBytes);
         String[] ifcs = reader.getInterfaces();
@@ -213,26 +231,18 @@ public class SpyClassResolver {
             reader.getSuperName() != null ? reader.getSuperName().replace('/', '.').intern() : null,
             ifcs);
 
-        setCached(type, rslt);
+        cache.put(loader, type, rslt);
         bytecodeGets.logCall();
 
         return rslt;
 
     }
 
-    private synchronized CachedClassInfo getCached(String type) {
-        return cache.get(type);
-    }
-
-    private synchronized void setCached(String type, CachedClassInfo ci) {
-        cache.put(type, ci);
-    }
-
-    private synchronized void delCached(String type) {
-        cache.remove(type);
+    public int getCacheSize() {
+        return cache.size();
     }
 
-    public synchronized int getCacheSize() {
-        return cache.size();
+    public ClassInfoCache getCache() {
+        return cache;
     }
 }
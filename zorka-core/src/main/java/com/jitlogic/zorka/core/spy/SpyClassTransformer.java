@@ -38,6 +38,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import static com.jitlogic.zorka.core.AgentConfigProps.*;
+
 /**
  * This is main class transformer installed in JVM by Zorka agent (see premain() method).
  *
@@ -55,6 +57,77 @@ public class SpyClassTransformer implements ClassFileTransformer {
      */
     private Map<String, SpyDefinition> sdefs = new LinkedHashMap<String, SpyDefinition>();
 
+    /**
+     * Number of spy defs added or removed since class matching index has been built that
+     * triggers index rebuild. Until then, added spy defs are matched one by one.
+     */
+    private static final int SDEF_INDEX_REBUILD = 32;
+
+    /**
+     * Class matching for all spy defs: compiled index built lazily and updated incrementally (see SdefMatcher).
+     */
+    private volatile SdefMatcher sdefMatcher = new SdefMatcher(null, new ArrayList<SpyDefinition>(),
+            Collections.<SpyDefinition>emptySet());
+
+    /**
+     * Immutable snapshot of spy defs class matching: compiled index of spy defs at the time index has been
+     * built, spy defs added since then (matched linearly) and spy defs removed since then (filtered out
+     * from index results). Adding or removing spy defs does not discard compiled index, so adding spy defs
+     * interleaved with class loading (eg. when loading scripts) does not recompile index each time.
+     */
+    private static class SdefMatcher {
+        private final ClassMatchIndex<SpyDefinition> index;
+        private final List<SpyDefinition> added;
+        private final Set<SpyDefinition> removed;
+
+        private SdefMatcher(ClassMatchIndex<SpyDefinition> index, List<SpyDefinition> added, Set<SpyDefinition> removed) {
+            this.index = index;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        private SdefMatcher add(SpyDefinition sdef) {
+            List<SpyDefinition> a = new ArrayList<SpyDefinition>(added.size() + 1);
+            a.addAll(added);
+            a.add(sdef);
+            return new SdefMatcher(index, a, removed);
+        }
+
+        private SdefMatcher remove(SpyDefinition sdef) {
+            if (added.contains(sdef)) {
+                List<SpyDefinition> a = new ArrayList<SpyDefinition>(added);
+                a.remove(sdef);
+                return new SdefMatcher(index, a, removed);
+            }
+            Set<SpyDefinition> r = Collections.newSetFromMap(new IdentityHashMap<SpyDefinition, Boolean>());
+            r.addAll(removed);
+            r.add(sdef);
+            return new SdefMatcher(index, added, r);
+        }
+
+        private int changes() {
+            return index == null ? Integer.MAX_VALUE : added.size() + removed.size();
+        }
+
+        private void match(String className, byte[] classBytes, List<SpyDefinition> found) {
+            index.match(className, classBytes, found);
+
+            if (!removed.isEmpty()) {
+                for (Iterator<SpyDefinition> i = found.iterator(); i.hasNext(); ) {
+                    if (removed.contains(i.next())) {
+                        i.remove();
+                    }
+                }
+            }
+
+            for (SpyDefinition sdef : added) {
+                if (sdef.getMatcherSet().classMatch(className)) {
+                    found.add(sdef);
+                }
+            }
+        }
+    }
+
 
     /**
      * SpyContext counter.
@@ -90,6 +163,9 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
     private boolean expandedFrames;
 
+    /** Emit tracer probes as invokedynamic instructions (in classes that support it). */
+    private boolean indyProbes;
+
     private boolean scriptsAuto;
 
     private ZorkaBshAgent bshAgent;
@@ -103,6 +179,16 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
     private MethodCallStatistic tracerLookups, classesProcessed, classesTransformed, spyLookups, nullsEncountered;
 
+    private MethodCallStatistic cacheHits, cacheMisses;
+
+    /**
+     * Persistent cache of instrumented bytecode (or null if disabled).
+     */
+    private BytecodeCache bytecodeCache;
+
+    /** Matchers requiring class hierarchy (which is not reflected in cache keys). */
+    private static final int HIERARCHY_FLAGS = SpyMatcher.BY_INTERFACE | SpyMatcher.BY_SUPERCLASS | SpyMatcher.RECURSIVE;
+
     private boolean dumpEnabled = false;
     private List<Pattern> dumpFilters = new ArrayList<Pattern>();
     private File dumpDir;
@@ -122,9 +208,11 @@ public class SpyClassTransformer implements ClassFileTransformer {
         this.scriptsAuto = config.boolCfg("scripts.auto", true);
         this.retransformer = retransformer;
         this.expandedFrames = config.boolCfg("zorka.spy.expanded.frames", false);
+        this.indyProbes = config.boolCfg(SPY_INDY_PROP, SPY_INDY_DEFV) && isIndySupported();
 
         if (useCustomResolver) {
-            this.resolver = new SpyClassResolver(statistics);
+            this.resolver = new SpyClassResolver(statistics,
+                    config.intCfg("zorka.spy.resolver.cache.size", SpyClassResolver.DEFAULT_CACHE_SIZE));
         }
 
         this.spyLookups = statistics.getMethodCallStatistic("SpyLookups");
@@ -132,6 +220,16 @@ public class SpyClassTransformer implements ClassFileTransformer {
         this.classesProcessed = statistics.getMethodCallStatistic("ClassesProcessed");
         this.nullsEncountered = statistics.getMethodCallStatistic("SpyNullsEncountered");
         this.classesTransformed = statistics.getMethodCallStatistic("ClassesTransformed");
+        this.cacheHits = statistics.getMethodCallStatistic("BytecodeCacheHits");
+        this.cacheMisses = statistics.getMethodCallStatistic("BytecodeCacheMisses");
+
+        if (config.boolCfg(SPY_CACHE_PROP, SPY_CACHE_DEFV)) {
+            File dir = config.hasCfg(SPY_CACHE_DIR_PROP)
+                    ? new File(config.stringCfg(SPY_CACHE_DIR_PROP, null))
+                    : new File(config.getHomeDir(), SPY_CACHE_DIR_DEFV);
+            bytecodeCache = new BytecodeCache(dir, config.kiloCfg(SPY_CACHE_MAX_PROP, SPY_CACHE_MAX_DEFV),
+                    BytecodeCache.agentBuild(config.stringCfg("zorka.version", "unknown")));
+        }
 
         List<String> df = config.listCfg("spy.dump");
         if (df.size() > 0) {
@@ -206,7 +304,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
             return null;
         }
 
+        // Replaced sdef goes to the end, so sdefs order is the same as in incrementally updated matcher.
+        sdefs.remove(sdef.getName());
         sdefs.put(sdef.getName(), sdef);
+        sdefMatcher = (osdef != null ? sdefMatcher.remove(osdef) : sdefMatcher).add(sdef);
 
         if (retransformer.isEnabled() && (osdef == null || !osdef.sameProbes(sdef))) {
             retransformer.retransform(osdef != null ? osdef.getMatcherSet() : null, sdef.getMatcherSet(), true);
@@ -240,6 +341,7 @@ public class SpyClassTransformer implements ClassFileTransformer {
             log.info("Removing spy definition: " + sdef.getName());
 
             sdefs.remove(sdef.getName());
+            sdefMatcher = sdefMatcher.remove(sdef);
 
             Set<SpyContext> ctxs = new HashSet<SpyContext>();
             Set<Integer> ids = new HashSet<Integer>();
@@ -267,6 +369,33 @@ public class SpyClassTransformer implements ClassFileTransformer {
     }
 
 
+    /**
+     * Returns spy defs matcher. Class matching index is (re)built if there is no index yet
+     * or too many spy defs have been added or removed since it has been built.
+     */
+    private SdefMatcher sdefMatcher() {
+        SdefMatcher sm = sdefMatcher;
+
+        if (sm.changes() > SDEF_INDEX_REBUILD) {
+            synchronized (this) {
+                sm = sdefMatcher;
+                if (sm.changes() > SDEF_INDEX_REBUILD) {
+                    List<SpyDefinition> defs = new ArrayList<SpyDefinition>(sdefs.values());
+                    List<List<SpyMatcher>> matchers = new ArrayList<List<SpyMatcher>>(defs.size());
+                    for (SpyDefinition sdef : defs) {
+                        matchers.add(new ArrayList<SpyMatcher>(sdef.getMatcherSet().getMatchers()));
+                    }
+                    sm = new SdefMatcher(new ClassMatchIndex<SpyDefinition>(defs, matchers),
+                            new ArrayList<SpyDefinition>(), Collections.<SpyDefinition>emptySet());
+                    sdefMatcher = sm;
+                }
+            }
+        }
+
+        return sm;
+    }
+
+
     public SpyDefinition getSdef(String name) {
         return sdefs.get(name);
     }
@@ -329,13 +458,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
         }
 
         long st1 = System.nanoTime();
-        for (Map.Entry<String, SpyDefinition> e : sdefs.entrySet()) {
-            SpyDefinition sdef = e.getValue();
-            if (sdef.getMatcherSet().classMatch(clazzName)) {
-                if (log.isDebugEnabled()) {
-                    log.debug("MATCH: Class: " + clazzName + " matcher: " + sdef.getMatcherSet());
-                }
-                found.add(sdef);
+        sdefMatcher().match(clazzName, cbf, found);
+        if (log.isDebugEnabled()) {
+            for (SpyDefinition sdef : found) {
+                log.debug("MATCH: Class: " + clazzName + " matcher: " + sdef.getMatcherSet());
             }
         }
         long st2 = System.nanoTime();
@@ -350,7 +476,24 @@ public class SpyClassTransformer implements ClassFileTransformer {
 
         byte[] buf = cbf;
 
-        if (found.size() > 0 || tracerMatch) {
+        String fingerprint = bytecodeCache != null && (found.size() > 0 || tracerMatch)
+                ? cacheFingerprint(found, tracerMatch) : null;
+
+        BytecodeCache.Entry cached = fingerprint != null ? bytecodeCache.get(fingerprint, clazzName, cbf) : null;
+
+        if (cached != null && restore(clazzName, found, cached)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Using cached bytecode for class: " + clazzName);
+            }
+            cacheHits.logCall();
+            if (cached.getBytecode() != null) {
+                buf = cached.getBytecode();
+            }
+        } else if (found.size() > 0 || tracerMatch) {
+
+            if (fingerprint != null) {
+                cacheMisses.logCall();
+            }
 
             long tt1 = System.nanoTime();
 
@@ -371,6 +514,10 @@ public class SpyClassTransformer implements ClassFileTransformer {
                 buf = cw.toByteArray();
             }
 
+            if (fingerprint != null) {
+                bytecodeCache.put(fingerprint, clazzName, cbf, cacheEntry(clazzName, scv, buf != cbf ? buf : null));
+            }
+
             long tt2 = System.nanoTime();
             classesTransformed.logCall(tt2 - tt1);
         }
@@ -404,6 +551,189 @@ public class SpyClassTransformer implements ClassFileTransformer {
         return buf == cbf ? null : buf;
     }
 
+    /**
+     * Computes fingerprint of configuration used to instrument class: spy definitions and tracer
+     * settings. Fingerprint does not depend on order of loading classes or registering objects.
+     *
+     * @return fingerprint or null if instrumentation depends on things not known before transform
+     */
+    private String cacheFingerprint(List<SpyDefinition> found, boolean tracerMatch) {
+        StringBuilder sb = new StringBuilder(256);
+
+        sb.append(BytecodeCache.VERSION).append(computeFrames).append(expandedFrames).append(useCustomResolver)
+                .append(indyProbes);
+
+        for (SpyDefinition sdef : found) {
+            sb.append("|S:").append(sdef.getName());
+            if (!fingerprint(sb, sdef.getMatcherSet().getMatchers())) {
+                return null;
+            }
+            for (int stage = 0; stage < 4; stage++) {
+                sb.append('|').append(stage).append(':').append(sdef.getProbes(stage))
+                        .append(sdef.getProcessors(stage).isEmpty() ? '-' : '+');
+            }
+        }
+
+        if (tracerMatch) {
+            sb.append("|T:").append(tracer.isTraceSpyMethods());
+            if (!fingerprint(sb, tracer.getMatcherSet().getMatchers())) {
+                return null;
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    private static boolean fingerprint(StringBuilder sb, List<SpyMatcher> matchers) {
+        for (SpyMatcher m : matchers) {
+            if (m.hasFlags(HIERARCHY_FLAGS)) {
+                return false;
+            }
+            sb.append("|M:").append(m.getFlags()).append(',').append(m.getAccess()).append(',')
+                    .append(m.getPriority()).append(',').append(m.getClassPattern()).append(',')
+                    .append(m.getMethodPattern()).append(',').append(m.getSignaturePattern());
+        }
+        return true;
+    }
+
+
+    /**
+     * Creates bytecode cache entry describing result of class transformation.
+     */
+    private BytecodeCache.Entry cacheEntry(String className, SpyClassVisitor scv, byte[] bytecode) {
+        List<SpyContext> ctxs = scv.getContexts();
+        int nctx = ctxs.size();
+        int[] ctxIds = new int[nctx], ctxAccess = new int[nctx];
+        String[] ctxSdefs = new String[nctx], ctxMethods = new String[nctx], ctxSignatures = new String[nctx];
+
+        for (int i = 0; i < nctx; i++) {
+            SpyContext ctx = ctxs.get(i);
+            ctxIds[i] = ctx.getId();
+            ctxSdefs[i] = ctx.getSpyDefinition().getName();
+            ctxMethods[i] = ctx.getMethodName();
+            ctxSignatures[i] = ctx.getMethodSignature();
+            ctxAccess[i] = ctx.getAccess();
+        }
+
+        List<String> tms = scv.getTracedMethods();
+        Map<Integer,String> symbols = new TreeMap<Integer, String>();
+        int[] methods = new int[tms.size() * 2];
+        int classId = symbolRegistry.symbolId(className);
+        symbols.put(classId, className);
+
+        for (int i = 0; i < tms.size(); i += 2) {
+            int methodId = symbolRegistry.symbolId(tms.get(i)), signatureId = symbolRegistry.symbolId(tms.get(i+1));
+            symbols.put(methodId, tms.get(i));
+            symbols.put(signatureId, tms.get(i+1));
+            methods[i*2] = symbolRegistry.methodId(classId, methodId, signatureId);
+            methods[i*2+1] = classId;
+            methods[i*2+2] = methodId;
+            methods[i*2+3] = signatureId;
+        }
+
+        int[] symbolIds = new int[symbols.size()];
+        String[] symbolNames = new String[symbols.size()];
+        int idx = 0;
+        for (Map.Entry<Integer,String> e : symbols.entrySet()) {
+            symbolIds[idx] = e.getKey();
+            symbolNames[idx] = e.getValue();
+            idx++;
+        }
+
+        return new BytecodeCache.Entry(ctxIds, ctxSdefs, ctxMethods, ctxSignatures, ctxAccess,
+                symbolIds, symbolNames, methods, bytecode);
+    }
+
+
+    /**
+     * Registers spy contexts, tracer symbols and methods referenced by cached bytecode with the same IDs
+     * as when bytecode was generated. Spy contexts are registered last (and only if all other IDs could be
+     * restored), so failed restore does not leave orphaned contexts behind. Symbols and methods restored
+     * before failure are valid registrations and are simply reused when class is instrumented.
+     *
+     * @return true if all IDs have been registered, false if some of them have been already used otherwise
+     */
+    private boolean restore(String className, List<SpyDefinition> found, BytecodeCache.Entry ce) {
+        Map<String,SpyDefinition> sdefsByName = new HashMap<String, SpyDefinition>();
+        for (SpyDefinition sdef : found) {
+            sdefsByName.put(sdef.getName(), sdef);
+        }
+
+        for (int i = 0; i < ce.getNContexts(); i++) {
+            if (!sdefsByName.containsKey(ce.getCtxSdef(i))) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < ce.getNSymbols(); i++) {
+            if (!symbolRegistry.restoreSymbol(ce.getSymbolId(i), ce.getSymbolName(i))) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < ce.getNMethods(); i++) {
+            int mid = ce.getMethod(i, 0);
+            if (!symbolRegistry.restoreMethod(mid, ce.getMethod(i, 1), ce.getMethod(i, 2), ce.getMethod(i, 3))) {
+                return false;
+            }
+            // Methods excluded by tracer tuner after bytecode has been cached
+            if (tracer.getMatcherSet().isExcluded(mid)) {
+                return false;
+            }
+        }
+
+        synchronized (this) {
+            List<SpyContext> ctxs = new ArrayList<SpyContext>(ce.getNContexts());
+
+            for (int i = 0; i < ce.getNContexts(); i++) {
+                SpyDefinition sdef = sdefsByName.get(ce.getCtxSdef(i));
+                SpyContext ctx = new SpyContext(sdef, className, ce.getCtxMethod(i), ce.getCtxSignature(i), ce.getCtxAccess(i));
+                SpyContext octx = ctxInstances.get(ctx);
+                if (octx != null) {
+                    if (octx.getId() != ce.getCtxId(i)) {
+                        return false;
+                    }
+                } else if (ctxById.containsKey(ce.getCtxId(i))) {
+                    return false;
+                } else {
+                    ctx.setId(ce.getCtxId(i));
+                    ctxs.add(ctx);
+                }
+            }
+
+            for (SpyContext ctx : ctxs) {
+                ctxInstances.put(ctx, ctx);
+                ctxById.put(ctx.getId(), ctx);
+                nextId = Math.max(nextId, ctx.getId() + 1);
+            }
+        }
+
+        return true;
+    }
+
+
+    private boolean isIndySupported() {
+        try {
+            Class.forName("java.lang.invoke.MutableCallSite");
+            return true;
+        } catch (ClassNotFoundException e) {
+            log.warn("This JVM does not support invokedynamic. Falling back to standard tracer probes.");
+            return false;
+        }
+    }
+
+
+    public boolean isIndyProbes() {
+        return indyProbes;
+    }
+
+
+    public BytecodeCache getBytecodeCache() {
+        return bytecodeCache;
+    }
+
+
     private void dump(String className, String prefix, byte[] buf) {
         OutputStream os = null;
         try {
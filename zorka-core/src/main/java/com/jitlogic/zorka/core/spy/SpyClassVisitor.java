@@ -77,6 +77,15 @@ public class SpyClassVisitor extends ClassVisitor {
 
     private List<String> superclasses;
 
+    /** True if tracer probes are to be emitted as invokedynamic instructions. */
+    private boolean indy;
+
+    /** Spy contexts of instrumented methods (as registered in transformer). */
+    private List<SpyContext> contexts = new ArrayList<SpyContext>();
+
+    /** Names and descriptors (pairs) of methods instrumented for tracer. */
+    private List<String> tracedMethods = new ArrayList<String>();
+
     /**
      * Creates Spy class visitor.
      *
@@ -113,6 +122,8 @@ public class SpyClassVisitor extends ClassVisitor {
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         cv.visit(version, access, name, signature, superName, interfaces);
 
+        indy = transformer.isIndyProbes() && (version & 0xffff) >= Opcodes.V1_7;
+
         this.classInterfaces = new ArrayList(interfaces.length);
 
 
@@ -207,8 +218,9 @@ public class SpyClassVisitor extends ClassVisitor {
                         + "(). SpyDef " + sdef.getName() + " refers to argument(s) beyond method argument list.");
                 } else {
                     log.info("Instrumenting method for " + sdef.getName() + ": " + className + "." + methodName + " " + methodDesc);
-                    ctxs.add(transformer.lookup(
-                        new SpyContext(sdef, className, methodName, methodDesc, access)));
+                    SpyContext ctx = transformer.lookup(new SpyContext(sdef, className, methodName, methodDesc, access));
+                    ctxs.add(ctx);
+                    contexts.add(ctx);
                 }
             }
 
@@ -226,7 +238,11 @@ public class SpyClassVisitor extends ClassVisitor {
 
         if (ctxs.size() > 0 || doTrace) {
             bytecodeWasModified = true;
-            return new SpyMethodVisitor(m, doTrace ? symbolRegistry : null, className, superclasses,
+            if (doTrace) {
+                tracedMethods.add(methodName);
+                tracedMethods.add(methodDesc);
+            }
+            return new SpyMethodVisitor(m, indy, doTrace ? symbolRegistry : null, className, superclasses,
                     classAnnotations, classInterfaces, access, methodName, methodDesc, ctxs, mv);
         }
 
@@ -250,4 +266,12 @@ public class SpyClassVisitor extends ClassVisitor {
     public boolean wasBytecodeModified() {
         return bytecodeWasModified;
     }
+
+    public List<SpyContext> getContexts() {
+        return contexts;
+    }
+
+    public List<String> getTracedMethods() {
+        return tracedMethods;
+    }
 }
@@ -154,6 +154,17 @@ public class SpyContext {
         return methodName;
     }
 
+
+    public String getMethodSignature() {
+        return methodSignature;
+    }
+
+
+    public int getAccess() {
+        return access;
+    }
+
+
     /**
      * Returns package name of instrumented class
      *
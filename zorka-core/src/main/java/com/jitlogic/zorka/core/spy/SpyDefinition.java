@@ -58,6 +58,11 @@ public class SpyDefinition {
      */
     private PatternMatcherSet matcherSet = new PatternMatcherSet();
 
+    /**
+     * Record slot layout (compiled lazily on first submission).
+     */
+    private volatile SpyRecordLayout layout;
+
     /**
      * Creates partially configured spy definition that is suitable for measuring
      * method execution times.
@@ -128,6 +133,21 @@ public class SpyDefinition {
     }
 
 
+    /**
+     * Returns record slot layout compiled from probes of this spy definition.
+     *
+     * @return record layout
+     */
+    public SpyRecordLayout getLayout() {
+        SpyRecordLayout l = layout;
+        if (l == null) {
+            l = new SpyRecordLayout(this);
+            layout = l;
+        }
+        return l;
+    }
+
+
     public PatternMatcherSet getMatcherSet() {
         return matcherSet;
     }
@@ -19,7 +19,6 @@ package com.jitlogic.zorka.core.spy;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
-import com.jitlogic.zorka.common.tracedata.SymbolicMethod;
 import org.objectweb.asm.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,6 +64,12 @@ public class SpyMethodVisitor extends MethodVisitor {
     private static final String RETURN_S_METHOD = "traceReturnS";
     private static final String ERROR_S_METHOD = "traceErrorS";
 
+    /**
+     * Bootstrap method of invokedynamic tracer probes.
+     */
+    private static final Handle INDY_BOOTSTRAP = new Handle(H_INVOKESTATIC, IndyLinker.CLASS,
+            IndyLinker.BOOTSTRAP_METHOD, IndyLinker.BOOTSTRAP_SIGNATURE, false);
+
     /**
      * Access flags of (instrumented) method
      */
@@ -153,12 +158,23 @@ public class SpyMethodVisitor extends MethodVisitor {
 
     private boolean streamingTracer = false;
 
+    /**
+     * If true, tracer probes are emitted as invokedynamic instructions linked by IndyLinker.
+     */
+    private final boolean indy;
+
     private int nProbes = 0;
 
+    /**
+     * Method ID (used by invokedynamic tracer probes).
+     */
+    private int mid;
+
     /**
      * Standard constructor.
      *
      * @param matches         true if visitor should always instrument or false if it should check for annotations
+     * @param indy            true if tracer probes should be emitted as invokedynamic instructions
      * @param access          method access flags
      * @param methodName      method name
      * @param methodSignature method descriptor
@@ -166,12 +182,13 @@ public class SpyMethodVisitor extends MethodVisitor {
      * @param mv              method visitor (next in processing chain)
      *                        TODO add explicit doTrace argument
      */
-    public SpyMethodVisitor(boolean matches, SymbolRegistry symbolRegistry,
+    public SpyMethodVisitor(boolean matches, boolean indy, SymbolRegistry symbolRegistry,
                             String className, List<String> superclasses, List<String> classAnnotations, List<String> classInterfaces,
                             int access, String methodName, String methodSignature,
                             List<SpyContext> ctxs, MethodVisitor mv) {
         super(Opcodes.ASM9, mv);
         this.matches = matches;
+        this.indy = indy;
         this.symbolRegistry = symbolRegistry;
         this.className = className;
         this.superclasses = superclasses;
@@ -432,7 +449,14 @@ public class SpyMethodVisitor extends MethodVisitor {
      */
     private int emitTraceEnter(int classId, int methodId, int signatureId) {
 
-        int mid = symbolRegistry.methodId(new SymbolicMethod(classId, methodId, signatureId));
+        int mid = symbolRegistry.methodId(classId, methodId, signatureId);
+
+        if (indy) {
+            this.mid = mid;
+            mv.visitInvokeDynamicInsn(IndyLinker.ENTER_METHOD, IndyLinker.ENTER_SIGNATURE, INDY_BOOTSTRAP, mid);
+            tracerProbesEmitted++;
+            return 0;
+        }
 
         emitLoadInt(mid);
 
@@ -452,7 +476,11 @@ public class SpyMethodVisitor extends MethodVisitor {
      * @return number of JVM stack slots consumed
      */
     private int emitTraceReturn() {
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, RETURN_METHOD, RETURN_SIGNATURE, false);
+        if (indy) {
+            mv.visitInvokeDynamicInsn(IndyLinker.RETURN_METHOD, IndyLinker.RETURN_SIGNATURE, INDY_BOOTSTRAP, mid);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, RETURN_METHOD, RETURN_SIGNATURE, false);
+        }
 
         tracerProbesEmitted++;
 
@@ -467,7 +495,11 @@ public class SpyMethodVisitor extends MethodVisitor {
      */
     private int emitTraceError() {
         mv.visitInsn(DUP);
-        mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, ERROR_METHOD, ERROR_SIGNATURE, false);
+        if (indy) {
+            mv.visitInvokeDynamicInsn(IndyLinker.ERROR_METHOD, IndyLinker.ERROR_SIGNATURE, INDY_BOOTSTRAP, mid);
+        } else {
+            mv.visitMethodInsn(INVOKESTATIC, SUBMIT_CLASS, ERROR_METHOD, ERROR_SIGNATURE, false);
+        }
 
         tracerProbesEmitted++;
 
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.*;
+
+/**
+ * Spy record with fields stored in slots defined by record layout compiled from
+ * spy definition. Context and stage information is kept in dedicated fields.
+ * Fields not known to layout (eg. added by processors) are kept in small
+ * overflow arrays. Record objects are reusable, so in most cases no garbage
+ * is produced when submitting data from probes.
+ *
+ * Spy records implement Map interface, so existing map-based processors work
+ * without modifications. Processors implementing SpyRecordProcessor interface
+ * can use indexed accessors.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecord extends AbstractMap<String,Object> {
+
+    public static final String CTX = ".CTX";
+    public static final String STAGE = ".STAGE";
+    public static final String STAGES = ".STAGES";
+
+    /** Marks unused slots (as opposed to slots with null values). */
+    private static final Object ABSENT = new Object();
+
+    private SpyRecordLayout layout;
+
+    private SpyContext ctx;
+
+    private int stage, stages;
+
+    private Object[] slots;
+
+    private String[] xnames = new String[4];
+    private Object[] xvals = new Object[4];
+    private int nx;
+
+    public SpyRecord(SpyRecordLayout layout, SpyContext ctx) {
+        this.slots = new Object[layout.size()];
+        reset(layout, ctx);
+    }
+
+    /**
+     * Prepares record for reuse.
+     *
+     * @param layout record layout
+     * @param ctx spy context
+     */
+    public void reset(SpyRecordLayout layout, SpyContext ctx) {
+        this.layout = layout;
+        this.ctx = ctx;
+        this.stage = 0;
+        this.stages = 0;
+
+        if (slots.length < layout.size()) {
+            slots = new Object[layout.size()];
+        }
+
+        Arrays.fill(slots, ABSENT);
+
+        for (int i = 0; i < nx; i++) {
+            xnames[i] = null;
+            xvals[i] = null;
+        }
+
+        nx = 0;
+    }
+
+    public SpyRecordLayout getLayout() {
+        return layout;
+    }
+
+    public SpyContext getContext() {
+        return ctx;
+    }
+
+    public int getStage() {
+        return stage;
+    }
+
+    public void setStage(int stage) {
+        this.stage = stage;
+    }
+
+    public int getStages() {
+        return stages;
+    }
+
+    public void setStages(int stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Marks stage as current stage and adds it to stages mask.
+     */
+    public void markStage(int stage) {
+        this.stage = stage;
+        this.stages |= 1 << stage;
+    }
+
+    /**
+     * Returns slot index of given field (see SpyRecordLayout.slot()).
+     */
+    public int slot(String name) {
+        return layout.slot(name);
+    }
+
+    /**
+     * Returns value stored in given slot.
+     */
+    public Object get(int slot) {
+        Object v = slots[slot];
+        return v != ABSENT ? v : null;
+    }
+
+    /**
+     * Stores value in given slot.
+     */
+    public void set(int slot, Object val) {
+        slots[slot] = val;
+    }
+
+    private int xidx(Object key) {
+        for (int i = 0; i < nx; i++) {
+            if (xnames[i] == key || xnames[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (key instanceof String) {
+            String k = (String)key;
+            if (k.length() > 0 && k.charAt(0) == '.') {
+                if (CTX.equals(k)) return ctx;
+                if (STAGE.equals(k)) return stage;
+                if (STAGES.equals(k)) return stages;
+            }
+            int slot = layout.slot(k);
+            if (slot >= 0) {
+                return get(slot);
+            }
+            int x = xidx(k);
+            return x >= 0 ? xvals[x] : null;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (CTX.equals(key) || STAGE.equals(key) || STAGES.equals(key)) {
+            return true;
+        }
+        if (key instanceof String) {
+            int slot = layout.slot((String)key);
+            if (slot >= 0) {
+                return slots[slot] != ABSENT;
+            }
+        }
+        return xidx(key) >= 0;
+    }
+
+    @Override
+    public Object put(String key, Object val) {
+        Object old;
+
+        if (CTX.equals(key)) {
+            old = ctx;
+            ctx = (SpyContext)val;
+        } else if (STAGE.equals(key)) {
+            old = stage;
+            stage = (Integer)val;
+        } else if (STAGES.equals(key)) {
+            old = stages;
+            stages = (Integer)val;
+        } else {
+            int slot = layout.slot(key);
+            if (slot >= 0) {
+                old = get(slot);
+                slots[slot] = val;
+            } else {
+                int x = xidx(key);
+                if (x >= 0) {
+                    old = xvals[x];
+                    xvals[x] = val;
+                } else {
+                    if (nx == xnames.length) {
+                        xnames = Arrays.copyOf(xnames, nx * 2);
+                        xvals = Arrays.copyOf(xvals, nx * 2);
+                    }
+                    xnames[nx] = key;
+                    xvals[nx] = val;
+                    nx++;
+                    old = null;
+                }
+            }
+        }
+
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (CTX.equals(key) || STAGE.equals(key) || STAGES.equals(key)) {
+            throw new UnsupportedOperationException("Cannot remove " + key + " from spy record.");
+        }
+
+        if (key instanceof String) {
+            int slot = layout.slot((String)key);
+            if (slot >= 0) {
+                Object old = get(slot);
+                slots[slot] = ABSENT;
+                return old;
+            }
+        }
+
+        int x = xidx(key);
+
+        if (x >= 0) {
+            Object old = xvals[x];
+            nx--;
+            xnames[x] = xnames[nx];
+            xvals[x] = xvals[nx];
+            xnames[nx] = null;
+            xvals[nx] = null;
+            return old;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void clear() {
+        reset(layout, ctx);
+    }
+
+    @Override
+    public int size() {
+        int sz = 3 + nx;
+        for (int i = 0; i < layout.size(); i++) {
+            if (slots[i] != ABSENT) {
+                sz++;
+            }
+        }
+        return sz;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                List<Entry<String,Object>> entries = new ArrayList<Entry<String, Object>>(size());
+                entries.add(new RecordEntry(CTX));
+                entries.add(new RecordEntry(STAGE));
+                entries.add(new RecordEntry(STAGES));
+                for (int i = 0; i < layout.size(); i++) {
+                    if (slots[i] != ABSENT) {
+                        entries.add(new RecordEntry(layout.name(i)));
+                    }
+                }
+                for (int i = 0; i < nx; i++) {
+                    entries.add(new RecordEntry(xnames[i]));
+                }
+                final Iterator<Entry<String,Object>> itr = entries.iterator();
+                return new Iterator<Entry<String, Object>>() {
+                    private Entry<String,Object> last;
+                    @Override
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        return last = itr.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        SpyRecord.this.remove(last.getKey());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SpyRecord.this.size();
+            }
+        };
+    }
+
+    /**
+     * Map entry view of a record field. Reads and writes go directly to record.
+     */
+    private class RecordEntry implements Entry<String,Object> {
+
+        private final String key;
+
+        private RecordEntry(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getValue() {
+            return get(key);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry)o;
+            Object v = getValue();
+            return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Object v = getValue();
+            return key.hashCode() ^ (v != null ? v.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Slot layout of spy records compiled from spy definition. Each field fetched by
+ * probes of a spy definition is assigned fixed index in record slot array, so
+ * submitted values can be stored without hashing and processors can access
+ * fields by index.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class SpyRecordLayout {
+
+    /** Field name to slot index map. */
+    private final Map<String,Integer> slots = new HashMap<String, Integer>();
+
+    /** Slot index to field name map. */
+    private final String[] names;
+
+    /** Slot indexes of probe destination fields (per stage, in probe order). */
+    private final int[][] probeSlots;
+
+    /**
+     * True if records of this layout can be reused after processing. This is possible only
+     * if all processors of spy definition are record processors, as they guarantee not to
+     * retain references to processed records.
+     */
+    private final boolean recyclable;
+
+    public SpyRecordLayout(SpyDefinition sdef) {
+        List<String> fields = new ArrayList<String>();
+
+        probeSlots = new int[4][];
+
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            List<SpyProbe> probes = sdef.getProbes(stage);
+            probeSlots[stage] = new int[probes.size()];
+            for (int i = 0; i < probes.size(); i++) {
+                String field = probes.get(i).getDstField();
+                Integer slot = slots.get(field);
+                if (slot == null) {
+                    slot = fields.size();
+                    fields.add(field);
+                    slots.put(field, slot);
+                }
+                probeSlots[stage][i] = slot;
+            }
+        }
+
+        names = fields.toArray(new String[fields.size()]);
+
+        boolean r = true;
+        for (int stage = 0; stage < probeSlots.length; stage++) {
+            for (SpyProcessor p : sdef.getProcessors(stage)) {
+                if (!(p instanceof SpyRecordProcessor)) {
+                    r = false;
+                }
+            }
+        }
+
+        recyclable = r;
+    }
+
+    /**
+     * Returns slot index of given field.
+     *
+     * @param name field name
+     * @return slot index or -1 if field has no slot assigned
+     */
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    public String name(int slot) {
+        return names[slot];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int[] getProbeSlots(int stage) {
+        return probeSlots[stage];
+    }
+
+    public boolean isRecyclable() {
+        return recyclable;
+    }
+}
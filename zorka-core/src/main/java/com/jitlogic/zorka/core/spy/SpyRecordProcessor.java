@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy;
+
+/**
+ * Processor working directly on slot-based spy records. Implementing processors
+ * must not retain references to processed records after process() returns, as
+ * records are reused if all processors of a spy definition are record processors.
+ *
+ * Map-based process() method is still required as records are not always passed
+ * as SpyRecord objects (eg. when previous processor returned different map).
+ */
+public interface SpyRecordProcessor extends SpyProcessor {
+
+    /**
+     * Transforms spy record.
+     *
+     * @param record record to be processed
+     *
+     * @return processed record or null if record should be dropped
+     */
+    SpyRecord process(SpyRecord record);
+}
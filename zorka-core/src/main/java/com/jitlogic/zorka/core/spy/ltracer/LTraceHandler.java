@@ -147,6 +147,16 @@ public class LTraceHandler extends TraceHandler {
     }
 
 
+    @Override
+    public int currentMethodId() {
+        TraceRecord tr = ttop;
+        while (tr.getMid() == 0 && tr.getParent() != null) {
+            tr = tr.getParent();
+        }
+        return tr.getMid();
+    }
+
+
     public void traceError(Object exception, long tstamp) {
 
         if (disabled) {
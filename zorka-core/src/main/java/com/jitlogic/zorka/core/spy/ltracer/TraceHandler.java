@@ -22,6 +22,8 @@ import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+
 public abstract class TraceHandler {
 
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
@@ -71,6 +73,13 @@ public abstract class TraceHandler {
 
     protected long tunLastExchange = 0;
 
+    /**
+     * Untraced calls of excluded methods, entered when frame of the same method (entered before method
+     * got excluded) was at the top of tracer stack. Such calls are recursive and must not close that frame.
+     */
+    private int[] untracedMids = new int[4];
+    private int untracedPos;
+
     public static final int LONG_PENALTY = -1024;
     public static final int ERROR_PENALTY = -256;
 
@@ -122,7 +131,8 @@ public abstract class TraceHandler {
 
         if (tunStats != null) {
             tunStats.setThreadId(Thread.currentThread().getId());
-            tunStats.setCalls(tunCalls);
+            // Tuner may hand the same buffer back if it has not processed previous one yet
+            tunStats.setCalls(tunStats.getCalls() + tunCalls);
             tunStats.setTstamp(tstamp);
             tunCalls = 0;
         }
@@ -153,6 +163,43 @@ public abstract class TraceHandler {
 
     public abstract void traceError(Object e, long tstamp);
 
+    /**
+     * Returns ID of method at the top of tracer stack (or 0 if stack is empty).
+     */
+    public abstract int currentMethodId();
+
+    /**
+     * Marks entry of excluded (untraced) method. If frame of this method is at the top of tracer stack,
+     * call is recursive and its untracedReturn() will not close that frame.
+     *
+     * @param mid method ID
+     */
+    public void untracedEnter(int mid) {
+        if (currentMethodId() == mid) {
+            if (untracedPos == untracedMids.length) {
+                untracedMids = Arrays.copyOf(untracedMids, untracedMids.length * 2);
+            }
+            untracedMids[untracedPos++] = mid;
+        }
+    }
+
+    /**
+     * Marks return (or error) of excluded (untraced) method.
+     *
+     * @param mid method ID
+     * @return true if frame at the top of tracer stack has been entered by this call and has to be closed
+     */
+    public boolean untracedReturn(int mid) {
+        if (currentMethodId() != mid) {
+            return false;
+        }
+        if (untracedPos > 0 && untracedMids[untracedPos-1] == mid) {
+            untracedPos--;
+            return false;
+        }
+        return true;
+    }
+
     public abstract DTraceContext getDTraceState();
 
     public abstract DTraceContext parentDTraceState();
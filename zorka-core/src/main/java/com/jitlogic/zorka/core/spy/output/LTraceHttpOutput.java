@@ -21,7 +21,6 @@ import com.jitlogic.zorka.common.cbor.TraceDataWriter;
 import com.jitlogic.zorka.common.http.HttpHandler;
 import com.jitlogic.zorka.common.tracedata.*;
 import com.jitlogic.zorka.common.util.*;
-import com.jitlogic.zorka.common.cbor.CborResendException;
 
 import java.util.*;
 
@@ -140,7 +139,8 @@ public class LTraceHttpOutput extends ZicoHttpOutput {
     } // processTraceRecord()
 
 
-    private void resetState() {
+    @Override
+    protected void resetState() {
         symbolsSent.reset();
         mids.clear();
         lastMid = 0;
@@ -149,61 +149,34 @@ public class LTraceHttpOutput extends ZicoHttpOutput {
 
 
     @Override
-    protected void process(List<SymbolicRecord> obj) {
-        for (SymbolicRecord sr : obj) {
-            long rt = retryTime;
-            for (int i = 0; i < retries+1; i++) {
-                try {
-                    adw.reset();
-                    tdw.reset();
-                    nExceptions = 0;
-
-                    if (sr instanceof TraceRecord) {
-                        TraceRecord tr = (TraceRecord) sr;
-                        processTraceRecord(tr);
-                    }
-
-                    if (adw.position() > 0) {
-                        byte[] data = ZorkaUtil.clipArray(adw.getBuf(), adw.position()); // TODO get rid of this allocation
-                        send(data, data.length, submitAgentUrl, 0, 0, isClean);
-                        isClean = false;
-                    }
-
-                    if (tdw.position() > 0) {
-                        long traceId1 = 0, traceId2 = 0;
-                        if (sr instanceof TraceRecord) {
-                            TraceMarker tm = ((TraceRecord)sr).getMarker();
-                            if (tm.getDstate() != null) {
-                                traceId1 = tm.getDstate().getTraceId1();
-                                traceId2 = tm.getDstate().getTraceId2();
-                            } else {
-                                traceId1 = rand.nextLong();
-                                traceId2 = rand.nextLong();
-                            }
-                        }
-                        byte[] data = ZorkaUtil.clipArray(tdw.getBuf(), tdw.position()); // TODO get rid of this allocation
-                        send(data, data.length, submitTraceUrl, traceId1, traceId2, false);
-                    }
-
-                    break;
-
-                } catch (CborResendException e) {
-                    log.info("Session expired. Reauthenticating ...");
-                    resetState();
-                } catch (Exception e) {
-                    log.error("Error sending trace record: " + e + ". Resetting connection.", e);
-                    resetState();
-                }
+    protected void sendRecord(SymbolicRecord sr) {
+        adw.reset();
+        tdw.reset();
+        nExceptions = 0;
+
+        if (sr instanceof TraceRecord) {
+            TraceRecord tr = (TraceRecord) sr;
+            processTraceRecord(tr);
+        }
 
-                try {
-                    log.debug("Will retry (wait=" + rt + ")");
-                    Thread.sleep(rt);
-                } catch (InterruptedException e) {
-                    log.warn("Huh? Sleep interrupted?");
-                }
+        if (adw.position() > 0) {
+            send(adw.getBuf(), adw.position(), submitAgentUrl, 0, 0, isClean);
+            isClean = false;
+        }
 
-                rt *= retryTimeExp;
-            } // for
+        if (tdw.position() > 0) {
+            long traceId1 = 0, traceId2 = 0;
+            if (sr instanceof TraceRecord) {
+                TraceMarker tm = ((TraceRecord)sr).getMarker();
+                if (tm.getDstate() != null) {
+                    traceId1 = tm.getDstate().getTraceId1();
+                    traceId2 = tm.getDstate().getTraceId2();
+                } else {
+                    traceId1 = rand.nextLong();
+                    traceId2 = rand.nextLong();
+                }
+            }
+            send(tdw.getBuf(), tdw.position(), submitTraceUrl, traceId1, traceId2, false);
         }
     }
 }
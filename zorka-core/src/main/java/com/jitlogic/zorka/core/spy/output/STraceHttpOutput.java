@@ -1,7 +1,7 @@
 package com.jitlogic.zorka.core.spy.output;
 
 import com.jitlogic.zorka.common.cbor.*;
-import com.jitlogic.zorka.common.http.HttpClient;
+import com.jitlogic.zorka.common.http.HttpBodyProducer;
 import com.jitlogic.zorka.common.http.HttpHandler;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
@@ -10,9 +10,11 @@ import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
 import com.jitlogic.zorka.common.util.*;
 import com.jitlogic.zorka.core.spy.stracer.ChunkedCborInput;
 import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
 
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
 
 
 public class STraceHttpOutput extends ZicoHttpOutput {
@@ -21,6 +23,12 @@ public class STraceHttpOutput extends ZicoHttpOutput {
     private SymbolRegistrySenderVisitor visitor;
     private CborDataWriter writer;
 
+    /** Chunks are returned to buffer manager after sending (if set). */
+    private STraceBufManager bufManager;
+
+    /** Scratch buffer for copying data from direct chunks */
+    private byte[] scratch;
+
     public static int chunksLength(STraceBufChunk chunks) {
         int len = 0;
         for (STraceBufChunk c  = chunks; c != null; c = c.getNext()) {
@@ -31,14 +39,69 @@ public class STraceHttpOutput extends ZicoHttpOutput {
 
 
     public STraceHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry, HttpHandler httpClient) {
+        this(config, conf, registry, httpClient, null);
+    }
+
+
+    public STraceHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry,
+                            HttpHandler httpClient, STraceBufManager bufManager) {
         super(config, conf, registry, httpClient);
+        this.bufManager = bufManager;
         writer = new CborDataWriter(65536, 65536);
         visitor = new SymbolRegistrySenderVisitor(registry, new TraceDataWriter(writer));
         scanner = new TraceDataScanner(visitor, null);
     }
 
 
-    private void resetState() {
+    /**
+     * Streams trace data directly from chunk chain (in trace order), so trace does not
+     * have to be copied into contiguous buffer before sending.
+     */
+    private class ChunksBody implements HttpBodyProducer {
+
+        private final List<STraceBufChunk> chunks = new ArrayList<STraceBufChunk>();
+
+        private int length;
+
+        private ChunksBody(STraceBufChunk chunk) {
+            for (STraceBufChunk c = chunk; c != null; c = c.getNext()) {
+                chunks.add(c);
+                length += c.size();
+            }
+            Collections.sort(chunks, new Comparator<STraceBufChunk>() {
+                @Override
+                public int compare(STraceBufChunk o1, STraceBufChunk o2) {
+                    return o1.getExtOffset() - o2.getExtOffset();
+                }
+            });
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public void write(OutputStream os) throws IOException {
+            for (STraceBufChunk c : chunks) {
+                if (c.getBuffer() != null) {
+                    os.write(c.getBuffer(), c.getStartOffset(), c.size());
+                } else {
+                    if (scratch == null) scratch = new byte[8192];
+                    for (int pos = c.getStartOffset(); pos < c.getPosition(); ) {
+                        int len = Math.min(scratch.length, c.getPosition() - pos);
+                        c.getBytes(pos, scratch, 0, len);
+                        os.write(scratch, 0, len);
+                        pos += len;
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Override
+    protected void resetState() {
         if (log.isDebugEnabled()) {
             log.debug("Resetting state ...");
         }
@@ -49,43 +112,26 @@ public class STraceHttpOutput extends ZicoHttpOutput {
 
 
     @Override
-    protected void process(List<SymbolicRecord> obj) {
-        for (SymbolicRecord sr : obj) {
-            long rt = retryTime;
-            for (int i = 0; i < retries+1; i++) {
-                STraceBufChunk chunk = (STraceBufChunk) sr;
-                try {
-                    synchronized (scanner) {
-                        CborInput input = new ChunkedCborInput(chunk);
-                        new TraceDataReader(new CborDataReader(input), new TraceDataScanner(visitor, null)).run();
-                        if (writer.position() > 0) {
-                            send(writer.getBuf(), writer.position(), submitAgentUrl, 0L, 0L, isClean);
-                            writer.reset();
-                            isClean = false;
-                        }
-                    }
-
-                    send(chunk.getBuffer(), chunk.getPosition(), submitTraceUrl, chunk.getTraceId2(), chunk.getTraceId1(), false);
-                    break;
-                } catch (CborResendException e) {
-                    log.info("Session expired. Reauthenticating ...");
-                    resetState();
-                } catch (Exception e) {
-                    log.error("Error sending trace record: " + e + ". Resetting connection.", e);
-                    resetState();
-                }
-
-                try {
-                    log.debug("Will retry (wait=" + rt + ")");
-                    Thread.sleep(rt);
-                } catch (InterruptedException e) {
-                    log.warn("Huh? Sleep interrupted?");
-                }
-
-                rt *= retryTimeExp;
+    protected void sendRecord(SymbolicRecord sr) {
+        STraceBufChunk chunk = (STraceBufChunk) sr;
+        synchronized (scanner) {
+            CborInput input = new ChunkedCborInput(chunk);
+            new TraceDataReader(new CborDataReader(input), new TraceDataScanner(visitor, null)).run();
+            if (writer.position() > 0) {
+                send(writer.getBuf(), writer.position(), submitAgentUrl, 0L, 0L, isClean);
+                writer.reset();
+                isClean = false;
             }
         }
+
+        send(new ChunksBody(chunk), submitTraceUrl, chunk.getTraceId2(), chunk.getTraceId1(), false);
     }
 
 
+    @Override
+    protected void release(SymbolicRecord sr) {
+        if (bufManager != null) {
+            bufManager.put((STraceBufChunk) sr);
+        }
+    }
 }
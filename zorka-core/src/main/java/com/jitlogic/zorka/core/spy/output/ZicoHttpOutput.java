@@ -16,21 +16,45 @@
 
 package com.jitlogic.zorka.core.spy.output;
 
+import com.jitlogic.zorka.common.cbor.CborResendException;
+import com.jitlogic.zorka.common.http.HttpBodyProducer;
 import com.jitlogic.zorka.common.http.HttpConfig;
 import com.jitlogic.zorka.common.http.HttpHandler;
 import com.jitlogic.zorka.common.http.HttpMessage;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
 import com.jitlogic.zorka.common.util.*;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import static com.jitlogic.zorka.common.tracedata.HttpConstants.*;
+import static com.jitlogic.zorka.common.util.ZorkaConfig.parseBool;
 import static com.jitlogic.zorka.common.util.ZorkaConfig.parseInt;
 
+/**
+ * Base class for tracer outputs sending data to ZICO collector. Each record is sent once,
+ * failed records are put into bounded retry queue (timer wheel, separate from submit queue)
+ * and retried with exponential backoff (with jitter), so output thread never sleeps between
+ * retries and keeps taking new records from submit queue. Circuit breaker stops sending when
+ * collector is unavailable: records are kept in retry queue until breaker allows probe send.
+ */
 public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
+    /** Retry queue resolution (milliseconds) */
+    private static final long RETRY_TICK = 25;
+
+    private static final int RETRY_SLOTS = 512;
+
     protected String sessionID;
 
     protected boolean isClean = true;
@@ -38,7 +62,7 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
     protected String submitTraceUrl, submitAgentUrl;
 
     protected int retries, timeout;
-    protected long retryTime, retryTimeExp;
+    protected long retryTime, retryTimeExp, retryTimeMax;
 
     protected SymbolRegistry registry;
 
@@ -49,6 +73,31 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
     protected Random rand = new Random();
 
+    /** If set, request bodies are compressed (deflate content encoding) while being sent */
+    protected boolean compress;
+
+    /** Compressor (reused by all requests, as output sends one request at a time), released on stop/close */
+    private Deflater deflater;
+
+    private final Object deflaterLock = new Object();
+
+    /** Records waiting for retry */
+    private TimerWheel<Retry> retryQueue;
+
+    private List<Retry> expired = new ArrayList<Retry>();
+
+    private CircuitBreaker breaker;
+
+    private static class Retry {
+        private final SymbolicRecord record;
+        private final int attempt;
+
+        private Retry(SymbolicRecord record, int attempt) {
+            this.record = record;
+            this.attempt = attempt;
+        }
+    }
+
     public ZicoHttpOutput(ZorkaConfig config, Map<String,String> conf, SymbolRegistry registry, HttpHandler httpClient) {
         super("ZORKA-CBOR-OUTPUT", parseInt(conf.get("http.qlen"), 64, "tracer.http.qlen"), 1);
 
@@ -62,6 +111,7 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
         this.retries = parseInt(conf.get("http.retries"), 10, "tracer.http.retries");
         this.retryTime = parseInt(conf.get("http.retry.time"), 125, "tracer.http.retry.time");
         this.retryTimeExp = parseInt(conf.get("http.retry.exp"), 2, "tracer.http.retry.exp");
+        this.retryTimeMax = parseInt(conf.get("http.retry.max"), 30000, "tracer.http.retry.max");
         this.timeout = parseInt(conf.get("http.timeout"), 60000, "tracer.http.output");
         this.registry = registry;
 
@@ -70,14 +120,113 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
 
         this.httpClient = httpClient;
 
+        this.compress = parseBool(conf.get("http.compress"), false, "tracer.http.compress");
+
+        this.retryQueue = new TimerWheel<Retry>(RETRY_SLOTS, RETRY_TICK,
+            parseInt(conf.get("http.retry.qlen"), 64, "tracer.http.retry.qlen"), System.currentTimeMillis());
+
+        this.breaker = new CircuitBreaker(
+            parseInt(conf.get("http.breaker.threshold"), 5, "tracer.http.breaker.threshold"),
+            parseInt(conf.get("http.breaker.time"), 10000, "tracer.http.breaker.time"));
+
         this.sessionID = String.format("%016x", rand.nextLong());
     }
 
+    /**
+     * Body sent directly from (part of) byte array, without copying.
+     */
+    protected static class BytesBody implements HttpBodyProducer {
+
+        private final byte[] buf;
+        private final int len;
+
+        public BytesBody(byte[] buf, int len) {
+            this.buf = buf;
+            this.len = len;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public void write(OutputStream os) throws IOException {
+            os.write(buf, 0, len);
+        }
+
+        @Override
+        public String toString() {
+            return ZorkaUtil.hex(buf, len) + ": " + new String(buf, 0, len, Charset.defaultCharset());
+        }
+    }
+
+    /**
+     * Compresses body produced by other producer on the fly. Compressed length is not known
+     * in advance, so body is sent using chunked transfer encoding.
+     */
+    private class DeflatedBody implements HttpBodyProducer {
+
+        private final HttpBodyProducer body;
+
+        private DeflatedBody(HttpBodyProducer body) {
+            this.body = body;
+        }
+
+        @Override
+        public int length() {
+            return -1;
+        }
+
+        @Override
+        public void write(OutputStream os) throws IOException {
+            synchronized (deflaterLock) {
+                if (deflater == null) {
+                    deflater = new Deflater(Deflater.BEST_SPEED);
+                } else {
+                    deflater.reset();
+                }
+                DeflaterOutputStream dos = new DeflaterOutputStream(os, deflater, 8192);
+                body.write(dos);
+                dos.finish();
+            }
+        }
+    }
+
+    /** Releases native memory held by cached deflater (it will be recreated if output is used again). */
+    private void endDeflater() {
+        synchronized (deflaterLock) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        endDeflater();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        endDeflater();
+    }
+
     protected void send(byte[] body, int bodyLength, String uri, long traceId1, long traceId2, boolean reset) {
-        HttpMessage req = HttpMessage.POST(uri, ZorkaUtil.clipArray(body, 0, bodyLength),  // TODO this is inefficient
+        send(new BytesBody(body, bodyLength), uri, traceId1, traceId2, reset);
+    }
+
+    protected void send(HttpBodyProducer body, String uri, long traceId1, long traceId2, boolean reset) {
+        HttpMessage req = HttpMessage.POST(uri, compress ? new DeflatedBody(body) : body,
                 HDR_ZORKA_SESSION_ID, sessionID,
                 HDR_ZORKA_SESSION_RESET, ""+reset,
                 "Content-Type", ZORKA_CBOR_CONTENT_TYPE);
+        if (compress) {
+            req.header("Content-Encoding", "deflate");
+        }
         if (traceId1 != 0 && traceId2 != 0) {
             req.header("X-Zorka-Trace-ID", ZorkaUtil.hex(traceId1, traceId2));
         }
@@ -85,14 +234,149 @@ public abstract class ZicoHttpOutput extends ZorkaAsyncThread<SymbolicRecord> {
         if (res.getStatus() < 300) {
             if (log.isTraceEnabled()) log.trace("Submitted: " + uri + " : " + ZorkaUtil.hex(traceId1, traceId2));
         } else if (res.getStatus() == 412) {
-            throw new ZorkaRuntimeException("Resend.");
+            // Session expired: collector is available, so this is not counted as failure
+            throw new CborResendException();
         } else {
             if (log.isTraceEnabled()) {
-                log.trace("ERROR at send(): uri=" + uri + ", status=" + res.getStatus() + ", data=" + ZorkaUtil.hex(body, bodyLength)
-                    + ": " + new String(body, 0, bodyLength, Charset.defaultCharset()));
+                log.trace("ERROR at send(): uri=" + uri + ", status=" + res.getStatus() + ", data=" + body);
             }
             throw new ZorkaRuntimeException("Server error: " + res.getStatus() + " " + uri);
         }
     }
 
+
+    /**
+     * Sends single record to collector (single attempt, retries are handled by output).
+     */
+    protected abstract void sendRecord(SymbolicRecord sr);
+
+    /**
+     * Resets session state after communication error (so all needed symbols will be resent).
+     */
+    protected abstract void resetState();
+
+    /**
+     * Called when output is done with record (record has been either sent or dropped).
+     */
+    protected void release(SymbolicRecord sr) {
+    }
+
+    @Override
+    public boolean submit(SymbolicRecord obj) {
+        boolean submitted = super.submit(obj);
+        if (!submitted) {
+            AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_DROPPED);
+        }
+        return submitted;
+    }
+
+    @Override
+    public void runCycle() {
+        try {
+            // Wake up regularly when there are records waiting for retry
+            SymbolicRecord sr = retryQueue.size() > 0
+                ? submitQueue.poll(retryQueue.getTick(), TimeUnit.MILLISECONDS)
+                : submitQueue.take();
+            process(sr != null ? Collections.singletonList(sr) : Collections.<SymbolicRecord>emptyList());
+            flush();
+        } catch (InterruptedException e) {
+            log.error("Cannot perform run cycle", e);
+        }
+    }
+
+    /**
+     * Sends retries that are due and then new records. In direct mode (no submit queue)
+     * retries are sent along with subsequently submitted records.
+     */
+    @Override
+    protected void process(List<SymbolicRecord> obj) {
+        if (retryQueue.size() > 0) {
+            retryQueue.expire(System.currentTimeMillis(), expired);
+            for (Retry r : expired) {
+                dispatch(r.record, r.attempt);
+            }
+            expired.clear();
+        }
+
+        for (SymbolicRecord sr : obj) {
+            dispatch(sr, 0);
+        }
+    }
+
+    private void dispatch(SymbolicRecord sr, int attempt) {
+        long t = System.currentTimeMillis();
+
+        if (!breaker.allow(t)) {
+            // Waiting for collector does not count as failed attempt
+            schedule(sr, attempt, breaker.getRetryTime());
+            return;
+        }
+
+        try {
+            sendRecord(sr);
+            breaker.success();
+            release(sr);
+        } catch (CborResendException e) {
+            log.info("Session expired. Reauthenticating ...");
+            resetState();
+            retry(sr, attempt + 1);
+        } catch (Exception e) {
+            log.error("Error sending trace record: " + e + ". Resetting connection.", e);
+            resetState();
+            if (breaker.failure(System.currentTimeMillis())) {
+                AgentDiagnostics.inc(AgentDiagnostics.ZICO_BREAKER_TRIPS);
+                log.warn("Collector unavailable. Suspending sends for "
+                    + (breaker.getRetryTime() - System.currentTimeMillis()) + "ms ("
+                    + retryQueue.size() + " records waiting for retry).");
+            }
+            retry(sr, attempt + 1);
+        }
+
+        AgentDiagnostics.set(AgentDiagnostics.ZICO_BREAKER_STATE, breaker.getState());
+    }
+
+    private void retry(SymbolicRecord sr, int attempt) {
+        if (attempt > retries) {
+            log.warn("Dropping record after " + attempt + " failed attempts.");
+            AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_LOST);
+            release(sr);
+        } else {
+            long rt = retryDelay(attempt);
+            log.debug("Will retry (wait=" + rt + ")");
+            if (schedule(sr, attempt, System.currentTimeMillis() + rt)) {
+                AgentDiagnostics.inc(AgentDiagnostics.ZICO_RETRIES);
+            }
+        }
+    }
+
+    private boolean schedule(SymbolicRecord sr, int attempt, long deadline) {
+        if (retryQueue.schedule(new Retry(sr, attempt), deadline)) {
+            return true;
+        }
+        log.debug("Retry queue full. Dropping record.");
+        AgentDiagnostics.inc(AgentDiagnostics.ZICO_PACKETS_DROPPED);
+        release(sr);
+        return false;
+    }
+
+    /**
+     * Returns delay before given retry attempt: exponential backoff (capped at http.retry.max)
+     * with random jitter, so retries from multiple agents do not hit collector at the same time.
+     */
+    protected long retryDelay(int attempt) {
+        long rt = retryTime;
+        for (int i = 1; i < attempt && rt < retryTimeMax; i++) {
+            rt *= retryTimeExp;
+        }
+        rt = Math.min(rt, retryTimeMax);
+        return rt / 2 + (long)(rand.nextDouble() * (rt - rt / 2));
+    }
+
+    public int getRetryQueueSize() {
+        return retryQueue.size();
+    }
+
+    public String getBreakerState() {
+        return breaker.getStateName();
+    }
 }
@@ -17,11 +17,12 @@
 package com.jitlogic.zorka.core.spy.plugins;
 
 import com.jitlogic.zorka.core.spy.SpyLib;
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecord;
+import com.jitlogic.zorka.core.spy.SpyRecordProcessor;
 
 import java.util.Map;
 
-public class SpyFlagsProcessor implements SpyProcessor {
+public class SpyFlagsProcessor implements SpyRecordProcessor {
 
     private boolean error;
 
@@ -40,4 +41,16 @@ public class SpyFlagsProcessor implements SpyProcessor {
 
         return record;
     }
+
+    @Override
+    public SpyRecord process(SpyRecord record) {
+
+        int f = record.getStages();
+
+        record.setStages(error
+            ? ((f | (1<<SpyLib.ON_ERROR)) & ~(1<<SpyLib.ON_RETURN))
+            : ((f | (1<<SpyLib.ON_RETURN)) & ~(1<<SpyLib.ON_ERROR)));
+
+        return record;
+    }
 }
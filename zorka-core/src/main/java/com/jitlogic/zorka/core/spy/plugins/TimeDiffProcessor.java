@@ -16,7 +16,8 @@
 
 package com.jitlogic.zorka.core.spy.plugins;
 
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecord;
+import com.jitlogic.zorka.core.spy.SpyRecordProcessor;
 
 import java.util.Map;
 
@@ -25,7 +26,7 @@ import java.util.Map;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class TimeDiffProcessor implements SpyProcessor {
+public class TimeDiffProcessor implements SpyRecordProcessor {
 
     /**
      * Field containing start timestamp
@@ -69,4 +70,24 @@ public class TimeDiffProcessor implements SpyProcessor {
         return record;
     }
 
+
+    @Override
+    public SpyRecord process(SpyRecord record) {
+        int s1 = record.slot(tstart), s2 = record.slot(tstop);
+
+        if (s1 < 0 || s2 < 0) {
+            process((Map<String,Object>)record);
+            return record;
+        }
+
+        Object v1 = record.get(s1), v2 = record.get(s2);
+
+        if (v1 instanceof Long && v2 instanceof Long) {
+            long l1 = (Long) v1, l2 = (Long) v2;
+            record.put(rslt, l2 - l1);
+        }
+
+        return record;
+    }
+
 }
@@ -22,7 +22,8 @@ import com.jitlogic.zorka.common.stats.MethodCallStatistic;
 import com.jitlogic.zorka.common.stats.MethodCallStatistics;
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.core.spy.SpyContext;
-import com.jitlogic.zorka.core.spy.SpyProcessor;
+import com.jitlogic.zorka.core.spy.SpyRecord;
+import com.jitlogic.zorka.core.spy.SpyRecordProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,7 +38,7 @@ import static com.jitlogic.zorka.core.spy.SpyLib.*;
  *
  * @author rafal.lewczuk@jitlogic.com
  */
-public class ZorkaStatsCollector implements SpyProcessor {
+public class ZorkaStatsCollector implements SpyRecordProcessor {
 
     public static final int ACTION_STATS = 0x01;
     public static final int ACTION_ENTER = 0x02;
@@ -253,6 +254,13 @@ public class ZorkaStatsCollector implements SpyProcessor {
     }
 
 
+    @Override
+    public SpyRecord process(SpyRecord record) {
+        process((Map<String, Object>) record);
+        return record;
+    }
+
+
     /**
      * Returns true if given context attribute is needed to format at least one string.
      * Strings that consist solely of context attribute macro are not counted.
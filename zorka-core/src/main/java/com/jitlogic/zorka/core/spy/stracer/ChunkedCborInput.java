@@ -3,6 +3,7 @@ package com.jitlogic.zorka.core.spy.stracer;
 import com.jitlogic.zorka.common.cbor.CborInput;
 import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -14,7 +15,10 @@ public class ChunkedCborInput extends CborInput {
     private int ccidx = 0;
 
     /** Current chunk byte buffer */
-    private byte[] buf;
+    private ByteBuffer buf;
+
+    /** Current chunk */
+    private STraceBufChunk chunk;
 
     /** Position in current chunk byte buffer */
     private int pos;
@@ -51,10 +55,12 @@ public class ChunkedCborInput extends CborInput {
     private void nextChunk() {
         if (ccidx < chunks.size()) {
             STraceBufChunk c = chunks.get(ccidx++);
-            buf = c.getBuffer();
+            chunk = c;
+            buf = c.getData();
             pos = c.getStartOffset();
             lim = c.getPosition();
         } else {
+            chunk = null;
             buf = null;
             pos = lim = 0;
         }
@@ -64,7 +70,7 @@ public class ChunkedCborInput extends CborInput {
     public byte peekB() {
         if (pos >= lim) nextChunk();
         if (pos >= lim) throw new ZorkaRuntimeException("Unexpected EOD");
-        return buf[pos];
+        return buf.get(pos);
     }
 
     @Override
@@ -72,7 +78,7 @@ public class ChunkedCborInput extends CborInput {
         if (pos >= lim) nextChunk();
         if (pos >= lim) throw new ZorkaRuntimeException("Unexpected EOD");
         size--;
-        return buf[pos++];
+        return buf.get(pos++);
     }
 
     @Override
@@ -84,7 +90,7 @@ public class ChunkedCborInput extends CborInput {
             if (pos >= lim) nextChunk();
             if (pos < lim && size > 0) {
                 int cl = Math.min(len-rpos, lim-pos);
-                System.arraycopy(buf, pos, rslt, rpos, cl);
+                chunk.getBytes(pos, rslt, rpos, cl);
                 pos += cl; size -= cl; rpos += cl;
             } else {
                 throw new ZorkaRuntimeException("Unexpected EOD");
@@ -97,14 +103,14 @@ public class ChunkedCborInput extends CborInput {
     public int readI() {
         size--;
         if (pos >= lim) nextChunk();
-        return pos < lim ? buf[pos++] & 0xff : -1;
+        return pos < lim ? buf.get(pos++) & 0xff : -1;
     }
 
     @Override
     public long readL() {
         size--;
         if (pos >= lim) nextChunk();
-        return pos < lim ? buf[pos++] & 0xffL : -1;
+        return pos < lim ? buf.get(pos++) & 0xffL : -1;
     }
 
     @Override
@@ -20,15 +20,22 @@ import com.jitlogic.zorka.common.tracedata.MetadataChecker;
 import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- * Stores chunk of trace data as it is recorded by tracer.
+ * Stores chunk of trace data as it is recorded by tracer. Data is kept either in
+ * heap buffer or in direct (off-heap) buffer. Heap chunks also expose underlying
+ * byte array via getBuffer(), direct chunks should be accessed via getData() or
+ * copied using getBytes().
  */
 public class STraceBufChunk implements SymbolicRecord {
 
-    /** Trace data buffer. */
+    /** Trace data buffer (only for heap chunks, null for direct chunks). */
     private byte[] buffer;
 
+    /** Trace data buffer: wraps heap array or points to off-heap memory. */
+    private ByteBuffer data;
+
     /** Internal offset: number of bytes to skip at the beginning of current buffer. */
     private int startOffset;
 
@@ -52,12 +59,72 @@ public class STraceBufChunk implements SymbolicRecord {
     public STraceBufChunk(int position) {
         this.position = position;
         this.buffer = new byte[position];
+        this.data = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Creates chunk backed by given buffer. If buffer is direct, chunk will be off-heap.
+     */
+    public STraceBufChunk(ByteBuffer data) {
+        this.data = data;
+        this.buffer = data.hasArray() && data.arrayOffset() == 0 ? data.array() : null;
+        this.position = data.capacity();
     }
 
+    /**
+     * Returns underlying byte array or null if chunk is not backed by heap array.
+     */
     public byte[] getBuffer() {
         return buffer;
     }
 
+    /**
+     * Returns buffer holding chunk data. Use only absolute get/put methods, as
+     * buffer position and limit are not meaningful.
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public boolean isDirect() {
+        return data.isDirect();
+    }
+
+    public int capacity() {
+        return data.capacity();
+    }
+
+    /**
+     * Copies chunk data to byte array.
+     *
+     * @param offs offset in chunk
+     * @param dst destination array
+     * @param dstOffs offset in destination array
+     * @param len number of bytes to copy
+     */
+    public void getBytes(int offs, byte[] dst, int dstOffs, int len) {
+        if (buffer != null) {
+            System.arraycopy(buffer, offs, dst, dstOffs, len);
+        } else {
+            ByteBuffer d = data.duplicate();
+            d.position(offs);
+            d.get(dst, dstOffs, len);
+        }
+    }
+
+    /**
+     * Returns byte array with chunk data (from zero offset up to current position). Heap
+     * chunks return their own array, so its length may be bigger than position.
+     */
+    public byte[] getBytes() {
+        if (buffer != null) {
+            return buffer;
+        }
+        byte[] b = new byte[position];
+        getBytes(0, b, 0, position);
+        return b;
+    }
+
     public int getStartOffset() {
         return startOffset;
     }
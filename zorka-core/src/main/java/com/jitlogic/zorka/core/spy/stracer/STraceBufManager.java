@@ -16,63 +16,428 @@
 
 package com.jitlogic.zorka.core.spy.stracer;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of trace buffer chunks shared by streaming tracer handlers and trace outputs.
+ *
+ * Chunk lifecycle is as follows: tracer handler obtains chunks via get() and links them into
+ * a chain as trace is recorded; whole chain is then submitted to output and from this moment
+ * output owns it; output returns chain via put() as soon as data has been sent (or discarded).
+ * If output refuses submitted chain, handler returns it by itself. Chunks that are not returned
+ * (eg. retained by some custom output) are simply garbage collected.
+ *
+ * Free chunks are kept in a set of small stripes (selected by thread ID) and a global overflow
+ * stack. Stripes are guarded by non-blocking try-locks, overflow stack is a lock-free (CAS) stack
+ * of preallocated nodes addressed by index, with version packed into the top word (so it is not
+ * prone to ABA problem and does not allocate anything), so no thread ever blocks on buffer manager.
+ * Total number of pooled chunks never exceeds maxChunks.
+ *
+ * Chunks can be allocated off-heap (direct buffers), so tracer buffers do not add to application
+ * GC pressure. Total size of direct chunks is capped; when cap is reached, heap chunks are used
+ * instead until direct chunks are returned. Heap chunks returned to direct buffer manager are
+ * not pooled, so pool converges to direct chunks. Direct chunks are tracked with phantom references,
+ * so chunks that are never returned (or dropped as pool is full) release their share of the cap
+ * as soon as they are garbage collected.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
 public class STraceBufManager {
 
-    private STraceBufChunk chunks[];
-    private int nChunks = 0;
+    /** Maximum number of stripes. */
+    private static final int MAX_STRIPES = 64;
+
+    private final int chunkSize;
+
+    private final int maxChunks;
+
+    private final Stripe[] stripes;
+
+    private final int stripeMask;
+
+    /** Overflow stack nodes: chunks and links (index of next node + 1, 0 terminates list). */
+    private final AtomicReferenceArray<STraceBufChunk> ovChunks;
+    private final AtomicIntegerArray ovNext;
+
+    /**
+     * Tops of overflow stack and of free node list: version in upper 32 bits (incremented on each change)
+     * and index of top node + 1 in lower 32 bits (0 if list is empty).
+     */
+    private final AtomicLong ovTop = new AtomicLong(0), ovFree = new AtomicLong(0);
+
+    /** Number of chunks in overflow stack. */
+    private final AtomicInteger nOverflow = new AtomicInteger(0);
+
+    /** Maximum number of chunks in overflow stack. */
+    private final int maxOverflow;
+
+    /** If true, chunks will be allocated off-heap. */
+    private final boolean direct;
+
+    /** Maximum number of existing direct chunks (both pooled and in use). */
+    private final int maxDirect;
+
+    /** Number of existing direct chunks (both pooled and in use). */
+    private final AtomicInteger nDirect = new AtomicInteger(0);
 
-    private int chunkSize;
+    /** References to existing direct chunks (keeps references themselves reachable). */
+    private final Set<Reference<STraceBufChunk>> directRefs =
+        Collections.newSetFromMap(new ConcurrentHashMap<Reference<STraceBufChunk>, Boolean>());
 
-    private int maxChunks;
+    /** Garbage collected direct chunks are reported here. */
+    private final ReferenceQueue<STraceBufChunk> directQueue = new ReferenceQueue<STraceBufChunk>();
 
-    private int nGets, nPuts, nAllocs, nDrops;
+    /**
+     * Stripe of free chunks. Counters are kept per stripe as well, so that
+     * threads using different stripes do not contend on shared counters.
+     */
+    private static class Stripe {
+        /** Padding preventing false sharing between stripes. */
+        @SuppressWarnings("unused")
+        long p0, p1, p2, p3, p4, p5, p6;
+
+        final AtomicBoolean lock = new AtomicBoolean(false);
+        final STraceBufChunk[] chunks;
+        int nChunks;
+
+        final AtomicLong nGets = new AtomicLong(0), nPuts = new AtomicLong(0),
+            nAllocs = new AtomicLong(0), nReuses = new AtomicLong(0),
+            nMisses = new AtomicLong(0), nDrops = new AtomicLong(0),
+            nFallbacks = new AtomicLong(0);
+
+        @SuppressWarnings("unused")
+        long q0, q1, q2, q3, q4, q5, q6;
+
+        Stripe(int capacity) {
+            chunks = new STraceBufChunk[capacity];
+        }
+    }
 
     public STraceBufManager(int chunkSize, int maxChunks) {
+        this(chunkSize, maxChunks, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates buffer manager.
+     *
+     * @param chunkSize size of single chunk (bytes)
+     * @param maxChunks maximum number of pooled (free) chunks
+     * @param concurrency expected number of concurrently tracing threads (typically number of CPUs)
+     */
+    public STraceBufManager(int chunkSize, int maxChunks, int concurrency) {
+        this(chunkSize, maxChunks, concurrency, false, 0);
+    }
+
+    /**
+     * Creates buffer manager.
+     *
+     * @param chunkSize size of single chunk (bytes)
+     * @param maxChunks maximum number of pooled (free) chunks
+     * @param concurrency expected number of concurrently tracing threads (typically number of CPUs)
+     * @param direct allocate chunks off-heap
+     * @param maxDirectSize maximum total size of off-heap chunks (bytes)
+     */
+    public STraceBufManager(int chunkSize, int maxChunks, int concurrency, boolean direct, long maxDirectSize) {
         this.chunkSize = chunkSize;
         this.maxChunks = maxChunks;
-        this.chunks = new STraceBufChunk[maxChunks];
+        this.direct = direct;
+        this.maxDirect = (int)Math.min(Integer.MAX_VALUE, maxDirectSize / chunkSize);
+
+        // Half of pool is distributed among stripes, the rest is available via overflow stack.
+        int n = 1;
+        while (n < concurrency && n < MAX_STRIPES && n * 4 <= maxChunks) {
+            n <<= 1;
+        }
+
+        int stripeCapacity = maxChunks / (2 * n);
+
+        this.stripes = new Stripe[n];
+        this.stripeMask = n - 1;
+
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+
+        this.maxOverflow = maxChunks - n * stripeCapacity;
+
+        this.ovChunks = new AtomicReferenceArray<STraceBufChunk>(maxOverflow);
+        this.ovNext = new AtomicIntegerArray(maxOverflow);
+
+        for (int i = 0; i < maxOverflow; i++) {
+            pushNode(ovFree, i);
+        }
     }
 
-    public synchronized STraceBufChunk get() {
-        nGets++;
-        if (nChunks > 0) {
-            STraceBufChunk ch = chunks[--nChunks];
+    private Stripe stripe() {
+        return stripes[(int)Thread.currentThread().getId() & stripeMask];
+    }
+
+    /**
+     * Returns free chunk. Chunk is taken from local stripe if possible, then from
+     * overflow stack and if both are empty, new chunk is allocated.
+     *
+     * @return clean (reset) chunk
+     */
+    public STraceBufChunk get() {
+        Stripe s = stripe();
+        s.nGets.incrementAndGet();
+
+        STraceBufChunk ch = null;
+
+        if (s.lock.compareAndSet(false, true)) {
+            if (s.nChunks > 0) {
+                ch = s.chunks[--s.nChunks];
+                s.chunks[s.nChunks] = null;
+            }
+            s.lock.set(false);
+        }
+
+        if (ch == null) {
+            s.nMisses.incrementAndGet();
+            ch = pop();
+        }
+
+        if (ch != null) {
+            s.nReuses.incrementAndGet();
             ch.reset();
-            nAllocs++;
             return ch;
         }
 
+        s.nAllocs.incrementAndGet();
+
+        if (direct) {
+            reclaimDirect();
+            if (nDirect.incrementAndGet() <= maxDirect) {
+                STraceBufChunk c = new STraceBufChunk(ByteBuffer.allocateDirect(chunkSize));
+                directRefs.add(new PhantomReference<STraceBufChunk>(c, directQueue));
+                return c;
+            }
+            nDirect.decrementAndGet();
+            s.nFallbacks.incrementAndGet();
+        }
+
         return new STraceBufChunk(chunkSize);
     }
 
-    public synchronized void put(STraceBufChunk chunk) {
-        nPuts++;
-        for (STraceBufChunk ch = chunk; ch != null; ch = ch.getNext()) {
-            if (nChunks < maxChunks) {
-                chunks[nChunks++] = ch;
-            } else {
-                nDrops++;
+    /**
+     * Returns chain of chunks to the pool. Chunks that do not fit in the pool are dropped.
+     *
+     * @param chunk first chunk of a chain (chunks are linked via next field)
+     */
+    public void put(STraceBufChunk chunk) {
+        Stripe s = stripe();
+        s.nPuts.incrementAndGet();
+
+        STraceBufChunk ch = direct ? skipHeap(chunk) : chunk;
+
+        if (ch != null && s.lock.compareAndSet(false, true)) {
+            while (ch != null && s.nChunks < s.chunks.length) {
+                STraceBufChunk next = direct ? skipHeap(ch.getNext()) : ch.getNext();
+                ch.setNext(null);
+                s.chunks[s.nChunks++] = ch;
+                ch = next;
+            }
+            s.lock.set(false);
+        }
+
+        while (ch != null) {
+            STraceBufChunk next = direct ? skipHeap(ch.getNext()) : ch.getNext();
+            if (!push(ch)) {
+                // Dropped direct chunk will release its slot when garbage collected.
+                ch.setNext(null);
+                s.nDrops.incrementAndGet();
+            }
+            ch = next;
+        }
+    }
+
+    /** Releases slots of direct chunks that have been garbage collected. */
+    private void reclaimDirect() {
+        for (Reference<? extends STraceBufChunk> r = directQueue.poll(); r != null; r = directQueue.poll()) {
+            if (directRefs.remove(r)) {
+                nDirect.decrementAndGet();
             }
         }
     }
 
-    public synchronized int getNChunks() {
-        return nChunks;
+    /** Skips (and unlinks) heap chunks at the beginning of a chain. */
+    private static STraceBufChunk skipHeap(STraceBufChunk ch) {
+        while (ch != null && !ch.isDirect()) {
+            STraceBufChunk next = ch.getNext();
+            ch.setNext(null);
+            ch = next;
+        }
+        return ch;
+    }
+
+    /** Pushes single chunk onto overflow stack. Returns false if stack is full. */
+    private boolean push(STraceBufChunk ch) {
+        int idx = popNode(ovFree);
+
+        if (idx < 0) {
+            return false;
+        }
+
+        ch.setNext(null);
+        ovChunks.set(idx, ch);
+        pushNode(ovTop, idx);
+        nOverflow.incrementAndGet();
+
+        return true;
+    }
+
+    /** Pops single chunk from overflow stack (or returns null if stack is empty). */
+    private STraceBufChunk pop() {
+        int idx = popNode(ovTop);
+
+        if (idx < 0) {
+            return null;
+        }
+
+        nOverflow.decrementAndGet();
+        STraceBufChunk ch = ovChunks.getAndSet(idx, null);
+        pushNode(ovFree, idx);
+
+        return ch;
+    }
+
+    /** Pushes node onto a list. Node must be owned by calling thread (popped before or never pushed). */
+    private void pushNode(AtomicLong head, int idx) {
+        long h;
+        do {
+            h = head.get();
+            ovNext.set(idx, (int)h);
+        } while (!head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (idx + 1)));
     }
 
-    public synchronized int getNGets() {
-        return nGets;
+    /**
+     * Pops node from a list. Version check makes sure that top has not been popped
+     * and pushed back (with different next node) in the meantime.
+     *
+     * @return node index or -1 if list is empty
+     */
+    private int popNode(AtomicLong head) {
+        long h;
+        int idx;
+        do {
+            h = head.get();
+            idx = (int)h - 1;
+            if (idx < 0) {
+                return -1;
+            }
+        } while (!head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (ovNext.get(idx) & 0xffffffffL)));
+
+        return idx;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
     }
 
-    public synchronized int getNputs() {
-        return nPuts;
+    public int getMaxChunks() {
+        return maxChunks;
     }
 
-    public synchronized int getnAllocs() {
-        return nAllocs;
+    public boolean isDirect() {
+        return direct;
     }
 
-    public synchronized int getnDrops() {
-        return nDrops;
+    /** Returns number of existing direct chunks (both pooled and in use). */
+    public int getNDirect() {
+        reclaimDirect();
+        return nDirect.get();
+    }
+
+    /** Returns total size of existing direct chunks (bytes). */
+    public long getDirectSize() {
+        return (long)getNDirect() * chunkSize;
+    }
+
+    /** Returns number of stripes. */
+    public int getNStripes() {
+        return stripes.length;
+    }
+
+    /** Returns (approximate) number of free chunks in pool. */
+    public int getNChunks() {
+        int n = nOverflow.get();
+        for (Stripe s : stripes) {
+            n += s.nChunks;
+        }
+        return n;
+    }
+
+    /** Returns number of get() calls. */
+    public long getNGets() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nGets.get();
+        }
+        return n;
+    }
+
+    /** Returns number of put() calls. */
+    public long getNputs() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nPuts.get();
+        }
+        return n;
+    }
+
+    /** Returns number of newly allocated chunks. */
+    public long getnAllocs() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nAllocs.get();
+        }
+        return n;
+    }
+
+    /** Returns number of chunks reused from pool. */
+    public long getnReuses() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nReuses.get();
+        }
+        return n;
+    }
+
+    /** Returns number of get() calls that could not be served from local stripe. */
+    public long getnMisses() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nMisses.get();
+        }
+        return n;
+    }
+
+    /** Returns number of heap chunks allocated as direct memory cap has been reached. */
+    public long getnFallbacks() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nFallbacks.get();
+        }
+        return n;
+    }
+
+    /** Returns number of chunks dropped as pool was full. */
+    public long getnDrops() {
+        long n = 0;
+        for (Stripe s : stripes) {
+            n += s.nDrops.get();
+        }
+        return n;
     }
 }
@@ -27,9 +27,13 @@ import com.jitlogic.zorka.core.spy.TracerLib;
 import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
 import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.RandomAccess;
 
 import static com.jitlogic.zorka.common.cbor.CBOR.*;
 import static com.jitlogic.zorka.common.cbor.TraceDataTags.*;
@@ -46,6 +50,15 @@ public class STraceHandler extends TraceHandler {
 
     public static final int STACK_DEFAULT_SIZE = 384;
 
+    /** Maximum nesting depth of collections written as attribute values (deeper ones are written as strings). */
+    public static final int MAX_OBJ_DEPTH = 4;
+
+    /** Maximum number of collection elements written as attribute values (remaining ones are skipped). */
+    public static final int MAX_OBJ_ITEMS = 64;
+
+    /** Maximum length of encoded trace end record. */
+    private static final int TRACE_END_MAX_LEN = 2 + 9 + 9 + 5 + 1;
+
     public static final int TICK_SHIFT = 16;
     public static final int BPOS_SHIFT = 32;
 
@@ -84,7 +97,7 @@ public class STraceHandler extends TraceHandler {
     protected STraceBufManager bufManager;
     protected STraceBufChunk chunk = null;
     /** Currently selected output buffer. */
-    protected byte[] buffer;
+    protected ByteBuffer buffer;
     /** Buffer position and buffer length. */
     protected int bufOffs;
     protected int bufPos;
@@ -176,10 +189,10 @@ public class STraceHandler extends TraceHandler {
         }
 
         lastPos = bufPos;
-        buffer[bufPos++] = (byte)0xc3;   // TAG_TRACE_START
-        buffer[bufPos++] = (byte)0x82;   // ARR_BASE+3
-        writeUInt(UINT_BASE, methodId);  // TODO rozwinąć ręcznie
-        writeULong(UINT_BASE, tstamp);   // TODO rozwinąć ręcznie
+        buffer.put(bufPos++, (byte)0xc3);   // TAG_TRACE_START
+        buffer.put(bufPos++, (byte)0x82);   // ARR_BASE+3
+        bufPos = putUInt(buffer, bufPos, UINT_BASE, methodId);
+        bufPos = putULong(buffer, bufPos, UINT_BASE, tstamp);
 
         stack[stackPos] = tstamp;
         stack[stackPos+1] = 1 + ((long)(bufPos + bufOffs) << 32);
@@ -216,12 +229,16 @@ public class STraceHandler extends TraceHandler {
         if (dur >= minMethodTime || fsm || pos < bufOffs || tid != 0) {
             // Output trace flags (if any)
             int flags = (int)(w1 >>> TF_BITS);
-            writeUInt(TAG_BASE, TAG_TRACE_END);
-            writeUInt(ARR_BASE, flags != 0 ? 3 : 2);
-            writeULong(UINT_BASE, tstamp);
-            writeULong(UINT_BASE, calls);
-            if (flags != 0) writeUInt(UINT_BASE, flags);
-            write(BREAK_CODE);
+            if (bufLen - bufPos < TRACE_END_MAX_LEN) nextChunk();
+            ByteBuffer b = buffer;
+            int p = bufPos;
+            b.put(p, (byte)(TAG_BASE+TAG_TRACE_END));
+            b.put(p+1, (byte)(ARR_BASE + (flags != 0 ? 3 : 2)));
+            p = putULong(b, p+2, UINT_BASE, tstamp);
+            p = putULong(b, p, UINT_BASE, calls);
+            if (flags != 0) p = putUInt(b, p, UINT_BASE, flags);
+            b.put(p, (byte)BREAK_CODE);
+            bufPos = p+1;
         } else {
             bufPos = pos - bufOffs;
         }
@@ -300,6 +317,12 @@ public class STraceHandler extends TraceHandler {
     }
 
 
+    @Override
+    public int currentMethodId() {
+        return stackPos >= 3 ? (int)(stack[stackPos-W2_OFF] & MID_MASK) : 0;
+    }
+
+    @Override
     public void traceError(Object e, long tstamp) {
         if (disabled) return;
         if (stackPos == 0) return;
@@ -463,10 +486,10 @@ public class STraceHandler extends TraceHandler {
                 bufManager.put(chunk.getNext());
                 chunk.setNext(null);
             }
-            buffer = chunk.getBuffer();
+            buffer = chunk.getData();
             bufPos = 0;
             bufOffs = 0;
-            bufLen = buffer.length;
+            bufLen = buffer.capacity();
             nchunks = 1;
         } else {
             buffer = null;
@@ -487,7 +510,10 @@ public class STraceHandler extends TraceHandler {
         if (buffer != null) {
             flushChunk();
         }
-        output.submit(chunk);
+        if (!output.submit(chunk) && chunk != null) {
+            // Chunks not accepted by output are still owned by handler.
+            bufManager.put(chunk);
+        }
         chunk = null;
 
         bufOffs = 0;
@@ -517,14 +543,14 @@ public class STraceHandler extends TraceHandler {
         ch.setTraceId2(traceId2);
 
         chunk = ch;
-        buffer = ch.getBuffer();
-        bufLen = buffer.length;
+        buffer = ch.getData();
+        bufLen = buffer.capacity();
     }
 
 
     public void write(int b) {
         if (bufLen - bufPos < 1) nextChunk();
-        buffer[bufPos++] = (byte)b;
+        buffer.put(bufPos++, (byte)b);
     }
 
     public void write(byte[] b) {
@@ -532,130 +558,258 @@ public class STraceHandler extends TraceHandler {
     }
 
     public void write(byte b[], int off, int len) {
-        int bfree = bufLen - bufPos;
+        while (len > 0) {
+            if (bufPos == bufLen) nextChunk();
+            int sz = Math.min(bufLen - bufPos, len);
+            buffer.position(bufPos);
+            buffer.put(b, off, sz);
+            bufPos += sz;
+            off += sz;
+            len -= sz;
+        }
+    }
 
-        if (bfree == 0) nextChunk();
 
-        int sz = bfree < len ? bfree : len;
+    /**
+     * Encodes CBOR header with unsigned int argument at given position. Buffer space
+     * is not checked, so caller has to ensure that at least 5 bytes are available.
+     *
+     * @return position after encoded header
+     */
+    private static int putUInt(ByteBuffer buf, int pos, int base, int i) {
+        if (i < CBOR.UINT_CODE1) {
+            buf.put(pos, (byte)(base+i));
+            return pos + 1;
+        } else if (i < 0x100) {
+            buf.put(pos, (byte)(base+CBOR.UINT_CODE1));
+            buf.put(pos+1, (byte)i);
+            return pos + 2;
+        } else if (i < 0x10000) {
+            buf.put(pos, (byte)(base+CBOR.UINT_CODE2));
+            buf.putShort(pos+1, (short)i);
+            return pos + 3;
+        } else {
+            buf.put(pos, (byte)(base+CBOR.UINT_CODE4));
+            buf.putInt(pos+1, i);
+            return pos + 5;
+        }
+    }
 
-        System.arraycopy(b, off, buffer, bufPos, sz);
-        bufPos += sz;
 
-        if (sz < len) {
-            write(b, off+sz, len-sz);
+    /**
+     * Encodes CBOR header with unsigned long argument at given position. Buffer space
+     * is not checked, so caller has to ensure that at least 9 bytes are available.
+     *
+     * @return position after encoded header
+     */
+    private static int putULong(ByteBuffer buf, int pos, int base, long l) {
+        if (l >= 0 && l <= Integer.MAX_VALUE) {
+            return putUInt(buf, pos, base, (int)l);
+        } else {
+            buf.put(pos, (byte)(base+CBOR.UINT_CODE8));
+            buf.putLong(pos+1, l);
+            return pos + 9;
         }
     }
 
 
     public void writeUInt(int base, int i) {
-        if (i < CBOR.UINT_CODE1) {
-            if (bufLen - bufPos < 1) nextChunk();
-            buffer[bufPos++] = (byte)(base+i);
-        } else if (i < 0x100) {
-            if (bufLen - bufPos < 2) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE1);
-            buffer[bufPos+1] = (byte) (i & 0xff);
-            bufPos += 2;
-        } else if (i < 0x10000) {
-            if (bufLen - bufPos < 3) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE2);
-            buffer[bufPos+1] = (byte) ((i >> 8) & 0xff);
-            buffer[bufPos+2] = (byte) (i & 0xff);
-            bufPos += 3;
+        if (bufLen - bufPos < 5) nextChunk();
+        bufPos = putUInt(buffer, bufPos, base, i);
+    }
+
+    public void writeULong(int base, long l) {
+        if (bufLen - bufPos < 9) nextChunk();
+        bufPos = putULong(buffer, bufPos, base, l);
+    }
+
+
+    /** Returns length of UTF-8 representation of given character sequence. */
+    private static int utf8Length(CharSequence s) {
+        int len = s.length(), blen = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    blen++;
+                } else if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+                    blen += 2;
+                    i++;
+                } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                    blen += 2;
+                } // Unpaired surrogates are encoded as '?'
+            }
+        }
+        return blen;
+    }
+
+
+    /**
+     * Writes character sequence as CBOR string. Characters are encoded (as UTF-8)
+     * directly into trace buffer, so no temporary byte arrays are needed.
+     */
+    public void writeString(CharSequence s) {
+        int len = s.length(), blen = utf8Length(s);
+
+        writeUInt(STR_BASE, blen);
+
+        if (blen == len) {
+            // Only single byte characters (ASCII or unpaired surrogates), copy in blocks
+            for (int i = 0; i < len; ) {
+                if (bufPos == bufLen) nextChunk();
+                int n = Math.min(len - i, bufLen - bufPos);
+                ByteBuffer b = buffer;
+                int p = bufPos;
+                for (int j = 0; j < n; j++) {
+                    char ch = s.charAt(i+j);
+                    b.put(p+j, ch < 0x80 ? (byte)ch : (byte)'?');
+                }
+                bufPos += n;
+                i += n;
+            }
         } else {
-            if (bufLen - bufPos < 5) nextChunk();
-            buffer[bufPos]   = (byte) (base+CBOR.UINT_CODE4);
-            buffer[bufPos+1] = (byte) ((i >> 24) & 0xff);
-            buffer[bufPos+2] = (byte) ((i >> 16) & 0xff);
-            buffer[bufPos+3] = (byte) ((i >> 8) & 0xff);
-            buffer[bufPos+4] = (byte) (i & 0xff);
-            bufPos += 5;
+            for (int i = 0; i < len; i++) {
+                if (bufLen - bufPos < 4) nextChunk();
+                char c = s.charAt(i);
+                if (Character.isHighSurrogate(c) && i+1 < len && Character.isLowSurrogate(s.charAt(i+1))) {
+                    putCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+                } else {
+                    putCodePoint(c);
+                }
+            }
         }
     }
 
-    public void writeULong(int base, long l) {
-        if (l <= Integer.MAX_VALUE) {
-            writeUInt(base, (int)l);
+
+    /** Writes single character as CBOR string. */
+    public void writeChar(char c) {
+        if (bufLen - bufPos < 4) nextChunk();
+        int p = bufPos;
+        bufPos++;
+        putCodePoint(c);
+        buffer.put(p, (byte)(STR_BASE + bufPos - p - 1));
+    }
+
+
+    /** Encodes single code point as UTF-8. Caller has to ensure that at least 4 bytes are available. */
+    private void putCodePoint(int c) {
+        ByteBuffer b = buffer;
+        int p = bufPos;
+        if (c < 0x80) {
+            b.put(p, (byte)c);
+            bufPos = p + 1;
+        } else if (c < 0x800) {
+            b.put(p, (byte)(0xc0 | (c >> 6)));
+            b.put(p+1, (byte)(0x80 | (c & 0x3f)));
+            bufPos = p + 2;
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            b.put(p, (byte)'?');
+            bufPos = p + 1;
+        } else if (c < 0x10000) {
+            b.put(p, (byte)(0xe0 | (c >> 12)));
+            b.put(p+1, (byte)(0x80 | ((c >> 6) & 0x3f)));
+            b.put(p+2, (byte)(0x80 | (c & 0x3f)));
+            bufPos = p + 3;
         } else {
-            if (bufLen - bufPos < 9) nextChunk();
-            buffer[bufPos] = (byte) (base+CBOR.UINT_CODE8);
-            buffer[bufPos+1] = (byte) ((l >> 56) & 0xff);
-            buffer[bufPos+2] = (byte) ((l >> 48) & 0xff);
-            buffer[bufPos+3] = (byte) ((l >> 40) & 0xff);
-            buffer[bufPos+4] = (byte) ((l >> 32) & 0xff);
-            buffer[bufPos+5] = (byte) ((l >> 24) & 0xff);
-            buffer[bufPos+6] = (byte) ((l >> 16) & 0xff);
-            buffer[bufPos+7] = (byte) ((l >> 8) & 0xff);
-            buffer[bufPos+8] = (byte)  (l & 0xff);
-            bufPos += 9;
+            b.put(p, (byte)(0xf0 | (c >> 18)));
+            b.put(p+1, (byte)(0x80 | ((c >> 12) & 0x3f)));
+            b.put(p+2, (byte)(0x80 | ((c >> 6) & 0x3f)));
+            b.put(p+3, (byte)(0x80 | (c & 0x3f)));
+            bufPos = p + 4;
         }
     }
 
-    public void writeString(String s)  {
-        byte[] b = s.getBytes();
-        writeUInt(0x60, b.length);
-        write(b);
+
+    public void writeBytes(byte[] b) {
+        writeUInt(BYTES_BASE, b.length);
+        write(b, 0, b.length);
     }
 
     public void writeList(List lst) {
-        // TODO obsłużyć również array of objects, array of integers itd.
-        writeUInt(0x80, lst.size());
-        for (Object itm : lst) {
-            writeObject(itm);
+        writeList(lst, 0);
+    }
+
+    private void writeList(List lst, int depth) {
+        int n = Math.min(lst.size(), MAX_OBJ_ITEMS);
+        writeUInt(ARR_BASE, n);
+        if (lst instanceof RandomAccess) {
+            for (int i = 0; i < n; i++) {
+                writeObject(lst.get(i), depth+1);
+            }
+        } else {
+            writeItems(lst, n, depth);
+        }
+    }
+
+    private void writeItems(Collection col, int n, int depth) {
+        Iterator itr = col.iterator();
+        for (int i = 0; i < n && itr.hasNext(); i++) {
+            writeObject(itr.next(), depth+1);
+        }
+    }
+
+    private void writeArray(Object[] arr, int depth) {
+        int n = Math.min(arr.length, MAX_OBJ_ITEMS);
+        writeUInt(ARR_BASE, n);
+        for (int i = 0; i < n; i++) {
+            writeObject(arr[i], depth+1);
         }
     }
 
     public void writeMap(Map<Object,Object> map) {
-        writeUInt(0xa0, map.size());
+        writeMap(map, 0);
+    }
+
+    private void writeMap(Map<Object,Object> map, int depth) {
+        int n = Math.min(map.size(), MAX_OBJ_ITEMS), i = 0;
+        writeUInt(MAP_BASE, n);
         for (Map.Entry e : map.entrySet()) {
-            writeObject(e.getKey());
-            writeObject(e.getValue());
+            if (i++ >= n) break;
+            writeObject(e.getKey(), depth+1);
+            writeObject(e.getValue(), depth+1);
         }
     }
 
     public void writeInt(int i) {
         if (i >= 0) {
-            writeUInt(0, i);
+            writeUInt(UINT_BASE, i);
         } else {
-            writeUInt(0x20, Math.abs(i)-1);
+            writeUInt(NINT_BASE, ~i);
         }
     }
 
     public void writeLong(long l) {
         if (l >= 0) {
-            writeULong(0, l);
+            writeULong(UINT_BASE, l);
         } else {
-            writeULong(0x20, Math.abs(l)-1L);
+            writeULong(NINT_BASE, ~l);
         }
     }
 
     public void writeFloat(float f) {
-        int i = Float.floatToIntBits(f);
         if (bufLen - bufPos < 5) nextChunk();
-        buffer[bufPos] = (byte)CBOR.FLOAT_BASE4;
-        buffer[bufPos+1] = (byte)((i >> 24) & 0xff);
-        buffer[bufPos+2] = (byte)((i >> 16) & 0xff);
-        buffer[bufPos+3] = (byte)((i >> 8) & 0xff);
-        buffer[bufPos+4] = (byte)(i & 0xff);
+        buffer.put(bufPos, (byte)CBOR.FLOAT_BASE4);
+        buffer.putInt(bufPos+1, Float.floatToIntBits(f));
         bufPos += 5;
     }
 
     public void writeDouble(double d) {
         if (bufLen - bufPos < 9) nextChunk();
-        long l = Double.doubleToLongBits(d);
-        buffer[bufPos] = (byte)CBOR.FLOAT_BASE8;
-        buffer[bufPos + 1] = (byte)((l >> 56) & 0xff);
-        buffer[bufPos + 2] = (byte)((l >> 48) & 0xff);
-        buffer[bufPos + 3] = (byte)((l >> 40) & 0xff);
-        buffer[bufPos + 4] = (byte)((l >> 32) & 0xff);
-        buffer[bufPos + 5] = (byte)((l >> 24) & 0xff);
-        buffer[bufPos + 6] = (byte)((l >> 16) & 0xff);
-        buffer[bufPos + 7] = (byte)((l >> 8) & 0xff);
-        buffer[bufPos + 8] = (byte)(l & 0xff);
+        buffer.put(bufPos, (byte)CBOR.FLOAT_BASE8);
+        buffer.putLong(bufPos+1, Double.doubleToLongBits(d));
         bufPos += 9;
     }
 
     public void writeObject(Object obj) {
+        writeObject(obj, 0);
+    }
+
+    /**
+     * Writes object in CBOR format. Strings, boxed primitives, byte arrays, enums and
+     * collections are encoded natively. Collections nested deeper than MAX_OBJ_DEPTH
+     * and objects of other types are written as strings.
+     */
+    private void writeObject(Object obj, int depth) {
 
         if (obj == null) {
             write(CBOR.NULL_CODE);
@@ -663,30 +817,50 @@ public class STraceHandler extends TraceHandler {
         }
 
         Class<?> c = obj.getClass();
-        if (c == Byte.class || c == Short.class || c == Integer.class) {
+        if (c == String.class) {
+            writeString((String)obj);
+        } else if (c == Integer.class || c == Short.class || c == Byte.class) {
             writeInt(((Number)obj).intValue());
         } else if (c == Long.class) {
-            writeLong(((Number)obj).longValue());
-        } else if (c == String.class) {
-            writeString((String)obj);
-        } else if (obj instanceof List) {
-            writeList((List)obj);
-        } else if (obj instanceof Map) {
-            writeMap((Map)obj);
-        } else if (Boolean.FALSE.equals(obj)) {
-            write(CBOR.FALSE_CODE);
-        } else if (Boolean.TRUE.equals(obj)) {
-            write(CBOR.TRUE_CODE);
-        } else if (obj == CBOR.BREAK) {
-            write(CBOR.BREAK_CODE);
-        } else if (c == Float.class) {
-            writeFloat((Float)obj);
+            writeLong((Long)obj);
+        } else if (c == Boolean.class) {
+            write((Boolean)obj ? CBOR.TRUE_CODE : CBOR.FALSE_CODE);
         } else if (c == Double.class) {
             writeDouble((Double)obj);
+        } else if (c == Float.class) {
+            writeFloat((Float)obj);
+        } else if (c == Character.class) {
+            writeChar((Character)obj);
+        } else if (c == byte[].class) {
+            writeBytes((byte[])obj);
+        } else if (obj == CBOR.BREAK) {
+            write(CBOR.BREAK_CODE);
         } else if (obj == CBOR.UNKNOWN) {
             write(CBOR.UNKNOWN_CODE);
+        } else if (obj instanceof Enum) {
+            writeString(((Enum)obj).name());
+        } else if (obj instanceof CharSequence) {
+            writeString((CharSequence)obj);
+        } else if (depth >= MAX_OBJ_DEPTH) {
+            writeObjectString(obj);
+        } else if (obj instanceof List) {
+            writeList((List)obj, depth);
+        } else if (obj instanceof Collection) {
+            Collection col = (Collection)obj;
+            int n = Math.min(col.size(), MAX_OBJ_ITEMS);
+            writeUInt(ARR_BASE, n);
+            writeItems(col, n, depth);
+        } else if (obj instanceof Map) {
+            writeMap((Map)obj, depth);
+        } else if (obj instanceof Object[]) {
+            writeArray((Object[])obj, depth);
         } else {
-            throw new RuntimeException("Unsupported data type: " + c);
+            writeObjectString(obj);
         }
     }
+
+    private void writeObjectString(Object obj) {
+        String s = String.valueOf(obj);
+        writeString(s.length() > maxAttrLen ? s.substring(0, maxAttrLen-3) + "..." : s);
+    }
 }
@@ -44,7 +44,8 @@ public class STracerLib extends TracerLib {
 
 
     public ZorkaAsyncThread<SymbolicRecord> toCbor(Map<String, String> config) {
-        return new STraceHttpOutput(this.config, config, symbolRegistry, HttpClient.fromMap(config, stats));
+        return new STraceHttpOutput(this.config, config, symbolRegistry, HttpClient.fromMap(config, stats),
+                ((STracer)tracer).getBufManager());
     }
 
 
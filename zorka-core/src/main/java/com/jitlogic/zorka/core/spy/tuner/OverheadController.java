@@ -0,0 +1,312 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy.tuner;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.ltracer.LTraceHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * Keeps estimated tracer probe overhead within configured CPU budget. Overhead is estimated in each
+ * tuning cycle as number of traced calls multiplied by (calibrated) cost of a single traced call and
+ * divided by CPU time available in the cycle. When estimate exceeds budget, top ranked methods are
+ * excluded until estimate drops to the middle of hysteresis band. When estimate drops below low
+ * watermark, methods excluded earlier are re-included (cheapest first) as long as they fit in the
+ * band. After each change controller waits a few cycles, so that call statistics reflect new
+ * instrumentation before next decision is made.
+ *
+ * Exclusions made by controller are transient, ie. they are not written to exclusion log.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class OverheadController {
+
+    private static final Logger log = LoggerFactory.getLogger(OverheadController.class);
+
+    public static final String DISABLED = "DISABLED";
+    public static final String OK = "OK";
+    public static final String OVER = "OVER";
+    public static final String UNDER = "UNDER";
+    public static final String HOLD = "HOLD";
+
+    /** Number of calls in one calibration round. */
+    private static final int CALIBRATION_CALLS = 20000;
+
+    /** Number of calibration rounds (fastest one is taken). */
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    private final TracerTuner tuner;
+
+    private final SymbolRegistry registry;
+
+    /** Overhead budget (fraction of total CPU time). */
+    private volatile double budget;
+
+    /** Low watermark (percent of budget). */
+    private final int lowWater;
+
+    /** Number of cycles to wait after each change. */
+    private final int holdCycles;
+
+    private final int ncpus;
+
+    /** Cost of single traced call (enter and return probe) in nanoseconds. */
+    private volatile long probeCost;
+
+    private long cycle;
+
+    private int hold;
+
+    /** Estimated overhead in last cycle (fraction of total CPU time). */
+    private volatile double overhead;
+
+    private volatile String state = DISABLED;
+
+    private volatile long exclusions, inclusions;
+
+    /** Methods excluded by controller: mid -> { calls per second at the time of exclusion, cycle number }. */
+    private final Map<Integer,long[]> excluded = new LinkedHashMap<Integer, long[]>();
+
+    /**
+     * @param budget overhead budget (percent of total CPU time, 0 disables controller)
+     * @param lowWater low watermark (percent of budget)
+     * @param holdCycles number of cycles to wait after each change
+     * @param probeCost cost of single traced call (in nanoseconds), 0 if it should be calibrated
+     * @param ncpus number of available CPUs
+     */
+    public OverheadController(TracerTuner tuner, SymbolRegistry registry, double budget, int lowWater,
+                              int holdCycles, long probeCost, int ncpus) {
+        this.tuner = tuner;
+        this.registry = registry;
+        this.budget = Math.max(0.0, budget / 100);
+        this.lowWater = lowWater;
+        this.holdCycles = holdCycles;
+        this.probeCost = probeCost;
+        this.ncpus = Math.max(1, ncpus);
+    }
+
+    /**
+     * Performs one control cycle.
+     *
+     * @param calls number of traced calls registered in this cycle
+     * @param dt cycle duration (in nanoseconds)
+     * @param ranks method ranking (sorted by rank, excluded methods omitted)
+     * @param maxItems maximum number of methods excluded or re-included in one cycle
+     * @param minRank minimum rank qualifying method for exclusion
+     */
+    public synchronized void cycle(long calls, long dt, List<RankItem> ranks, int maxItems, long minRank) {
+        cycle++;
+
+        if (!isEnabled() || dt <= 0) {
+            state = DISABLED;
+            return;
+        }
+
+        long cost = getProbeCost();
+        double capacity = (double)dt * ncpus;
+
+        double high = budget, low = budget * lowWater / 100.0, target = (high + low) / 2;
+
+        overhead = calls * cost / capacity;
+
+        // Number of calls per cycle that would put overhead in the middle of hysteresis band
+        long targetCalls = Math.round(target * capacity / cost);
+
+        if (hold > 0) {
+            hold--;
+            state = HOLD;
+            return;
+        }
+
+        if (overhead > high) {
+            state = OVER;
+            long excess = calls - targetCalls;
+            List<Integer> mids = new ArrayList<Integer>();
+            long removed = 0;
+            for (RankItem ri : ranks) {
+                if (removed >= excess || mids.size() >= maxItems || ri.getRank() <= minRank) break;
+                mids.add(ri.getMid());
+                removed += ri.getRank();
+                excluded.put(ri.getMid(), new long[] { ri.getRank() * 1000000000L / dt, cycle });
+            }
+            log.info("Overhead " + pct(overhead) + "% exceeds budget " + pct(budget) + "%: excluding "
+                    + mids.size() + " methods (" + removed + " calls)");
+            if (!mids.isEmpty()) {
+                exclusions += tuner.excludeMethods(mids, false);
+                hold = holdCycles;
+            }
+        } else if (overhead < low && !excluded.isEmpty()) {
+            state = UNDER;
+            long headroom = targetCalls - calls;
+            List<Map.Entry<Integer,long[]>> candidates = new ArrayList<Map.Entry<Integer, long[]>>(excluded.entrySet());
+            Collections.sort(candidates, new Comparator<Map.Entry<Integer, long[]>>() {
+                @Override
+                public int compare(Map.Entry<Integer, long[]> e1, Map.Entry<Integer, long[]> e2) {
+                    long r1 = e1.getValue()[0], r2 = e2.getValue()[0];
+                    return r1 < r2 ? -1 : (r1 > r2 ? 1 : 0);
+                }
+            });
+            List<Integer> mids = new ArrayList<Integer>();
+            for (Map.Entry<Integer,long[]> e : candidates) {
+                long c = e.getValue()[0] * dt / 1000000000L;
+                if (c > headroom || mids.size() >= maxItems) break;
+                if (cycle - e.getValue()[1] > holdCycles) {
+                    mids.add(e.getKey());
+                    headroom -= c;
+                }
+            }
+            for (Integer mid : mids) {
+                excluded.remove(mid);
+            }
+            if (!mids.isEmpty()) {
+                log.info("Overhead " + pct(overhead) + "% below " + lowWater + "% of budget " + pct(budget)
+                        + "%: re-including " + mids.size() + " methods");
+                inclusions += tuner.includeMethods(mids);
+                hold = holdCycles;
+            }
+        } else {
+            state = OK;
+        }
+    }
+
+    /**
+     * Measures cost of a single traced call (enter and return probe of local tracer). Measurement is
+     * performed in a separate (short lived) thread, so it does not interfere with calling thread state.
+     */
+    public long calibrate() {
+        final long[] result = { 0 };
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = measureProbeCost();
+            }
+        });
+        t.setName("ZORKA-TUNER-CALIBRATION");
+        t.setDaemon(true);
+        t.start();
+
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while calibrating probe cost.");
+        }
+
+        probeCost = Math.max(1, result[0]);
+
+        log.info("Calibrated tracer probe cost: " + probeCost + "ns per call");
+
+        return probeCost;
+    }
+
+    /**
+     * Trace handler used for calibration. Tuning stats are collected locally and never exchanged
+     * with tuner (as exchange could block on tuner being calibrated).
+     */
+    private static class CalibrationHandler extends LTraceHandler {
+
+        private CalibrationHandler(SymbolRegistry registry) {
+            super(null, registry, null);
+            tunStats = new TraceTuningStats();
+        }
+
+        @Override
+        protected void tuningProbe(int mid, long tstamp, long ttime) {
+            tunCalls++;
+            if (!tunStats.markRank(mid, 1)) {
+                tunStats.clear();
+            }
+        }
+    }
+
+    private long measureProbeCost() {
+        LTraceHandler handler = new CalibrationHandler(registry);
+        int mid = registry.methodId(OverheadController.class.getName(), "calibrate", "()V");
+
+        long best = Long.MAX_VALUE;
+
+        for (int r = 0; r < CALIBRATION_ROUNDS; r++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_CALLS; i++) {
+                handler.traceEnter(mid, System.nanoTime());
+                handler.traceReturn(System.nanoTime());
+            }
+            best = Math.min(best, (System.nanoTime() - t0) / CALIBRATION_CALLS);
+        }
+
+        return best;
+    }
+
+    private static String pct(double v) {
+        return String.format("%.2f", v * 100);
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Returns overhead budget (percent of total CPU time).
+     */
+    public double getBudget() {
+        return budget * 100;
+    }
+
+    /**
+     * Sets overhead budget (percent of total CPU time, 0 disables controller).
+     */
+    public void setBudget(double budget) {
+        this.budget = Math.max(0.0, budget / 100);
+    }
+
+    /**
+     * Returns estimated overhead in last cycle (percent of total CPU time).
+     */
+    public double getOverhead() {
+        return overhead * 100;
+    }
+
+    public long getProbeCost() {
+        return probeCost > 0 ? probeCost : calibrate();
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public long getExclusions() {
+        return exclusions;
+    }
+
+    public long getInclusions() {
+        return inclusions;
+    }
+
+    public synchronized int getExcludedCount() {
+        return excluded.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Overhead controller: state=" + state + " budget=" + pct(budget) + "% overhead=" + pct(overhead)
+                + "% probeCost=" + probeCost + "ns excluded=" + getExcludedCount()
+                + " exclusions=" + exclusions + " inclusions=" + inclusions;
+    }
+}
@@ -41,12 +41,16 @@ public class TraceTuningStats {
 
     private long[] stats;
 
+    /** Exchange slot this buffer belongs to (if any). */
+    TuningExchangeSlot slot;
+
     public TraceTuningStats() {
         this.stats = new long[STATS_SIZE];
     }
 
     public void clear() {
         tstamp = calls = 0;
+        misses0 = misses1 = misses2 = 0;
         for (int i = 0; i < STATS_SIZE; i++) stats[i] = 0;
     }
 
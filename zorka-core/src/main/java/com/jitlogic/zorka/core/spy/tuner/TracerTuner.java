@@ -18,14 +18,17 @@ package com.jitlogic.zorka.core.spy.tuner;
 
 import com.jitlogic.zorka.common.stats.AgentDiagnostics;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
-import com.jitlogic.zorka.common.tracedata.SymbolicMethod;
 import com.jitlogic.zorka.common.util.KVSortingHeap;
 import com.jitlogic.zorka.common.util.ZorkaAsyncThread;
 import com.jitlogic.zorka.common.util.ZorkaConfig;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.IndyLinker;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
 import com.jitlogic.zorka.core.spy.SpyRetransformer;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.jitlogic.zorka.core.AgentConfigProps.*;
 import static com.jitlogic.zorka.common.stats.AgentDiagnostics.*;
@@ -70,9 +73,17 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
     private ZtxMatcherSet tracerMatcherSet;
 
-    private int statCacheMax = 16;
+    /** Maximum time tuner thread sleeps between exchange slot scans. */
+    private static final long POLL_INTERVAL = 100000000L;
 
-    private Deque<TraceTuningStats> statCache = new LinkedList<TraceTuningStats>();
+    /** Head of exchange slot list (new slots are pushed here by handler threads). */
+    private final AtomicReference<TuningExchangeSlot> slots = new AtomicReference<TuningExchangeSlot>();
+
+    /** Tuner thread (parked when there is nothing to process). */
+    private volatile Thread consumer;
+
+    /** Keeps tracer overhead within CPU budget (if configured). */
+    private OverheadController controller;
 
     public TracerTuner(ZorkaConfig config, SymbolRegistry registry, SpyRetransformer retransformer, ZtxMatcherSet tracerMatcherSet) {
         super("TRACER-TUNER", config.intCfg(TRACER_TUNER_QLEN_PROP, TRACER_TUNER_QLEN_DEFV), 2);
@@ -94,11 +105,25 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
         trace = log.isTraceEnabled();
 
+        double budget = 0.0;
+        String b = config.stringCfg(TRACER_TUNER_BUDGET_PROP, TRACER_TUNER_BUDGET_DEFV);
+        try {
+            budget = Double.parseDouble(b.trim());
+        } catch (NumberFormatException e) {
+            log.error("Invalid value of " + TRACER_TUNER_BUDGET_PROP + ": '" + b + "'. Budget mode disabled.");
+        }
+
+        controller = new OverheadController(this, registry, budget,
+                config.intCfg(TRACER_TUNER_BUDGET_LOW_PROP, TRACER_TUNER_BUDGET_LOW_DEFV),
+                config.intCfg(TRACER_TUNER_BUDGET_HOLD_PROP, TRACER_TUNER_BUDGET_HOLD_DEFV),
+                config.longCfg(TRACER_TUNER_PROBE_COST_PROP, TRACER_TUNER_PROBE_COST_DEFV),
+                Runtime.getRuntime().availableProcessors());
+
         log.info("Tracer tuner: auto=" + auto + ", interval=" + interval + "ns, rankSize=" + rankSize +
                 ", threshold=" + minTotalCalls + "methods/cycle" + ", ratio=" + maxRatio + "pct, mpc=" + maxItems);
     }
 
-    private synchronized void tuningCycle() {
+    private synchronized void tuningCycle(long dt) {
 
         log.info("Starting tuning cycle (dsize=" + ranks.length + ")");
 
@@ -117,8 +142,12 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
         log.debug("auto=" + auto + ", lastCalls=" + lastCalls + ", minTotalCalls=" + minTotalCalls);
 
-        if (auto && lastCalls >= minTotalCalls) {
-            exclude(maxItems, false);
+        if (auto) {
+            if (controller.isEnabled()) {
+                controller.cycle(lastCalls, dt, rankList, maxItems, minMethodRank);
+            } else if (lastCalls >= minTotalCalls) {
+                exclude(maxItems, false);
+            }
         }
     }
 
@@ -134,15 +163,8 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         Set<String> classNames = new HashSet<String>();
         for (rc = 0; rc < Math.min(nitems, rankList.size()); rc++) {
             RankItem ri = rankList.get(rc);
-            int mid = ri.getMid();
-            SymbolicMethod cms = registry.methodDef(mid);
-            if (cms != null && ri.getRank() > minMethodRank && !tracerMatcherSet.isExcluded(mid)) {
-                String className = registry.symbolName(cms.getClassId());
-                String methodName = registry.symbolName(cms.getMethodId());
-                String methodSignature = registry.symbolName(cms.getSignatureId());
-                log.debug("Exclusion: " + className + "|" + methodName + "|" + methodSignature);
-                classNames.add(className);
-                tracerMatcherSet.add(className, methodName, methodSignature);
+            if (ri.getRank() > minMethodRank) {
+                excludeMethod(ri.getMid(), true, classNames);
             }
 
             lcur += ri.getRank();
@@ -154,6 +176,96 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
             AgentDiagnostics.inc(TUNER_EXCLUSIONS, rc);
         }
 
+        retransform(classNames);
+
+        return rc;
+    }
+
+    /**
+     * Excludes methods from tracing and reinstruments their classes.
+     *
+     * @param mids method IDs
+     * @param persistent if true, exclusions will be written to exclusion log
+     * @return number of excluded methods
+     */
+    public synchronized int excludeMethods(List<Integer> mids, boolean persistent) {
+        int rc = 0;
+
+        Set<String> classNames = new HashSet<String>();
+        for (int mid : mids) {
+            if (excludeMethod(mid, persistent, classNames)) rc++;
+        }
+
+        if (rc > 0) {
+            AgentDiagnostics.inc(TUNER_EXCLUSIONS, rc);
+        }
+
+        retransform(classNames);
+
+        return rc;
+    }
+
+    /**
+     * Reverts transient exclusions of methods and reinstruments their classes.
+     *
+     * @param mids method IDs
+     * @return number of re-included methods
+     */
+    public synchronized int includeMethods(List<Integer> mids) {
+        int rc = 0;
+
+        Set<String> classNames = new HashSet<String>();
+        for (int mid : mids) {
+            if (tracerMatcherSet.remove(mid)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Inclusion: " + registry.methodXDesc(mid));
+                }
+                if (!MainSubmitter.isIndyLinked() || !IndyLinker.relink(mid)) {
+                    classNames.add(registry.symbolName(registry.methodClassId(mid)));
+                }
+                rc++;
+            }
+        }
+
+        retransform(classNames);
+
+        return rc;
+    }
+
+    private boolean excludeMethod(int mid, boolean persistent, Set<String> classNames) {
+        if (!registry.hasMethod(mid)) {
+            return false;
+        }
+
+        boolean promote = false;
+
+        if (tracerMatcherSet.isExcluded(mid)) {
+            if (!persistent || !tracerMatcherSet.isTransient(mid)) {
+                return false;
+            }
+            // Transient exclusion becomes persistent, method is not traced already
+            promote = true;
+        }
+
+        String className = registry.symbolName(registry.methodClassId(mid));
+        String methodName = registry.symbolName(registry.methodNameId(mid));
+        String methodSignature = registry.symbolName(registry.methodSignatureId(mid));
+        log.debug("Exclusion: " + className + "|" + methodName + "|" + methodSignature);
+        tracerMatcherSet.add(className, methodName, methodSignature, persistent);
+
+        if (promote) {
+            return true;
+        }
+
+        // Methods with invokedynamic probes can be relinked without retransforming their classes
+        if (!MainSubmitter.isIndyLinked() || !IndyLinker.relink(mid)) {
+            classNames.add(className);
+        }
+
+        return true;
+    }
+
+    private void retransform(Set<String> classNames) {
         if (!classNames.isEmpty()) {
             log.info("Reinstrumenting classes: " + classNames);
 
@@ -161,8 +273,6 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
         } else {
             log.debug("No classes to reinstrument.");
         }
-
-        return rc;
     }
 
     private synchronized void clearStats() {
@@ -232,15 +342,10 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
 
         if (tstamp - tstlast > interval) {
             if (tstlast != 0) {
-                tuningCycle();
+                tuningCycle(tstamp - tstlast);
             }
             tstlast = tstamp;
         }
-
-        // Return stats struct to reuse
-        stats.clear();
-        if (statCache.size() < statCacheMax)
-            statCache.addFirst(stats);
     }
 
     @Override
@@ -275,16 +380,109 @@ public class TracerTuner extends ZorkaAsyncThread<TraceTuningStats> {
             sb.append("N/A");
         }
 
+        if (controller.isEnabled()) {
+            sb.append('\n').append(controller);
+        }
+
         return sb.toString();
     }
 
+    /**
+     * Hands filled stats buffer over to tuner and returns empty one. This is called from application
+     * threads, so it never blocks: if tuner has not yet processed previous buffer of calling thread,
+     * the same buffer is returned and handler keeps accumulating stats in it.
+     *
+     * @param stats filled stats buffer or null if calling thread has no buffers yet
+     * @return stats buffer to be filled
+     */
     public TraceTuningStats exchange(TraceTuningStats stats) {
 
-        if (stats != null) submit(stats);
+        if (stats == null) {
+            return register(Thread.currentThread());
+        }
+
+        TraceTuningStats s = stats.slot.publish(stats);
+
+        if (s == null) {
+            return stats;
+        }
 
-        TraceTuningStats s  = statCache.pollLast();
+        if (qlen > 0) {
+            Thread t = consumer;
+            if (t != null) LockSupport.unpark(t);
+        } else {
+            drain();
+        }
+
+        return s;
+    }
+
+    private TraceTuningStats register(Thread thread) {
+        TuningExchangeSlot slot = new TuningExchangeSlot(thread);
+
+        TraceTuningStats s1 = new TraceTuningStats(), s2 = new TraceTuningStats();
+        s1.slot = s2.slot = slot;
+        slot.recycle(s2);
+
+        TuningExchangeSlot head;
+        do {
+            head = slots.get();
+            slot.next = head;
+        } while (!slots.compareAndSet(head, slot));
+
+        return s1;
+    }
+
+    /**
+     * Processes all stats buffers published by handlers and returns them to their slots.
+     * Slots of dead threads are unlinked (except for list head that can be concurrently
+     * modified by handler threads).
+     *
+     * @return number of processed buffers
+     */
+    public synchronized int drain() {
+        int n = 0;
+
+        TuningExchangeSlot prev = null;
+
+        for (TuningExchangeSlot slot = slots.get(); slot != null; slot = slot.next) {
+            TraceTuningStats stats = slot.take();
+            if (stats != null) {
+                try {
+                    processStats(stats);
+                } catch (Exception e) {
+                    log.error("Error processing stats: " + stats, e);
+                }
+                stats.clear();
+                slot.recycle(stats);
+                n++;
+            } else if (prev != null && slot.isOrphaned()) {
+                prev.next = slot.next;
+                continue;
+            }
+            prev = slot;
+        }
+
+        return n;
+    }
+
+    @Override
+    protected void init() {
+        consumer = Thread.currentThread();
+        if (controller.isEnabled()) {
+            controller.getProbeCost();
+        }
+    }
+
+    @Override
+    public void runCycle() {
+        if (drain() == 0) {
+            LockSupport.parkNanos(this, POLL_INTERVAL);
+        }
+    }
 
-        return s != null ? s : new TraceTuningStats();
+    public OverheadController getController() {
+        return controller;
     }
 
     public long getLastCalls() {
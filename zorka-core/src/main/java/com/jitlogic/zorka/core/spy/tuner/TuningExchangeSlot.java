@@ -0,0 +1,80 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy.tuner;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-thread double buffer for handing tuning stats over to tracer tuner. Each slot owns exactly
+ * two stats buffers: one is filled by trace handler, the other one is either waiting for tuner
+ * (ready), being processed by tuner or cleared and waiting for handler (spare). Handler thread
+ * is the only producer and tuner thread is the only consumer of a slot, so handoff is just a
+ * pair of atomic swaps and never blocks.
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+class TuningExchangeSlot {
+
+    /** Filled buffer waiting for tuner. */
+    final AtomicReference<TraceTuningStats> ready = new AtomicReference<TraceTuningStats>();
+
+    /** Cleared buffer waiting for handler. */
+    final AtomicReference<TraceTuningStats> spare = new AtomicReference<TraceTuningStats>();
+
+    /** Thread owning this slot (slots of dead threads are removed by tuner). */
+    final WeakReference<Thread> owner;
+
+    /** Next slot in tuner slot list. Modified only by tuner thread (except for list head). */
+    volatile TuningExchangeSlot next;
+
+    TuningExchangeSlot(Thread owner) {
+        this.owner = new WeakReference<Thread>(owner);
+    }
+
+    /**
+     * Publishes filled buffer and takes spare one. Called by owning thread only.
+     *
+     * @return spare buffer or null if tuner still holds it (filled buffer is not published then)
+     */
+    TraceTuningStats publish(TraceTuningStats stats) {
+        TraceTuningStats s = spare.getAndSet(null);
+        if (s != null) {
+            ready.set(stats);
+        }
+        return s;
+    }
+
+    /**
+     * Takes filled buffer (if any). Called by tuner only.
+     */
+    TraceTuningStats take() {
+        return ready.getAndSet(null);
+    }
+
+    /**
+     * Returns processed (and cleared) buffer back to handler. Called by tuner only.
+     */
+    void recycle(TraceTuningStats stats) {
+        spare.set(stats);
+    }
+
+    boolean isOrphaned() {
+        Thread t = owner.get();
+        return (t == null || !t.isAlive()) && ready.get() == null;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.spy.tuner;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Compiled (binary) tracer exclusion set. Index contains class names of all classes with
+ * excluded methods and method keys (<code>class|method|signature</code>) of all excluded
+ * methods. Keys are stored sorted and prefix-compressed (with full keys stored at restart
+ * points every few entries) and are looked up via open addressing hash table, so index
+ * files can be memory mapped and queried directly without parsing nor interning names in
+ * symbol registry. Lookups only use absolute reads from a read-only buffer, so they are
+ * thread safe and lock-free.
+ *
+ * File layout (all integers are big endian):
+ *
+ * <pre>
+ * header:   magic, version, entry count, restart interval, restart count, hash table size
+ * restarts: int[restart count] - offsets of restart entries (relative to entry data)
+ * hash:     int[hash table size * 2] - pairs of (key hash, entry index + 1), 0 marks empty slot
+ * data:     entries: varint shared prefix length, varint suffix length, suffix bytes (UTF-8)
+ * </pre>
+ *
+ * @author rafal.lewczuk@jitlogic.com
+ */
+public class ZtxIndex {
+
+    /** "ZTXI" */
+    public static final int MAGIC = 0x5a545849;
+
+    public static final int VERSION = 1;
+
+    public static final String SUFFIX = ".ztxi";
+
+    private static final int HEADER_SIZE = 24;
+
+    private static final int RESTART_INTERVAL = 16;
+
+    /** Key hash: 32-bit FNV-1a over UTF-8 bytes of a key. */
+    private static final int FNV_BASIS = 0x811c9dc5;
+
+    private static final int FNV_PRIME = 0x01000193;
+
+    private final ByteBuffer buf;
+
+    private final int count, restartInterval, hmask;
+
+    private final int restartOffs, hashOffs, dataOffs;
+
+    public ZtxIndex(ByteBuffer buf) throws IOException {
+        this.buf = buf;
+
+        if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled ztx file.");
+        }
+
+        if (buf.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled ztx version: " + buf.getInt(4));
+        }
+
+        count = buf.getInt(8);
+        restartInterval = buf.getInt(12);
+        int nrestarts = buf.getInt(16);
+        int hsize = buf.getInt(20);
+
+        if (restartInterval <= 0 || Integer.bitCount(hsize) != 1) {
+            throw new IOException("Corrupted compiled ztx file.");
+        }
+
+        hmask = hsize - 1;
+        restartOffs = HEADER_SIZE;
+        hashOffs = restartOffs + nrestarts * 4;
+        dataOffs = hashOffs + hsize * 8;
+
+        if (dataOffs > buf.limit()) {
+            throw new IOException("Truncated compiled ztx file.");
+        }
+    }
+
+    /**
+     * Maps index file into memory.
+     */
+    public static ZtxIndex open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            return new ZtxIndex(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads index from a stream (eg. classpath resource) into heap buffer.
+     */
+    public static ZtxIndex read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        for (int n = is.read(b); n > 0; n = is.read(b)) {
+            os.write(b, 0, n);
+        }
+        return new ZtxIndex(ByteBuffer.wrap(os.toByteArray()).asReadOnlyBuffer());
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns true if index contains excluded methods of given class.
+     */
+    public boolean hasClass(String className) {
+        return find(className, null, null);
+    }
+
+    /**
+     * Returns true if given method is excluded.
+     */
+    public boolean hasMethod(String className, String methodName, String methodSignature) {
+        return find(className, methodName, methodSignature);
+    }
+
+    private boolean find(String c, String m, String s) {
+        byte[] qb = null;
+        int qlen = c.length() + (m != null ? m.length() + s.length() + 2 : 0);
+
+        for (int k = 0; k < qlen; k++) {
+            if (at(null, c, m, s, k) >= 0x80) {
+                // Non-ASCII names are rare, so they're encoded explicitly instead of being compared char by char
+                qb = utf8(m != null ? c + "|" + m + "|" + s : c);
+                qlen = qb.length;
+                break;
+            }
+        }
+
+        int h = FNV_BASIS;
+        for (int k = 0; k < qlen; k++) {
+            h = (h ^ at(qb, c, m, s, k)) * FNV_PRIME;
+        }
+
+        for (int i = slot(h); ; i = (i + 1) & hmask) {
+            int idx = buf.getInt(hashOffs + i * 8 + 4);
+            if (idx == 0) {
+                return false;
+            }
+            if (buf.getInt(hashOffs + i * 8) == h && matches(idx - 1, qb, c, m, s, qlen)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Checks if entry is equal to query key. Entries are decoded from nearest restart point while tracking
+     * length of common prefix of current entry and query key, so no entry is materialized.
+     */
+    private boolean matches(int entry, byte[] qb, String c, String m, String s, int qlen) {
+        int pos = dataOffs + buf.getInt(restartOffs + (entry / restartInterval) * 4);
+        int common = 0, len = 0;
+
+        for (int j = entry - entry % restartInterval; j <= entry; j++) {
+            int shared = 0, suffix = 0, shift = 0, b;
+
+            do {
+                b = buf.get(pos++);
+                shared |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            shift = 0;
+            do {
+                b = buf.get(pos++);
+                suffix |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            if (shared <= common) {
+                common = shared;
+                for (int k = 0; k < suffix && common < qlen && (buf.get(pos + k) & 0xff) == at(qb, c, m, s, common); k++) {
+                    common++;
+                }
+            }
+
+            len = shared + suffix;
+            pos += suffix;
+        }
+
+        return common == qlen && len == qlen;
+    }
+
+    /**
+     * Returns k-th character (byte) of query key. Key is either UTF-8 encoded bytes or
+     * ASCII class name, optionally followed by method name and signature separated with '|'.
+     */
+    private static int at(byte[] qb, String c, String m, String s, int k) {
+        if (qb != null) {
+            return qb[k] & 0xff;
+        }
+
+        int l = c.length();
+        if (k < l) return c.charAt(k);
+        k -= l;
+        if (k == 0) return '|';
+        k--;
+        l = m.length();
+        if (k < l) return m.charAt(k);
+        k -= l;
+        if (k == 0) return '|';
+        return s.charAt(k-1);
+    }
+
+    private int slot(int h) {
+        return (h ^ (h >>> 16)) & hmask;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream os, int v) {
+        while ((v & ~0x7f) != 0) {
+            os.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        os.write(v);
+    }
+
+    /**
+     * Collects exclusions and writes them as compiled index.
+     */
+    public static class Writer extends AbstractZtxReader {
+
+        private SortedSet<String> keys = new TreeSet<String>();
+
+        @Override
+        public void add(String p, String c, String m, String s) {
+            String cl = p.length() > 0 ? p + "." + c : c;
+            keys.add(cl);
+            keys.add(cl + "|" + m + "|" + s);
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        public void write(File f) throws IOException {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                write(os);
+            } finally {
+                os.close();
+            }
+        }
+
+        public void write(OutputStream os) throws IOException {
+            int count = keys.size();
+            int nrestarts = (count + RESTART_INTERVAL - 1) / RESTART_INTERVAL;
+
+            int hsize = 16;
+            while (hsize < count * 2) {
+                hsize <<= 1;
+            }
+            int hmask = hsize - 1;
+
+            int[] restarts = new int[nrestarts];
+            int[] hash = new int[hsize * 2];
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+            byte[] prev = new byte[0];
+            int idx = 0;
+
+            for (String key : keys) {
+                byte[] kb = utf8(key);
+
+                int shared = 0;
+                if (idx % RESTART_INTERVAL == 0) {
+                    restarts[idx / RESTART_INTERVAL] = data.size();
+                } else {
+                    while (shared < prev.length && shared < kb.length && prev[shared] == kb[shared]) {
+                        shared++;
+                    }
+                }
+
+                writeVarInt(data, shared);
+                writeVarInt(data, kb.length - shared);
+                data.write(kb, shared, kb.length - shared);
+
+                int h = FNV_BASIS;
+                for (byte b : kb) {
+                    h = (h ^ (b & 0xff)) * FNV_PRIME;
+                }
+
+                int i = (h ^ (h >>> 16)) & hmask;
+                while (hash[i * 2 + 1] != 0) {
+                    i = (i + 1) & hmask;
+                }
+                hash[i * 2] = h;
+                hash[i * 2 + 1] = idx + 1;
+
+                prev = kb;
+                idx++;
+            }
+
+            DataOutputStream out = new DataOutputStream(os);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(RESTART_INTERVAL);
+            out.writeInt(nrestarts);
+            out.writeInt(hsize);
+
+            for (int r : restarts) {
+                out.writeInt(r);
+            }
+
+            for (int h : hash) {
+                out.writeInt(h);
+            }
+
+            data.writeTo(out);
+            out.flush();
+        }
+    }
+}
@@ -43,6 +43,15 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
     private Map<String,String> ztxs = new ConcurrentHashMap<String, String>();
 
+    /** Compiled exclusion sets (memory mapped). */
+    private volatile ZtxIndex[] indexes = new ZtxIndex[0];
+
+    /** Methods excluded transiently (not written to exclusion log). */
+    private BitVector transientMids = new BitVector();
+
+    /** Number of transient exclusions per class (-1 if class was excluded before). */
+    private Map<Integer,Integer> transientCids = new HashMap<Integer, Integer>();
+
     private File ztxDir;
     private File ztxLog;
 
@@ -91,15 +100,21 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
     @Override
     public boolean classMatch(String className) {
-        int classId = registry.symbolId(className);
 
         if (!patternMatcherSet.classMatch(className)) return false;
 
-        synchronized (this) {
-            if (cids.get(classId)) return false;
+        for (ZtxIndex idx : indexes) {
+            if (idx.hasClass(className)) return false;
+        }
+
+        if (hasZtx(className)) {
             probe(className);
-            return !cids.get(classId);
         }
+
+        // Class name is not registered here, so only classes with excluded methods end up in symbol registry
+        int classId = registry.findSymbolId(className);
+
+        return classId == 0 || !cids.get(classId);
     }
 
     @Override
@@ -114,15 +129,22 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
         if (!patternMatcherSet.methodMatch(cn, sc, ca, ci, acc, mn, ms, ma)) return false;
 
-        synchronized (this) {
-            return !mids.get(registry.methodId(cn, mn, ms));
+        for (ZtxIndex idx : indexes) {
+            if (idx.hasMethod(cn, mn, ms)) return false;
         }
+
+        int mid = registry.findMethodId(cn, mn, ms);
+
+        return mid == 0 || !mids.get(mid);
     }
 
     @Override
     public synchronized void clear() {
         cids.reset();
         mids.reset();
+        transientMids.reset();
+        transientCids.clear();
+        indexes = new ZtxIndex[0];
         patternMatcherSet.clear();
     }
 
@@ -137,7 +159,18 @@ public class ZtxMatcherSet implements SpyMatcherSet {
         if (lst != null) {
             for (String fname : lst) {
                 File f = new File(ztxDir, fname);
-                if (f.isFile() && fname.endsWith(".ztx")) {
+                if (f.isFile() && fname.endsWith(ZtxIndex.SUFFIX)) {
+                    try {
+                        addIndex(ZtxIndex.open(f));
+                        log.info("Mapped compiled tracer exclusions: " + f);
+                    } catch (IOException e) {
+                        log.error("Cannot open compiled tracer exclusion file: " + f, e);
+                    }
+                } else if (f.isFile() && fname.endsWith(".ztx")) {
+                    if (new File(ztxDir, fname + "i").isFile()) {
+                        // Compiled version takes precedence
+                        continue;
+                    }
                     if (fname.startsWith("_")) {
                         loadZtx("file:"+f.getPath());
                     } else {
@@ -156,7 +189,9 @@ public class ZtxMatcherSet implements SpyMatcherSet {
             try {
                 BufferedReader rdr = new BufferedReader(new InputStreamReader(is));
                 for (String pkg = rdr.readLine(); pkg != null; pkg = rdr.readLine()) {
-                    if (pkg.trim().length() > 0) {
+                    if (pkg.trim().endsWith(ZtxIndex.SUFFIX)) {
+                        loadIndex("/com/jitlogic/zorka/ztx/" + pkg.trim());
+                    } else if (pkg.trim().length() > 0) {
                         ztxs.put(pkg.substring(0, pkg.length()-4), "classpath:/com/jitlogic/zorka/ztx/" + pkg.trim());
                     }
                 }
@@ -175,6 +210,33 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
     }
 
+    private synchronized void addIndex(ZtxIndex index) {
+        ZtxIndex[] idx = Arrays.copyOf(indexes, indexes.length + 1);
+        idx[indexes.length] = index;
+        indexes = idx;
+    }
+
+
+    private void loadIndex(String path) {
+        InputStream is = getClass().getResourceAsStream(path);
+        if (is != null) {
+            try {
+                addIndex(ZtxIndex.read(is));
+            } catch (IOException e) {
+                log.error("Cannot read compiled tracer exclusion file: " + path, e);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    log.error("Cannot close compiled tracer exclusion file: " + path, e);
+                }
+            }
+        } else {
+            log.error("Compiled tracer exclusion file " + path + " not found in classpath.");
+        }
+    }
+
+
     private synchronized void loadZtx(File f) {
         loadZtx("file:"+f.getPath());
     }
@@ -210,6 +272,17 @@ public class ZtxMatcherSet implements SpyMatcherSet {
     }
 
 
+    /**
+     * Checks (without locking) if there are any unloaded exclusion files for given class.
+     */
+    private boolean hasZtx(String className) {
+        for (String pkg : ztxs.keySet()) {
+            if (className.startsWith(pkg)) return true;
+        }
+        return false;
+    }
+
+
     private synchronized void probe(String className) {
 
         Set<String> found = null;
@@ -231,35 +304,121 @@ public class ZtxMatcherSet implements SpyMatcherSet {
 
 
     public synchronized void add(String className, String methodName, String methodSignature) {
+        add(className, methodName, methodSignature, true);
+    }
+
+
+    /**
+     * Excludes method from tracing. Persistent exclusion of a method excluded transiently before
+     * promotes it to persistent one (it is written to exclusion log and cannot be reverted anymore).
+     *
+     * @param persistent if true, exclusion will be written to exclusion log, so it will be restored
+     *                   after agent restart; transient exclusions can be reverted using remove()
+     */
+    public synchronized void add(String className, String methodName, String methodSignature, boolean persistent) {
         int mid = registry.methodId(className, methodName, methodSignature);
+        int cid = registry.symbolId(className);
+
+        if (mids.get(mid)) {
+            if (!persistent || !transientMids.get(mid)) return;
+            transientMids.clear(mid);
+            // Class has persistent exclusion now, so it will stay excluded when transient exclusions are removed
+            transientCids.put(cid, -1);
+            writeLog(className, methodName, methodSignature);
+            return;
+        }
+
+        mids.set(mid);
 
-        if (!mids.get(mid)) {
-            mids.set(mid);
-            cids.set(registry.symbolId(className));
+        if (!persistent) {
+            Integer cnt = transientCids.get(cid);
+            if (cnt == null && cids.get(cid)) {
+                // Class has been excluded before, so it will stay excluded when transient exclusions are removed
+                cnt = -1;
+            }
+            transientCids.put(cid, cnt == null ? 1 : (cnt < 0 ? cnt : cnt+1));
+            transientMids.set(mid);
+        } else if (transientCids.containsKey(cid)) {
+            transientCids.put(cid, -1);
+        }
+
+        cids.set(cid);
+
+        if (persistent) {
+            writeLog(className, methodName, methodSignature);
+        }
+    }
 
-            OutputStream os = null;
+    /** Appends method exclusion to exclusion log. */
+    private void writeLog(String className, String methodName, String methodSignature) {
+        OutputStream os = null;
 
+        try {
+            int idx = className.lastIndexOf('.');
+            String pkg = idx > 0 ? className.substring(0, idx) : "";
+            String cls = idx > 0 ? className.substring(idx+1, className.length()) : className;
+            String s = pkg+"|"+cls+"|"+methodName+"|"+methodSignature+"\n";
+            os = new FileOutputStream(ztxLog, true);
+            os.write(s.getBytes());
+        } catch (Exception e) {
+            log.error("Cannot write to file: " + ztxLog, e);
+        } finally {
             try {
-                int idx = className.lastIndexOf('.');
-                String pkg = idx > 0 ? className.substring(0, idx) : "";
-                String cls = idx > 0 ? className.substring(idx+1, className.length()) : className;
-                String s = pkg+"|"+cls+"|"+methodName+"|"+methodSignature+"\n";
-                os = new FileOutputStream(ztxLog, true);
-                os.write(s.getBytes());
-            } catch (Exception e) {
-                log.error("Cannot write to file: " + ztxLog, e);
-            } finally {
-                try {
-                    if (os != null) os.close();
-                } catch (IOException e) {
-                    log.error("Cannot close file: " + ztxLog, e);
-                }
+                if (os != null) os.close();
+            } catch (IOException e) {
+                log.error("Cannot close file: " + ztxLog, e);
             }
         }
     }
 
-    public synchronized boolean isExcluded(int mid) {
-        return mids.get(mid);
+    /**
+     * Returns true if method has been excluded transiently (and can be reverted using remove()).
+     */
+    public synchronized boolean isTransient(int mid) {
+        return transientMids.get(mid);
+    }
+
+    /**
+     * Reverts transient exclusion of a method (see add()). Persistent exclusions cannot be removed.
+     *
+     * @return true if method has been removed from exclusion set
+     */
+    public synchronized boolean remove(int mid) {
+        if (!transientMids.get(mid)) return false;
+
+        transientMids.clear(mid);
+        mids.clear(mid);
+
+        int cid = registry.methodClassId(mid);
+        Integer cnt = transientCids.get(cid);
+
+        if (cnt != null && cnt > 0) {
+            if (cnt == 1) {
+                transientCids.remove(cid);
+                cids.clear(cid);
+            } else {
+                transientCids.put(cid, cnt-1);
+            }
+        }
+
+        return true;
+    }
+
+    public boolean isExcluded(int mid) {
+        if (mids.get(mid)) return true;
+
+        ZtxIndex[] idx = indexes;
+
+        if (idx.length > 0 && registry.hasMethod(mid)) {
+            String cn = registry.symbolName(registry.methodClassId(mid));
+            String mn = registry.symbolName(registry.methodNameId(mid));
+            String ms = registry.symbolName(registry.methodSignatureId(mid));
+            for (ZtxIndex i : idx) {
+                if (i.hasMethod(cn, mn, ms)) return true;
+            }
+        }
+
+        return false;
     }
 
     public List<SpyMatcher> getMatchers() {
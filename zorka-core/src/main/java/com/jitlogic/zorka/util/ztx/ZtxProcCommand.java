@@ -17,6 +17,7 @@
 package com.jitlogic.zorka.util.ztx;
 
 import com.jitlogic.zorka.common.util.ZorkaRuntimeException;
+import com.jitlogic.zorka.core.spy.tuner.ZtxIndex;
 
 import java.io.*;
 import java.util.*;
@@ -62,6 +63,29 @@ public class ZtxProcCommand {
         }
     }
 
+    /**
+     * Writes exclusions as compiled (binary) index that can be memory mapped by agent.
+     */
+    public static void writeIndex(Map<String,NavigableMap<String,NavigableMap<String,NavigableSet<String>>>> data, File f) {
+        ZtxIndex.Writer w = new ZtxIndex.Writer();
+
+        for (Map.Entry<String,NavigableMap<String,NavigableMap<String,NavigableSet<String>>>> pe : data.entrySet()) {
+            for (Map.Entry<String,NavigableMap<String,NavigableSet<String>>> ce : pe.getValue().entrySet()) {
+                for (Map.Entry<String,NavigableSet<String>> se : ce.getValue().entrySet()) {
+                    for (String s : se.getValue()) {
+                        w.add(pe.getKey(), ce.getKey(), se.getKey(), s);
+                    }
+                }
+            }
+        }
+
+        try {
+            w.write(f);
+        } catch (IOException e) {
+            throw new ZorkaRuntimeException("Error writing to file " + f, e);
+        }
+    }
+
     public static Pattern pattern(String s) {
         return Pattern.compile(s.replace(".", "\\.") + "(\\..*)?");
     }
@@ -77,8 +101,16 @@ public class ZtxProcCommand {
         List<File> inpf = new ArrayList<File>();
         List<Pattern> incls = new ArrayList<Pattern>();
         List<Pattern> excls = new ArrayList<Pattern>();
+        boolean compile = false;
 
-        for (int i = 1; i < args.length-1; i++) {
+        for (int i = 1; i < args.length; i++) {
+            if ("-c".equals(args[i])) {
+                compile = true;
+                continue;
+            }
+            if (i == args.length-1) {
+                break;
+            }
             if ("-o".equals(args[i])) {
                 outf = new File(args[i+1]);
                 i++;
@@ -119,6 +151,10 @@ public class ZtxProcCommand {
                 odata.put(e.getKey(), e.getValue());
         }
 
-        write(odata, outf);
+        if (compile || outf.getName().endsWith(ZtxIndex.SUFFIX)) {
+            writeIndex(odata, outf);
+        } else {
+            write(odata, outf);
+        }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.stats.MethodCallStatistics;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.spy.*;
+import com.jitlogic.zorka.core.spy.ltracer.LTracer;
+import com.jitlogic.zorka.core.spy.tuner.ZtxMatcherSet;
+import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+import static com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture.TCLASS1;
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.readResource;
+import static org.junit.Assert.*;
+
+public class BytecodeCacheUnitTest extends ZorkaFixture {
+
+    private String classFile = TCLASS1.replace('.', '/') + ".class";
+
+    private SpyClassTransformer transformer(SymbolRegistry registry, boolean cache, String probe) {
+        Properties props = new Properties();
+        props.setProperty("scripts.auto", "no");
+        props.setProperty("spy.cache", cache ? "yes" : "no");
+        props.setProperty("spy.cache.dir", tmpDir + "/cache");
+
+        LTracer tracer = new LTracer(new ZtxMatcherSet(new File(tmpDir), new File(tmpDir, "ztx.log"),
+                registry, false, false), registry, null);
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        SpyClassTransformer engine = new SpyClassTransformer(registry, tracer, null, new ZorkaConfig(props),
+                new MethodCallStatistics(), new DummySpyRetransformer(null, null));
+        engine.add(spy.instance("x").onEnter(spy.fetchArg(probe, 0))
+                .include(spy.byMethod(TCLASS1, "trivialStrMethod")));
+
+        return engine;
+    }
+
+    private byte[] transform(SpyClassTransformer engine) throws Exception {
+        return engine.transform(getClass().getClassLoader(), TCLASS1.replace('.', '/'), null, null,
+                readResource(classFile));
+    }
+
+    private int ctxId(SpyClassTransformer engine) {
+        for (SpyDefinition sdef : engine.getSdefs()) {
+            return engine.lookup(new SpyContext(sdef, TCLASS1, "trivialStrMethod", "(Ljava/lang/String;)V", 1)).getId();
+        }
+        return -1;
+    }
+
+    @Test
+    public void testCachedBytecodeIsIdenticalToFreshlyInstrumented() throws Exception {
+        SymbolRegistry r0 = new SymbolRegistry();
+        SpyClassTransformer t0 = transformer(r0, false, "E0");
+        byte[] b0 = transform(t0);
+        assertNotNull(b0);
+
+        SpyClassTransformer t1 = transformer(new SymbolRegistry(), true, "E0");
+        byte[] b1 = transform(t1);
+        assertArrayEquals(b0, b1);
+        assertEquals(0, t1.getBytecodeCache().getHits());
+        assertEquals(1, t1.getBytecodeCache().getPuts());
+
+        SymbolRegistry r2 = new SymbolRegistry();
+        SpyClassTransformer t2 = transformer(r2, true, "E0");
+        byte[] b2 = transform(t2);
+        assertEquals(1, t2.getBytecodeCache().getHits());
+        assertEquals(0, t2.getBytecodeCache().getPuts());
+        assertArrayEquals(b0, b2);
+
+        // Spy contexts and tracer symbols are registered with the same IDs as without cache
+        assertEquals(ctxId(t0), ctxId(t2));
+        int mid = r0.methodId(TCLASS1, "trivialMethod", "()V");
+        assertEquals(mid, r2.methodId(TCLASS1, "trivialMethod", "()V"));
+        assertEquals(r0.symbolId("trivialMethod"), r2.symbolId("trivialMethod"));
+    }
+
+    @Test
+    public void testChangedSpyDefinitionInvalidatesEntry() throws Exception {
+        transform(transformer(new SymbolRegistry(), true, "E0"));
+
+        SpyClassTransformer t1 = transformer(new SymbolRegistry(), true, "E1");
+        transform(t1);
+
+        assertEquals(0, t1.getBytecodeCache().getHits());
+        assertEquals(1, t1.getBytecodeCache().getPuts());
+    }
+
+    @Test
+    public void testConflictingIdsFallBackToInstrumentation() throws Exception {
+        transform(transformer(new SymbolRegistry(), true, "E0"));
+
+        // Symbols registered in different order than when entry was created
+        SymbolRegistry r0 = new SymbolRegistry();
+        r0.symbolId("some.other.Symbol");
+        byte[] b0 = transform(transformer(r0, false, "E0"));
+
+        SymbolRegistry r1 = new SymbolRegistry();
+        r1.symbolId("some.other.Symbol");
+        SpyClassTransformer t1 = transformer(r1, true, "E0");
+        byte[] b1 = transform(t1);
+
+        assertEquals(1, t1.getBytecodeCache().getHits());
+        assertEquals(1, t1.getBytecodeCache().getPuts());
+        assertArrayEquals(b0, b1);
+        assertEquals(r0.methodId(TCLASS1, "trivialMethod", "()V"), r1.methodId(TCLASS1, "trivialMethod", "()V"));
+    }
+
+    @Test
+    public void testVersionChangeDropsCache() throws Exception {
+        SpyClassTransformer t0 = transformer(new SymbolRegistry(), true, "E0");
+        transform(t0);
+
+        File dir = new File(tmpDir, "cache");
+        assertTrue(t0.getBytecodeCache().getSize() > 0);
+
+        FileOutputStream os = new FileOutputStream(new File(dir, "VERSION"));
+        os.write("0".getBytes());
+        os.close();
+
+        assertEquals(0, new BytecodeCache(dir, 1024 * 1024).getSize());
+
+        SpyClassTransformer t1 = transformer(new SymbolRegistry(), true, "E0");
+        transform(t1);
+        assertEquals(0, t1.getBytecodeCache().getHits());
+    }
+
+    @Test
+    public void testAgentBuildChangeDropsCache() throws Exception {
+        File dir = new File(tmpDir, "cache");
+        BytecodeCache cache = new BytecodeCache(dir, 1024 * 1024, BytecodeCache.agentBuild("1.0"));
+        cache.put("F", "C1", new byte[] { 1 }, new BytecodeCache.Entry(new int[0], new String[0], new String[0], new String[0],
+            new int[0], new int[0], new String[0], new int[0], new byte[64]));
+        assertTrue(cache.getSize() > 0);
+
+        assertTrue(new BytecodeCache(dir, 1024 * 1024, BytecodeCache.agentBuild("1.0")).getSize() > 0);
+        assertEquals(0, new BytecodeCache(dir, 1024 * 1024, BytecodeCache.agentBuild("1.1")).getSize());
+    }
+
+    @Test
+    public void testSizeLimitEvictsEntries() throws Exception {
+        BytecodeCache cache = new BytecodeCache(new File(tmpDir, "cache"), 16 * 1024);
+        byte[] bytecode = new byte[1024];
+
+        for (int i = 0; i < 64; i++) {
+            cache.put("F", "C" + i, new byte[] { (byte)i }, new BytecodeCache.Entry(new int[0], new String[0],
+                    new String[0], new String[0], new int[0], new int[0], new String[0], new int[0], bytecode));
+        }
+
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getSize() <= 16 * 1024);
+        assertEquals(cache.getSize(), new BytecodeCache(new File(tmpDir, "cache"), 16 * 1024).getSize());
+    }
+}
@@ -47,6 +47,40 @@ public class BytecodeInstrumentationUnitTest extends BytecodeInstrumentationFixt
     }
 
 
+    @Test
+    public void testSpyDefsAddedAndRemovedBetweenClassLoads() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            engine.add(spy.instance("other" + i).onEnter(spy.fetchArg("E0", 0))
+                    .include(spy.byMethod("some.other.Class" + i, "trivialMethod")));
+            if (i % 10 == 0) {
+                assertNull(transform(engine, TCLASS1).transformedBytecode);
+            }
+        }
+
+        engine.add(spy.instance("x").onEnter(spy.fetchArg("E0", 0))
+                .include(spy.byMethod(TCLASS1, "trivialMethod")));
+        assertNotNull(transform(engine, TCLASS1).transformedBytecode);
+
+        // Index is rebuilt in the meantime
+        for (int i = 100; i < 200; i++) {
+            engine.add(spy.instance("other" + i).onEnter(spy.fetchArg("E0", 0))
+                    .include(spy.byMethod("some.other.Class" + i, "trivialMethod")));
+            if (i % 10 == 0) {
+                assertNotNull(transform(engine, TCLASS1).transformedBytecode);
+            }
+        }
+
+        // Replaced and then removed spy definition no longer matches
+        engine.add(spy.instance("x").onEnter(spy.fetchArg("E0", 0))
+                .include(spy.byMethod(TCLASS2, "trivialMethod")));
+        assertNull(transform(engine, TCLASS1).transformedBytecode);
+        assertNotNull(transform(engine, TCLASS2).transformedBytecode);
+
+        engine.remove("x");
+        assertNull(transform(engine, TCLASS2).transformedBytecode);
+    }
+
+
     @Test
     public void testTrivialInstrumentOnlyEntryPointWithThisRef() throws Exception {
         engine.add(spy.instance("x").onEnter(spy.fetchArg("E0", 0))
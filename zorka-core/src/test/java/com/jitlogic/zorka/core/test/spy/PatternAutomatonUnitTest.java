@@ -0,0 +1,235 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.core.spy.ClassMatchIndex;
+import com.jitlogic.zorka.core.spy.PatternAutomaton;
+import com.jitlogic.zorka.core.spy.SpyMatcher;
+import com.jitlogic.zorka.core.test.support.CoreTestUtil;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static com.jitlogic.zorka.core.spy.SpyMatcher.*;
+import static com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture.*;
+import static org.junit.Assert.*;
+
+public class PatternAutomatonUnitTest {
+
+    private static final String[] MASKS = {
+            "com.jitlogic.**", "com.jitlogic.*", "com.*.Foo", "**Servlet", "**.*Servlet", "java.lang.String",
+            "org.apache.catalina.core.StandardEngineValve", "~.*Impl", "~com\\.(foo|bar)\\..*", "**$*",
+            "com.jitlogic.zorka.*.Test*", "~com\\.jitlogic\\.[a-z]+\\.Foo", "*", "**",
+    };
+
+    private static final String[] NAMES = {
+            "com.jitlogic.Foo", "com.jitlogic.zorka.core.Foo", "com.x.Foo", "com.x.y.Foo", "javax.servlet.HttpServlet",
+            "Servlet", "a.Servlet", "java.lang.String", "java.lang.StringBuilder", "org.apache.catalina.core.StandardEngineValve",
+            "com.foo.FooImpl", "com.foo.Bar", "com.bar.Baz", "com.baz.Baz", "com.jitlogic.Foo$1", "Foo$Bar", "$",
+            "com.jitlogic.zorka.core.TestClass", "com.jitlogic.zorka.core.TestClass$1", "com.jitlogic.x.Foo",
+            "com.jitlogic.x1.Foo", "", "Foo", "com.jitlogic.", "com.jitlogic", "żółw.Foo",
+    };
+
+    private static List<Pattern> patterns(String...masks) {
+        List<Pattern> rslt = new ArrayList<Pattern>();
+        for (String m : masks) {
+            rslt.add(new SpyMatcher(BY_CLASS_NAME, 1, m, "*", null).getClassPattern());
+        }
+        return rslt;
+    }
+
+    private static int[] bruteForce(List<Pattern> patterns, String name) {
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(name).matches()) {
+                ids.add(i);
+            }
+        }
+        int[] rslt = new int[ids.size()];
+        for (int i = 0; i < rslt.length; i++) {
+            rslt[i] = ids.get(i);
+        }
+        return rslt;
+    }
+
+    @Test
+    public void testMatchSameAsRegexEngine() {
+        List<Pattern> patterns = patterns(MASKS);
+        PatternAutomaton automaton = new PatternAutomaton(patterns);
+
+        assertTrue(automaton.getNStates() > 0);
+        assertEquals("Only regexes using unsupported constructs should fall back to regex engine.", 2, automaton.getNFallbacks());
+
+        for (String name : NAMES) {
+            assertEquals(name, Arrays.toString(bruteForce(patterns, name)), Arrays.toString(automaton.match(name)));
+        }
+    }
+
+    @Test
+    public void testMatchRandomNames() {
+        List<Pattern> patterns = patterns(MASKS);
+        PatternAutomaton automaton = new PatternAutomaton(patterns);
+        Random rand = new Random(42);
+        String alphabet = "comjitlogFS.$_1ą";
+
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder sb = new StringBuilder();
+            if (rand.nextBoolean()) {
+                sb.append("com.jitlogic.");
+            }
+            for (int j = rand.nextInt(12); j > 0; j--) {
+                sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+            }
+            String name = sb.toString();
+            assertEquals(name, Arrays.toString(bruteForce(patterns, name)), Arrays.toString(automaton.match(name)));
+        }
+    }
+
+    @Test
+    public void testSplitTooBigAutomaton() {
+        Random rand = new Random(11);
+        List<String> masks = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            masks.add(rand.nextBoolean() ? "com.p" + rand.nextInt(50) + ".**Servlet" + i : "**.*Impl" + i);
+        }
+
+        List<Pattern> patterns = patterns(masks.toArray(new String[0]));
+        PatternAutomaton automaton = new PatternAutomaton(patterns);
+
+        assertTrue("Patterns should be split into several DFAs.", automaton.getNParts() > 1);
+        assertEquals(0, automaton.getNFallbacks());
+
+        for (int i = 0; i < 2000; i++) {
+            int n = rand.nextInt(200);
+            String name = rand.nextBoolean() ? "com.p" + rand.nextInt(50) + ".x.FooServlet" + n
+                    : "org.p" + rand.nextInt(50) + ".FooImpl" + n;
+            assertEquals(name, Arrays.toString(bruteForce(patterns, name)), Arrays.toString(automaton.match(name)));
+        }
+    }
+
+    @Test
+    public void testEmptyAutomaton() {
+        PatternAutomaton automaton = new PatternAutomaton(new ArrayList<Pattern>());
+        assertEquals(0, automaton.match("com.jitlogic.Foo").length);
+    }
+
+    /**
+     * Reference implementation (linear scan) of class name matching.
+     */
+    private static boolean linearClassMatch(List<SpyMatcher> matchers, String className) {
+        for (SpyMatcher m : matchers) {
+            if (m.hasFlags(BY_CLASS_NAME) && m.getClassPattern().matcher(className).matches()) {
+                return ClassMatchIndex.classMatchResult(m);
+            }
+            if (m.hasFlags(BY_CLASS_ANNOTATION | BY_INTERFACE | BY_METHOD_ANNOTATION | BY_SUPERCLASS)) {
+                return ClassMatchIndex.classMatchResult(m);
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testClassMatchIndexSameAsLinearScan() {
+        Random rand = new Random(7);
+        List<String> owners = new ArrayList<String>();
+        List<List<SpyMatcher>> matcherSets = new ArrayList<List<SpyMatcher>>();
+
+        for (int i = 0; i < 50; i++) {
+            List<SpyMatcher> matchers = new ArrayList<SpyMatcher>();
+            for (int j = rand.nextInt(4); j >= 0; j--) {
+                int r = rand.nextInt(10);
+                SpyMatcher m;
+                if (r == 0) {
+                    m = new SpyMatcher(BY_INTERFACE, 1, "com.jitlogic.SomeInterface", "*", null);
+                } else if (r == 1) {
+                    m = new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1, MASKS[rand.nextInt(MASKS.length)],
+                            "*", null).exclude();
+                } else if (r == 2) {
+                    m = new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1, MASKS[rand.nextInt(MASKS.length)],
+                            "get*", null).exclude();
+                } else {
+                    m = new SpyMatcher(BY_CLASS_NAME | BY_METHOD_NAME, 1, MASKS[rand.nextInt(MASKS.length)],
+                            "*", null);
+                }
+                matchers.add(m);
+            }
+            owners.add("sdef" + i);
+            matcherSets.add(matchers);
+        }
+
+        ClassMatchIndex<String> index = new ClassMatchIndex<String>(owners, matcherSets);
+
+        for (String name : NAMES) {
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < owners.size(); i++) {
+                if (linearClassMatch(matcherSets.get(i), name)) {
+                    expected.add(owners.get(i));
+                }
+            }
+            List<String> actual = new ArrayList<String>();
+            index.match(name, actual);
+            assertEquals(name, expected, actual);
+        }
+    }
+
+    @Test
+    public void testLiteralPatterns() {
+        assertEquals("com.jitlogic.Foo", PatternAutomaton.literal(Pattern.compile("com\\.jitlogic\\.Foo")));
+        assertEquals("Lcom.Foo;", PatternAutomaton.literal(Pattern.compile("Lcom\\.Foo;")));
+        assertNull(PatternAutomaton.literal(Pattern.compile("com\\..+")));
+        assertNull(PatternAutomaton.literal(Pattern.compile("com\\.(a|b)")));
+    }
+
+    private static ClassMatchIndex<String> index(SpyMatcher...matchers) {
+        List<List<SpyMatcher>> matcherSets = new ArrayList<List<SpyMatcher>>();
+        matcherSets.add(Arrays.asList(matchers));
+        return new ClassMatchIndex<String>(Arrays.asList("sdef"), matcherSets);
+    }
+
+    private static int count(ClassMatchIndex<String> index, String className, byte[] classBytes) {
+        List<String> found = new ArrayList<String>();
+        index.match(className, classBytes, found);
+        return found.size();
+    }
+
+    @Test
+    public void testClassMatchIndexNarrowsAnnotationsByConstantPool() throws Exception {
+        byte[] cb1 = CoreTestUtil.readResource(TCLASS1.replace('.', '/') + ".class");
+        byte[] cb2 = CoreTestUtil.readResource(TCLASS2.replace('.', '/') + ".class");
+
+        ClassMatchIndex<String> ci = index(new SpyMatcher(BY_CLASS_ANNOTATION, 1, "L" + TACLASS + ";", "*", null));
+        assertEquals(1, count(ci, TCLASS1, cb1));
+        assertEquals(0, count(ci, TCLASS2, cb2));
+        assertEquals("no bytecode, no narrowing", 1, count(ci, TCLASS2, null));
+
+        ClassMatchIndex<String> mi = index(new SpyMatcher(BY_CLASS_NAME | BY_METHOD_ANNOTATION, 1,
+                "**", "L" + TAMETHOD + ";", null));
+        assertEquals(0, count(mi, TCLASS1, cb1));
+        assertEquals(1, count(mi, TCLASS2, cb2));
+
+        ClassMatchIndex<String> ii = index(new SpyMatcher(BY_CLASS_ANNOTATION, 1, "L" + TACLASS + ";", "*", null),
+                new SpyMatcher(BY_INTERFACE, 1, "com.jitlogic.SomeInterface", "*", null));
+        assertEquals("interface matchers cannot be narrowed", 1, count(ii, TCLASS2, cb2));
+
+        ClassMatchIndex<String> wi = index(new SpyMatcher(BY_CLASS_ANNOTATION, 1, "Lcom.jitlogic.**;", "*", null));
+        assertEquals("annotation masks cannot be narrowed", 1, count(wi, TCLASS2, cb2));
+    }
+}
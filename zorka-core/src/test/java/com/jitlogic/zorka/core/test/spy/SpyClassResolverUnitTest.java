@@ -25,6 +25,7 @@ import org.junit.Test;
 
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -112,4 +113,71 @@ public class SpyClassResolverUnitTest extends ZorkaFixture {
         assertNotNull(clazz);
     }
 
+    @Test
+    public void testNegativeCaching() {
+        assertNull(cr.getClassInfo(cl, LP+"NoSuchClass"));
+        assertNull(cr.getClassInfo(cl, LP+"NoSuchClass"));
+        assertEquals(1, stats.getMethodCallStatistic("CrvNegativeHits").getCalls());
+        assertEquals(1, cr.getCacheSize());
+    }
+
+    @Test
+    public void testCacheIsKeyedByClassLoader() {
+        ClassLoader cl2 = new ClassLoader(cl) { };
+        CachedClassInfo i1 = cr.getClassInfo(cl, LP+"A"), i2 = cr.getClassInfo(cl2, LP+"A");
+        assertEquals(2, cr.getCacheSize());
+        assertNotSame(i1, i2);
+        assertSame(i1, cr.getClassInfo(cl, LP+"A"));
+        assertSame(i2, cr.getClassInfo(cl2, LP+"A"));
+    }
+
+    @Test
+    public void testCacheIsBoundedAndEvictsUnusedEntries() {
+        ClassInfoCache cache = new ClassInfoCache(16);
+        CachedClassInfo ci = cr.getClassInfo(cl, LP+"A");
+
+        cache.put(cl, "hot", ci);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame("Frequently used entry should survive eviction.", ci, cache.get(cl, "hot"));
+            cache.put(cl, "cold" + i, ci);
+        }
+
+        assertEquals(16, cache.size());
+        assertEquals(85, cache.getEvictions());
+        assertNull(cache.get(cl, "cold0"));
+        assertSame(ci, cache.get(cl, "cold99"));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final SpyClassResolver crv = new SpyClassResolver(stats, 16);
+        final String[] names = { "A", "B", "C", "D", "E", "I", "J", "K", "X", "Z", "NoSuchClass" };
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 2000; i++) {
+                        String n = names[i % names.length];
+                        CachedClassInfo ci = crv.getClassInfo(cl, LP+n);
+                        if (n.startsWith("No") ? ci != null : ci == null || !(LP+n).equals(ci.getClassName())) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertTrue(crv.getCacheSize() <= 16);
+    }
+
 }
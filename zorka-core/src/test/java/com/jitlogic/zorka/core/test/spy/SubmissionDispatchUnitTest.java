@@ -20,15 +20,18 @@ package com.jitlogic.zorka.core.test.spy;
 import com.jitlogic.zorka.core.test.spy.support.TestCollector;
 import com.jitlogic.zorka.core.test.spy.support.TestSpyTransformer;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.DispatchingSubmitter;
 import com.jitlogic.zorka.core.spy.SpyContext;
 import com.jitlogic.zorka.core.spy.SpyDefinition;
+import com.jitlogic.zorka.core.spy.SpyRecord;
+import com.jitlogic.zorka.core.spy.SpyRecordProcessor;
 import com.jitlogic.zorka.core.spy.SpySubmitter;
 
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.Map;
+import java.util.*;
 
 import static org.junit.Assert.*;
 import static com.jitlogic.zorka.core.spy.SpyLib.*;
@@ -106,7 +109,109 @@ public class SubmissionDispatchUnitTest extends ZorkaFixture {
     }
 
 
-    // TODO test if SpyRecord marks stages properly
+    @Test
+    public void testSubmissionStagesAreMarkedInRecord() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+
+        Map<String, Object> sr = collector.get(0);
+
+        assertEquals(ON_SUBMIT, sr.get(".STAGE"));
+        assertEquals((1 << ON_ENTER) | (1 << ON_RETURN) | (1 << ON_SUBMIT), sr.get(".STAGES"));
+        assertSame(ctx, sr.get(".CTX"));
+        assertEquals(1L, sr.get("T1"));
+        assertEquals(2L, sr.get("T2"));
+        assertEquals(1L, sr.get("T"));
+    }
+
+
+    private static class IdentityCollector implements SpyRecordProcessor {
+        private List<SpyRecord> records = new ArrayList<SpyRecord>();
+        private List<Object> times = new ArrayList<Object>();
+
+        @Override
+        public SpyRecord process(SpyRecord record) {
+            records.add(record);
+            times.add(record.get(record.slot("T2")));
+            return record;
+        }
+
+        @Override
+        public Map<String, Object> process(Map<String, Object> record) {
+            fail("Record processor should receive slot records.");
+            return record;
+        }
+    }
+
+
+    @Test
+    public void testRecordsAreReusedIfAllProcessorsAreRecordProcessors() throws Exception {
+        IdentityCollector ic = new IdentityCollector();
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(ic));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        assertTrue(sdef.getLayout().isRecyclable());
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{3L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{5L});
 
-    // TODO test submission stages are marked by DispatchingSubmitter
+        assertEquals(2, ic.records.size());
+        assertSame(ic.records.get(0), ic.records.get(1));
+        assertEquals(Arrays.asList((Object)2L, 5L), ic.times);
+        assertEquals(2L, ic.records.get(1).get("T"));
+    }
+
+
+    @Test
+    public void testRecordsAreNotReusedIfMapProcessorIsPresent() throws Exception {
+        SpyDefinition sdef = engine.add(spy.instrument("x").onSubmit(collector));
+        SpyContext ctx = engine.lookup(new SpyContext(sdef, "Class", "method", "()V", 1));
+
+        assertFalse(sdef.getLayout().isRecyclable());
+
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{1L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{2L});
+        submitter.submit(ON_ENTER, ctx.getId(), SF_NONE, new Object[]{3L});
+        submitter.submit(ON_RETURN, ctx.getId(), SF_FLUSH, new Object[]{5L});
+
+        assertEquals(2, collector.size());
+        assertNotSame(collector.get(0), collector.get(1));
+        assertEquals(1L, collector.get(0).get("T"));
+        assertEquals(2L, collector.get(1).get("T"));
+    }
+
+
+    @Test
+    public void testSpyRecordMapView() throws Exception {
+        SpyDefinition sdef = spy.instrument("x");
+        SpyContext ctx = new SpyContext(sdef, "Class", "method", "()V", 1);
+        SpyRecord sr = new SpyRecord(sdef.getLayout(), ctx);
+
+        assertEquals(3, sr.size());
+        assertFalse(sr.containsKey("T1"));
+
+        sr.set(sr.slot("T1"), 10L);
+        sr.put("FOO", "bar");
+
+        assertEquals(5, sr.size());
+        assertEquals(10L, sr.get("T1"));
+        assertEquals("bar", sr.get("FOO"));
+        assertTrue(sr.containsKey("T1"));
+        assertEquals(-1, sr.slot("FOO"));
+
+        Map<String, Object> m = new HashMap<String, Object>(sr);
+        assertEquals(ZorkaUtil.map(".CTX", ctx, ".STAGE", 0, ".STAGES", 0, "T1", 10L, "FOO", "bar"), m);
+
+        assertEquals("bar", sr.remove("FOO"));
+        assertEquals(4, sr.size());
+
+        sr.reset(sdef.getLayout(), ctx);
+        assertEquals(3, sr.size());
+        assertNull(sr.get("T1"));
+    }
 }
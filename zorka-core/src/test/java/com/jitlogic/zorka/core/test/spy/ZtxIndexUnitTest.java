@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.spy;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.tuner.ZtxIndex;
+import com.jitlogic.zorka.core.spy.tuner.ZtxMatcherSet;
+import com.jitlogic.zorka.util.ZorkaUtilMain;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static com.jitlogic.zorka.common.util.ZorkaUtil.rmrf;
+import static org.junit.Assert.*;
+
+public class ZtxIndexUnitTest {
+
+    private File tmpDir;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = new File("/tmp/zorka-unit-test");
+        rmrf(tmpDir);
+        tmpDir.mkdirs();
+    }
+
+    private ZtxIndex compile(ZtxIndex.Writer w) throws IOException {
+        File f = new File(tmpDir, "test" + ZtxIndex.SUFFIX);
+        w.write(f);
+        return ZtxIndex.open(f);
+    }
+
+    @Test
+    public void testCompileAndLookupZtxFile() throws Exception {
+        ZtxIndex.Writer w = new ZtxIndex.Writer();
+        w.read("src/test/resources/tuner/test.ztx");
+        ZtxIndex idx = compile(w);
+
+        assertEquals(w.size(), idx.size());
+
+        assertTrue(idx.hasClass("test.myapp.SomeClass"));
+        assertTrue(idx.hasClass("test.otherapp.AnotherClass"));
+        assertTrue(idx.hasClass("$Proxy1234"));
+        assertFalse(idx.hasClass("test.myapp.SomeClass1"));
+        assertFalse(idx.hasClass("test.myapp.Some"));
+        assertFalse(idx.hasClass("test.myapp"));
+
+        assertTrue(idx.hasMethod("test.myapp.SomeClass", "myMethod", "()V"));
+        assertTrue(idx.hasMethod("test.otherapp.OtherClass", "otherMethod", "(II)I"));
+        assertTrue(idx.hasMethod("test.otherapp.AnotherClass", "yetAnotherMethod", "(II)I"));
+        assertFalse(idx.hasMethod("test.otherapp.AnotherClass", "yetAnotherMethod", "(I)I"));
+        assertFalse(idx.hasMethod("test.myapp.SomeClass", "myMethod", "()"));
+        assertFalse(idx.hasMethod("test.myapp.SomeClass", "otherMethod", "()V"));
+    }
+
+    @Test
+    public void testLookupLargeIndex() throws Exception {
+        ZtxIndex.Writer w = new ZtxIndex.Writer();
+        for (int p = 0; p < 50; p++) {
+            for (int c = 0; c < 20; c++) {
+                for (int m = 0; m < 10; m++) {
+                    w.add("com.example.pkg" + p, "Class" + c, "method" + m, "()V");
+                }
+            }
+        }
+
+        ZtxIndex idx = compile(w);
+        assertEquals(50 * 20 * 11, idx.size());
+
+        for (int p = 0; p < 50; p++) {
+            for (int c = 0; c < 20; c++) {
+                String cn = "com.example.pkg" + p + ".Class" + c;
+                assertTrue(cn, idx.hasClass(cn));
+                for (int m = 0; m < 10; m++) {
+                    assertTrue(idx.hasMethod(cn, "method" + m, "()V"));
+                    assertFalse(idx.hasMethod(cn, "method" + m, "(I)V"));
+                }
+                assertFalse(idx.hasMethod(cn, "method10", "()V"));
+                assertFalse(idx.hasClass(cn + "X"));
+            }
+        }
+    }
+
+    @Test
+    public void testNonAsciiNames() throws Exception {
+        ZtxIndex.Writer w = new ZtxIndex.Writer();
+        w.add("test.ąpp", "Klasaś", "metodać", "()V");
+        w.add("test.app", "Klasa", "metoda", "()V");
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        w.write(os);
+        ZtxIndex idx = ZtxIndex.read(new ByteArrayInputStream(os.toByteArray()));
+
+        assertTrue(idx.hasClass("test.ąpp.Klasaś"));
+        assertTrue(idx.hasMethod("test.ąpp.Klasaś", "metodać", "()V"));
+        assertFalse(idx.hasMethod("test.ąpp.Klasaś", "metoda", "()V"));
+        assertTrue(idx.hasMethod("test.app.Klasa", "metoda", "()V"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectTextZtxFile() throws Exception {
+        ZtxIndex.open(new File("src/test/resources/tuner/test.ztx"));
+    }
+
+    @Test
+    public void testMatcherSetUsesCompiledIndex() throws Exception {
+        ZorkaUtilMain.main(new String[] {
+                "ztx", "-c", "-o", new File(tmpDir, "test" + ZtxIndex.SUFFIX).getPath(),
+                "-f", "src/test/resources/tuner/test.ztx" });
+
+        SymbolRegistry registry = new SymbolRegistry();
+
+        ZtxMatcherSet zms = new ZtxMatcherSet(tmpDir, new File(tmpDir, "_log.ztx"), registry, true, true);
+
+        assertFalse(zms.classMatch("test.myapp.SomeClass"));
+        assertTrue(zms.classMatch("test.myapp.SomeClass1"));
+        assertFalse(zms.methodMatch("test.otherapp.OtherClass", null, null, null, 1, "someMethod", "()V", null));
+        assertTrue(zms.methodMatch("test.otherapp.OtherClass", null, null, null, 1, "newMethod", "()V", null));
+
+        assertEquals("Checked class names should not be registered.", 0, registry.findSymbolId("test.myapp.SomeClass1"));
+
+        assertTrue(zms.isExcluded(registry.methodId("test.myapp.SomeClass", "myMethod", "()V")));
+        assertFalse(zms.isExcluded(registry.methodId("test.myapp.SomeClass", "newMethod", "()V")));
+    }
+}
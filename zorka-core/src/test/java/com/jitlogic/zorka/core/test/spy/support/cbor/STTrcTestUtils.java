@@ -45,7 +45,7 @@ public class STTrcTestUtils {
         byte[] buf = new byte[chunksLength(chunks)];
 
         for (STraceBufChunk c = chunks; c != null; c = c.getNext()) {
-            System.arraycopy(c.getBuffer(), 0, buf, c.getExtOffset(), c.getPosition());
+            c.getBytes(0, buf, c.getExtOffset(), c.getPosition());
         }
 
         return buf;
@@ -61,6 +61,10 @@ public class CoreTestUtil extends ClassLoader {
         throw new RuntimeException("Cannot find constructor of " + args.length + " arguments.");
     }
 
+    public static Object instantiate(String clazzName, byte[] classBytes) throws Exception {
+        return new CoreTestUtil().defineClass(clazzName, classBytes, 0, classBytes.length).newInstance();
+    }
+
     public static Object invokeStatic(SpyClassTransformer engine, String clazzName, String methodName, Object...args) throws Exception {
         TransformationResult result = transform(engine, clazzName);
         byte[] classBytes = result.transformedBytecode != null ? result.transformedBytecode : result.originalBytecode;
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.jitlogic.zorka.core.test.tracer;
+
+import com.jitlogic.zorka.core.spy.IndyLinker;
+import com.jitlogic.zorka.core.spy.MainSubmitter;
+import com.jitlogic.zorka.core.spy.ltracer.LTraceHandler;
+import com.jitlogic.zorka.core.test.support.BytecodeInstrumentationFixture;
+import org.junit.Test;
+import org.objectweb.asm.*;
+
+import java.util.Arrays;
+
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.*;
+import static org.junit.Assert.*;
+
+public class IndyTracerProbesUnitTest extends BytecodeInstrumentationFixture {
+
+    public IndyTracerProbesUnitTest() {
+        configProperties.setProperty("spy.indy", "yes");
+    }
+
+    /**
+     * Transforms test class pretending it has been compiled for Java 7.
+     */
+    private byte[] transformV51(String clazzName) throws Exception {
+        byte[] cbf = readResource(clazzName.replace('.', '/') + ".class");
+        cbf[6] = 0;
+        cbf[7] = 51;
+        byte[] transformed = engine.transform(getSystemClassLoader(), clazzName.replace('.', '/'), null, null, cbf);
+        assertNotNull(transformed);
+        return transformed;
+    }
+
+    private static int indyInsns(byte[] classBytes) {
+        final int[] cnt = { 0 };
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String sig, String[] exc) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... args) {
+                        cnt[0]++;
+                    }
+                };
+            }
+        }, 0);
+        return cnt[0];
+    }
+
+    @Test
+    public void testTraceMethodWithIndyProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        byte[] classBytes = transformV51(TCLASS1);
+        assertEquals("enter, return and error probe", 3, indyInsns(classBytes));
+
+        Object obj = instantiate(TCLASS1, classBytes);
+        invoke(obj, "trivialMethod");
+
+        assertEquals(Arrays.asList("traceEnter", "traceReturn"), traceBuilder.listAttr("action"));
+        assertEquals(symbols.methodId(TCLASS1, "trivialMethod", "()V"), traceBuilder.get(0, "mid"));
+        assertTrue(MainSubmitter.isIndyLinked());
+    }
+
+    @Test
+    public void testTraceErrorWithIndyProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "errorMethod"));
+
+        Object obj = instantiate(TCLASS1, transformV51(TCLASS1));
+        Object rslt = invoke(obj, "errorMethod");
+
+        assertEquals(Arrays.asList("traceEnter", "traceError"), traceBuilder.listAttr("action"));
+        assertEquals(rslt, traceBuilder.get(1, "exception"));
+    }
+
+    @Test
+    public void testOldClassesUseStaticProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        TransformationResult rslt = transform(engine, TCLASS1);
+
+        assertNotNull(rslt.transformedBytecode);
+        assertEquals(0, indyInsns(rslt.transformedBytecode));
+    }
+
+    @Test
+    public void testExcludedMethodIsRelinkedWithoutRetransformation() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        Object obj = instantiate(TCLASS1, transformV51(TCLASS1));
+        invoke(obj, "trivialMethod");
+        assertEquals(2, traceBuilder.size());
+
+        int mid = symbols.methodId(TCLASS1, "trivialMethod", "()V");
+        agentInstance.getTracerMatcherSet().add(TCLASS1, "trivialMethod", "()V");
+        assertTrue(IndyLinker.relink(mid));
+
+        invoke(obj, "trivialMethod");
+        assertEquals("probes should be disabled", 2, traceBuilder.size());
+    }
+
+    @Test
+    public void testTracerRemovalRelinksProbes() throws Exception {
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        Object obj = instantiate(TCLASS1, transformV51(TCLASS1));
+
+        MainSubmitter.setTracer(null);
+        invoke(obj, "trivialMethod");
+        assertEquals(0, traceBuilder.size());
+
+        MainSubmitter.setTracer(tracerObj);
+        invoke(obj, "trivialMethod");
+        assertEquals(2, traceBuilder.size());
+    }
+
+    @Test
+    public void testCurrentMethodIdOfTraceHandler() {
+        LTraceHandler handler = new LTraceHandler(null, symbols, null);
+
+        assertEquals(0, handler.currentMethodId());
+        handler.traceEnter(5, 100);
+        handler.traceBegin(sid("TRACE"), 100, 0);
+        handler.traceEnter(7, 200);
+        assertEquals(7, handler.currentMethodId());
+        handler.traceReturn(300);
+        assertEquals(5, handler.currentMethodId());
+    }
+
+    @Test
+    public void testRecursiveCallsOfExcludedMethodKeepOuterFrame() {
+        LTraceHandler handler = new LTraceHandler(null, symbols, null);
+
+        handler.traceEnter(5, 100);
+        handler.traceBegin(sid("TRACE"), 100, 0);
+        handler.traceEnter(7, 200);
+
+        // Method 7 gets excluded: recursive calls do not close frame entered before exclusion
+        handler.untracedEnter(7);
+        handler.untracedEnter(7);
+        assertFalse(handler.untracedReturn(7));
+        assertFalse(handler.untracedReturn(7));
+        assertEquals(7, handler.currentMethodId());
+
+        // Calls of other excluded methods are ignored
+        handler.untracedEnter(9);
+        assertFalse(handler.untracedReturn(9));
+
+        // Return of outer call closes its frame
+        assertTrue(handler.untracedReturn(7));
+        handler.traceReturn(300);
+        assertEquals(5, handler.currentMethodId());
+        assertFalse(handler.untracedReturn(7));
+    }
+}
@@ -105,6 +105,33 @@ public class LTracerCollectUnitTest extends ZorkaFixture {
         assertNotEquals(tr.getSpanId(), 0);
     }
 
+    @Test
+    public void testSimpleTraceWithCompressedUpload() throws Exception {
+        Map<String,String> conf = new HashMap<String,String>(HTTP_CONF);
+        conf.put("http.compress", "yes");
+        output = new LTraceHttpOutput(config, conf, symbols, new CollectorLocalClient(collector));
+
+        tracer.include(spy.byMethod(TCLASS1, "trivialMethod"));
+
+        spy.add(
+            spy.instance("1").onEnter(tracer.begin("TEST", 0))
+                .include(spy.byMethod(TCLASS1, "trivialMethod")));
+
+        TraceHandler.setMinMethodTime(0); // Catch everything
+        tracer.output(output);
+
+        Object obj = instantiate(agentInstance.getClassTransformer(), TCLASS1);
+        invoke(obj, "trivialMethod");
+
+        assertEquals(1, collector.getAgdCount());
+        assertEquals(1, collector.getTrcCount());
+        assertEquals(1, collectorStore.length());
+
+        TraceDataResult tr = extractTrace(Collections.singletonList(collectorStore.get(0)));
+        assertEquals(TCLASS1 + ".trivialMethod()", tr.getMethod());
+        assertEquals("TEST", tr.getAttr("component"));
+    }
+
     @Test
     public void testSimpleTraceWithName() throws Exception {
         tracer.include(spy.byMethod(TCLASS1, "trivialStrMethod"));
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.tracer;
+
+import com.jitlogic.zorka.common.cbor.CborDataReader;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.core.spy.stracer.ChunkedCborInput;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
+import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
+import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class STraceBufManagerUnitTest {
+
+    private static STraceBufChunk chain(STraceBufManager bm, int n) {
+        STraceBufChunk c = null;
+        for (int i = 0; i < n; i++) {
+            STraceBufChunk ch = bm.get();
+            ch.setNext(c);
+            c = ch;
+        }
+        return c;
+    }
+
+    @Test
+    public void testAllocateAndReuseChunks() {
+        STraceBufManager bm = new STraceBufManager(128, 16, 1);
+
+        STraceBufChunk c1 = bm.get();
+        assertEquals(128, c1.getBuffer().length);
+        assertEquals(1, bm.getnAllocs());
+        assertEquals(0, bm.getnReuses());
+
+        c1.setPosition(42);
+        bm.put(c1);
+        assertEquals(1, bm.getNChunks());
+
+        STraceBufChunk c2 = bm.get();
+        assertSame(c1, c2);
+        assertEquals(0, c2.getPosition());
+        assertEquals(1, bm.getnAllocs());
+        assertEquals(1, bm.getnReuses());
+        assertEquals(2, bm.getNGets());
+        assertEquals(1, bm.getNputs());
+    }
+
+    @Test
+    public void testReturnChainsAndDropExcessChunks() {
+        STraceBufManager bm = new STraceBufManager(128, 4, 1);
+
+        bm.put(chain(bm, 6));
+
+        assertEquals(4, bm.getNChunks());
+        assertEquals(2, bm.getnDrops());
+        assertEquals(6, bm.getnAllocs());
+
+        // Chunks come from local stripe first, then from overflow stack.
+        Map<STraceBufChunk,Boolean> seen = new IdentityHashMap<STraceBufChunk, Boolean>();
+        for (int i = 0; i < 4; i++) {
+            STraceBufChunk ch = bm.get();
+            assertNull(ch.getNext());
+            seen.put(ch, true);
+        }
+
+        assertEquals(4, seen.size());
+        assertEquals(4, bm.getnReuses());
+        assertEquals(0, bm.getNChunks());
+
+        bm.get();
+        assertEquals(7, bm.getnAllocs());
+        assertTrue(bm.getnMisses() > 0);
+    }
+
+    @Test
+    public void testZeroSizedPoolDropsEverything() {
+        STraceBufManager bm = new STraceBufManager(128, 0);
+        bm.put(chain(bm, 2));
+        assertEquals(0, bm.getNChunks());
+        assertEquals(2, bm.getnDrops());
+    }
+
+    @Test
+    public void testDirectChunksAreCapped() {
+        STraceBufManager bm = new STraceBufManager(128, 4, 1, true, 256);
+
+        STraceBufChunk c1 = bm.get(), c2 = bm.get(), c3 = bm.get();
+
+        assertTrue(c1.isDirect());
+        assertNull(c1.getBuffer());
+        assertTrue(c2.isDirect());
+        assertFalse("Should fall back to heap chunk.", c3.isDirect());
+        assertEquals(1, bm.getnFallbacks());
+        assertEquals(256, bm.getDirectSize());
+
+        c1.setNext(c3);
+        c3.setNext(c2);
+        bm.put(c1);
+
+        // Heap chunks are not pooled by direct buffer manager.
+        assertEquals(2, bm.getNChunks());
+        assertTrue(bm.get().isDirect());
+        assertTrue(bm.get().isDirect());
+    }
+
+    @Test
+    public void testLostDirectChunksReleaseTheirSlots() throws Exception {
+        STraceBufManager bm = new STraceBufManager(128, 4, 1, true, 256);
+
+        // Chunks are never returned to the pool
+        assertTrue(bm.get().isDirect());
+        assertTrue(bm.get().isDirect());
+        assertFalse(bm.get().isDirect());
+
+        STraceBufChunk c = null;
+        for (int i = 0; i < 100 && (c == null || !c.isDirect()); i++) {
+            System.gc();
+            Thread.sleep(10);
+            c = bm.get();
+        }
+
+        assertTrue("Lost direct chunks should be reclaimed.", c.isDirect());
+        assertTrue(bm.getNDirect() <= 2);
+    }
+
+    private void checkWriteAndRead(STraceBufManager bm) {
+        TestTraceBufOutput o = new TestTraceBufOutput();
+        TestSTraceHandler h = new TestSTraceHandler(bm, new SymbolRegistry(), o);
+        String s = STTrcTestUtils.mkString(200);
+
+        for (int i = 0; i < 100; i++) {
+            h.writeLong(i * 0x1234567890L - 42L);
+        }
+        h.writeString(s);
+        h.writeInt(-1);
+        h.flush();
+
+        assertTrue(o.getChunks().getNext() != null);
+
+        CborDataReader rdr = new CborDataReader(new ChunkedCborInput(o.getChunks()));
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 0x1234567890L - 42L, rdr.readLong());
+        }
+        assertEquals(s, rdr.readStr());
+        assertEquals(-1, rdr.readInt());
+    }
+
+    @Test
+    public void testWriteAndReadHeapChunks() {
+        checkWriteAndRead(new STraceBufManager(64, 4, 1));
+    }
+
+    @Test
+    public void testWriteAndReadDirectChunks() {
+        checkWriteAndRead(new STraceBufManager(64, 4, 1, true, 64 * 1024));
+    }
+
+    @Test
+    public void testConcurrentGetsAndPuts() throws Exception {
+        final STraceBufManager bm = new STraceBufManager(64, 32, 4);
+        final int nThreads = 8, nCycles = 20000;
+        final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(nThreads);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final Map<STraceBufChunk,Thread> inUse = new ConcurrentHashMap<STraceBufChunk, Thread>();
+
+        for (int t = 0; t < nThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < nCycles; i++) {
+                            STraceBufChunk c = chain(bm, 1 + i % 3);
+                            for (STraceBufChunk ch = c; ch != null; ch = ch.getNext()) {
+                                // Chunk must not be handed out to two threads at once.
+                                if (inUse.put(ch, Thread.currentThread()) != null) {
+                                    errors.incrementAndGet();
+                                }
+                            }
+                            for (STraceBufChunk ch = c; ch != null; ch = ch.getNext()) {
+                                inUse.remove(ch);
+                            }
+                            bm.put(c);
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        assertEquals(0, errors.get());
+        assertEquals(bm.getnAllocs() + bm.getnReuses(), bm.getNGets());
+        assertTrue(bm.getNChunks() <= 32);
+        assertEquals(bm.getnAllocs(), bm.getNChunks() + bm.getnDrops());
+    }
+}
@@ -16,12 +16,15 @@
 
 package com.jitlogic.zorka.core.test.tracer;
 
+import com.jitlogic.zorka.common.cbor.CborDataReader;
 import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
 import com.jitlogic.zorka.common.util.ObjectInspector;
 import com.jitlogic.zorka.common.util.ZorkaUtil;
 import com.jitlogic.zorka.core.spy.ltracer.TraceHandler;
+import com.jitlogic.zorka.core.spy.stracer.ChunkedCborInput;
 import com.jitlogic.zorka.core.spy.stracer.STraceBufChunk;
 import com.jitlogic.zorka.core.spy.stracer.STraceBufManager;
+import com.jitlogic.zorka.core.spy.stracer.STraceHandler;
 import com.jitlogic.zorka.core.test.spy.support.cbor.TestTraceBufOutput;
 import com.jitlogic.zorka.core.test.spy.support.cbor.TestSTraceHandler;
 import com.jitlogic.zorka.core.test.support.ZorkaFixture;
@@ -36,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.chunksCount;
 import static com.jitlogic.zorka.core.test.spy.support.cbor.STTrcTestUtils.decodeTrace;
@@ -396,6 +400,89 @@ public class STraceHandlerUnitTest extends ZorkaFixture {
 
     // TODO test for forced flush of embedded trace;
 
+    private enum Color { RED, GREEN }
+
+    private CborDataReader roundTrip(Object...objs) {
+        for (Object obj : objs) {
+            r.writeObject(obj);
+        }
+        r.flush();
+        return new CborDataReader(new ChunkedCborInput(o.getChunks()));
+    }
+
+    @Test
+    public void testWriteReadPrimitives() {
+        Object[] objs = {
+                0, 23, 24, 255, 256, 65535, 65536, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, -24, -25, -65537,
+                Long.MAX_VALUE, Long.MIN_VALUE, 1L << 40, -(1L << 40),
+                (byte)-3, (short)1000, true, false, null, 1.5f, -2.25d };
+        CborDataReader rdr = roundTrip(objs);
+
+        for (Object obj : objs) {
+            Object expected = obj instanceof Byte || obj instanceof Short || obj instanceof Integer
+                    ? (Object)((Number)obj).longValue() : obj;
+            assertEquals(expected, rdr.readObj());
+        }
+    }
+
+    @Test
+    public void testWriteReadUtf8Strings() {
+        String[] strs = {
+                "", "abc", "za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 ja\u017a\u0144", "\u65e5\u672c\u8a9e",
+                "smile: \uD83D\uDE00", mkString(300), mkString(100) + "\u0119\u015b" + mkString(100)
+        };
+        CborDataReader rdr = roundTrip((Object[])strs);
+
+        for (String s : strs) {
+            assertEquals(s, rdr.readObj());
+        }
+
+        assertTrue("Long strings should span over chunks", chunksCount(o.getChunks()) > 1);
+    }
+
+    @Test
+    public void testWriteUnpairedSurrogatesAsQuestionMarks() {
+        CborDataReader rdr = roundTrip("a\uD800b", '\uDC00', 'x', '\u0119');
+        assertEquals("a?b", rdr.readObj());
+        assertEquals("?", rdr.readObj());
+        assertEquals("x", rdr.readObj());
+        assertEquals("\u0119", rdr.readObj());
+    }
+
+    @Test
+    public void testWriteReadNativeTypes() {
+        StringBuilder sb = new StringBuilder("sb");
+        CborDataReader rdr = roundTrip(new byte[] { 1, 2, 3 }, Color.GREEN, sb,
+                l(1, "a", l(2L, true)), new Object[] { "x", 1 }, new TreeSet<String>(Arrays.asList("b", "a")),
+                m("a", 1, "b", l("c")));
+
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[])rdr.readObj());
+        assertEquals("GREEN", rdr.readObj());
+        assertEquals("sb", rdr.readObj());
+        assertEquals(l(1L, "a", l(2L, true)), rdr.readObj());
+        assertEquals(l("x", 1L), rdr.readObj());
+        assertEquals(l("a", "b"), rdr.readObj());
+        assertEquals(m("a", 1L, "b", l("c")), rdr.readObj());
+    }
+
+    @Test
+    public void testWriteCollectionsWithLimits() {
+        List<Object> deep = new ArrayList<Object>();
+        deep.add(l(l(l(l("x")))));
+        List<Integer> large = new ArrayList<Integer>();
+        for (int i = 0; i < STraceHandler.MAX_OBJ_ITEMS * 2; i++) {
+            large.add(i);
+        }
+
+        CborDataReader rdr = roundTrip(deep, large, new Object() {
+            public String toString() { return "custom"; }
+        });
+
+        assertEquals(l(l(l(l("[x]")))), rdr.readObj());
+        assertEquals(STraceHandler.MAX_OBJ_ITEMS, ((List)rdr.readObj()).size());
+        assertEquals("custom", rdr.readObj());
+    }
+
     // TODO test for automatic flush of embedded trace;
 
     // TODO test for dropping partially sent trace;
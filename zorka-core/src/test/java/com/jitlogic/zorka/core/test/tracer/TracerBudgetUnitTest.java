@@ -0,0 +1,182 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.tracer;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.tuner.OverheadController;
+import com.jitlogic.zorka.core.spy.tuner.RankItem;
+import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
+import com.jitlogic.zorka.core.spy.tuner.ZtxMatcherSet;
+import com.jitlogic.zorka.core.test.spy.support.TestSpyRetransformer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static com.jitlogic.zorka.common.util.ZorkaUtil.rmrf;
+import static org.junit.Assert.*;
+
+public class TracerBudgetUnitTest {
+
+    /** One second cycle. */
+    private static final long DT = 1000000000L;
+
+    private File tmpDir;
+    private SymbolRegistry registry = new SymbolRegistry();
+    private ZtxMatcherSet matcherSet;
+    private TestSpyRetransformer retransformer = new TestSpyRetransformer();
+    private TracerTuner tuner;
+    private int[] m;
+
+    @Before
+    public void setUp() throws Exception {
+        tmpDir = new File("/tmp/zorka-unit-test");
+        rmrf(tmpDir);
+        tmpDir.mkdirs();
+
+        matcherSet = new ZtxMatcherSet(tmpDir, new File(tmpDir, "_log.ztx"), registry, true, false);
+
+        Properties props = new Properties();
+        props.setProperty("tracer.tuner.qlen", "0");
+        tuner = new TracerTuner(new ZorkaConfig(props), registry, retransformer, matcherSet);
+
+        m = new int[4];
+        for (int i = 0; i < m.length; i++) {
+            m[i] = registry.methodId("test.Class" + i, "method", "()V");
+        }
+    }
+
+    /** Budget: 2% of one CPU, probe cost: 100ns, so budget is 200k calls/s, low watermark 100k calls/s. */
+    private OverheadController controller() {
+        return new OverheadController(tuner, registry, 2.0, 50, 2, 100, 1);
+    }
+
+    private List<RankItem> ranks() {
+        return Arrays.asList(new RankItem(m[0], 300000), new RankItem(m[1], 100000),
+                new RankItem(m[2], 50000), new RankItem(m[3], 50000));
+    }
+
+    @Test
+    public void testExcludeWhenOverBudget() {
+        OverheadController oc = controller();
+
+        oc.cycle(500000, DT, ranks(), 512, 0);
+
+        assertEquals(OverheadController.OVER, oc.getState());
+        assertEquals(5.0, oc.getOverhead(), 0.01);
+        assertTrue(matcherSet.isExcluded(m[0]));
+        assertTrue(matcherSet.isExcluded(m[1]));
+        assertFalse(matcherSet.isExcluded(m[2]));
+        assertEquals(2, oc.getExcludedCount());
+        assertEquals(2, retransformer.getClassNames().size());
+        assertFalse("Budget exclusions should not be persisted.", new File(tmpDir, "_log.ztx").exists());
+    }
+
+    @Test
+    public void testHoldAfterChangeAndStayWithinBand() {
+        OverheadController oc = controller();
+
+        oc.cycle(500000, DT, ranks(), 512, 0);
+        oc.cycle(500000, DT, ranks().subList(2, 4), 512, 0);
+        assertEquals(OverheadController.HOLD, oc.getState());
+        oc.cycle(500000, DT, ranks().subList(2, 4), 512, 0);
+        assertEquals(OverheadController.HOLD, oc.getState());
+        assertFalse(matcherSet.isExcluded(m[2]));
+
+        oc.cycle(150000, DT, ranks().subList(2, 4), 512, 0);
+        assertEquals(OverheadController.OK, oc.getState());
+        assertEquals(2, oc.getExcludedCount());
+    }
+
+    @Test
+    public void testReincludeCheapestWhenBelowLowWatermark() {
+        OverheadController oc = controller();
+
+        oc.cycle(500000, DT, ranks(), 512, 0);
+        oc.cycle(50000, DT, ranks().subList(2, 4), 512, 0);
+        oc.cycle(50000, DT, ranks().subList(2, 4), 512, 0);
+        oc.cycle(50000, DT, ranks().subList(2, 4), 512, 0);
+
+        assertEquals(OverheadController.UNDER, oc.getState());
+        assertTrue("Expensive method should stay excluded.", matcherSet.isExcluded(m[0]));
+        assertFalse("Cheaper method fits in budget again.", matcherSet.isExcluded(m[1]));
+        assertTrue(matcherSet.classMatch("test.Class1"));
+        assertFalse(matcherSet.classMatch("test.Class0"));
+        assertEquals(1, oc.getExcludedCount());
+        assertEquals(1, oc.getInclusions());
+    }
+
+    @Test
+    public void testDisabledController() {
+        OverheadController oc = new OverheadController(tuner, registry, 0.0, 50, 2, 100, 1);
+        assertFalse(oc.isEnabled());
+
+        oc.cycle(500000, DT, ranks(), 512, 0);
+
+        assertEquals(OverheadController.DISABLED, oc.getState());
+        assertFalse(matcherSet.isExcluded(m[0]));
+
+        oc.setBudget(2.0);
+        oc.cycle(500000, DT, ranks(), 512, 0);
+        assertTrue(matcherSet.isExcluded(m[0]));
+    }
+
+    @Test
+    public void testCalibrateProbeCost() {
+        OverheadController oc = new OverheadController(tuner, registry, 2.0, 50, 2, 0, 1);
+        long cost = oc.getProbeCost();
+        assertTrue("Probe cost should be positive: " + cost, cost > 0);
+        assertEquals(cost, oc.getProbeCost());
+    }
+
+    @Test
+    public void testPersistentExclusionsCannotBeRemoved() {
+        matcherSet.add("test.Class0", "method", "()V", true);
+        matcherSet.add("test.Class0", "other", "()V", false);
+
+        assertFalse(matcherSet.remove(m[0]));
+        assertTrue(matcherSet.remove(registry.methodId("test.Class0", "other", "()V")));
+
+        assertTrue(matcherSet.isExcluded(m[0]));
+        assertFalse("Class stays excluded by persistent exclusion.", matcherSet.classMatch("test.Class0"));
+    }
+
+    @Test
+    public void testPersistentExclusionPromotesTransientOne() throws Exception {
+        int other = registry.methodId("test.Class0", "other", "()V");
+        assertEquals(2, tuner.excludeMethods(Arrays.asList(m[0], other), false));
+        retransformer.getClassNames().clear();
+
+        assertEquals(1, tuner.excludeMethods(Arrays.asList(m[0]), true));
+        assertTrue("No need to reinstrument excluded method.", retransformer.getClassNames().isEmpty());
+        assertEquals(0, tuner.excludeMethods(Arrays.asList(m[0]), true));
+
+        String log = new String(ZorkaUtil.slurp(new FileInputStream(new File(tmpDir, "_log.ztx"))));
+        assertEquals("test|Class0|method|()V\n", log);
+
+        assertFalse(matcherSet.remove(m[0]));
+        assertTrue(matcherSet.remove(other));
+        assertTrue(matcherSet.isExcluded(m[0]));
+        assertFalse("Class stays excluded by persistent exclusion.", matcherSet.classMatch("test.Class0"));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2012-2020 Rafal Lewczuk <rafal.lewczuk@jitlogic.com>
+ * <p/>
+ * This is free software. You can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * <p/>
+ * This software is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more details.
+ * <p/>
+ * You should have received a copy of the GNU General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.jitlogic.zorka.core.test.tracer;
+
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.core.spy.tuner.TraceTuningStats;
+import com.jitlogic.zorka.core.spy.tuner.TracerTuner;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.jitlogic.zorka.core.test.support.CoreTestUtil.getField;
+import static org.junit.Assert.*;
+
+public class TracerTuningExchangeUnitTest {
+
+    private static final int THREADS = 64;
+    private static final int ROUNDS = 500;
+    private static final int CALLS = 100;
+
+    private TracerTuner tuner;
+
+    private TracerTuner tuner(int qlen) {
+        Properties props = new Properties();
+        props.setProperty("tracer.tuner.qlen", "" + qlen);
+        props.setProperty("tracer.tuner.interval", "" + Integer.MAX_VALUE);
+        tuner = new TracerTuner(new ZorkaConfig(props), new SymbolRegistry(), null, null);
+        return tuner;
+    }
+
+    @After
+    public void stopTuner() {
+        if (tuner != null) {
+            tuner.stop();
+        }
+    }
+
+    @Test
+    public void testExchangeNeverBlocksWhenTunerIsBusy() {
+        tuner(16);
+
+        TraceTuningStats s1 = tuner.exchange(null);
+        s1.markRank(10, 1);
+        s1.setCalls(1);
+        s1.setTstamp(1);
+
+        TraceTuningStats s2 = tuner.exchange(s1);
+        assertNotSame(s1, s2);
+
+        s2.markRank(10, 1);
+        s2.setCalls(1);
+        assertSame("Tuner holds other buffer, so the same one should be returned.", s2, tuner.exchange(s2));
+
+        assertEquals(1, tuner.drain());
+        assertSame(s1, tuner.exchange(s2));
+        assertEquals(0L, s1.getCalls());
+        assertEquals(0L, s1.getRank(10));
+
+        assertEquals(1, tuner.drain());
+        assertEquals(0, tuner.drain());
+    }
+
+    @Test
+    public void testSynchronousExchange() throws Exception {
+        tuner(0);
+
+        TraceTuningStats s1 = tuner.exchange(null);
+        s1.markRank(10, 3);
+        s1.setCalls(3);
+        s1.setTstamp(1);
+
+        TraceTuningStats s2 = tuner.exchange(s1);
+        assertNotSame(s1, s2);
+        assertEquals(3L, (long)(Long)getField(tuner, "calls"));
+        assertSame(s1, tuner.exchange(s2));
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentExchangeStress() throws Exception {
+        tuner(16);
+        tuner.start();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final int[] buffers = new int[THREADS];
+
+        Thread[] threads = new Thread[THREADS];
+
+        for (int t = 0; t < THREADS; t++) {
+            final int idx = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Set<TraceTuningStats> seen = Collections.newSetFromMap(
+                                new IdentityHashMap<TraceTuningStats, Boolean>());
+                        start.await();
+                        TraceTuningStats stats = tuner.exchange(null);
+                        for (int r = 0; r < ROUNDS; r++) {
+                            seen.add(stats);
+                            for (int i = 0; i < CALLS; i++) {
+                                stats.markRank(idx + 1, 1);
+                            }
+                            stats.setCalls(stats.getCalls() + CALLS);
+                            stats.setTstamp(1);
+                            stats = tuner.exchange(stats);
+                        }
+                        // Flush: wait until last buffer gets accepted by tuner
+                        for (TraceTuningStats s = stats; s.getCalls() > 0; ) {
+                            stats = tuner.exchange(s);
+                            if (stats != s) break;
+                            Thread.yield();
+                        }
+                        buffers[idx] = seen.size();
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        start.countDown();
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertNull(error.get());
+
+        long expected = (long)THREADS * ROUNDS * CALLS;
+
+        while ((Long)getField(tuner, "calls") < expected) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(expected, (long)(Long)getField(tuner, "calls"));
+
+        int[] ranks = getField(tuner, "ranks");
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals("Rank of mid=" + (t+1), (long)ROUNDS * CALLS, ranks[t+1]);
+            assertTrue("Each thread should use at most two buffers: " + buffers[t], buffers[t] <= 2);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.jitlogic.zorka.core.test.tracer;
+
+import com.jitlogic.zorka.common.http.HttpHandler;
+import com.jitlogic.zorka.common.http.HttpMessage;
+import com.jitlogic.zorka.common.stats.AgentDiagnostics;
+import com.jitlogic.zorka.common.tracedata.MetadataChecker;
+import com.jitlogic.zorka.common.tracedata.SymbolRegistry;
+import com.jitlogic.zorka.common.tracedata.SymbolicRecord;
+import com.jitlogic.zorka.common.util.CircuitBreaker;
+import com.jitlogic.zorka.common.util.ZorkaConfig;
+import com.jitlogic.zorka.common.util.ZorkaUtil;
+import com.jitlogic.zorka.core.spy.output.ZicoHttpOutput;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class ZicoHttpOutputRetryUnitTest {
+
+    private static class Rec implements SymbolicRecord {
+        private final int id;
+
+        private Rec(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void traverse(MetadataChecker checker) {
+        }
+    }
+
+    /** Collector stub: fails first (or all) requests, records delivered data. */
+    private static class Collector implements HttpHandler {
+        private volatile int failures;
+        private volatile int calls;
+        private final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        private final List<byte[]> raw = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        @Override
+        public HttpMessage handle(HttpMessage req) {
+            calls++;
+            if (failures > 0) {
+                failures--;
+                return HttpMessage.RESP(500, "Collector unavailable.");
+            }
+            try {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                req.getBodyProducer().write(os);
+                delivered.add(os.toString());
+                raw.add(os.toByteArray());
+            } catch (IOException e) {
+                return HttpMessage.RESP(500, e.getMessage());
+            }
+            return HttpMessage.RESP(200, "OK");
+        }
+    }
+
+    private static class TestOutput extends ZicoHttpOutput {
+        private final List<Integer> released = Collections.synchronizedList(new ArrayList<Integer>());
+
+        private TestOutput(Map<String,String> conf, HttpHandler collector) {
+            super(new ZorkaConfig(), conf, new SymbolRegistry(), collector);
+        }
+
+        @Override
+        protected void sendRecord(SymbolicRecord sr) {
+            byte[] data = ("" + ((Rec)sr).id).getBytes();
+            send(data, data.length, submitTraceUrl, 1L, 1L, false);
+        }
+
+        @Override
+        protected void resetState() {
+        }
+
+        @Override
+        protected void release(SymbolicRecord sr) {
+            released.add(((Rec)sr).id);
+        }
+    }
+
+    private Collector collector = new Collector();
+
+    private TestOutput output;
+
+    private TestOutput output(String...kv) {
+        Map<String,String> conf = ZorkaUtil.map(
+            "http.qlen", "0",
+            "http.retries", "10",
+            "http.retry.time", "10",
+            "http.retry.exp", "2",
+            "http.breaker.threshold", "100",
+            "http.breaker.time", "200");
+        for (int i = 1; i < kv.length; i += 2) {
+            conf.put(kv[i-1], kv[i]);
+        }
+        output = new TestOutput(conf, collector);
+        return output;
+    }
+
+    @After
+    public void stopOutput() {
+        if (output != null) {
+            output.stop();
+        }
+    }
+
+    private static void await(String msg, List<?> lst, int size) throws Exception {
+        for (int i = 0; i < 500 && lst.size() < size; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(msg, size, lst.size());
+    }
+
+    @Test
+    public void testFailedRecordsAreRetriedWhileNewRecordsKeepFlowing() throws Exception {
+        output("http.qlen", "16");
+        output.start();
+        collector.failures = 3;
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(output.submit(new Rec(i)));
+        }
+
+        await("all records should be sent", output.released, 5);
+        assertEquals(8, collector.calls);
+        assertEquals(5, new HashSet<String>(collector.delivered).size());
+        assertEquals(0, output.getRetryQueueSize());
+    }
+
+    @Test
+    public void testRecordLostAfterRetriesExhausted() throws Exception {
+        output("http.qlen", "16", "http.retries", "2", "http.retry.time", "1");
+        long lost = AgentDiagnostics.get(AgentDiagnostics.ZICO_PACKETS_LOST);
+        long retries = AgentDiagnostics.get(AgentDiagnostics.ZICO_RETRIES);
+        output.start();
+        collector.failures = Integer.MAX_VALUE;
+
+        output.submit(new Rec(1));
+
+        await("record should be dropped", output.released, 1);
+        assertEquals(3, collector.calls);
+        assertEquals(lost + 1, AgentDiagnostics.get(AgentDiagnostics.ZICO_PACKETS_LOST));
+        assertEquals(retries + 2, AgentDiagnostics.get(AgentDiagnostics.ZICO_RETRIES));
+    }
+
+    @Test
+    public void testBreakerDefersRecordsUntilCollectorRecovers() throws Exception {
+        output("http.breaker.threshold", "3", "http.retry.time", "100");
+        long trips = AgentDiagnostics.get(AgentDiagnostics.ZICO_BREAKER_TRIPS);
+        collector.failures = Integer.MAX_VALUE;
+
+        for (int i = 1; i <= 5; i++) {
+            output.submit(new Rec(i));
+        }
+
+        assertEquals("no sends after breaker opens", 3, collector.calls);
+        assertEquals("OPEN", output.getBreakerState());
+        assertEquals(CircuitBreaker.OPEN, AgentDiagnostics.get(AgentDiagnostics.ZICO_BREAKER_STATE));
+        assertEquals(trips + 1, AgentDiagnostics.get(AgentDiagnostics.ZICO_BREAKER_TRIPS));
+        assertEquals(5, output.getRetryQueueSize());
+        assertEquals(0, output.released.size());
+
+        collector.failures = 0;
+        Thread.sleep(250);
+        output.submit(new Rec(6));
+
+        assertEquals("CLOSED", output.getBreakerState());
+        assertEquals(9, collector.calls);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6"), sorted(collector.delivered));
+        assertEquals(0, output.getRetryQueueSize());
+    }
+
+    @Test
+    public void testRetryQueueOverflowDropsRecords() throws Exception {
+        output("http.retry.qlen", "2", "http.retry.time", "10000");
+        long dropped = AgentDiagnostics.get(AgentDiagnostics.ZICO_PACKETS_DROPPED);
+        collector.failures = Integer.MAX_VALUE;
+
+        for (int i = 1; i <= 4; i++) {
+            output.submit(new Rec(i));
+        }
+
+        assertEquals(2, output.getRetryQueueSize());
+        assertEquals(Arrays.asList(3, 4), output.released);
+        assertEquals(dropped + 2, AgentDiagnostics.get(AgentDiagnostics.ZICO_PACKETS_DROPPED));
+    }
+
+    private static String inflate(byte[] data) throws Exception {
+        InflaterInputStream is = new InflaterInputStream(new ByteArrayInputStream(data));
+        return new String(ZorkaUtil.slurp(is));
+    }
+
+    @Test
+    public void testCompressedOutputReleasesDeflaterOnStop() throws Exception {
+        output("http.compress", "yes");
+
+        output.submit(new Rec(1));
+        output.stop();
+
+        // Deflater is recreated if output is used after being stopped
+        output.submit(new Rec(2));
+        output.stop();
+
+        assertEquals(2, collector.raw.size());
+        assertEquals("1", inflate(collector.raw.get(0)));
+        assertEquals("2", inflate(collector.raw.get(1)));
+    }
+
+    private static List<String> sorted(List<String> lst) {
+        List<String> rslt = new ArrayList<String>(lst);
+        Collections.sort(rslt);
+        return rslt;
+    }
+}